@@ -91,9 +91,11 @@ public class GalleryClient {
   * @param keywords search keywords
   * @param start staring index for search
   * @param count number of results
+  * @param cursor cursor returned with the previous page, or null
   * @param sortOrder currently unused,
   */
-  public void FindApps(String keywords, int start, int count, int sortOrder, final boolean refreshable) {
+  public void FindApps(String keywords, int start, int count, String cursor, int sortOrder,
+      final boolean refreshable) {
      // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -109,7 +111,7 @@ public class GalleryClient {
     };
 
     //this is below the call back, but of course it is done first
-    ode.getGalleryService().findApps(keywords, start,count,callback);
+    ode.getGalleryService().findApps(keywords, start, count, cursor, callback);
   }
  /**
   * GetAppsByDeveloper gets apps by developer and then tells listeners when done
@@ -138,9 +140,11 @@ public class GalleryClient {
   * GetFeatured gets featured apps, currently unimplemented
   * @param start staring index
   * @param count number of results
+  * @param cursor cursor returned with the previous page, or null
   * @param sortOrder unused sort order
   */
-  public void GetFeatured(int start, int count, int sortOrder, final boolean refreshable) {
+  public void GetFeatured(int start, int count, String cursor, int sortOrder,
+      final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -155,14 +159,15 @@ public class GalleryClient {
       }
     };
     // This is below the call back, but of course it is done first
-    ode.getGalleryService().getFeaturedApp(start, count, callback);
+    ode.getGalleryService().getFeaturedApp(start, count, cursor, callback);
   }
  /**
   * GetMostRecent gets most recently updated apps then tells listeners
   * @param start staring index
   * @param count number of results
+  * @param cursor cursor returned with the previous page, or null
   */
-  public void GetMostRecent(int start, int count, final boolean refreshable) {
+  public void GetMostRecent(int start, int count, String cursor, final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -177,14 +182,15 @@ public class GalleryClient {
       }
     };
     // This is below the call back, but of course it is done first
-    ode.getGalleryService().getRecentApps(start, count, callback);
+    ode.getGalleryService().getRecentApps(start, count, cursor, callback);
   }
   /**
   * GetMostLiked gets the most liked apps then tells listeners
   * @param start staring index
   * @param count number of results
+  * @param cursor cursor returned with the previous page, or null
   */
-  public void GetMostLiked(int start, int count, final boolean refreshable) {
+  public void GetMostLiked(int start, int count, String cursor, final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -200,14 +206,16 @@ public class GalleryClient {
     };
 
     // ok, this is below the call back, but of course it is done first
-    ode.getGalleryService().getMostLikedApps(start,count,callback);
+    ode.getGalleryService().getMostLikedApps(start, count, cursor, callback);
   }
   /**
   * GetMostDownloaded gets the most downloaded apps then tells listeners
   * @param start staring index
   * @param count number of results
+  * @param cursor cursor returned with the previous page, or null
   */
-  public void GetMostDownloaded(int start, int count, final boolean refreshable) {
+  public void GetMostDownloaded(int start, int count, String cursor,
+      final boolean refreshable) {
     // Callback for when the server returns us the apps
     final Ode ode = Ode.getInstance();
     final OdeAsyncCallback<GalleryAppListResult> callback = new OdeAsyncCallback<GalleryAppListResult>(
@@ -223,7 +231,7 @@ public class GalleryClient {
     };
 
     // ok, this is below the call back, but of course it is done first
-    ode.getGalleryService().getMostDownloadedApps(start,count,callback);
+    ode.getGalleryService().getMostDownloadedApps(start, count, cursor, callback);
   }
   /**
    * GetRemixedToList gets children list that apps remixed to then tells listeners
@@ -313,9 +321,9 @@ public class GalleryClient {
   */
   public void appWasChanged() {
     // for now, let's update the recent list, the popular list and feature list (in case one was deleted)
-    GetMostRecent(0,GalleryList.NUMAPPSTOSHOW, true);
-    GetMostLiked(0,GalleryList.NUMAPPSTOSHOW, true);
-    GetFeatured(0, GalleryList.NUMAPPSTOSHOW, 0, true);
+    GetMostRecent(0,GalleryList.NUMAPPSTOSHOW, null, true);
+    GetMostLiked(0,GalleryList.NUMAPPSTOSHOW, null, true);
+    GetFeatured(0, GalleryList.NUMAPPSTOSHOW, null, 0, true);
   }
 
  /**
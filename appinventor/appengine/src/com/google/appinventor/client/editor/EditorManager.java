@@ -17,8 +17,12 @@ import com.google.appinventor.client.explorer.project.Project;
 import com.google.appinventor.client.output.OdeLog;
 import com.google.appinventor.client.settings.project.ProjectSettings;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FileDelta;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileDescriptorWithDelta;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
+import com.google.appinventor.shared.rpc.project.SaveFilesResult;
 import com.google.common.collect.Maps;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Timer;
@@ -51,6 +55,10 @@ public final class EditorManager {
   // TODO(user): Make this configurable.
   private static final int AUTO_SAVE_FORCED_TIMEOUT = 30000;
 
+  // Files of at least this many characters are saved by sending their change
+  // from the last content that the server acknowledged.
+  private static final int MIN_DELTA_SAVE_LENGTH = 50 * 1024;
+
   // Fields used for saving and auto-saving.
   private final Set<ProjectSettings> dirtyProjectSettings;
   private final Set<FileEditor> dirtyFileEditors;
@@ -58,11 +66,36 @@ public final class EditorManager {
   private boolean autoSaveIsScheduled;
   private long autoSaveRequestTime;
 
+  // The last content of the large files that the server acknowledged, by
+  // project ID and file ID.
+  private final Map<String, SavedContent> savedContents;
+
   private class DateHolder {
     long date;
     long projectId;
   }
 
+  /*
+   * A content that the server acknowledged. Its checksum, which the changes
+   * from it are made against, is computed at most once.
+   */
+  private static class SavedContent {
+    final String content;
+    private String checksum;
+
+    SavedContent(String content, String checksum) {
+      this.content = content;
+      this.checksum = checksum;
+    }
+
+    String getChecksum() throws ChecksumedFileException {
+      if (checksum == null) {
+        checksum = FileDelta.checksum(content);
+      }
+      return checksum;
+    }
+  }
+
   /**
    * Creates the editor manager.
    */
@@ -71,6 +104,7 @@ public final class EditorManager {
 
     dirtyProjectSettings = new HashSet<ProjectSettings>();
     dirtyFileEditors = new HashSet<FileEditor>();
+    savedContents = Maps.newHashMap();
 
     autoSaveTimer = new Timer() {
       @Override
@@ -146,6 +180,7 @@ public final class EditorManager {
         if (fileEditor != null) {
           dirtyFileEditors.remove(fileEditor);
         }
+        savedContents.remove(savedContentKey(projectId, fileId));
       }
       projectEditor.closeFileEditors(fileIds);
     }
@@ -165,6 +200,12 @@ public final class EditorManager {
     ProjectSettings projectSettings = project.getSettings();
     dirtyProjectSettings.remove(projectSettings);
     openProjectEditors.remove(projectId);
+    String keyPrefix = savedContentKey(projectId, "");
+    for (String key : new ArrayList<String>(savedContents.keySet())) {
+      if (key.startsWith(keyPrefix)) {
+        savedContents.remove(key);
+      }
+    }
   }
 
   /**
@@ -339,12 +380,15 @@ public final class EditorManager {
 
 
   /**
-   * This code used to send the contents of all changed files to the server
-   * in the same RPC transaction. However we are now sending them separately
-   * so that we can have more fine grained control over handling errors that
-   * happen only on one file. In particular, we need to handle the case where
-   * a trivial blocks workspace is attempting to be written over a non-trival
-   * file.
+   * Sends the contents of all changed files of each project to the server in
+   * one RPC, which saves them together. Large files that were saved before
+   * are sent as their change from the last saved content.
+   *
+   * The server reports the files that it could not save, and each of those
+   * is then handled on its own. A file whose change doesn't apply to the
+   * content on the server (for example because the project was changed in
+   * another window) is saved whole. A trivial blocks workspace that would be
+   * written over a non-trivial file is shown in the blocks truncated dialog.
    *
    * If any unhandled errors occur while saving, the afterSavingFiles
    * command will not be executed.  If filesWithContent is empty, the
@@ -363,41 +407,131 @@ public final class EditorManager {
       if (afterSavingFiles != null) {
         afterSavingFiles.execute();
       }
+      return;
+    }
 
-    } else {
-      for (FileDescriptorWithContent fileDescriptor : filesWithContent ) {
-        final long projectId = fileDescriptor.getProjectId();
-        final String fileId = fileDescriptor.getFileId();
-        final String content = fileDescriptor.getContent();
-        Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
-          projectId, fileId, false, content, new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
-            @Override
-            public void onSuccess(Long date) {
-              if (dateHolder.date != 0) {
-                // This sets the project modification time to that of one of
-                // the successful file saves. It doesn't really matter which
-                // file date we use, they will all be close. However it is important
-                // to use some files date because that will be based on the server's
-                // time. If we used the local clients time, then we may be off if the
-                // client's computer's time isn't set correctly.
-                dateHolder.date = date;
-                dateHolder.projectId = projectId;
-              }
-              if (afterSavingFiles != null) {
-                afterSavingFiles.execute();
-              }
-            }
-            @Override
-            public void onFailure(Throwable caught) {
-              // Here is where we handle BlocksTruncatedException
-              if (caught instanceof BlocksTruncatedException) {
-                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+    // Execute the afterSavingFiles command once every file has been saved.
+    final AtomicInteger pendingFiles = new AtomicInteger(filesWithContent.size());
+    Command fileSaved = new Command() {
+      @Override
+      public void execute() {
+        if (pendingFiles.decrementAndGet() == 0 && afterSavingFiles != null) {
+          afterSavingFiles.execute();
+        }
+      }
+    };
+
+    Map<Long, List<FileDescriptorWithContent>> filesByProject = Maps.newLinkedHashMap();
+    for (FileDescriptorWithContent fileDescriptor : filesWithContent) {
+      List<FileDescriptorWithContent> files = filesByProject.get(fileDescriptor.getProjectId());
+      if (files == null) {
+        files = new ArrayList<FileDescriptorWithContent>();
+        filesByProject.put(fileDescriptor.getProjectId(), files);
+      }
+      files.add(fileDescriptor);
+    }
+    for (Map.Entry<Long, List<FileDescriptorWithContent>> project : filesByProject.entrySet()) {
+      saveProjectFiles(project.getKey(), project.getValue(), fileSaved, dateHolder);
+    }
+  }
+
+  /*
+   * Saves the changed files of a project with one saveFiles RPC.
+   */
+  private void saveProjectFiles(final long projectId,
+      final List<FileDescriptorWithContent> filesWithContent, final Command fileSaved,
+      final DateHolder dateHolder) {
+    final List<FileDescriptorWithDelta> filesToSend = new ArrayList<FileDescriptorWithDelta>();
+    for (FileDescriptorWithContent fileDescriptor : filesWithContent) {
+      filesToSend.add(getFileToSend(projectId, fileDescriptor.getFileId(),
+          fileDescriptor.getContent()));
+    }
+    Ode.getInstance().getProjectService().saveFiles(Ode.getInstance().getSessionId(), projectId,
+        filesToSend, new OdeAsyncCallback<SaveFilesResult>(MESSAGES.saveErrorMultipleFiles()) {
+          @Override
+          public void onSuccess(SaveFilesResult result) {
+            for (int i = 0; i < filesWithContent.size(); i++) {
+              String fileId = filesWithContent.get(i).getFileId();
+              String content = filesWithContent.get(i).getContent();
+              // A delta carries the checksum of the content it saves.
+              FileDelta delta = filesToSend.get(i).getDelta();
+              OdeAsyncCallback<Long> callback = createSaveCallback(projectId, fileId, content,
+                  (delta != null) ? delta.getChecksum() : null, fileSaved, dateHolder);
+              if (result.getStaleFileIds().contains(fileId)) {
+                OdeLog.log("Saving all of " + fileId + ", the server doesn't have its last content");
+                savedContents.remove(savedContentKey(projectId, fileId));
+                Ode.getInstance().getProjectService().save2(Ode.getInstance().getSessionId(),
+                    projectId, fileId, false, content, callback);
+              } else if (result.getTruncatedFileIds().contains(fileId)) {
+                // Here is where we handle BlocksTruncatedException
+                Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, callback);
               } else {
-                super.onFailure(caught);
+                callback.onSuccess(result.getModificationDate());
               }
             }
-          });
+          }
+        });
+  }
+
+  /*
+   * Returns the callback for the save of one file, which executes the
+   * fileSaved command once the file is saved. The checksum of the content is
+   * kept with it if it is known, or null.
+   */
+  private OdeAsyncCallback<Long> createSaveCallback(final long projectId, final String fileId,
+      final String content, final String checksum, final Command fileSaved,
+      final DateHolder dateHolder) {
+    return new OdeAsyncCallback<Long>(MESSAGES.saveErrorMultipleFiles()) {
+      @Override
+      public void onSuccess(Long date) {
+        if (content.length() >= MIN_DELTA_SAVE_LENGTH) {
+          savedContents.put(savedContentKey(projectId, fileId),
+              new SavedContent(content, checksum));
+        } else {
+          savedContents.remove(savedContentKey(projectId, fileId));
+        }
+        if (date != 0) {
+          // This sets the project modification time to that of one of
+          // the successful file saves. It doesn't really matter which
+          // file date we use, they will all be close. However it is important
+          // to use some files date because that will be based on the server's
+          // time. If we used the local clients time, then we may be off if the
+          // client's computer's time isn't set correctly.
+          dateHolder.date = date;
+          dateHolder.projectId = projectId;
+        }
+        fileSaved.execute();
+      }
+      @Override
+      public void onFailure(Throwable caught) {
+        // Here is where we handle BlocksTruncatedException
+        if (caught instanceof BlocksTruncatedException) {
+          Ode.getInstance().blocksTruncatedDialog(projectId, fileId, content, this);
+        } else {
+          super.onFailure(caught);
+        }
+      }
+    };
+  }
+
+  /*
+   * Returns the content of a file to send to the server. Large files that
+   * were saved before are sent as their change from the last saved content.
+   */
+  private FileDescriptorWithDelta getFileToSend(long projectId, String fileId, String content) {
+    SavedContent savedContent = savedContents.get(savedContentKey(projectId, fileId));
+    if (savedContent != null && content.length() >= MIN_DELTA_SAVE_LENGTH) {
+      try {
+        return new FileDescriptorWithDelta(projectId, fileId,
+            FileDelta.create(savedContent.getChecksum(), savedContent.content, content));
+      } catch (ChecksumedFileException e) {
+        OdeLog.log("Can't compute the change of " + fileId + ": " + e.getMessage());
       }
     }
+    return new FileDescriptorWithDelta(projectId, fileId, content);
+  }
+
+  private static String savedContentKey(long projectId, String fileId) {
+    return projectId + "/" + fileId;
   }
 }
@@ -81,6 +81,11 @@ public class GalleryList extends Composite implements GalleryRequestListener {
   private int appFeaturedCounter = 0;
   private int appPopularCounter = 0;
   private int appSearchCounter = 0;
+  // Where the page after the shown ones starts, see GalleryAppListResult.getCursor()
+  private String appRecentCursor = null;
+  private String appFeaturedCursor = null;
+  private String appPopularCursor = null;
+  private String appSearchCursor = null;
   private boolean appRecentExhausted = false;
   private boolean appFeaturedExhausted = false;
   private boolean appPopularExhausted = false;
@@ -235,7 +240,7 @@ public class GalleryList extends Composite implements GalleryRequestListener {
         sb.addClickHandler(new ClickHandler() {
           //  @Override
           public void onClick(ClickEvent event) {
-            gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, 0, true);
+            gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, null, 0, true);
             searchText.setFocus(true);
           }
         });
@@ -243,7 +248,7 @@ public class GalleryList extends Composite implements GalleryRequestListener {
           //  @Override
           public void onKeyDown(KeyDownEvent e) {
             if(e.getNativeKeyCode() == KeyCodes.KEY_ENTER){
-              gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, 0, true);
+              gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, null, 0, true);
               searchText.setFocus(true);
             }
           }
@@ -251,15 +256,15 @@ public class GalleryList extends Composite implements GalleryRequestListener {
       } else if (request == REQUEST_RECENT) {
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
-        gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, false);
+        gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, appRecentCursor, false);
       } else if (request == REQUEST_MOSTLIKED) {
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
-        gallery.GetMostLiked(appPopularCounter, NUMAPPSTOSHOW, false);
+        gallery.GetMostLiked(appPopularCounter, NUMAPPSTOSHOW, appPopularCursor, false);
       } else if (request == REQUEST_FEATURED){
         generalTotalResultsLabel = new Label();
         container.add(generalTotalResultsLabel);
-        gallery.GetFeatured(appFeaturedCounter, NUMAPPSTOSHOW, 0, false);
+        gallery.GetFeatured(appFeaturedCounter, NUMAPPSTOSHOW, appFeaturedCursor, 0, false);
       }
       container.add(content);
 
@@ -283,28 +288,29 @@ public class GalleryList extends Composite implements GalleryRequestListener {
               if (!appFeaturedExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appFeaturedCounter += NUMAPPSTOSHOW;
-                gallery.GetFeatured(appFeaturedCounter, NUMAPPSTOSHOW, 0, false);
+                gallery.GetFeatured(appFeaturedCounter, NUMAPPSTOSHOW, appFeaturedCursor, 0, false);
               }
               break;
             case REQUEST_RECENT:
               if (!appRecentExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appRecentCounter += NUMAPPSTOSHOW;
-                gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, false);
+                gallery.GetMostRecent(appRecentCounter, NUMAPPSTOSHOW, appRecentCursor, false);
               }
               break;
             case REQUEST_SEARCH:
               if (!appSearchExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appSearchCounter += NUMAPPSTOSHOW;
-                gallery.FindApps(searchText.getText(), appSearchCounter, NUMAPPSTOSHOW, 0, false);
+                gallery.FindApps(searchText.getText(), appSearchCounter, NUMAPPSTOSHOW,
+                    appSearchCursor, 0, false);
               }
               break;
             case REQUEST_MOSTLIKED:
               if (!appPopularExhausted) {
                 // If the next page still has apps to retrieve, do it
                 appPopularCounter += NUMAPPSTOSHOW;
-                gallery.GetMostLiked(appPopularCounter, NUMAPPSTOSHOW, false);
+                gallery.GetMostLiked(appPopularCounter, NUMAPPSTOSHOW, appPopularCursor, false);
               }
               break;
           }
@@ -342,7 +348,7 @@ public class GalleryList extends Composite implements GalleryRequestListener {
     sb.addClickHandler(new ClickHandler() {
       //  @Override
       public void onClick(ClickEvent event) {
-        gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, 0, true);
+        gallery.FindApps(searchText.getText(), 0, NUMAPPSTOSHOW, null, 0, true);
       }
     });
   }
@@ -363,6 +369,10 @@ public class GalleryList extends Composite implements GalleryRequestListener {
           appFeaturedExhausted = false;
         }
         galleryGF.generateHorizontalAppList(appsResult.getApps(), appFeaturedContent, refreshable);
+        if (!refreshable) {
+          // A refresh shows the first page again but keeps the counter
+          appFeaturedCursor = appsResult.getCursor();
+        }
         if(appsResult.getTotalCount() < NUMAPPSTOSHOW || appFeaturedCounter + NUMAPPSTOSHOW >= appsResult.getTotalCount()){
           appFeaturedTab.getButtonNext().setVisible(false);
         }else{
@@ -384,8 +394,16 @@ public class GalleryList extends Composite implements GalleryRequestListener {
           appRecentExhausted = false;
         }
         galleryGF.generateHorizontalAppList(appsResult.getApps(), appRecentContent, refreshable);
+        if (!refreshable) {
+          appRecentCursor = appsResult.getCursor();
+        }
         break;
       case REQUEST_SEARCH:
+        if (refreshable) {
+          // A new search starts at the first page
+          appSearchCounter = 0;
+        }
+        appSearchCursor = appsResult.getCursor();
         appSearchTab.setKeywordTotalResultsLabel(appsResult.getKeyword(), appsResult.getTotalCount());
         if(appsResult.getTotalCount() == 0){
           appSearchTab.getNoResultsFound().setVisible(true);
@@ -419,6 +437,9 @@ public class GalleryList extends Composite implements GalleryRequestListener {
           appPopularExhausted = false;
         }
         galleryGF.generateHorizontalAppList(appsResult.getApps(), appPopularContent, refreshable);
+        if (!refreshable) {
+          appPopularCursor = appsResult.getCursor();
+        }
         break;
     }
   }
@@ -54,7 +54,7 @@ public class GalleryToolbar extends Composite {
     searchButton.addClickHandler(new ClickHandler() {
       @Override
       public void onClick(ClickEvent event) {
-        GalleryClient.getInstance().FindApps(searchText.getText(), 0, GalleryList.NUMAPPSTOSHOW, 0, true);
+        GalleryClient.getInstance().FindApps(searchText.getText(), 0, GalleryList.NUMAPPSTOSHOW, null, 0, true);
         searchText.setFocus(true);
         Ode.getInstance().switchToGalleryView();
         GalleryListBox.getGalleryListBox().getGalleryList().setSelectTabIndex(3); //TODO change this to constant
@@ -70,7 +70,7 @@ public class GalleryToolbar extends Composite {
       @Override
       public void onKeyDown(KeyDownEvent e) {
         if(e.getNativeKeyCode() == KeyCodes.KEY_ENTER){
-          GalleryClient.getInstance().FindApps(searchText.getText(), 0, GalleryList.NUMAPPSTOSHOW, 0, true);
+          GalleryClient.getInstance().FindApps(searchText.getText(), 0, GalleryList.NUMAPPSTOSHOW, null, 0, true);
           searchText.setFocus(true);
           Ode.getInstance().switchToGalleryView();
           GalleryListBox.getGalleryListBox().getGalleryList().setSelectTabIndex(3); //TODO change this to constant
@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.util.CacheHeaders;
+import com.google.appinventor.server.util.CacheHeadersImpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * BlobMigrationServlet -- Move project files from the Blobstore to GCS in
+ * the background
+ *
+ * GET shows the progress of the migration. POST with an "action" parameter
+ * of "start" (with "dryRun=true" to only count the files), "stop" or
+ * "resume" controls it.
+ *
+ * The migration itself is done by POSTs with "shard" and "run" parameters
+ * from the "blobmigration" task queue, see
+ * com.google.appinventor.server.storage.BlobMigration. It is restricted to
+ * admin users, the task queue manager operates with admin privileges.
+ *
+ */
+public class BlobMigrationServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BlobMigrationServlet.class.getName());
+
+  // Object used to safely set cache headers in responses
+  private static final CacheHeaders CACHE_HEADERS = new CacheHeadersImpl();
+
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    writeStatus(resp);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String shard = req.getParameter("shard");
+    if (shard != null) {
+      storageIo.migrateBlobFiles(Integer.parseInt(shard), Long.parseLong(req.getParameter("run")));
+      return;
+    }
+    String action = req.getParameter("action");
+    LOG.info("Blobstore migration action: " + action);
+    if ("start".equals(action)) {
+      storageIo.startBlobMigration(Boolean.parseBoolean(req.getParameter("dryRun")));
+    } else if ("stop".equals(action)) {
+      storageIo.stopBlobMigration();
+    } else if ("resume".equals(action)) {
+      storageIo.resumeBlobMigration();
+    } else {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown action " + action);
+      return;
+    }
+    writeStatus(resp);
+  }
+
+  private void writeStatus(HttpServletResponse resp) throws IOException {
+    CACHE_HEADERS.setNotCacheable(resp);
+    resp.setContentType("text/plain; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    for (String line : storageIo.getBlobMigrationStatus()) {
+      out.println(line);
+    }
+  }
+}
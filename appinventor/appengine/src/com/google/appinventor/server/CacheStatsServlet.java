@@ -0,0 +1,39 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.CacheStats;
+import com.google.appinventor.server.util.CacheHeaders;
+import com.google.appinventor.server.util.CacheHeadersImpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet showing administrators the hit rates and evictions of the server
+ * side caches of the App Engine instance that serves the request.
+ *
+ * <p>Each line is {@code <cache> <hits> <misses> <evictions> <hit rate>}.
+ */
+public class CacheStatsServlet extends OdeServlet {
+
+  // Object used to safely set cache headers in responses
+  private static final CacheHeaders CACHE_HEADERS = new CacheHeadersImpl();
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    CACHE_HEADERS.setNotCacheable(resp);
+    resp.setContentType("text/plain; charset=utf-8");
+    PrintWriter out = resp.getWriter();
+    for (CacheStats stats : CacheStats.getAll()) {
+      out.println(stats.getName() + " " + stats.getHits() + " " + stats.getMisses() + " "
+          + stats.getEvictions() + " " + String.format("%.3f", stats.getHitRate()));
+    }
+  }
+}
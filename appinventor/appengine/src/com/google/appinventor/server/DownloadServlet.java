@@ -12,7 +12,6 @@ import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
 import com.google.appinventor.shared.rpc.ServerLayout;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
@@ -20,6 +19,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -120,11 +120,14 @@ public class DownloadServlet extends OdeServlet {
         String projectTitle = (uriComponents.length > PROJECT_TITLE_INDEX) ?
             uriComponents[PROJECT_TITLE_INDEX] : null;
         final boolean includeProjectHistory = true;
-        String zipName = (projectTitle == null) ? null :
+        String zipName = (projectTitle == null) ?
+            fileExporter.getProjectSourceZipName(userId, projectId) :
             StringUtils.normalizeForFilename(projectTitle) + ".aia";
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-            projectId, includeProjectHistory, false, zipName, false);
-        downloadableFile = zipFile.getRawFile();
+        DownloadOutputStream out = new DownloadOutputStream(resp, zipName);
+        fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            false, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         // Download project source files for the specified user project as a zip.
@@ -173,15 +176,18 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-            projectId, /* include history*/ true, /* include keystore */ true, zipName, false);
-        downloadableFile = zipFile.getRawFile();
-        
+        DownloadOutputStream out = new DownloadOutputStream(resp, zipName);
+        fileExporter.exportProjectSourceZip(projectUserId, projectId,
+            /* include history*/ true, /* include keystore */ true, false, out);
+        out.close();
+        return;
+
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
         // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        DownloadOutputStream out = new DownloadOutputStream(resp, "all-projects.zip");
+        fileExporter.exportAllProjectsSourceZip(userId, out);
+        out.close();
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -212,9 +218,7 @@ public class DownloadServlet extends OdeServlet {
     byte[] content = downloadableFile.getContent();
 
     // Set http response information
-    resp.setStatus(HttpServletResponse.SC_OK);
-    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
-    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    startDownload(resp, fileName);
     resp.setContentLength(content.length);
 
     // Attach download data
@@ -222,4 +226,61 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Sets the http response information for downloading a file. Source zips
+   * are streamed as they are created, so their length is not known up front.
+   */
+  private static void startDownload(HttpServletResponse resp, String fileName) {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+  }
+
+  /*
+   * The stream a source zip is downloaded through. The download is only
+   * started, and the response committed, when the zip is first written to.
+   * Until then, an export that fails (for example, because the project has
+   * no files or its files can't be read) can still send an error response.
+   */
+  private static class DownloadOutputStream extends OutputStream {
+    private final HttpServletResponse resp;
+    private final String fileName;
+    private ServletOutputStream out;
+
+    DownloadOutputStream(HttpServletResponse resp, String fileName) {
+      this.resp = resp;
+      this.fileName = fileName;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      start().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      start().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      start().close();
+    }
+
+    private ServletOutputStream start() throws IOException {
+      if (out == null) {
+        startDownload(resp, fileName);
+        out = resp.getOutputStream();
+      }
+      return out;
+    }
+  }
 }
@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -57,16 +58,47 @@ public interface FileExporter {
       throws IOException;
 
   /**
-   * Exports all of the user's projects' source files as a zip of zips.
+   * Writes the project source files as a zip to the given stream. The files
+   * are read and zipped one at a time, so the zip is never held in memory.
    *
    * @param userId the userId
-   * @param zipName the desired name for the zip
-   * @return the name, contents, and number of files in the zip
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param fatalError set to true to cause missing GCS file to throw exception
+   * @param out the stream to write the zip to; it is not closed
+   * @return the number of zipped files
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be read or written
+   */
+  int exportProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore, boolean fatalError,
+                             OutputStream out)
+      throws IOException;
+
+  /**
+   * Returns the default name of the zip of a project's source files.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @return the zip name
+   */
+  String getProjectSourceZipName(String userId, long projectId);
+
+  /**
+   * Writes all of the user's projects' source files as a zip of zips to the
+   * given stream. The projects are zipped one at a time.
+   *
+   * @param userId the userId
+   * @param out the stream to write the zip to; it is not closed
+   * @return the number of files in the zip
    * @throws IllegalArgumentException if download request cannot be fulfilled
-   *         (no projects)
+   *         (no projects), in which case nothing has been written
    * @throws IOException if files cannot be written
    */
-  ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
+  int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException;
 
   /**
    * Exports a specific project file.
@@ -14,11 +14,12 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -73,44 +74,50 @@ public final class FileExporterImpl implements FileExporter {
   }
 
   @Override
-  public ProjectSourceZip exportAllProjectsSourceZip(String userId,
-      String zipName) throws IOException {
-    // Create a zip file for each project's sources.
+  public int exportProjectSourceZip(String userId, long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    boolean fatalError, OutputStream out) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(out);
+    int count = storageIo.writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, zip);
+    zip.finish();
+    return count;
+  }
+
+  @Override
+  public String getProjectSourceZipName(String userId, long projectId) {
+    return storageIo.getProjectName(userId, projectId) + ".aia";
+  }
+
+  @Override
+  public int exportAllProjectsSourceZip(String userId, OutputStream out) throws IOException {
+    // Write a zip file for each project's sources.
     List<Long> projectIds = storageIo.getProjects(userId);
     if (projectIds.size() == 0) {
       throw new IllegalArgumentException("No projects to download");
     }
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    ZipOutputStream zip = new ZipOutputStream(out);
     int count = 0;
-    String metadata = "";
     for (Long projectId : projectIds) {
+      ProjectEntryOutputStream entry = new ProjectEntryOutputStream(zip,
+          getProjectSourceZipName(userId, projectId));
       try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null, false);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
-
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
-          }
-        }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
-        out.closeEntry();
+        ZipOutputStream projectZip = new ZipOutputStream(entry);
+        storageIo.writeProjectSourceZip(userId, projectId, false, false, false, projectZip);
+        projectZip.finish();
+        entry.closeEntry();
         count++;
       } catch (IllegalArgumentException e) {
         System.err.println("No files found for userid: " + userId +
             " for projectid: " + projectId);
         continue;
       } catch (IOException e) {
+        if (entry.isStarted()) {
+          // Part of the project has been written already, so the zip is broken.
+          throw e;
+        }
         System.err.println("IOException while reading files found for userid: " +
             userId + " for projectid: " + projectId);
         continue;
@@ -125,20 +132,15 @@ public final class FileExporterImpl implements FileExporter {
       byte[] androidKeystoreBytes =
           storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
       if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
-        out.closeEntry();
+        zip.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        zip.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+        zip.closeEntry();
         count++;
       }
     }
 
-    out.close();
-
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+    zip.finish();
+    return count;
   }
 
   @Override
@@ -178,4 +180,58 @@ public final class FileExporterImpl implements FileExporter {
     }
     return filteredFiles;
   }
+
+  /*
+   * The entry of a project's zip in a zip of zips. The entry is only started
+   * when the project's zip is first written to, so that projects without
+   * files can be skipped.
+   */
+  private static class ProjectEntryOutputStream extends OutputStream {
+    private final ZipOutputStream zip;
+    private final String name;
+    private boolean started;
+
+    ProjectEntryOutputStream(ZipOutputStream zip, String name) {
+      this.zip = zip;
+      this.name = name;
+    }
+
+    boolean isStarted() {
+      return started;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      start();
+      zip.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      start();
+      zip.write(b, off, len);
+    }
+
+    void closeEntry() throws IOException {
+      if (started) {
+        zip.closeEntry();
+      }
+    }
+
+    private void start() throws IOException {
+      if (!started) {
+        // If necessary, rename duplicate projects
+        String entryName = name;
+        while (true) {
+          try {
+            zip.putNextEntry(new ZipEntry(entryName));
+            break;
+          } catch (ZipException e) {
+            entryName = "duplicate-" + entryName;
+          }
+        }
+        started = true;
+      }
+    }
+  }
 }
@@ -0,0 +1,46 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GalleryCountersServlet -- Roll up the download and like counter shards of
+ * a gallery app, or recompute the cached gallery listings.
+ *
+ * This Servlet is called from the "gallerycounters" task queue, which
+ * ObjectifyGalleryStorageIo fills after downloads and likes, when the cached
+ * listings get old, and when apps change. Like BlobMigrationServlet it is
+ * restricted to admin users, the task queue manager operates with admin
+ * privileges.
+ *
+ */
+public class GalleryCountersServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GalleryCountersServlet.class.getName());
+  private final GalleryStorageIo galleryStorageIo = GalleryStorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    String galleryId = req.getParameter("galleryId");
+    if (galleryId != null) {
+      galleryStorageIo.rollUpCounters(Long.parseLong(galleryId));
+    }
+    if (req.getParameter("listings") != null) {
+      LOG.info("Refreshing gallery listings");
+      galleryStorageIo.refreshListings();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GalleryIndexServlet -- (Re)index a gallery app in the search index.
+ *
+ * This Servlet is called from the "galleryindex" task queue, which
+ * GallerySearchIndex fills when the search service couldn't take a
+ * document, and when the fields stored in a document are out of date. An
+ * error fails the task, and the task queue retries it with backoff. Like
+ * BlobMigrationServlet it is restricted to admin users, the task queue manager
+ * operates with admin privileges.
+ *
+ */
+public class GalleryIndexServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GalleryIndexServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+
+    long galleryId = Long.parseLong(req.getParameter("galleryId"));
+    LOG.info("Indexing gallery app " + galleryId);
+    GallerySearchIndex.getInstance().reindexApp(galleryId);
+  }
+}
@@ -6,10 +6,13 @@
 
 package com.google.appinventor.server;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.search.Cursor;
 import com.google.appengine.api.search.DeleteException;
 import com.google.appengine.api.search.Document;
 import com.google.appengine.api.search.Field;
@@ -23,11 +26,13 @@ import com.google.appengine.api.search.ScoredDocument;
 import com.google.appengine.api.search.SearchException;
 import com.google.appengine.api.search.SearchServiceFactory;
 import com.google.appengine.api.search.StatusCode;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appinventor.server.storage.GalleryStorageIo;
 import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
 import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
-import com.googlecode.objectify.NotFoundException;
+import com.google.common.base.Strings;
 
 
 // see sample at https://developers.google.com/appengine/docs/java/search/
@@ -36,6 +41,9 @@ public class GallerySearchIndex {
 
   private static final Logger LOG = Logger.getLogger(GallerySearchIndex.class.getName());
   private static String GALLERYINDEX="GalleryIndex";
+  // Task queue and servlet (GalleryIndexServlet) that retry indexing an app
+  private static final String INDEX_QUEUE = "galleryindex";
+  private static final String INDEX_URL = "/admin/galleryindex";
   private final transient GalleryStorageIo galleryStorageIo =
       GalleryStorageIoInstanceHolder.INSTANCE;
   private static volatile GallerySearchIndex  instance= null;
@@ -60,28 +68,82 @@ public class GallerySearchIndex {
   }
 
   /**
-   * index gallery app into search index
+   * index gallery app into search index. If the search service is
+   * temporarily unavailable, indexing is retried from the task queue.
    * @param app galleryapp
    */
   public void indexApp (GalleryApp app) {
+    try {
+      putApp(app);
+    } catch (PutException e) {
+      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
+        // retry putting the document
+        queueIndexApp(app.getGalleryAppId());
+      } else {
+        LOG.log(Level.SEVERE, "Couldn't index gallery app " + app.getGalleryAppId(), e);
+      }
+    }
+  }
+
+  /**
+   * queue (re)indexing a gallery app from its stored data. The task is
+   * retried until the search service takes the document.
+   * @param galleryId gallery id
+   */
+  public void queueIndexApp(long galleryId) {
+    QueueFactory.getQueue(INDEX_QUEUE).add(TaskOptions.Builder.withUrl(INDEX_URL)
+        .param("galleryId", Long.toString(galleryId)));
+  }
+
+  /**
+   * (re)index a gallery app from its stored data, or unindex it if it no
+   * longer exists or isn't active. Called from the task queue, so errors are
+   * thrown for the task to be retried.
+   * @param galleryId gallery id
+   */
+  public void reindexApp(long galleryId) {
+    GalleryApp app = galleryStorageIo.getGalleryApp(galleryId);
+    if (app != null && app.getActive()) {
+      putApp(app);
+    } else {
+      unIndexApp(galleryId);
+    }
+  }
+
+  private void putApp(GalleryApp app) {
     // take the title, description, and the user name and index it
     // need to build up a string with all meta data
     String indexWords = app.getTitle()+" "+app.getDescription() + " " + app.getDeveloperName();
-    // now create the doc
+    // now create the doc. Besides the searched content it stores what the
+    // gallery lists show, so that results don't need the datastore.
     Document doc = Document.newBuilder()
       .setId(String.valueOf(app.getGalleryAppId()))
       .addField(Field.newBuilder().setName("content").setText(indexWords))
+      .addField(Field.newBuilder().setName("title")
+          .setText(Strings.nullToEmpty(app.getTitle())))
+      .addField(Field.newBuilder().setName("description")
+          .setText(Strings.nullToEmpty(app.getDescription())))
+      .addField(Field.newBuilder().setName("moreInfo")
+          .setText(Strings.nullToEmpty(app.getMoreInfo())))
+      .addField(Field.newBuilder().setName("credit")
+          .setText(Strings.nullToEmpty(app.getCredit())))
+      .addField(Field.newBuilder().setName("projectName")
+          .setAtom(Strings.nullToEmpty(app.getProjectName())))
+      .addField(Field.newBuilder().setName("developerName")
+          .setText(Strings.nullToEmpty(app.getDeveloperName())))
+      .addField(Field.newBuilder().setName("developerId")
+          .setAtom(Strings.nullToEmpty(app.getDeveloperId())))
+      // Search numbers are 32 bit, so the longs are stored as atoms
+      .addField(Field.newBuilder().setName("projectId")
+          .setAtom(String.valueOf(app.getProjectId())))
+      .addField(Field.newBuilder().setName("creationDate")
+          .setAtom(String.valueOf(app.getCreationDate())))
+      .addField(Field.newBuilder().setName("updateDate")
+          .setAtom(String.valueOf(app.getUpdateDate())))
+      .addField(Field.newBuilder().setName("downloads").setNumber(app.getDownloads()))
+      .addField(Field.newBuilder().setName("likes").setNumber(app.getLikes()))
       .build();
-
-    Index index = getIndex();
-
-    try {
-      index.put(doc);
-    } catch (PutException e) {
-      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-          // retry putting the document
-      }
-    }
+    getIndex().put(doc);
   }
 
   /**
@@ -104,50 +166,90 @@ public class GallerySearchIndex {
    * @param searchWords search words
    * @param start start index
    * @param count count number
+   * @param cursor the cursor returned with the previous page; if not null
+   *     the page starts there instead of at start
    * @return GalleryAppListResult gallery applist result
    */
-  public GalleryAppListResult find (String searchWords, int start, int count) {
-    //TODO page sliced has not implemented yet
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    final Result<Integer> size = new Result<Integer>();
+  public GalleryAppListResult find (String searchWords, int start, int count, String cursor) {
+    // for deployed apps, add setFieldsToSnippet("content") to demo
+    // snippeting. This will not work on the dev_appserver.
+    QueryOptions.Builder options = QueryOptions.newBuilder().setLimit(count);
+    if (cursor != null) {
+      options.setCursor(Cursor.newBuilder().build(cursor));
+    } else if (start > 0) {
+      options.setOffset(start);
+    } else {
+      // The first page asks for a cursor to the second
+      options.setCursor(Cursor.newBuilder().build());
+    }
+    Query query = Query.newBuilder().setOptions(options.build()).build(searchWords);
+    LOG.info("Sending query " + query);
+    Results<ScoredDocument> results;
     try {
-      Query query = Query.newBuilder()
-          .setOptions(QueryOptions.newBuilder().
-              //setLimit(10).
-              // for deployed apps, uncomment the line below to demo snippeting.
-              // This will not work on the dev_appserver.
-              // setFieldsToSnippet("content").
-              build())
-          .build(searchWords);
-      LOG.info("Sending query " + query);
-      Results<ScoredDocument> results = getIndex().search(query);
-
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        LOG.info("Find:" + document.getId());
+      results = getIndex().search(query);
+    } catch (SearchException e) {
+      if (!StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
+        throw e;
       }
+      // retry once, the user is waiting
+      results = getIndex().search(query);
+    }
+    LOG.info("Found " + results.getNumberReturned() + " of " + results.getNumberFound());
 
-      // Iterate over the documents in the results
-      int index = 0;
-      for (ScoredDocument document : results) {
-        if((index++) < start) continue;
-        if(count == 0) break;
-        count--;
-        try{
-          GalleryApp app = galleryStorageIo.getGalleryApp(Long.parseLong(document.getId()));
-          apps.add(app);
-        }catch(NotFoundException e){
-          LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + document.getId());
-          unIndexApp(Long.parseLong(document.getId()));
-        }
+    // The documents indexed before they stored the listing fields are read
+    // from the datastore, all in one batch.
+    List<Long> unstoredIds = new ArrayList<Long>();
+    for (ScoredDocument document : results) {
+      if (document.getFieldCount("title") == 0) {
+        unstoredIds.add(Long.parseLong(document.getId()));
       }
-      size.t = (int) results.getNumberFound();
-    } catch (SearchException e) {
-      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-        // retry
+    }
+    Map<Long, GalleryApp> storedApps = unstoredIds.isEmpty()
+        ? Collections.<Long, GalleryApp>emptyMap()
+        : galleryStorageIo.getGalleryApps(unstoredIds);
+
+    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (ScoredDocument document : results) {
+      long galleryId = Long.parseLong(document.getId());
+      if (document.getFieldCount("title") > 0) {
+        apps.add(makeGalleryApp(galleryId, document));
+      } else if (storedApps.containsKey(galleryId)) {
+        apps.add(storedApps.get(galleryId));
+        // so that it is found without the datastore next time
+        queueIndexApp(galleryId);
+      } else {
+        LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + galleryId);
+        unIndexApp(galleryId);
       }
     }
-    return new GalleryAppListResult(apps, size.t, searchWords);
+    GalleryAppListResult result =
+        new GalleryAppListResult(apps, (int) results.getNumberFound(), searchWords);
+    if (results.getCursor() != null) {
+      result.setCursor(results.getCursor().toWebSafeString());
+    }
+    return result;
+  }
+
+  /**
+   * Makes the gallery app of a search result from its stored fields.
+   */
+  private static GalleryApp makeGalleryApp(long galleryId, ScoredDocument document) {
+    GalleryApp app = new GalleryApp();
+    app.setGalleryAppId(galleryId);
+    app.setTitle(document.getOnlyField("title").getText());
+    app.setDescription(document.getOnlyField("description").getText());
+    app.setMoreInfo(document.getOnlyField("moreInfo").getText());
+    app.setCredit(document.getOnlyField("credit").getText());
+    app.setProjectName(document.getOnlyField("projectName").getAtom());
+    app.setDeveloperName(document.getOnlyField("developerName").getText());
+    app.setDeveloperId(document.getOnlyField("developerId").getAtom());
+    app.setProjectId(Long.parseLong(document.getOnlyField("projectId").getAtom()));
+    app.setCreationDate(Long.parseLong(document.getOnlyField("creationDate").getAtom()));
+    app.setUpdateDate(Long.parseLong(document.getOnlyField("updateDate").getAtom()));
+    app.setDownloads(document.getOnlyField("downloads").getNumber().intValue());
+    app.setLikes(document.getOnlyField("likes").getNumber().intValue());
+    app.setActive(true);  // inactive apps are unindexed
+    return app;
   }
 
   /**
@@ -158,9 +260,4 @@ public class GallerySearchIndex {
     Index index = SearchServiceFactory.getSearchService().getIndex(indexSpec);
     return index;
   }
-  // Create a final object of this class to hold a modifiable result value that
-  // can be used in a method of an inner class.
-  private class Result<T> {
-    T t;
-  }
 }
\ No newline at end of file
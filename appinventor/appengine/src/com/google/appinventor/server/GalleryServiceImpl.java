@@ -133,7 +133,7 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    */
   @Override
   public void indexAll(int count) {
-    List<GalleryApp> apps= getRecentApps(1,count).getApps();
+    List<GalleryApp> apps= getRecentApps(1, count, null).getApps();
     for (GalleryApp app:apps) {
       GallerySearchIndex.getInstance().indexApp(app);
     }
@@ -153,21 +153,23 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    * updated galleryApps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, or null
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getRecentApps(int start,int count) {
-    return galleryStorageIo.getRecentGalleryApps(start,count);
+  public GalleryAppListResult getRecentApps(int start, int count, String cursor) {
+    return galleryStorageIo.getRecentGalleryApps(start, count, cursor);
   }
 
   /**
    * Returns a wrapped class which contains list of featured gallery app
    * @param start start index
    * @param count count number
+   * @param cursor the cursor of the previous page, or null
    * @return list of gallery app
    */
-  public GalleryAppListResult getFeaturedApp(int start, int count){
-    return galleryStorageIo.getFeaturedApp(start, count);
+  public GalleryAppListResult getFeaturedApp(int start, int count, String cursor){
+    return galleryStorageIo.getFeaturedApp(start, count, cursor);
   }
 
   /**
@@ -218,11 +220,12 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    * @param keywords keywords to search for
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, or null
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult findApps(String keywords, int start, int count) {
-    return GallerySearchIndex.getInstance().find(keywords, start, count);
+  public GalleryAppListResult findApps(String keywords, int start, int count, String cursor) {
+    return GallerySearchIndex.getInstance().find(keywords, start, count, cursor);
   }
 
   /**
@@ -230,11 +233,12 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    * gallery apps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, or null
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getMostDownloadedApps(int start, int count) {
-    return galleryStorageIo.getMostDownloadedApps(start,count);
+  public GalleryAppListResult getMostDownloadedApps(int start, int count, String cursor) {
+    return galleryStorageIo.getMostDownloadedApps(start, count, cursor);
   }
 
   /**
@@ -242,11 +246,12 @@ public class GalleryServiceImpl extends OdeRemoteServiceServlet implements Galle
    * gallery apps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, or null
    * @return list of GalleryApps
    */
   @Override
-  public GalleryAppListResult getMostLikedApps(int start, int count) {
-    return galleryStorageIo.getMostLikedApps(start,count);
+  public GalleryAppListResult getMostLikedApps(int start, int count, String cursor) {
+    return galleryStorageIo.getMostLikedApps(start, count, cursor);
   }
 
   /**
@@ -23,13 +23,17 @@ import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileDescriptorWithDelta;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectService;
+import com.google.appinventor.shared.rpc.project.SaveFilesResult;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -42,6 +46,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -240,12 +246,13 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   public List<UserProject> getProjectInfos() {
     String userId = userInfoProvider.getUserId();
     List<Long> projectIds = storageIo.getProjects(userId);
-    List<UserProject> projectInfos = Lists.newArrayListWithExpectedSize(projectIds.size());
-    for (Long projectId : projectIds) {
-      UserProject up = makeUserProject(userId, projectId);
-      if (up != null) {
-        projectInfos.add(up);
-      } else {
+    List<UserProject> projectInfos = storageIo.getUserProjects(userId, projectIds);
+    if (projectInfos.size() < projectIds.size()) {
+      Set<Long> missingProjectIds = Sets.newHashSet(projectIds);
+      for (UserProject up : projectInfos) {
+        missingProjectIds.remove(up.getProjectId());
+      }
+      for (Long projectId : missingProjectIds) {
         LOG.log(Level.WARNING, "ProjectId " + projectId +
           " is missing at the lower level.");
       }
@@ -465,6 +472,24 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
         content);
   }
 
+  /**
+   * Saves several files of a project, each given whole or as its change
+   * from the last content saved by the client.
+   *
+   * @param sessionId session id
+   * @param projectId  project ID
+   * @param files  the files of the project and their content
+   * @return the modification date of the project and the files that were
+   *     not saved
+   */
+  @Override
+  public SaveFilesResult saveFiles(String sessionId, long projectId,
+      List<FileDescriptorWithDelta> files) throws InvalidSessionException {
+    validateSessionId(sessionId);
+    final String userId = userInfoProvider.getUserId();
+    return getProjectRpcImpl(userId, projectId).saveFiles(userId, projectId, files);
+  }
+
   /**
    * Saves the contents of multiple files.
    *
@@ -478,11 +503,26 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       BlocksTruncatedException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Save the files of each project together
+    Map<Long, Map<String, String>> filesByProject = Maps.newLinkedHashMap();
+    long lastProjectId = 0;
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      lastProjectId = fileAndContent.getProjectId();
+      Map<String, String> files = filesByProject.get(lastProjectId);
+      if (files == null) {
+        files = Maps.newLinkedHashMap();
+        filesByProject.put(lastProjectId, files);
+      }
+      files.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> project : filesByProject.entrySet()) {
+      long projectId = project.getKey();
+      long projectDate = getProjectRpcImpl(userId, projectId).
+          saveFiles(userId, projectId, project.getValue());
+      if (projectId == lastProjectId) {
+        date = projectDate;
+      }
     }
     return date;
   }
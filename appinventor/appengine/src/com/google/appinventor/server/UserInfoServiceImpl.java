@@ -58,9 +58,6 @@ public class UserInfoServiceImpl extends OdeRemoteServiceServlet implements User
     config.setLogoUrl(Flag.createFlag("logo.url", "").get());
     config.setGuideUrl(Flag.createFlag("guide.url", "").get());
     config.setReferenceComponentsUrl(Flag.createFlag("reference.components.url", "").get());
-
-    // Check to see if we need to upgrade this user's project to GCS
-    storageIo.checkUpgrade(userInfoProvider.getUserId());
     return config;
   }
 
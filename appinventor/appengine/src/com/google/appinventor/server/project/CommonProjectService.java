@@ -11,13 +11,20 @@ import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
 import com.google.appinventor.shared.rpc.project.ChecksumedFileException;
+import com.google.appinventor.shared.rpc.project.FileDelta;
+import com.google.appinventor.shared.rpc.project.FileDescriptorWithDelta;
 import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
+import com.google.appinventor.shared.rpc.project.SaveFilesResult;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -26,6 +33,8 @@ import java.util.List;
  * @author lizlooney@google.com (Liz Looney)
  */
 public abstract class CommonProjectService {
+  private static final Logger LOG = Logger.getLogger(CommonProjectService.class.getName());
+
   protected final String projectType;
   protected final StorageIo storageIo;
 
@@ -270,6 +279,84 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of several files of a project. The files are saved
+   * together, with one update of the project's modification date. Like
+   * {@link #save}, this always sets force to true.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  the content to be saved for each file, by file ID
+   * @return modification date for project
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#save(String, List)
+   */
+  public long saveFiles(String userId, long projectId, Map<String, String> contents) {
+    return storageIo.uploadFilesForce(projectId, userId, contents, StorageUtil.DEFAULT_CHARSET);
+  }
+
+  /**
+   * Saves several files of a project, each given whole or as a delta. The
+   * files are saved together, with one update of the project's modification
+   * date. Deltas that don't apply to the stored content are reported as
+   * stale. If an empty blocks workspace would replace a non-empty one, the
+   * files are saved one at a time instead, so that only the truncating
+   * files are left unsaved.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param files  the files and their content
+   * @return the modification date of the project and the files that were
+   *     not saved
+   *
+   * @see com.google.appinventor.shared.rpc.project.ProjectService#saveFiles(String, long, List)
+   */
+  public SaveFilesResult saveFiles(String userId, long projectId,
+      List<FileDescriptorWithDelta> files) {
+    SaveFilesResult result = new SaveFilesResult();
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    for (FileDescriptorWithDelta file : files) {
+      String fileId = file.getFileId();
+      FileDelta delta = file.getDelta();
+      if (delta == null) {
+        contents.put(fileId, file.getContent());
+        continue;
+      }
+      try {
+        contents.put(fileId, delta.apply(
+            storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET)));
+        LOG.fine("Saving " + fileId + " of project " + projectId + " by sending "
+            + delta.getReplacementLength() + " of " + delta.getContentLength() + " characters");
+      } catch (ChecksumedFileException e) {
+        result.addStaleFileId(fileId);
+      }
+    }
+    if (contents.isEmpty()) {
+      return result;
+    }
+
+    Charset charset = Charset.forName(StorageUtil.DEFAULT_CHARSET);
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    for (Map.Entry<String, String> file : contents.entrySet()) {
+      rawContents.put(file.getKey(), file.getValue().getBytes(charset));
+    }
+    try {
+      result.setModificationDate(
+          storageIo.uploadRawFiles(projectId, userId, false, rawContents));
+    } catch (BlocksTruncatedException e) {
+      // Nothing was saved. Find out which files truncate their workspaces.
+      for (Map.Entry<String, String> file : contents.entrySet()) {
+        try {
+          result.setModificationDate(save2(userId, projectId, file.getKey(), false,
+              file.getValue()));
+        } catch (BlocksTruncatedException e2) {
+          result.addTruncatedFileId(file.getKey());
+        }
+      }
+    }
+    return result;
+  }
+
   /**
    * Invokes a build command for the project.
    *
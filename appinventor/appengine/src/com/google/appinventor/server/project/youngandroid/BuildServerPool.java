@@ -0,0 +1,247 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The build servers that builds can be sent to.
+ *
+ * <p>The health and load of each build server are polled from its {@code /buildserver/health}
+ * and {@code /buildserver/vars} endpoints when a build is dispatched and the last poll is older
+ * than {@link #STATUS_TTL_MILLIS}. Builds go to the least loaded healthy build server whose
+ * version matches ours. A build server that turns a build away is moved to the end of the line
+ * for {@link #PENALTY_MILLIS}.
+ *
+ * <p>The build server that accepted a build is remembered in memcache, so that any App Engine
+ * instance can poll the progress of the build from the right build server.
+ */
+final class BuildServerPool {
+  private static final Logger LOG = Logger.getLogger(BuildServerPool.class.getName());
+
+  // How long the polled status of a build server is used before it is polled again.
+  static final long STATUS_TTL_MILLIS = 15 * 1000;
+
+  // How long a build server that turned a build away stays at the end of the line.
+  static final long PENALTY_MILLIS = 60 * 1000;
+
+  // Timeout for polling a build server, in ms. Polls happen while a user waits for a build.
+  private static final int POLL_TIMEOUT_MILLIS = 2000;
+
+  // How long the build server of a build is remembered, in seconds.
+  private static final int BUILD_SERVER_EXPIRATION_SECONDS = 2 * 60 * 60;
+
+  private static final String MEMCACHE_KEY_PREFIX = "build-server-of-build:";
+
+  /**
+   * What is known of a build server.
+   */
+  static final class Status {
+    final boolean healthy;
+    final boolean compatible;
+    // Running and waiting builds per build slot.
+    final double load;
+    final long pollTime;
+
+    Status(boolean healthy, boolean compatible, double load, long pollTime) {
+      this.healthy = healthy;
+      this.compatible = compatible;
+      this.load = load;
+      this.pollTime = pollTime;
+    }
+  }
+
+  private final List<String> hosts;
+  private final String requiredVersion;
+  private final ConcurrentMap<String, Status> statuses = new ConcurrentHashMap<String, Status>();
+  private final ConcurrentMap<String, Long> penalties = new ConcurrentHashMap<String, Long>();
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /**
+   * Creates a BuildServerPool.
+   *
+   * @param hostList  comma separated host[:port] of the build servers
+   * @param requiredVersion  the GitBuildId version that build servers must have, or {@code null}
+   *     to send builds to build servers of any version
+   */
+  BuildServerPool(String hostList, String requiredVersion) {
+    List<String> hosts = Lists.newArrayList();
+    for (String host : hostList.split(",")) {
+      host = host.trim();
+      if (!host.isEmpty()) {
+        hosts.add(host);
+      }
+    }
+    this.hosts = ImmutableList.copyOf(hosts);
+    this.requiredVersion = requiredVersion;
+  }
+
+  List<String> getHosts() {
+    return hosts;
+  }
+
+  /**
+   * Returns the build servers in the order in which they should be tried for a new build.
+   */
+  List<String> getDispatchOrder() {
+    if (hosts.size() == 1) {
+      // Nothing to choose from. The build server itself will say if it can't take the build.
+      return hosts;
+    }
+    long now = System.currentTimeMillis();
+    for (String host : hosts) {
+      Status status = statuses.get(host);
+      if (status == null || now - status.pollTime > STATUS_TTL_MILLIS) {
+        statuses.put(host, pollStatus(host, now));
+      }
+    }
+    return getDispatchOrder(now);
+  }
+
+  @VisibleForTesting
+  List<String> getDispatchOrder(final long now) {
+    List<String> candidates = Lists.newArrayList();
+    for (String host : hosts) {
+      Status status = statuses.get(host);
+      if (status == null || (status.healthy && status.compatible)) {
+        candidates.add(host);
+      }
+    }
+    if (candidates.isEmpty()) {
+      // Let the build servers tell the user what's wrong.
+      return hosts;
+    }
+    Collections.sort(candidates, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        boolean aPenalized = isPenalized(a, now);
+        boolean bPenalized = isPenalized(b, now);
+        if (aPenalized != bPenalized) {
+          return aPenalized ? 1 : -1;
+        }
+        return Double.compare(getLoad(a), getLoad(b));
+      }
+    });
+    return candidates;
+  }
+
+  private boolean isPenalized(String host, long now) {
+    Long until = penalties.get(host);
+    return until != null && until > now;
+  }
+
+  private double getLoad(String host) {
+    Status status = statuses.get(host);
+    return status == null ? 0 : status.load;
+  }
+
+  @VisibleForTesting
+  void setStatus(String host, Status status) {
+    statuses.put(host, status);
+  }
+
+  /**
+   * Records that a build server turned a build away (for example with a 503 or 409 response, or
+   * by not answering), so that the next builds try other build servers first.
+   */
+  void reportFailure(String host) {
+    LOG.info("Build server " + host + " turned a build away");
+    penalties.put(host, System.currentTimeMillis() + PENALTY_MILLIS);
+    statuses.remove(host);
+  }
+
+  /**
+   * Remembers the build server that accepted a build.
+   */
+  void recordBuildServer(String buildId, String host) {
+    memcache.put(MEMCACHE_KEY_PREFIX + buildId, host,
+        Expiration.byDeltaSeconds(BUILD_SERVER_EXPIRATION_SECONDS));
+  }
+
+  /**
+   * Returns the build server that accepted a build, or the first build server if it is not
+   * known.
+   */
+  String getBuildServer(String buildId) {
+    Object host = memcache.get(MEMCACHE_KEY_PREFIX + buildId);
+    return (host instanceof String) ? (String) host : hosts.get(0);
+  }
+
+  private Status pollStatus(String host, long now) {
+    try {
+      HttpURLConnection health = open("http://" + host + "/buildserver/health");
+      if (health.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return new Status(false, true, 0, now);
+      }
+      HttpURLConnection vars = open("http://" + host + "/buildserver/vars?format=json");
+      if (vars.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        return new Status(true, true, 0, now);
+      }
+      Reader reader = new InputStreamReader(vars.getInputStream(), Charsets.UTF_8);
+      try {
+        return parseStatus(CharStreams.toString(reader), requiredVersion, now);
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      LOG.info("Build server " + host + " did not answer: " + e.getMessage());
+      return new Status(false, true, 0, now);
+    }
+  }
+
+  private static HttpURLConnection open(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setConnectTimeout(POLL_TIMEOUT_MILLIS);
+    connection.setReadTimeout(POLL_TIMEOUT_MILLIS);
+    return connection;
+  }
+
+  /**
+   * Computes the status of a healthy build server from its variables.
+   */
+  @VisibleForTesting
+  static Status parseStatus(String varsJson, String requiredVersion, long now) {
+    try {
+      JSONObject vars = new JSONObject(varsJson);
+      boolean compatible = requiredVersion == null ||
+          requiredVersion.equals(vars.optString("buildserver-version", null));
+      double busy = Double.parseDouble(vars.optString("active-build-tasks", "0")) +
+          Double.parseDouble(vars.optString("build-queue-depth", "0"));
+      String max = vars.optString("maximum-simultaneous-build-tasks-allowed", "unlimited");
+      double slots = max.equals("unlimited")
+          ? Double.parseDouble(vars.optString("num-processors", "1"))
+          : Double.parseDouble(max);
+      return new Status(true, compatible, busy / Math.max(1, slots), now);
+    } catch (JSONException e) {
+      // An older build server, which only has HTML variables.
+      return new Status(true, true, 0, now);
+    } catch (NumberFormatException e) {
+      return new Status(true, true, 0, now);
+    }
+  }
+}
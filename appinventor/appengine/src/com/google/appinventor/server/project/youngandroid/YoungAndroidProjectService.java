@@ -28,7 +28,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
@@ -47,18 +46,23 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
+import com.google.common.io.CountingOutputStream;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -79,7 +83,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,9 +114,12 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // Comma separated host[:port] of the build servers to connect to
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
+  private static BuildServerPool buildServerPool;
+  // Size of the chunks in which projects are sent to the build server
+  private static final int BUILD_UPLOAD_CHUNK_SIZE = 64 * 1024;
   // host[:port] to tell build server app host url
   private static final Flag<String> appengineHost =
       Flag.createFlag("appengine.host", "");
@@ -550,29 +556,62 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    CountingOutputStream zipFile = null;
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
-          user.getUserEmail(),
-          userId,
-          projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
       FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-          projectName + ".aia", true);
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
-      responseCode = connection.getResponseCode();
-      if (responseCode != HttpURLConnection.HTTP_OK) {
+      String buildId = getBuildId(userId, projectId, target);
+      BuildServerPool pool = getBuildServerPool();
+      List<String> hosts = pool.getDispatchOrder();
+      for (int i = 0; i < hosts.size(); i++) {
+        String host = hosts.get(i);
+        boolean lastHost = (i == hosts.size() - 1);
+        buildServerUrl = new URL(getBuildServerUrlStr(
+            host,
+            user.getUserEmail(),
+            userId,
+            projectId,
+            outputFileDir,
+            buildId));
+        HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        // The zip is created while it is sent, so it is never held in memory.
+        connection.setChunkedStreamingMode(BUILD_UPLOAD_CHUNK_SIZE);
+
+        int responseCode = 0;
+        zipFile = null;
+        try {
+          OutputStream upload;
+          try {
+            upload = new BuildServerOutputStream(connection.getOutputStream());
+          } catch (IOException e) {
+            throw new BuildServerException(e);
+          }
+          zipFile = new CountingOutputStream(
+              new BufferedOutputStream(upload, BUILD_UPLOAD_CHUNK_SIZE));
+          // Errors reading the project are not BuildServerExceptions. They fail the build
+          // without blaming this build server or trying another one.
+          fileExporter.exportProjectSourceZip(userId, projectId, false,
+              /* includeAndroidKeystore */ true, true, zipFile);
+          zipFile.close();
+          try {
+            responseCode = connection.getResponseCode();
+          } catch (IOException e) {
+            throw new BuildServerException(e);
+          }
+        } catch (BuildServerException e) {
+          // Try the next build server, unless the project is too large to send to any of them.
+          if (lastHost || getZipFileLength(zipFile) >= (5 * 1024 * 1024) /* 5 MB */) {
+            throw e;
+          }
+          LOG.warning("Build server " + host + " could not be reached: " + e.getMessage());
+          pool.reportFailure(host);
+          continue;
+        }
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          pool.recordBuildServer(buildId, host);
+          break;
+        }
         // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
         // can provide an appropriate error message to the user.
         // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
@@ -602,6 +641,12 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           // so the owner of the app engine instance will know about it.
           LOG.severe(error);
         }
+        if (!lastHost && (responseCode == HttpURLConnection.HTTP_UNAVAILABLE
+            || responseCode == HttpURLConnection.HTTP_CONFLICT)) {
+          // This build server is busy or incompatible. Another one may take the build.
+          pool.reportFailure(host);
+          continue;
+        }
 
         return new RpcResult(responseCode, "", StringUtils.escape(error));
       }
@@ -612,7 +657,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile.getContent().length;
+      long zipFileLength = getZipFileLength(zipFile);
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -631,7 +676,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
       if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+        long zipFileLength = getZipFileLength(zipFile);
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -649,20 +694,83 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return new RpcResult(true, "Building " + projectName, "");
   }
 
+  /*
+   * An error sending a project to a build server, as opposed to an error reading the project.
+   */
+  private static class BuildServerException extends IOException {
+    private static final long serialVersionUID = 6098315224187063154L;
+
+    BuildServerException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
+  /*
+   * The stream a project is sent to a build server through. It throws
+   * BuildServerExceptions, so that they can be told apart from the storage
+   * errors thrown while the project zip is written to it.
+   */
+  private static class BuildServerOutputStream extends FilterOutputStream {
+    BuildServerOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      try {
+        out.write(b);
+      } catch (IOException e) {
+        throw new BuildServerException(e);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      try {
+        out.write(b, off, len);
+      } catch (IOException e) {
+        throw new BuildServerException(e);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        throw new BuildServerException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      } catch (IOException e) {
+        throw new BuildServerException(e);
+      }
+    }
+  }
+
+  private static long getZipFileLength(CountingOutputStream zipFile) {
+    return (zipFile == null) ? 0 : zipFile.getCount();
+  }
+
   private String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
     return "Request to build failed with " + exceptionName + ", user=" + userId
         + ", project=" + projectId + ", build URL is " + buildURL
-        + " [" + buildURL.toString().length() + "]";
+        + (buildURL == null ? "" : " [" + buildURL.toString().length() + "]");
   }
 
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
-                                      long projectId, String fileName)
+  private String getBuildServerUrlStr(String host, String userName, String userId,
+                                      long projectId, String fileName, String buildId)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + host + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
+           + "&buildId=" + buildId
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
@@ -675,6 +783,23 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                "UTF-8");
   }
 
+  private static synchronized BuildServerPool getBuildServerPool() {
+    if (buildServerPool == null) {
+      buildServerPool = new BuildServerPool(buildServerHost.get(),
+          sendGitVersion.get() ? GitBuildId.getVersion() : null);
+    }
+    return buildServerPool;
+  }
+
+  // The build server keeps the progress of each build under this id. There is at most one build
+  // of a given project and target at a time, so the id does not need to be stored anywhere.
+  // It is a hash so that user ids don't show up in the build server logs.
+  @VisibleForTesting
+  static String getBuildId(String userId, long projectId, String target) {
+    return Hashing.sha1().hashString(userId + "/" + projectId + "/" + target, Charsets.UTF_8)
+        .toString();
+  }
+
   private String getCurrentHost() {
     if (Server.isProductionServer()) {
       if (appengineHost.get()=="") {
@@ -723,8 +848,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
+    RpcResult buildResult = null;
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
@@ -740,51 +864,45 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         break;
       }
     }
+    if (buildResult == null) {
+      // Build not finished
+      buildResult = new RpcResult(-1, "" + getCurrentProgress(user, projectId, target), "");
+    }
     return buildResult;
   }
 
   /**
-   * Check if there are any build progress available for the given user's project
+   * Returns the progress of the build of the given user's project, as reported by the build
+   * server that started it.
    *
    * @param user the User that owns the {@code projectId}.
-   * @param projectId  project id to be built
+   * @param projectId  project id being built
    * @param target  build target (optional, implementation dependent)
+   * @return the progress in percent, or 0 if it is not known
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  @VisibleForTesting
+  int getCurrentProgress(User user, long projectId, String target) {
+    URL progressUrl = null;
     try {
-      String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
-      String outputFileDir = BUILD_FOLDER + '/' + target;
-      URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
-
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      int responseCode = connection.getResponseCode();
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-          try {
-            String content = readContent(connection.getInputStream());
-            if (content != null && !content.isEmpty()) {
-              LOG.info("The current progress is " + content + "%.");
-              currentProgress = Integer.parseInt(content);
-            }
-          } catch (IOException e) {
-            // No content. That's ok.
-          }
-         }
-      } catch (MalformedURLException e) {
-        // that's ok, nothing to do
-      } catch (IOException e) {
-        // that's ok, nothing to do
-      } catch (EncryptionException e) {
-        // that's ok, nothing to do
-      } catch (RuntimeException e) {
-        // that's ok, nothing to do
+      String buildId = getBuildId(user.getUserId(), projectId, target);
+      progressUrl = new URL("http://" + getBuildServerPool().getBuildServer(buildId)
+          + "/buildserver/progress/" + buildId);
+      HttpURLConnection connection = (HttpURLConnection) progressUrl.openConnection();
+      connection.setRequestMethod("GET");
+      if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+        String content = readContent(connection.getInputStream());
+        if (content != null && !content.isEmpty()) {
+          return new JSONObject(content).getInt("progress");
+        }
       }
+    } catch (IOException e) {
+      // that's ok, nothing to do
+    } catch (JSONException e) {
+      LOG.warning("Unexpected progress from " + progressUrl + ": " + e.getMessage());
+    } catch (RuntimeException e) {
+      // that's ok, nothing to do
+    }
+    return 0;
   }
 
   // Nicely format floating number using only two decimal places
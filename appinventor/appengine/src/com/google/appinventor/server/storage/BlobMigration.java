@@ -0,0 +1,313 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.BlobMigrationData;
+import com.google.appinventor.server.storage.StoredData.ProjectData;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the project files that are still in the Blobstore to GCS, in the
+ * background, so that opening and downloading projects never pays for it.
+ *
+ * <p>The projects are split into shards by ranges of project ids, using the
+ * datastore's scatter sample. Each shard is a chain of tasks on the
+ * "blobmigration" task queue. A task migrates the next few projects of its
+ * shard and saves the shard's checkpoint, a {@link BlobMigrationData},
+ * before it queues the next task. So:
+ * <ul>
+ * <li>the shards run in parallel, as far as the task queue allows,
+ * <li>the migration is rate limited by the task queue and by
+ *     {@code blob.migration.files.per.second} in each shard,
+ * <li>a stopped migration resumes from the checkpoints, and a failed task
+ *     only redoes its own projects, whose migrated files are skipped.
+ * </ul>
+ *
+ * <p>A dry run reads the files that would be moved, counting them and the
+ * files that can't be read, but doesn't change them.
+ *
+ */
+final class BlobMigration {
+
+  private static final Logger LOG = Logger.getLogger(BlobMigration.class.getName());
+
+  private static final String QUEUE = "blobmigration";
+  private static final String URL = "/admin/blobmigration";
+
+  // How many shards the projects are split into
+  private static final Flag<Integer> shards = Flag.createFlag("blob.migration.shards", 8);
+
+  // How many projects a task migrates
+  private static final Flag<Integer> projectsPerTask =
+      Flag.createFlag("blob.migration.projects.per.task", 20);
+
+  // How many files each shard migrates per second at most
+  private static final Flag<Integer> filesPerSecond =
+      Flag.createFlag("blob.migration.files.per.second", 5);
+
+  // Scatter sample keys read per shard, to find the ranges of the shards
+  private static final int SAMPLES_PER_SHARD = 32;
+
+  private final ObjectifyStorageIo storage;
+
+  BlobMigration(ObjectifyStorageIo storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Starts a migration over all projects, replacing the checkpoints of the
+   * previous one.
+   */
+  void start(boolean dryRun) {
+    Objectify datastore = ObjectifyService.begin();
+    List<Long> ends = splitProjectIds(datastore, shards.get());
+    long runId = System.currentTimeMillis();
+    List<BlobMigrationData> checkpoints = new ArrayList<BlobMigrationData>();
+    long start = 0;
+    for (int shard = 0; shard < ends.size(); shard++) {
+      BlobMigrationData checkpoint = new BlobMigrationData();
+      checkpoint.id = shard + 1L;
+      checkpoint.runId = runId;
+      checkpoint.dryRun = dryRun;
+      checkpoint.lastProjectId = start;
+      checkpoint.endProjectId = ends.get(shard);
+      checkpoint.updated = runId;
+      checkpoints.add(checkpoint);
+      start = checkpoint.endProjectId;
+    }
+    datastore.delete(datastore.query(BlobMigrationData.class).fetchKeys());
+    datastore.put(checkpoints);
+    LOG.info("Starting " + (dryRun ? "a dry run of " : "") + "the Blobstore migration "
+        + runId + " with " + checkpoints.size() + " shards");
+    for (BlobMigrationData checkpoint : checkpoints) {
+      queueTask(checkpoint, false);
+    }
+  }
+
+  /**
+   * Stops the tasks of the migration after the projects they are migrating.
+   */
+  void stop() {
+    setStopped(true);
+  }
+
+  /**
+   * Resumes the stopped shards of the migration from their checkpoints.
+   */
+  void resume() {
+    for (BlobMigrationData checkpoint : setStopped(false)) {
+      if (!checkpoint.done) {
+        queueTask(checkpoint, false);
+      }
+    }
+  }
+
+  /**
+   * Migrates the next projects of a shard and queues the task that
+   * continues after them. Called from the task queue.
+   */
+  void migrateNextProjects(int shard, long runId) {
+    Objectify datastore = ObjectifyService.begin();
+    BlobMigrationData checkpoint = datastore.find(BlobMigrationData.class, shard + 1L);
+    if (checkpoint == null || checkpoint.runId != runId || checkpoint.stopped
+        || checkpoint.done) {
+      return;                   // Another run, or it is over
+    }
+    long from = checkpoint.lastProjectId;
+    int limit = projectsPerTask.get();
+    Query<ProjectData> query = datastore.query(ProjectData.class)
+        .filter("__key__ <=", projectKey(checkpoint.endProjectId));
+    if (from > 0) {                       // There is no key with id 0
+      query = query.filter("__key__ >", projectKey(from));
+    }
+    List<Long> projectIds = new ArrayList<Long>();
+    for (Key<ProjectData> key : query.order("__key__").limit(limit).fetchKeys()) {
+      projectIds.add(key.getId());
+    }
+
+    long minNanosPerFile = 1000000000L / Math.max(1, filesPerSecond.get());
+    long started = System.nanoTime();
+    long files = 0;
+    long bytes = 0;
+    long failures = 0;
+    for (long projectId : projectIds) {
+      for (String fileName : storage.getBlobFileNames(projectId)) {
+        // Keep under the rate of the shard
+        long wait = files * minNanosPerFile - (System.nanoTime() - started);
+        if (wait > 0) {
+          try {
+            Thread.sleep(wait / 1000000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        try {
+          long migrated = storage.migrateBlobFile(projectId, fileName, checkpoint.dryRun);
+          if (migrated >= 0) {
+            files++;
+            bytes += migrated;
+          }
+        } catch (RuntimeException e) {
+          // The file stays in the Blobstore, a later run tries again.
+          LOG.log(Level.WARNING, "Couldn't migrate " + fileName + " of project " + projectId, e);
+          failures++;
+        }
+      }
+    }
+
+    datastore = ObjectifyService.beginTransaction();
+    try {
+      checkpoint = datastore.find(BlobMigrationData.class, shard + 1L);
+      if (checkpoint == null || checkpoint.runId != runId || checkpoint.lastProjectId != from) {
+        return;                 // Another task has done these projects meanwhile
+      }
+      if (!projectIds.isEmpty()) {
+        checkpoint.lastProjectId = projectIds.get(projectIds.size() - 1);
+      }
+      checkpoint.done = projectIds.size() < limit;
+      checkpoint.updated = System.currentTimeMillis();
+      checkpoint.projects += projectIds.size();
+      checkpoint.files += files;
+      checkpoint.bytes += bytes;
+      checkpoint.failures += failures;
+      datastore.put(checkpoint);
+      datastore.getTxn().commit();
+    } finally {
+      if (datastore.getTxn().isActive()) {
+        datastore.getTxn().rollback();
+      }
+    }
+    if (checkpoint.done) {
+      LOG.info("Shard " + shard + " of the Blobstore migration " + runId + " is done");
+    } else if (!checkpoint.stopped) {
+      queueTask(checkpoint, true);
+    }
+  }
+
+  /**
+   * Returns the progress of the migration, one line per shard and one for
+   * all of them.
+   */
+  List<String> getStatus() {
+    List<String> lines = new ArrayList<String>();
+    BlobMigrationData total = new BlobMigrationData();
+    int running = 0;
+    for (BlobMigrationData checkpoint :
+             ObjectifyService.begin().query(BlobMigrationData.class).order("__key__")) {
+      lines.add("shard " + (checkpoint.id - 1) + " " + describe(checkpoint));
+      if (!checkpoint.done && !checkpoint.stopped) {
+        running++;
+      }
+      total.runId = checkpoint.runId;
+      total.dryRun = checkpoint.dryRun;
+      total.updated = Math.max(total.updated, checkpoint.updated);
+      total.projects += checkpoint.projects;
+      total.files += checkpoint.files;
+      total.bytes += checkpoint.bytes;
+      total.failures += checkpoint.failures;
+    }
+    if (lines.isEmpty()) {
+      lines.add("No migration has been started");
+    } else {
+      lines.add("total " + running + " running " + describe(total));
+    }
+    return lines;
+  }
+
+  private static String describe(BlobMigrationData checkpoint) {
+    String state = checkpoint.done ? "done" : checkpoint.stopped ? "stopped" : "running";
+    double seconds = Math.max(1, checkpoint.updated - checkpoint.runId) / 1000.0;
+    return String.format("%s%s projects %d files %d bytes %d failures %d"
+        + " files/s %.2f bytes/s %.0f",
+        state, checkpoint.dryRun ? " (dry run)" : "", checkpoint.projects, checkpoint.files,
+        checkpoint.bytes, checkpoint.failures, checkpoint.files / seconds,
+        checkpoint.bytes / seconds);
+  }
+
+  /*
+   * Returns the last project id of each shard, splitting the projects into
+   * about equal ranges with the datastore's scatter sample. Fewer shards are
+   * used when there are too few projects to sample.
+   */
+  private static List<Long> splitProjectIds(Objectify datastore, int shardCount) {
+    List<Long> sample = new ArrayList<Long>();
+    for (Key<ProjectData> key : datastore.query(ProjectData.class).order("__scatter__")
+        .limit(shardCount * SAMPLES_PER_SHARD).fetchKeys()) {
+      sample.add(key.getId());
+    }
+    Collections.sort(sample);
+    List<Long> ends = new ArrayList<Long>();
+    for (int shard = 1; shard < shardCount && !sample.isEmpty(); shard++) {
+      long end = sample.get(shard * sample.size() / shardCount);
+      if (ends.isEmpty() || end > ends.get(ends.size() - 1)) {
+        ends.add(end);
+      }
+    }
+    ends.add(Long.MAX_VALUE);
+    return ends;
+  }
+
+  private static List<BlobMigrationData> setStopped(boolean stopped) {
+    List<BlobMigrationData> checkpoints = new ArrayList<BlobMigrationData>();
+    for (Key<BlobMigrationData> key :
+             ObjectifyService.begin().query(BlobMigrationData.class).fetchKeys()) {
+      Objectify datastore = ObjectifyService.beginTransaction();
+      try {
+        BlobMigrationData checkpoint = datastore.find(key);
+        if (checkpoint != null) {
+          checkpoint.stopped = stopped;
+          datastore.put(checkpoint);
+          datastore.getTxn().commit();
+          checkpoints.add(checkpoint);
+        }
+      } finally {
+        if (datastore.getTxn().isActive()) {
+          datastore.getTxn().rollback();
+        }
+      }
+    }
+    return checkpoints;
+  }
+
+  /*
+   * Queues the task that continues a shard from its checkpoint. The task
+   * that a task queues next is named after the checkpoint, so that a retried
+   * task can't start a second chain.
+   */
+  private static void queueTask(BlobMigrationData checkpoint, boolean named) {
+    long shard = checkpoint.id - 1;
+    TaskOptions task = TaskOptions.Builder.withUrl(URL)
+        .param("shard", Long.toString(shard))
+        .param("run", Long.toString(checkpoint.runId));
+    if (named) {
+      task.taskName("blobmigration-" + checkpoint.runId + "-" + shard + "-"
+          + checkpoint.lastProjectId);
+    }
+    try {
+      QueueFactory.getQueue(QUEUE).add(task);
+    } catch (TaskAlreadyExistsException e) {
+      // Queued by an earlier attempt of the same task
+    }
+  }
+
+  private static Key<ProjectData> projectKey(long projectId) {
+    return new Key<ProjectData>(ProjectData.class, projectId);
+  }
+}
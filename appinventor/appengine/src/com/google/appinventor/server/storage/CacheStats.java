@@ -0,0 +1,89 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counts of a cache in this App Engine instance.
+ *
+ * <p>The counts of all caches are shown to administrators by
+ * {@link com.google.appinventor.server.CacheStatsServlet}.
+ */
+public final class CacheStats {
+  private static final ConcurrentMap<String, CacheStats> ALL =
+      new ConcurrentSkipListMap<String, CacheStats>();
+
+  private final String name;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private CacheStats(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the counts of the cache with the given name, creating them if
+   * needed.
+   */
+  static CacheStats forCache(String name) {
+    CacheStats stats = ALL.get(name);
+    if (stats == null) {
+      ALL.putIfAbsent(name, new CacheStats(name));
+      stats = ALL.get(name);
+    }
+    return stats;
+  }
+
+  /**
+   * Returns the counts of all caches, sorted by name.
+   */
+  public static List<CacheStats> getAll() {
+    return new ArrayList<CacheStats>(ALL.values());
+  }
+
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  void miss() {
+    misses.incrementAndGet();
+  }
+
+  void evict() {
+    evictions.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or 0 if there were none.
+   */
+  public double getHitRate() {
+    long hits = getHits();
+    long lookups = hits + getMisses();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+}
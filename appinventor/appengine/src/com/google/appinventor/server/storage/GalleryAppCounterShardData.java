@@ -0,0 +1,31 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * One shard of the download and like counters of a gallery app.
+ *
+ * <p>Downloads and likes are added to a random shard of the app instead of
+ * to its {@link GalleryAppData}, so that they don't all contend for the
+ * app's entity group. The shards are root entities and they are
+ * periodically rolled up into the counts of the app, see
+ * {@link ObjectifyGalleryStorageIo#rollUpCounters}.
+ *
+ */
+@Unindexed
+public class GalleryAppCounterShardData {
+  // "<gallery id>-<shard number>"
+  @Id String id;
+  long galleryId;
+
+  // Changes since the shard was created, likes can be negative
+  int numDownloads;
+  int numLikes;
+}
@@ -9,6 +9,7 @@ package com.google.appinventor.server.storage;
 import javax.persistence.Id;
 
 import com.googlecode.objectify.annotation.Indexed;
+import com.googlecode.objectify.annotation.Unindexed;
 
 /**
  * this class modelled after those in StoredData.java
@@ -32,6 +33,14 @@ public class GalleryAppData {
   @Indexed public int numDownloads;
   @Indexed public int unreadLikes;
   @Indexed public int unreadDownloads;
+  // Sums of the counter shards (see GalleryAppCounterShardData) that are
+  // already included in numDownloads/numLikes and the unread counts
+  @Unindexed int rolledUpDownloads;
+  @Unindexed int rolledUpLikes;
+  // The counts in the app's search document, as of the last rollup that
+  // re-indexed it
+  @Unindexed int indexedDownloads;
+  @Unindexed int indexedLikes;
   long projectId;
   int status;
   long lastEmailNotificationTimeStamp;
@@ -8,6 +8,7 @@ package com.google.appinventor.server.storage;
 
 
 import java.util.List;
+import java.util.Map;
 
 import com.google.appinventor.shared.rpc.project.Email;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
@@ -37,6 +38,13 @@ public interface GalleryStorageIo {
    */
   GalleryApp getGalleryApp(long galleryId);
 
+  /**
+   * Returns several gallery apps, read with one batch get
+   * @param galleryIds ids of the gallery apps you want
+   * @return the {@link GalleryApp}s by id, without the ones that don't exist
+   */
+  Map<Long, GalleryApp> getGalleryApps(List<Long> galleryIds);
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -68,35 +76,43 @@ public interface GalleryStorageIo {
    * updated galleryApps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page; if not null
+   *     the page starts there instead of at start
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getRecentGalleryApps(int start, int count);
+  GalleryAppListResult getRecentGalleryApps(int start, int count, String cursor);
 
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page; if not null
+   *     the page starts there instead of at start
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getMostDownloadedApps(int start, int count);
+  GalleryAppListResult getMostDownloadedApps(int start, int count, String cursor);
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page; if not null
+   *     the page starts there instead of at start
    * @return list of {@link GalleryApp}
    */
-  GalleryAppListResult getMostLikedApps(int start, int count);
+  GalleryAppListResult getMostLikedApps(int start, int count, String cursor);
 
   /**
    *Returns a wrapped class which contains a list of featured gallery app
    * @param start start index
    * @param count count number
+   * @param cursor the cursor returned with the previous page; if not null
+   *     the page starts there instead of at start
    * @return list of gallery app
    */
-  GalleryAppListResult getFeaturedApp(int start, int count);
+  GalleryAppListResult getFeaturedApp(int start, int count, String cursor);
 
   /**
    * check if app is featured already
@@ -128,6 +144,19 @@ public interface GalleryStorageIo {
    */
   void incrementDownloads(long galleryId);
 
+  /**
+   * adds the downloads and likes recorded since the last rollup to the
+   * counts of an app
+   * @param galleryId the id of the gallery app
+   */
+  void rollUpCounters(long galleryId);
+
+  /**
+   * recomputes the cached number of active apps, app rankings and first
+   * pages that the gallery listings use
+   */
+  void refreshListings();
+
   /**
    * deletes an app
    * @param galleryId the id of gallery app to be deleted
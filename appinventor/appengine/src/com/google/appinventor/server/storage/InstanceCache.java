@@ -0,0 +1,287 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A bounded, least recently used cache in this App Engine instance, in front
+ * of memcache.
+ *
+ * <p>Values that are read on almost every request, such as the user record
+ * and the source files of the project being edited, are kept deserialized in
+ * the memory of the instance. Finding a value there only costs reading its
+ * version stamp from memcache, a small number, instead of reading and
+ * deserializing the value itself.
+ *
+ * <p>The copies of a value in the different instances are kept consistent
+ * with memcache as follows:
+ * <ul>
+ * <li>Every key has a version stamp in memcache, which is incremented after
+ *     the value is written or removed.
+ * <li>A value read from memcache is kept in the instance with the version
+ *     stamp read before it, and is only used while the version stamp in
+ *     memcache is the same. If the version stamp has been evicted from
+ *     memcache, it starts again at a random number, so it doesn't match a
+ *     value kept from before.
+ * <li>A value written is kept in the instance only if incrementing the
+ *     version stamp gave one more than it was before the write, so no other
+ *     write came in between.
+ * </ul>
+ *
+ * <p>Callers get their own copy of a value, which they can change.
+ */
+final class InstanceCache<V extends Serializable> {
+
+  /**
+   * Copies and sizes the values of a cache.
+   */
+  interface ValueType<V> {
+    V copy(V value);
+
+    // An estimate of the memory used by a value, in bytes
+    int size(V value);
+  }
+
+  private static final String VERSION_KEY_PREFIX = "version|";
+
+  private static final Random random = new Random();
+
+  /*
+   * A value kept in the instance.
+   */
+  private static final class Entry<V> {
+    final V value;
+    final Object version;
+    final int size;
+    // 0 if the value doesn't expire
+    final long expiresAt;
+
+    Entry(V value, Object version, int size, long expiresAt) {
+      this.value = value;
+      this.version = version;
+      this.size = size;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final MemcacheService memcache;
+  private final ValueType<V> type;
+  private final long capacity;
+  private final int expirationSeconds;
+  private final CacheStats instanceStats;
+  private final CacheStats memcacheStats;
+
+  // Guarded by itself. In access order, so the least recently used entry is first.
+  private final LinkedHashMap<String, Entry<V>> entries =
+      new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+  private long size;
+
+  /**
+   * Creates a cache.
+   *
+   * @param name the name of the cache in {@link CacheStats}
+   * @param capacity the memory used by the values kept in the instance, in bytes
+   * @param expirationSeconds how long values are kept, or 0 to keep them until
+   *        they are evicted
+   */
+  InstanceCache(String name, MemcacheService memcache, ValueType<V> type, long capacity,
+      int expirationSeconds) {
+    this.memcache = memcache;
+    this.type = type;
+    this.capacity = capacity;
+    this.expirationSeconds = expirationSeconds;
+    instanceStats = CacheStats.forCache(name + ".instance");
+    memcacheStats = CacheStats.forCache(name + ".memcache");
+  }
+
+  /**
+   * Returns a copy of the value of a key, or {@code null} if it isn't cached.
+   */
+  @SuppressWarnings("unchecked")
+  V get(String key) {
+    String versionKey = versionKey(key);
+    Entry<V> entry = getEntry(key);
+    Object version = memcache.get(versionKey);
+    if (entry != null) {
+      if (entry.version.equals(version)) {
+        instanceStats.hit();
+        return type.copy(entry.value);
+      }
+      removeEntry(key, entry);
+    }
+    instanceStats.miss();
+    // Read after the version stamp, as a writer changes the value before the stamp
+    V value = (V) memcache.get(key);
+    if (value == null) {
+      memcacheStats.miss();
+      return null;
+    }
+    memcacheStats.hit();
+    if (version != null) {
+      // The value is at least as recent as the version stamp read before it.
+      putEntry(key, value, version);
+      return type.copy(value);
+    }
+    // Start a version stamp, so the value can be kept the next time it's read.
+    memcache.put(versionKey, initialVersion(), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return value;
+  }
+
+  /**
+   * Caches the new value of a key.
+   */
+  void put(String key, V value) {
+    String versionKey = versionKey(key);
+    Long before = startVersion(versionKey);
+    memcache.put(key, value, expiration());
+    Long version = memcache.increment(versionKey, 1, initialVersion());
+    keepWritten(key, value, before, version);
+  }
+
+  /**
+   * Caches the new values of several keys.
+   */
+  void putAll(Map<String, V> values) {
+    if (values.isEmpty()) {
+      return;
+    }
+    List<String> versionKeys = new ArrayList<String>(values.size());
+    for (String key : values.keySet()) {
+      versionKeys.add(versionKey(key));
+    }
+    Map<String, Object> before = new HashMap<String, Object>(memcache.getAll(versionKeys));
+    for (String versionKey : versionKeys) {
+      if (before.get(versionKey) == null) {
+        before.put(versionKey, startVersion(versionKey));
+      }
+    }
+    memcache.putAll(values, expiration());
+    Map<String, Long> versions = memcache.incrementAll(versionKeys, 1, initialVersion());
+    for (Map.Entry<String, V> value : values.entrySet()) {
+      String versionKey = versionKey(value.getKey());
+      keepWritten(value.getKey(), value.getValue(), (Long) before.get(versionKey),
+          versions.get(versionKey));
+    }
+  }
+
+  /**
+   * Removes the value of a key, in all instances.
+   */
+  void remove(String key) {
+    memcache.delete(key);
+    memcache.increment(versionKey(key), 1, initialVersion());
+    removeEntry(key);
+  }
+
+  /*
+   * Returns the version stamp of a key before it is written, starting it if
+   * there is none, or null if it can't be read.
+   */
+  private Long startVersion(String versionKey) {
+    Object version = memcache.get(versionKey);
+    if (version == null) {
+      long initial = initialVersion();
+      if (memcache.put(versionKey, initial, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+        return initial;
+      }
+      // Started by another request meanwhile
+      version = memcache.get(versionKey);
+    }
+    return (Long) version;
+  }
+
+  /*
+   * Keeps a value just written in the instance, unless another write came
+   * between reading the version stamp and incrementing it. Then memcache may
+   * have the other value, and the instance keeps neither.
+   */
+  private void keepWritten(String key, V value, Long before, Long version) {
+    if (before != null && version != null && version == before + 1) {
+      putEntry(key, type.copy(value), version);
+    } else {
+      removeEntry(key);
+    }
+  }
+
+  private Entry<V> getEntry(String key) {
+    synchronized (entries) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null && entry.expiresAt != 0 && entry.expiresAt < System.currentTimeMillis()) {
+        entries.remove(key);
+        size -= entry.size;
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  private void putEntry(String key, V value, Object version) {
+    int valueSize = type.size(value);
+    if (valueSize > capacity) {
+      return;
+    }
+    long expiresAt = expirationSeconds == 0 ? 0
+        : System.currentTimeMillis() + expirationSeconds * 1000L;
+    synchronized (entries) {
+      Entry<V> old = entries.put(key, new Entry<V>(value, version, valueSize, expiresAt));
+      if (old != null) {
+        size -= old.size;
+      }
+      size += valueSize;
+      Iterator<Entry<V>> leastRecentlyUsed = entries.values().iterator();
+      while (size > capacity) {
+        Entry<V> evicted = leastRecentlyUsed.next();
+        leastRecentlyUsed.remove();
+        size -= evicted.size;
+        instanceStats.evict();
+      }
+    }
+  }
+
+  private void removeEntry(String key) {
+    synchronized (entries) {
+      Entry<V> entry = entries.remove(key);
+      if (entry != null) {
+        size -= entry.size;
+      }
+    }
+  }
+
+  private void removeEntry(String key, Entry<V> entry) {
+    synchronized (entries) {
+      // Unless another request has replaced it meanwhile
+      if (entries.get(key) == entry) {
+        entries.remove(key);
+        size -= entry.size;
+      }
+    }
+  }
+
+  private Expiration expiration() {
+    return expirationSeconds == 0 ? null : Expiration.byDeltaSeconds(expirationSeconds);
+  }
+
+  private static long initialVersion() {
+    // Non-negative, memcache treats counters as unsigned
+    return random.nextLong() >>> 1;
+  }
+
+  private static String versionKey(String key) {
+    return VERSION_KEY_PREFIX + key;
+  }
+}
@@ -0,0 +1,1409 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.FileData;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Implements the StorageIo interface on the local file system, for App
+ * Inventor servers that don't run on App Engine.
+ *
+ * <p>The content of every file is stored once, in a file under
+ * {@code <root>/blobs} named by the SHA-1 hash of the content, so saving
+ * content that is already stored (an unchanged file, or an asset shared by
+ * several projects) writes nothing. Users, projects and the records that
+ * point files at their content are kept in a {@link LocalMetadataStore}
+ * under {@code <root>/metadata}, which also counts the references to each
+ * content file and deletes it when there are none left.
+ *
+ */
+public class LocalFileStorageIo implements StorageIo {
+  static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final Logger LOG = Logger.getLogger(LocalFileStorageIo.class.getName());
+
+  private static final String DEFAULT_ENCODING = "UTF-8";
+
+  private static final long MOTD_ID = 1;
+
+  // Nonces are removed when they are older than this (see cleanupNonces)
+  private static final long NONCE_EXPIRATION_MILLIS = 3 * 3600 * 1000L;
+
+  /*
+   * Record of a user.
+   */
+  private static final class UserRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    String id;
+    String email;
+    String settings;
+    boolean tosAccepted;
+    Date visited;
+    String name;
+    String link;
+    int emailFrequency;
+    int type;
+    String sessionId;
+  }
+
+  /*
+   * Record of a project.
+   */
+  private static final class ProjectRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    long id;
+    String name;
+    String type;
+    String settings;
+    long dateCreated;
+    long dateModified;
+    String history;
+    long galleryId;
+    long attributionId;
+  }
+
+  /*
+   * Record of a project file or a user file. The hash of the content is null
+   * until content is uploaded.
+   */
+  private static final class FileRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    FileData.RoleEnum role;  // null for user files
+    String hash;
+    int length;
+  }
+
+  /*
+   * Changes to the metadata that are written together, and the references to
+   * content files that they add and remove.
+   */
+  private static final class Change {
+    final LocalMetadataStore.Batch batch = new LocalMetadataStore.Batch();
+    // content hash -> change in the number of references
+    final Map<String, Integer> references = new HashMap<String, Integer>();
+    // content hash -> content, for the references that are added
+    final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+
+    void setContent(FileRecord record, String hash, byte[] content) {
+      removeContent(record);
+      record.hash = hash;
+      record.length = content.length;
+      addReference(hash, 1);
+      contents.put(hash, content);
+    }
+
+    void removeContent(FileRecord record) {
+      if (record.hash != null) {
+        addReference(record.hash, -1);
+      }
+    }
+
+    private void addReference(String hash, int delta) {
+      Integer count = references.get(hash);
+      references.put(hash, (count == null ? 0 : count) + delta);
+    }
+  }
+
+  private final File blobDirectory;
+  private final LocalMetadataStore store;
+
+  /**
+   * Creates the storage kept under a directory.
+   *
+   * @param root  the directory, which is created if needed
+   */
+  public LocalFileStorageIo(File root) {
+    blobDirectory = new File(root, "blobs");
+    try {
+      store = new LocalMetadataStore(new File(root, "metadata"));
+      if (store.get(motdKey()) == null) {
+        store.write(new LocalMetadataStore.Batch().put(motdKey(), new Motd(MOTD_ID, "Hello!",
+            "Welcome to the experimental App Inventor system from MIT. "
+            + "This is still a prototype.  It would be a good idea to frequently back up "
+            + "your projects to local storage.")));
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, "root=" + root, e);
+    }
+  }
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  /*
+   * Note that the User returned by this method will always have isAdmin set to
+   * false. We leave it to the caller to determine whether the user has admin
+   * priviledges.
+   */
+  @Override
+  public User getUser(String userId, String email) {
+    UserRecord userRecord;
+    try {
+      synchronized (store) {
+        userRecord = (UserRecord) store.get(userKey(userId));
+        Change change = new Change();
+        if (userRecord == null) {
+          userRecord = new UserRecord();
+          userRecord.id = userId;
+          userRecord.tosAccepted = false;
+          userRecord.settings = "";
+          userRecord.email = email == null ? "" : email;
+          userRecord.name = User.getDefaultName(email);
+          userRecord.type = User.USER;
+          userRecord.link = "";
+          userRecord.emailFrequency = User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY;
+          putUser(change, userRecord, null);
+        } else if (email != null && !email.equals(userRecord.email)) {
+          String oldEmail = userRecord.email;
+          userRecord.email = email;
+          putUser(change, userRecord, oldEmail);
+        }
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+    User user = new User(userId, userRecord.email, userRecord.name, userRecord.link,
+        userRecord.emailFrequency, userRecord.tosAccepted || !requireTos.get(), false,
+        userRecord.type, userRecord.sessionId);
+    if (user.getUserName() == null) {
+      user.setUserName(user.getDefaultName());
+    }
+    return user;
+  }
+
+  /*
+   * Adds a user record to a change, with the record that finds the user by
+   * email address.
+   */
+  private void putUser(Change change, UserRecord userRecord, String oldEmail) {
+    if (oldEmail != null && !oldEmail.equals(userRecord.email)
+        && userRecord.id.equals(store.get(emailKey(oldEmail)))) {
+      change.batch.delete(emailKey(oldEmail));
+    }
+    if (!Strings.isNullOrEmpty(userRecord.email)) {
+      change.batch.put(emailKey(userRecord.email), userRecord.id);
+    }
+    change.batch.put(userKey(userRecord.id), userRecord);
+  }
+
+  /*
+   * Changes the record of a user, if the user exists.
+   */
+  private interface UserUpdate {
+    void update(UserRecord userRecord);
+  }
+
+  private void updateUser(String userId, UserUpdate update) {
+    try {
+      synchronized (store) {
+        UserRecord userRecord = (UserRecord) store.get(userKey(userId));
+        if (userRecord != null) {
+          String oldEmail = userRecord.email;
+          update.update(userRecord);
+          Change change = new Change();
+          putUser(change, userRecord, oldEmail);
+          commit(change);
+        }
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    }
+  }
+
+  private UserRecord findUser(String userId) {
+    return (UserRecord) store.get(userKey(userId));
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.tosAccepted = true;
+      }
+    });
+  }
+
+  @Override
+  public void setUserEmail(String userId, final String email) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.email = email;
+      }
+    });
+  }
+
+  @Override
+  public void setUserName(String userId, final String name) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.name = name;
+      }
+    });
+  }
+
+  @Override
+  public void setUserLink(String userId, final String link) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.link = link;
+      }
+    });
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, final int emailFrequency) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.emailFrequency = emailFrequency;
+      }
+    });
+  }
+
+  @Override
+  public void setUserSessionId(String userId, final String sessionId) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.sessionId = sessionId;
+      }
+    });
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    UserRecord userRecord = findUser(userId);
+    return userRecord == null ? "" : userRecord.settings;
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    UserRecord userRecord = findUser(userId);
+    return userRecord == null ? "unknown" : userRecord.name;
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    UserRecord userRecord = findUser(userId);
+    return userRecord == null ? "unknown" : userRecord.link;
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    UserRecord userRecord = findUser(userId);
+    return userRecord == null
+        ? User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY : userRecord.emailFrequency;
+  }
+
+  @Override
+  public void storeSettings(String userId, final String settings) {
+    updateUser(userId, new UserUpdate() {
+      @Override
+      public void update(UserRecord userRecord) {
+        userRecord.settings = settings;
+        userRecord.visited = new Date(); // Indicate that this person was active now
+      }
+    });
+  }
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    // The content files are written before the lock is taken, as in
+    // uploadRawFiles, so that creating a project doesn't hold up the other
+    // users' saves while it writes to the disk. commit rewrites a content
+    // file that was deleted in between.
+    Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+    Map<String, String> hashes = new HashMap<String, String>();
+    String fileName = null;
+    long projectId = INVALID_PROJECTID;
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        fileName = file.getFileName();
+        files.put(fileName, file.getContent().getBytes(DEFAULT_ENCODING));
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        fileName = file.getFileName();
+        files.put(fileName, file.getContent());
+      }
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        fileName = file.getKey();
+        hashes.put(fileName, writeBlob(file.getValue()));
+      }
+      fileName = null;
+
+      synchronized (store) {
+        Long lastProjectId = (Long) store.get(projectCounterKey());
+        projectId = (lastProjectId == null ? 0 : lastProjectId) + 1;
+        long date = System.currentTimeMillis();
+        ProjectRecord pd = new ProjectRecord();
+        pd.id = projectId;
+        pd.dateCreated = date;
+        pd.dateModified = date;
+        pd.history = project.getProjectHistory();
+        pd.name = project.getProjectName();
+        pd.settings = projectSettings;
+        pd.type = project.getProjectType();
+        pd.galleryId = UserProject.NOTPUBLISHED;
+        pd.attributionId = UserProject.FROMSCRATCH;
+
+        // The project, its files and its owner are written together
+        Change change = new Change();
+        change.batch.put(projectCounterKey(), projectId);
+        change.batch.put(projectKey(projectId), pd);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+          FileRecord record = new FileRecord();
+          record.role = FileData.RoleEnum.SOURCE;
+          change.setContent(record, hashes.get(file.getKey()), file.getValue());
+          change.batch.put(projectFileKey(projectId, file.getKey()), record);
+        }
+        change.batch.put(userProjectKey(userId, projectId), Strings.nullToEmpty(pd.type));
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    return projectId;
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    try {
+      synchronized (store) {
+        Change change = new Change();
+        change.batch.delete(userProjectKey(userId, projectId));
+        for (Map.Entry<String, Object> file :
+                 store.scan(projectFileKey(projectId, "")).entrySet()) {
+          change.removeContent((FileRecord) file.getValue());
+          change.batch.delete(file.getKey());
+        }
+        change.batch.delete(projectKey(projectId));
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    List<Long> projects = new ArrayList<Long>();
+    String prefix = userProjectKey(userId, "");
+    for (String key : store.scanKeys(prefix)) {
+      projects.add(Long.parseLong(key.substring(prefix.length())));
+    }
+    return projects;
+  }
+
+  /*
+   * Changes the record of a project, if the project exists.
+   */
+  private interface ProjectUpdate {
+    void update(ProjectRecord pd);
+  }
+
+  private void updateProject(String userId, long projectId, ProjectUpdate update) {
+    try {
+      synchronized (store) {
+        ProjectRecord pd = findProject(projectId);
+        if (pd != null) {
+          update.update(pd);
+          store.write(new LocalMetadataStore.Batch().put(projectKey(projectId), pd));
+        }
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+  }
+
+  private ProjectRecord findProject(long projectId) {
+    return (ProjectRecord) store.get(projectKey(projectId));
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, final long galleryId) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void update(ProjectRecord pd) {
+        pd.galleryId = galleryId;
+      }
+    });
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, final long attributionId) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void update(ProjectRecord pd) {
+        pd.attributionId = attributionId;
+      }
+    });
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    checkOwner(userId, projectId);
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? "" : pd.settings;
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, final String settings) {
+    updateProject(userId, projectId, new ProjectUpdate() {
+      @Override
+      public void update(ProjectRecord pd) {
+        pd.settings = settings;
+      }
+    });
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    String projectType = (String) store.get(userProjectKey(userId, projectId));
+    return projectType == null ? "" : projectType;
+  }
+
+  /*
+   * Throws UnauthorizedAccessException unless the user owns the project.
+   */
+  private void checkOwner(String userId, long projectId) {
+    if (store.get(userProjectKey(userId, projectId)) == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? null : makeUserProject(pd);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    List<UserProject> result = new ArrayList<UserProject>(projectIds.size());
+    for (long projectId : projectIds) {
+      ProjectRecord pd = findProject(projectId);
+      if (pd != null) {
+        result.add(makeUserProject(pd));
+      }
+    }
+    return result;
+  }
+
+  private static UserProject makeUserProject(ProjectRecord pd) {
+    return new UserProject(pd.id, pd.name, pd.type, pd.dateCreated, pd.dateModified,
+        pd.galleryId, pd.attributionId);
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? "" : pd.name;
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.dateModified;
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    checkOwner(userId, projectId);
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? "" : pd.history;
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.dateCreated;
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? UserProject.NOTPUBLISHED : pd.galleryId;
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    ProjectRecord pd = findProject(projectId);
+    return pd == null ? UserProject.FROMSCRATCH : pd.attributionId;
+  }
+
+  @Override
+  public void addFilesToUser(String userId, String... fileNames) {
+    try {
+      synchronized (store) {
+        Change change = new Change();
+        for (String fileName : fileNames) {
+          if (store.get(userFileKey(userId, fileName)) == null) {
+            change.batch.put(userFileKey(userId, fileName), new FileRecord());
+          }
+        }
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserErrorInfo(userId, fileNames[0]), e);
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    List<String> fileList = new ArrayList<String>();
+    String prefix = userFileKey(userId, "");
+    for (String key : store.scanKeys(prefix)) {
+      fileList.add(key.substring(prefix.length()));
+    }
+    return fileList;
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileName, String content, String encoding) {
+    byte[] bytes;
+    try {
+      bytes = content.getBytes(encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+    uploadRawUserFile(userId, fileName, bytes);
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    try {
+      String hash = writeBlob(content);
+      synchronized (store) {
+        FileRecord record = (FileRecord) store.get(userFileKey(userId, fileName));
+        Preconditions.checkState(record != null);
+        Change change = new Change();
+        change.setContent(record, hash, content);
+        change.batch.put(userFileKey(userId, fileName), record);
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    byte[] content;
+    try {
+      content = readContent(userFileKey(userId, fileName));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+    }
+    if (content == null) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+          new FileNotFoundException(fileName));
+    }
+    return content;
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileName) {
+    try {
+      synchronized (store) {
+        FileRecord record = (FileRecord) store.get(userFileKey(userId, fileName));
+        if (record != null) {
+          Change change = new Change();
+          change.removeContent(record);
+          change.batch.delete(userFileKey(userId, fileName));
+          commit(change);
+        }
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    checkOwner(userId, projectId);
+    addFilesToProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileNames) {
+    checkOwner(userId, projectId);
+    addFilesToProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private void addFilesToProject(String userId, long projectId, FileData.RoleEnum role,
+      boolean changeModDate, String... fileNames) {
+    try {
+      synchronized (store) {
+        Change change = new Change();
+        for (String fileName : fileNames) {
+          FileRecord record = (FileRecord) store.get(projectFileKey(projectId, fileName));
+          if (record == null) {
+            record = new FileRecord();
+            record.role = role;
+            change.batch.put(projectFileKey(projectId, fileName), record);
+          } else if (record.role != role) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(null, projectId, fileName),
+                new IllegalStateException("File role change is not supported"));
+          }
+        }
+        if (changeModDate) {
+          updateProjectModDate(change, projectId);
+        }
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate,
+        fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private void removeFilesFromProject(String userId, long projectId, FileData.RoleEnum role,
+      boolean changeModDate, String... fileNames) {
+    try {
+      synchronized (store) {
+        Change change = new Change();
+        for (String fileName : fileNames) {
+          FileRecord record = (FileRecord) store.get(projectFileKey(projectId, fileName));
+          if (record != null) {
+            if (record.role != role) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(null, projectId, fileName),
+                  new IllegalStateException("File role change is not supported"));
+            }
+            change.removeContent(record);
+            change.batch.delete(projectFileKey(projectId, fileName));
+          }
+        }
+        if (changeModDate) {
+          updateProjectModDate(change, projectId);
+        }
+        commit(change);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    checkOwner(userId, projectId);
+    return getProjectFiles(projectId, FileData.RoleEnum.SOURCE);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    checkOwner(userId, projectId);
+    return getProjectFiles(projectId, FileData.RoleEnum.TARGET);
+  }
+
+  private List<String> getProjectFiles(long projectId, FileData.RoleEnum role) {
+    List<String> fileList = new ArrayList<String>();
+    String prefix = projectFileKey(projectId, "");
+    for (Map.Entry<String, Object> file : store.scan(prefix).entrySet()) {
+      if (((FileRecord) file.getValue()).role == role) {
+        fileList.add(file.getKey().substring(prefix.length()));
+      }
+    }
+    return fileList;
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileName, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileName, String userId, String content,
+      String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    Map<String, byte[]> contents = new HashMap<String, byte[]>();
+    contents.put(fileName, content);
+    return uploadRawFiles(projectId, userId, force, contents);
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileName, String userId,
+      byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadFilesForce(long projectId, String userId, Map<String, String> contents,
+      String encoding) {
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    String fileName = null;
+    try {
+      for (Map.Entry<String, String> file : contents.entrySet()) {
+        fileName = file.getKey();
+        rawContents.put(fileName, file.getValue().getBytes(encoding));
+      }
+      return uploadRawFiles(projectId, userId, true, rawContents);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFiles(long projectId, String userId, boolean force,
+      Map<String, byte[]> contents) throws BlocksTruncatedException {
+    String fileName = null;
+    try {
+      // The content is written before the lock is taken, so that saves of
+      // different projects don't wait for each other's disk writes.
+      Map<String, String> hashes = new HashMap<String, String>();
+      for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+        fileName = file.getKey();
+        hashes.put(fileName, writeBlob(file.getValue()));
+      }
+      fileName = null;
+      synchronized (store) {
+        Change change = new Change();
+        for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+          fileName = file.getKey();
+          byte[] content = file.getValue();
+          FileRecord record = (FileRecord) store.get(projectFileKey(projectId, fileName));
+          // <Screen>.yail files are missing when user converts AI1 project to AI2
+          // instead of blowing up, just create a <Screen>.yail file
+          if (record == null && fileName.endsWith(".yail")) {
+            record = new FileRecord();
+            record.role = FileData.RoleEnum.SOURCE;
+          }
+          Preconditions.checkState(record != null);
+          // Likely this is an empty blocks workspace, don't replace real
+          // blocks with it unless force is true.
+          if (content.length < 125 && fileName.endsWith(".bky") && !force
+              && record.length > 120) {
+            throw new BlocksTruncatedException();
+          }
+          change.setContent(record, hashes.get(fileName), content);
+          change.batch.put(projectFileKey(projectId, fileName), record);
+        }
+        fileName = null;
+        long modDate = updateProjectModDate(change, projectId);
+        commit(change);
+        return modDate;
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  /*
+   * Adds the new modification date of a project to a change and returns it.
+   * Like ObjectifyStorageIo, the date only moves when the last change is
+   * more than a minute old.
+   */
+  private long updateProjectModDate(Change change, long projectId) {
+    long modDate = System.currentTimeMillis();
+    ProjectRecord pd = findProject(projectId);
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    if (modDate > pd.dateModified + 1000 * 60) {
+      pd.dateModified = modDate;
+      change.batch.put(projectKey(projectId), pd);
+    }
+    return pd.dateModified;
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileName) {
+    checkOwner(userId, projectId);
+    try {
+      synchronized (store) {
+        Change change = new Change();
+        FileRecord record = (FileRecord) store.get(projectFileKey(projectId, fileName));
+        if (record != null) {
+          change.removeContent(record);
+          change.batch.delete(projectFileKey(projectId, fileName));
+        }
+        long modDate = updateProjectModDate(change, projectId);
+        commit(change);
+        return modDate;
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileName, String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    HashMap<String, String> data = new LinkedHashMap<String, String>();
+    data.put("timestamp", String.valueOf(System.currentTimeMillis()));
+    data.put("userId", userId);
+    data.put("projectId", String.valueOf(projectId));
+    data.put("fileId", fileId);
+    data.put("message", message);
+    storeLogRecord("corruption", data);
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileName) {
+    checkOwner(userId, projectId);
+    byte[] content;
+    try {
+      content = readContent(projectFileKey(projectId, fileName));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    if (content == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+    return content;
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    Motd motd = (Motd) store.get(motdKey());
+    return motd == null ? new Motd(MOTD_ID, "Oops, no message of the day!", null) : motd;
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+                                                 boolean includeProjectHistory,
+                                                 boolean includeAndroidKeystore,
+                                                 @Nullable String zipName,
+                                                 boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(zipFile);
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out);
+    out.close();
+
+    String projectName = getProjectName(userId, projectId);
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeProjectSourceZip(String userId, long projectId,
+                                   boolean includeProjectHistory,
+                                   boolean includeAndroidKeystore,
+                                   boolean fatalError, ZipOutputStream out) throws IOException {
+    int fileCount = 0;
+    String prefix = projectFileKey(projectId, "");
+    String fileName = null;
+    try {
+      for (Map.Entry<String, Object> file : store.scan(prefix).entrySet()) {
+        fileName = file.getKey().substring(prefix.length());
+        FileRecord record = (FileRecord) file.getValue();
+        if (record.role != FileData.RoleEnum.SOURCE
+            || fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
+          // Skip legacy remix history files that were previous stored with the project
+          continue;
+        }
+        byte[] data = readContent(file.getKey());
+        if (data == null) {
+          // Deleted since the scan
+          continue;
+        }
+        out.putNextEntry(new ZipEntry(fileName));
+        out.write(data, 0, data.length);
+        out.closeEntry();
+        fileCount++;
+      }
+      if (fileCount > 0 && includeProjectHistory) {
+        ProjectRecord pd = findProject(projectId);
+        if (pd != null && !Strings.isNullOrEmpty(pd.history)) {
+          byte[] data = pd.history.getBytes(StorageUtil.DEFAULT_CHARSET);
+          out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount++;
+        }
+      }
+    } catch (RuntimeException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    }
+
+    if (fileCount == 0) {
+      // Nothing has been written to out, so callers can skip this project.
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    if (includeAndroidKeystore) {
+      byte[] data = readContent(userFileKey(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+      if (data != null && data.length > 0) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(data, 0, data.length);
+        out.closeEntry();
+        fileCount++;
+      }
+    }
+    return fileCount;
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    String userId = (String) store.get(emailKey(email));
+    if (userId == null) {
+      throw new NoSuchElementException("Couldn't find a user with email " + email);
+    }
+    return userId;
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    return (String) store.get(rendezvousKey(key));
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    try {
+      store.write(new LocalMetadataStore.Batch().put(rendezvousKey(key), ipAddress));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The whitelist records ({@code whitelist|<lower case email>}) are
+   * created by the administrator of the server.
+   */
+  @Override
+  public boolean checkWhiteList(String email) {
+    return store.get("whitelist|" + email.toLowerCase()) != null;
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    HashMap<String, String> data = new LinkedHashMap<String, String>();
+    data.put("notes", notes);
+    data.put("foundIn", foundIn);
+    data.put("faultData", faultData);
+    data.put("comments", comments);
+    data.put("datestamp", datestamp);
+    data.put("email", email);
+    data.put("projectId", projectId);
+    storeLogRecord("feedback", data);
+  }
+
+  /*
+   * Stores a record that is only read by administrators, under the next id of
+   * its kind.
+   */
+  private void storeLogRecord(String kind, HashMap<String, String> data) {
+    try {
+      synchronized (store) {
+        Long lastId = (Long) store.get("counter|" + kind);
+        long id = (lastId == null ? 0 : lastId) + 1;
+        store.write(new LocalMetadataStore.Batch()
+            .put("counter|" + kind, id)
+            .put(kind + "|" + id, data));
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    return (Nonce) store.get(nonceKey(nonceValue));
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    try {
+      store.write(new LocalMetadataStore.Batch().put(nonceKey(nonceValue),
+          new Nonce(nonceValue, userId, projectId, new Date())));
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, null, e);
+    }
+  }
+
+  @Override
+  public void cleanupNonces() {
+    long expired = System.currentTimeMillis() - NONCE_EXPIRATION_MILLIS;
+    LocalMetadataStore.Batch batch = new LocalMetadataStore.Batch();
+    for (Map.Entry<String, Object> nonce : store.scan(nonceKey("")).entrySet()) {
+      if (((Nonce) nonce.getValue()).getTimeStamp().getTime() < expired) {
+        batch.delete(nonce.getKey());
+      }
+    }
+    try {
+      store.write(batch);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Exception during cleanupNonces", e);
+    }
+  }
+
+  @Override
+  public void startBlobMigration(boolean dryRun) {
+    // There is no Blobstore to move projects out of.
+  }
+
+  @Override
+  public void stopBlobMigration() {
+  }
+
+  @Override
+  public void resumeBlobMigration() {
+  }
+
+  @Override
+  public void migrateBlobFiles(int shard, long runId) {
+  }
+
+  @Override
+  public List<String> getBlobMigrationStatus() {
+    return Collections.singletonList("There is no Blobstore to move projects out of");
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    SplashConfig splashConfig = (SplashConfig) store.get(splashKey());
+    if (splashConfig == null) {
+      splashConfig = new SplashConfig(0, 350, 100, "<b>Welcome to MIT App Inventor</b>");
+      try {
+        store.write(new LocalMetadataStore.Batch().put(splashKey(), splashConfig));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, null, e);
+      }
+    }
+    return splashConfig;
+  }
+
+  /**
+   * Closes the metadata store. This storage can't be used afterwards.
+   */
+  @VisibleForTesting
+  void close() throws IOException {
+    store.close();
+  }
+
+  /*
+   * Writes a change to the metadata, then deletes the content files that are
+   * no longer referenced. The caller must hold the lock of the store.
+   *
+   * Content files are written by writeBlob before the lock is taken, so one
+   * whose last reference was removed meanwhile may have been deleted again;
+   * such files are rewritten here.
+   */
+  private void commit(Change change) throws IOException {
+    List<String> unreferenced = new ArrayList<String>();
+    for (Map.Entry<String, Integer> reference : change.references.entrySet()) {
+      if (reference.getValue() == 0) {
+        continue;
+      }
+      String hash = reference.getKey();
+      Integer oldCount = (Integer) store.get(blobKey(hash));
+      int count = (oldCount == null ? 0 : oldCount) + reference.getValue();
+      if (count > 0) {
+        if (oldCount == null && !blobPath(hash).toFile().exists()) {
+          writeBlob(change.contents.get(hash));
+        }
+        change.batch.put(blobKey(hash), count);
+      } else {
+        change.batch.delete(blobKey(hash));
+        unreferenced.add(hash);
+      }
+    }
+    store.write(change.batch);
+    for (String hash : unreferenced) {
+      try {
+        Files.deleteIfExists(blobPath(hash));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete content " + hash, e);
+      }
+    }
+  }
+
+  /*
+   * Stores content in the file named by its hash, unless that file exists,
+   * and returns the hash. The file appears complete or not at all.
+   */
+  private String writeBlob(byte[] content) throws IOException {
+    String hash = contentHash(content);
+    Path path = blobPath(hash);
+    if (!path.toFile().exists()) {
+      Files.createDirectories(path.getParent());
+      Path temp = Files.createTempFile(path.getParent(), hash, ".tmp");
+      try {
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        try {
+          ByteBuffer buffer = ByteBuffer.wrap(content);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          channel.force(false);
+        } finally {
+          channel.close();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
+    return hash;
+  }
+
+  /*
+   * Reads the content of the file record with the given key, or returns null
+   * if there is no such record.
+   *
+   * The record is looked up and its content file is opened while holding the
+   * lock of the store. Otherwise a commit between the two could remove the
+   * record's last reference to the content file and delete it. Once open,
+   * the content file can be read outside of the lock even if it is deleted
+   * meanwhile, so a large download doesn't hold up the saves.
+   */
+  private byte[] readContent(String key) throws IOException {
+    FileRecord record;
+    FileChannel channel;
+    synchronized (store) {
+      record = (FileRecord) store.get(key);
+      if (record == null) {
+        return null;
+      }
+      if (record.hash == null) {  // No content was uploaded yet
+        return new byte[0];
+      }
+      channel = FileChannel.open(blobPath(record.hash), StandardOpenOption.READ);
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(record.length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Content " + record.hash + " is shorter than expected");
+        }
+      }
+      return buffer.array();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private Path blobPath(String hash) {
+    // Two levels, so that no directory holds too many files
+    return new File(new File(blobDirectory, hash.substring(0, 2)), hash.substring(2)).toPath();
+  }
+
+  private static String contentHash(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Keys of the records in the metadata store
+
+  private static String userKey(String userId) {
+    return "user|" + userId;
+  }
+
+  private static String userProjectKey(String userId, Object projectId) {
+    return "user|" + userId + "|project|" + projectId;
+  }
+
+  private static String userFileKey(String userId, String fileName) {
+    return "user|" + userId + "|file|" + fileName;
+  }
+
+  private static String emailKey(String email) {
+    return "email|" + email;
+  }
+
+  private static String projectCounterKey() {
+    return "counter|project";
+  }
+
+  private static String projectKey(long projectId) {
+    return "project|" + projectId;
+  }
+
+  private static String projectFileKey(long projectId, String fileName) {
+    return "project|" + projectId + "|file|" + fileName;
+  }
+
+  private static String blobKey(String hash) {
+    return "blob|" + hash;
+  }
+
+  private static String nonceKey(String nonceValue) {
+    return "nonce|" + nonceValue;
+  }
+
+  private static String rendezvousKey(String key) {
+    return "rendezvous|" + key;
+  }
+
+  private static String motdKey() {
+    return "motd";
+  }
+
+  private static String splashKey() {
+    return "splash";
+  }
+
+  private static String collectUserErrorInfo(final String userId) {
+    return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+}
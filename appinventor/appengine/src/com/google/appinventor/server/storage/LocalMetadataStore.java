@@ -0,0 +1,325 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded store for the metadata of {@link LocalFileStorageIo}: users,
+ * projects, the records of their files and the small records of the rest of
+ * the {@link StorageIo} interface.
+ *
+ * <p>Records are kept in memory, sorted by key, so the records whose key
+ * starts with a prefix are found with a range scan (the files of a project
+ * are the records whose key starts with the key of the project). Lookups by
+ * another value, such as a user by email address, use records whose key is
+ * that value.
+ *
+ * <p>Every change is appended to a journal as one checksummed batch, so the
+ * records that are changed together are recovered together, or not at all,
+ * after a crash. The journal is replayed when the store is opened and is
+ * rewritten with only the live records once it has grown to several times
+ * their number.
+ *
+ */
+final class LocalMetadataStore {
+
+  private static final Logger LOG = Logger.getLogger(LocalMetadataStore.class.getName());
+
+  private static final String JOURNAL_NAME = "metadata.journal";
+
+  // The journal is compacted when it holds this many times more entries than
+  // there are records, and at least MIN_COMPACTION_ENTRIES.
+  private static final int COMPACTION_RATIO = 4;
+  private static final int MIN_COMPACTION_ENTRIES = 10000;
+
+  /**
+   * Changes that are written together.
+   */
+  static final class Batch {
+    // key -> serialized value, or null if the record is deleted
+    private final Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+
+    Batch put(String key, Serializable value) {
+      changes.put(key, serialize(value));
+      return this;
+    }
+
+    Batch delete(String key) {
+      changes.put(key, null);
+      return this;
+    }
+
+    boolean isEmpty() {
+      return changes.isEmpty();
+    }
+  }
+
+  private final File journalFile;
+  private final TreeMap<String, byte[]> records = new TreeMap<String, byte[]>();
+  private FileOutputStream journal;
+  private long journalEntries;
+
+  /**
+   * Opens the store kept in a directory, creating it if needed.
+   */
+  LocalMetadataStore(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    journalFile = new File(directory, JOURNAL_NAME);
+    if (journalFile.exists()) {
+      replay();
+    }
+    journal = new FileOutputStream(journalFile, true);
+  }
+
+  /**
+   * Returns a copy of the record with the given key, or null.
+   */
+  synchronized Object get(String key) {
+    byte[] value = records.get(key);
+    return value == null ? null : deserialize(value);
+  }
+
+  /**
+   * Returns copies of the records whose key starts with a prefix, by key.
+   */
+  synchronized SortedMap<String, Object> scan(String prefix) {
+    SortedMap<String, Object> result = new TreeMap<String, Object>();
+    for (Map.Entry<String, byte[]> record : range(prefix).entrySet()) {
+      result.put(record.getKey(), deserialize(record.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the keys of the records whose key starts with a prefix, in order.
+   */
+  synchronized List<String> scanKeys(String prefix) {
+    return new ArrayList<String>(range(prefix).keySet());
+  }
+
+  /**
+   * Writes a batch of changes. When this returns the changes are on disk.
+   */
+  synchronized void write(Batch batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    byte[] encoded = encode(batch.changes);
+    long offset = journal.getChannel().size();
+    try {
+      journal.write(encoded);
+      journal.getFD().sync();
+    } catch (IOException e) {
+      // Cut off what was written of the batch, otherwise the batches written
+      // after it would be behind a torn batch and dropped by replay().
+      try {
+        journal.getChannel().truncate(offset);
+      } catch (IOException truncateException) {
+        LOG.log(Level.SEVERE, "Unable to truncate " + journalFile + " to " + offset,
+            truncateException);
+      }
+      throw e;
+    }
+    for (Map.Entry<String, byte[]> change : batch.changes.entrySet()) {
+      if (change.getValue() == null) {
+        records.remove(change.getKey());
+      } else {
+        records.put(change.getKey(), change.getValue());
+      }
+    }
+    journalEntries += batch.changes.size();
+    if (journalEntries > Math.max(MIN_COMPACTION_ENTRIES, COMPACTION_RATIO * records.size())) {
+      try {
+        compact();
+      } catch (IOException e) {
+        // The journal is still complete, so this isn't fatal.
+        LOG.log(Level.WARNING, "Unable to compact " + journalFile, e);
+      }
+    }
+  }
+
+  /**
+   * Closes the journal. The store can't be written afterwards.
+   */
+  synchronized void close() throws IOException {
+    journal.close();
+  }
+
+  private SortedMap<String, byte[]> range(String prefix) {
+    // \uffff sorts after every character that appears in a key.
+    return records.subMap(prefix, prefix + '\uffff');
+  }
+
+  /*
+   * Rewrites the journal with only the live records, as a single batch.
+   */
+  private void compact() throws IOException {
+    File compacted = new File(journalFile.getPath() + ".new");
+    FileOutputStream out = new FileOutputStream(compacted);
+    try {
+      out.write(encode(records));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    // The journal is closed for the move, which some platforms refuse over
+    // an open file, and is always reopened: if the move fails the old
+    // journal, which is still complete, is appended to.
+    journal.close();
+    boolean moved = false;
+    try {
+      Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      moved = true;
+    } finally {
+      journal = new FileOutputStream(journalFile, true);
+      if (moved) {
+        journalEntries = records.size();
+      } else {
+        compacted.delete();
+      }
+    }
+  }
+
+  /*
+   * Reads the journal. A batch that was cut short by a crash is dropped, with
+   * anything after it.
+   */
+  private void replay() throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+    long fileLength = journalFile.length();
+    long validLength = 0;
+    try {
+      while (true) {
+        int length = in.readInt();
+        if (length < 0 || validLength + 4 + length + 8 > fileLength) {
+          break;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        long checksum = in.readLong();
+        if (checksum(data) != checksum) {
+          break;
+        }
+        DataInputStream batch = new DataInputStream(new ByteArrayInputStream(data));
+        int count = batch.readInt();
+        for (int i = 0; i < count; i++) {
+          String key = batch.readUTF();
+          int valueLength = batch.readInt();
+          if (valueLength < 0) {
+            records.remove(key);
+          } else {
+            byte[] value = new byte[valueLength];
+            batch.readFully(value);
+            records.put(key, value);
+          }
+        }
+        journalEntries += count;
+        validLength += 4 + length + 8;
+      }
+    } catch (EOFException e) {
+      // End of the journal, or of a batch that wasn't completely written
+    } finally {
+      in.close();
+    }
+    if (validLength < fileLength) {
+      LOG.log(Level.WARNING, "Dropping an incomplete batch at the end of " + journalFile);
+      FileOutputStream out = new FileOutputStream(journalFile, true);
+      try {
+        out.getChannel().truncate(validLength);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /*
+   * Encodes changes as a journal batch: the length of the data, the data and
+   * its checksum.
+   */
+  private static byte[] encode(Map<String, byte[]> changes) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(data);
+    out.writeInt(changes.size());
+    for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+      out.writeUTF(change.getKey());
+      byte[] value = change.getValue();
+      if (value == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+    }
+    out.flush();
+    byte[] bytes = data.toByteArray();
+    ByteArrayOutputStream batch = new ByteArrayOutputStream(bytes.length + 12);
+    DataOutputStream batchOut = new DataOutputStream(batch);
+    batchOut.writeInt(bytes.length);
+    batchOut.write(bytes);
+    batchOut.writeLong(checksum(bytes));
+    batchOut.flush();
+    return batch.toByteArray();
+  }
+
+  private static long checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  private static byte[] serialize(Serializable value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to serialize " + value, e);
+    }
+  }
+
+  private static Object deserialize(byte[] value) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value));
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read a stored record", e);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Unable to read a stored record", e);
+    }
+  }
+}
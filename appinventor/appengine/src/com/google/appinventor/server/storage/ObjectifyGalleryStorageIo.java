@@ -6,12 +6,25 @@
 
 package com.google.appinventor.server.storage;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.GalleryEmail;
 import com.google.appinventor.server.GallerySearchIndex;
@@ -30,7 +43,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.NotFoundException;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Query;
 
 /**
  * Implements the GalleryStorageIo interface using Objectify as the underlying data
@@ -52,6 +67,56 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   private static final int MAX_JOB_RETRIES = 10;
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // Number of counter shards per app (see GalleryAppCounterShardData). Never
+  // lower it: the counts in the shards above the new number would be lost.
+  // Nor raise it above 24: rollUpCounters reads the shards and the app in one
+  // cross group transaction, which is limited to 25 entity groups.
+  private static final int COUNTER_SHARDS = 16;
+
+  // How long after a download or a like the counter shards of the app are
+  // rolled up into its counts
+  private static final Flag<Integer> counterRollupSeconds =
+      Flag.createFlag("gallery.counter.rollup.seconds", 60);
+
+  // How old the cached listing snapshot may get before it is recomputed in
+  // the background
+  private static final Flag<Integer> listingRefreshSeconds =
+      Flag.createFlag("gallery.listing.refresh.seconds", 300);
+
+  // How long the listing snapshot is kept in memcache. It is recomputed well
+  // before then while the gallery is in use, the expiration only drops the
+  // snapshot of a gallery that nobody looks at.
+  private static final int LISTING_EXPIRATION_SECONDS = 24 * 3600;
+
+  // Number of apps in each cached ranking, pages further down are queried
+  private static final int RANKING_SIZE = 200;
+
+  // Task queue and servlet (GalleryCountersServlet) that do the rollups and
+  // the listing snapshot refreshes
+  private static final String COUNTERS_QUEUE = "gallerycounters";
+  private static final String COUNTERS_URL = "/admin/gallerycounters";
+
+  // A counter rollup re-indexes an app only when its downloads or likes
+  // moved by this many percent (or by one, while they are below ten) since
+  // they were last indexed, so the counts in search results may be that far
+  // behind. Re-indexing reads the app and its developer and rewrites the
+  // whole search document.
+  private static final int REINDEX_COUNT_PERCENT = 10;
+
+  private static final String ROLLUP_PENDING_PREFIX = "galleryrollup|";
+  private static final String LISTING_KEY = "gallerylisting";
+  private static final String LISTING_REFRESH_PENDING_KEY = "gallerylisting|refresh";
+
+  // The gallery listings, whose first pages are in the listing snapshot
+  private enum Listing { RECENT, MOST_DOWNLOADED, MOST_LIKED, FEATURED }
+
+  // Number of apps in the first page of each listing in the listing snapshot
+  private static final int FIRST_PAGE_SIZE = 50;
+  // How long after a change to an app the listing snapshot is recomputed
+  private static final int LISTING_CHANGE_DELAY_SECONDS = 10;
+
+  private static final Random random = new Random();
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
@@ -75,10 +140,28 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     T t;
   }
 
+  /**
+   * The number of active apps, the ids of the top ranked ones and the first
+   * page of each listing, kept in memcache so that gallery pages don't
+   * count, sort and fetch the apps on every view.
+   */
+  static final class ListingSnapshot implements Serializable {
+    private static final long serialVersionUID = 7016521940231145374L;
+
+    long computed;
+    int activeCount;
+    ArrayList<Long> mostDownloaded = new ArrayList<Long>();
+    ArrayList<Long> mostLiked = new ArrayList<Long>();
+    // By Listing name
+    HashMap<String, GalleryAppListResult> firstPages =
+        new HashMap<String, GalleryAppListResult>();
+  }
+
   static {
     // Register the data object classes stored in the database
     ObjectifyService.register(EmailData.class);
     ObjectifyService.register(GalleryAppData.class);
+    ObjectifyService.register(GalleryAppCounterShardData.class);
     ObjectifyService.register(GalleryCommentData.class);
     ObjectifyService.register(GalleryAppLikeData.class);
     ObjectifyService.register(GalleryAppFeatureData.class);
@@ -91,6 +174,10 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   private final transient StorageIo storageIo =
       StorageIoInstanceHolder.INSTANCE;
 
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private final CacheStats listingStats = CacheStats.forCache("gallery-listing");
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -148,6 +235,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "gallery error", e);
     }
+    scheduleListingRefresh();
     GalleryApp gApp = new GalleryApp();
     makeGalleryApp(galleryAppData.t, gApp);
     return gApp;
@@ -168,46 +256,24 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * updated galleryApps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page, or null
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getRecentGalleryApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+  public GalleryAppListResult getRecentGalleryApps(int start, final int count, String cursor) {
+    return getListing(Listing.RECENT, start, count, cursor);
   }
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page, or null
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getMostDownloadedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    // If I try to run this in runjobwithretries, it tells me can't run
-    // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed.
-
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData:datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
-    }
-    int totalCount = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
+  public GalleryAppListResult getMostDownloadedApps(int start, final int count, String cursor) {
+    return getListing(Listing.MOST_DOWNLOADED, start, count, cursor);
   }
 
   /**
@@ -215,54 +281,253 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * gallery apps and total number of results in database
    * @param start starting index of apps you want
    * @param count number of apps you want
+   * @param cursor the cursor returned with the previous page, or null
    * @return list of {@link GalleryApp}
    */
   @Override
-  public GalleryAppListResult getMostLikedApps(int start, final int count) {
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
+  public GalleryAppListResult getMostLikedApps(int start, final int count, String cursor) {
+    return getListing(Listing.MOST_LIKED, start, count, cursor);
+  }
+
+  /**
+   * Returns a page of a gallery listing. Pages at the top of the listing are
+   * cut from its first page in the listing snapshot, pages further down the
+   * rankings come from the snapshot's rankings, and the other pages are
+   * queried.
+   */
+  private GalleryAppListResult getListing(Listing listing, int start, int count, String cursor) {
+    ListingSnapshot snapshot = getListingSnapshot();
+    if (cursor == null && start + count <= FIRST_PAGE_SIZE) {
+      GalleryAppListResult page = snapshot.firstPages.get(listing.name());
+      List<GalleryApp> snapshotApps = page.getApps();
+      int end = Math.min(start + count, snapshotApps.size());
+      GalleryAppListResult result = new GalleryAppListResult(
+          new ArrayList<GalleryApp>(snapshotApps.subList(Math.min(start, end), end)),
+          page.getTotalCount());
+      // Only the end of the snapshot has a datastore cursor, the pages before
+      // it are cheap to reach by their start index.
+      if (end == snapshotApps.size()) {
+        result.setCursor(page.getCursor());
+      }
+      return result;
+    }
+    if (cursor == null && listing != Listing.RECENT && listing != Listing.FEATURED) {
+      List<GalleryApp> apps = getRankedApps(listing == Listing.MOST_DOWNLOADED
+          ? snapshot.mostDownloaded : snapshot.mostLiked, start, count);
+      if (apps != null) {
+        return new GalleryAppListResult(apps, snapshot.activeCount);
+      }
+    }
+    return queryListing(listing, start, count, cursor, snapshot.activeCount);
+  }
+
+  /**
+   * Queries a page of a gallery listing from the datastore. The page starts
+   * at the cursor if there is one, and at start otherwise. Only the keys are
+   * queried, the apps are then fetched with one batch get.
+   * @param activeCount the number of active apps, the total count of the
+   *     listings other than the featured one
+   */
+  private GalleryAppListResult queryListing(Listing listing, int start, int count,
+      String cursor, int activeCount) {
     // If I try to run this in runjobwithretries, it tells me can't run
     // non-ancestor query as a transaction. ObjectifyStorageio has some samples
-    // of not using transactions (run with) so I grabbed
+    // of not using transactions (run with) so I grabbed.
+    Objectify datastore = ObjectifyService.begin();
+    Query<?> query;
+    int totalCount;
+    switch (listing) {
+      case RECENT:
+        query = datastore.query(GalleryAppData.class).order("-dateModified").filter("active", true);
+        totalCount = activeCount;
+        break;
+      case MOST_DOWNLOADED:
+        query = datastore.query(GalleryAppData.class).order("-numDownloads").filter("active", true);
+        totalCount = activeCount;
+        break;
+      case MOST_LIKED:
+        query = datastore.query(GalleryAppData.class)
+            .filter("active", true)
+            .order("-numLikes")
+            .order("-numDownloads");
+        totalCount = activeCount;
+        break;
+      default:
+        query = datastore.query(GalleryAppFeatureData.class);
+        totalCount = datastore.query(GalleryAppFeatureData.class).count();
+        break;
+    }
+    Cursor startCursor = null;
+    if (cursor != null) {
+      try {
+        startCursor = Cursor.fromWebSafeString(cursor);
+      } catch (IllegalArgumentException e) {
+        LOG.log(Level.WARNING, "Ignoring bad gallery cursor " + cursor, e);
+      }
+    }
+    if (startCursor != null) {
+      query.startCursor(startCursor);
+    } else {
+      query.offset(start);
+    }
+    List<Key<GalleryAppData>> keys = new ArrayList<Key<GalleryAppData>>();
+    String nextCursor = fetchAppKeys(query.limit(count), count, keys);
+
+    Map<Key<GalleryAppData>, GalleryAppData> appDatas = datastore.get(keys);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (Key<GalleryAppData> key : keys) {
+      GalleryAppData appData = appDatas.get(key);
+      if (appData != null) {
+        GalleryApp gApp = new GalleryApp();
+        makeGalleryApp(appData, gApp);
+        apps.add(gApp);
+      }
+    }
+    GalleryAppListResult result = new GalleryAppListResult(apps, totalCount);
+    result.setCursor(nextCursor);
+    return result;
+  }
+
+  /**
+   * Adds the app keys that a listing query returns to keys. A featured app
+   * is the parent of its GalleryAppFeatureData.
+   *
+   * @return the cursor after the keys, or null if the query has no more
+   */
+  private <T> String fetchAppKeys(Query<T> query, int count, List<Key<GalleryAppData>> keys) {
+    QueryResultIterator<Key<T>> iterator = query.fetchKeys().iterator();
+    while (iterator.hasNext()) {
+      Key<T> key = iterator.next();
+      if (key.getParent() == null) {
+        keys.add(galleryKey(key.getId()));
+      } else {
+        keys.add(key.<GalleryAppData>getParent());
+      }
+    }
+    if (keys.size() < count) {
+      return null;
+    }
+    Cursor cursor = iterator.getCursor();
+    return cursor == null ? null : cursor.toWebSafeString();
+  }
+
+  /**
+   * Queues a refresh of the listing snapshot after a change to an app that
+   * may show in it. The changes of the next few seconds are refreshed
+   * together, and the old snapshot is served until then.
+   */
+  private void scheduleListingRefresh() {
+    queueListingRefresh(LISTING_CHANGE_DELAY_SECONDS);
+  }
+
+  /**
+   * Queues a refresh of the listing snapshot after delaySeconds, unless one
+   * is already pending.
+   */
+  private void queueListingRefresh(int delaySeconds) {
+    // Pending until the refresh is done, or until it should have been
+    if (!memcache.put(LISTING_REFRESH_PENDING_KEY, Boolean.TRUE,
+        Expiration.byDeltaSeconds(delaySeconds + listingRefreshSeconds.get()),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      return;
+    }
+    try {
+      QueueFactory.getQueue(COUNTERS_QUEUE).add(TaskOptions.Builder.withUrl(COUNTERS_URL)
+          .param("listings", "true")
+          .countdownMillis(delaySeconds * 1000L));
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Couldn't queue the gallery listing refresh", e);
+      memcache.delete(LISTING_REFRESH_PENDING_KEY);
+    }
+  }
+
+  /**
+   * Returns a page of a cached ranking, or null if the page goes past the
+   * apps in the ranking. Apps deactivated since the ranking was computed are
+   * left out of the page.
+   */
+  private List<GalleryApp> getRankedApps(List<Long> ranking, int start, int count) {
+    // A ranking with fewer than RANKING_SIZE apps holds all the active apps
+    if (start + count > ranking.size() && ranking.size() == RANKING_SIZE) {
+      return null;
+    }
+    List<Key<GalleryAppData>> keys = new ArrayList<Key<GalleryAppData>>();
+    for (Long galleryId : ranking.subList(Math.min(start, ranking.size()),
+        Math.min(start + count, ranking.size()))) {
+      keys.add(galleryKey(galleryId));
+    }
+    Map<Key<GalleryAppData>, GalleryAppData> appDatas = ObjectifyService.begin().get(keys);
+    List<GalleryApp> apps = new ArrayList<GalleryApp>();
+    for (Key<GalleryAppData> key : keys) {
+      GalleryAppData appData = appDatas.get(key);
+      if (appData != null && appData.active) {
+        GalleryApp gApp = new GalleryApp();
+        makeGalleryApp(appData, gApp);
+        apps.add(gApp);
+      }
+    }
+    return apps;
+  }
+
+  /**
+   * Returns the cached listing snapshot. A snapshot older than
+   * listingRefreshSeconds is still returned, and a task is queued to
+   * recompute it; only a missing snapshot is computed by the caller.
+   */
+  private ListingSnapshot getListingSnapshot() {
+    ListingSnapshot snapshot = (ListingSnapshot) memcache.get(LISTING_KEY);
+    if (snapshot == null) {
+      listingStats.miss();
+      return computeListingSnapshot();
+    }
+    listingStats.hit();
+    if (System.currentTimeMillis() - snapshot.computed > listingRefreshSeconds.get() * 1000L) {
+      queueListingRefresh(0);
+    }
+    return snapshot;
+  }
 
+  @Override
+  public void refreshListings() {
+    computeListingSnapshot();
+  }
+
+  private ListingSnapshot computeListingSnapshot() {
     Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppData appData : datastore.query(GalleryAppData.class)
+    ListingSnapshot snapshot = new ListingSnapshot();
+    snapshot.computed = System.currentTimeMillis();
+    snapshot.activeCount = datastore.query(GalleryAppData.class).filter("active", true).count();
+    for (Key<GalleryAppData> key : datastore.query(GalleryAppData.class)
+           .filter("active", true)
+           .order("-numDownloads")
+           .limit(RANKING_SIZE).fetchKeys()) {
+      snapshot.mostDownloaded.add(key.getId());
+    }
+    for (Key<GalleryAppData> key : datastore.query(GalleryAppData.class)
            .filter("active", true)
            .order("-numLikes")
            .order("-numDownloads")
-           .offset(start).limit(count)) {
-      GalleryApp gApp = new GalleryApp();
-      makeGalleryApp(appData, gApp);
-      apps.add(gApp);
+           .limit(RANKING_SIZE).fetchKeys()) {
+      snapshot.mostLiked.add(key.getId());
     }
-
-    // The line below is a PROBLEM. It is *very expensive*
-    // We either need to keep separate track of the number of apps in the
-    // Gallery, or we need to cache this value somewhere so we are
-    // not computing it all the time!
-    int totalCount = datastore.query(GalleryAppData.class).filter("active", true).count();
-    return new GalleryAppListResult(apps, totalCount);
-
+    for (Listing listing : Listing.values()) {
+      snapshot.firstPages.put(listing.name(),
+          queryListing(listing, 0, FIRST_PAGE_SIZE, null, snapshot.activeCount));
+    }
+    memcache.put(LISTING_KEY, snapshot, Expiration.byDeltaSeconds(LISTING_EXPIRATION_SECONDS));
+    memcache.delete(LISTING_REFRESH_PENDING_KEY);
+    return snapshot;
   }
 
   /**
    * Returns a wrapped class which contains a list of featured gallery app
    * @param start start index
    * @param count count number
+   * @param cursor the cursor returned with the previous page, or null
    * @return list of gallery app
    */
-  public GalleryAppListResult getFeaturedApp(int start, int count){
-    final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    Objectify datastore = ObjectifyService.begin();
-    for (GalleryAppFeatureData appFeatureData:datastore.query(GalleryAppFeatureData.class).offset(start).limit(count)) {
-      Long galleryId = appFeatureData.galleryKey.getId();
-      GalleryApp gApp = new GalleryApp();
-      GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-      makeGalleryApp(galleryAppData, gApp);
-      apps.add(gApp);
-    }
-
-    int totalCount = datastore.query(GalleryAppFeatureData.class).count();
-    return new GalleryAppListResult(apps, totalCount);
+  public GalleryAppListResult getFeaturedApp(int start, int count, String cursor){
+    return getListing(Listing.FEATURED, start, count, cursor);
   }
 
   /**
@@ -304,6 +569,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       datastore.put(appFeatureData);
       result.t = true;
     }
+    scheduleListingRefresh();
     return result.t;
   }
   /**
@@ -336,22 +602,148 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void incrementDownloads(final long galleryId) {
+    addToCounterShard(galleryId, 1, 0);
+  }
 
+  /**
+   * Adds downloads and likes to a random counter shard of an app, and makes
+   * sure that a rollup of the app's shards is queued.
+   */
+  private void addToCounterShard(final long galleryId, final int downloads, final int likes) {
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
+          // Picked again on a retry, so that a contended shard is avoided
+          String shardId = counterShardId(galleryId, random.nextInt(COUNTER_SHARDS));
+          GalleryAppCounterShardData shard =
+              datastore.find(GalleryAppCounterShardData.class, shardId);
+          if (shard == null) {
+            shard = new GalleryAppCounterShardData();
+            shard.id = shardId;
+            shard.galleryId = galleryId;
           }
+          shard.numDownloads += downloads;
+          shard.numLikes += likes;
+          datastore.put(shard);
         }
       });
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
+    scheduleRollup(galleryId);
+  }
+
+  private void scheduleRollup(long galleryId) {
+    int delay = counterRollupSeconds.get();
+    // Only the first change of each interval queues a rollup; the rollup runs
+    // after the interval, so it includes the other changes.
+    String pendingKey = ROLLUP_PENDING_PREFIX + galleryId;
+    if (!memcache.put(pendingKey, Boolean.TRUE, Expiration.byDeltaSeconds(delay),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+      return;
+    }
+    try {
+      QueueFactory.getQueue(COUNTERS_QUEUE).add(TaskOptions.Builder.withUrl(COUNTERS_URL)
+          .param("galleryId", Long.toString(galleryId))
+          .countdownMillis(delay * 1000L));
+    } catch (RuntimeException e) {
+      // The next change queues it
+      LOG.log(Level.WARNING, "Couldn't queue the counter rollup of app " + galleryId, e);
+      memcache.delete(pendingKey);
+    }
+  }
+
+  /**
+   * Adds the downloads and likes in the counter shards of an app that are
+   * not yet in its counts to its counts. Rolling up twice counts nothing
+   * twice.
+   * @param galleryId the id of the gallery app
+   */
+  @Override
+  public void rollUpCounters(final long galleryId) {
+    // Whether the counts changed, and whether they changed enough to
+    // re-index the app
+    final Result<Boolean> changed = new Result<Boolean>();
+    final Result<Boolean> reindex = new Result<Boolean>();
+    try {
+      // The shards are read in the same transaction as the app, so that the
+      // totals and rolledUpDownloads/rolledUpLikes always agree: a rollup
+      // that read the shards before another rollup committed is retried.
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          changed.t = false;
+          reindex.t = false;
+          GalleryAppData appData = datastore.find(galleryKey(galleryId));
+          if (appData == null) {
+            return;
+          }
+          GalleryAppCounterShardData total = sumCounterShards(datastore, galleryId);
+          int downloads = total.numDownloads - appData.rolledUpDownloads;
+          int likes = total.numLikes - appData.rolledUpLikes;
+          if (downloads != 0 || likes != 0) {
+            appData.numDownloads += downloads;
+            appData.unreadDownloads += downloads;
+            appData.numLikes += likes;
+            // The unread likes are reset when the owner is told about them,
+            // and a like from before then may be taken back after.
+            appData.unreadLikes = Math.max(0, appData.unreadLikes + likes);
+            appData.rolledUpDownloads = total.numDownloads;
+            appData.rolledUpLikes = total.numLikes;
+            // Inactive apps aren't in the search index
+            if (appData.active
+                && (countMoved(appData.indexedDownloads, appData.numDownloads)
+                    || countMoved(appData.indexedLikes, appData.numLikes))) {
+              appData.indexedDownloads = appData.numDownloads;
+              appData.indexedLikes = appData.numLikes;
+              reindex.t = true;
+            }
+            datastore.put(appData);
+            changed.t = true;
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+       throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.rollUpCounters", e);
+    }
+    if (changed.t) {
+      scheduleListingRefresh();
+    }
+    if (reindex.t) {
+      // The search results show the counts stored in the index
+      GallerySearchIndex.getInstance().queueIndexApp(galleryId);
+    }
+  }
+
+  /**
+   * Returns whether a count moved far enough from the value in the search
+   * index to re-index the app, see REINDEX_COUNT_PERCENT.
+   */
+  @VisibleForTesting
+  static boolean countMoved(int indexed, int count) {
+    return Math.abs(count - indexed) * 100 >= Math.max(indexed, 10) * REINDEX_COUNT_PERCENT;
+  }
+
+  /**
+   * Returns the sums of the counter shards of an app.
+   */
+  private GalleryAppCounterShardData sumCounterShards(Objectify datastore, long galleryId) {
+    List<Key<GalleryAppCounterShardData>> keys = new ArrayList<Key<GalleryAppCounterShardData>>();
+    for (int i = 0; i < COUNTER_SHARDS; i++) {
+      keys.add(new Key<GalleryAppCounterShardData>(GalleryAppCounterShardData.class,
+          counterShardId(galleryId, i)));
+    }
+    GalleryAppCounterShardData total = new GalleryAppCounterShardData();
+    for (GalleryAppCounterShardData shard : datastore.get(keys).values()) {
+      total.numDownloads += shard.numDownloads;
+      total.numLikes += shard.numLikes;
+    }
+    return total;
+  }
+
+  private static String counterShardId(long galleryId, int shard) {
+    return galleryId + "-" + shard;
   }
 
   /**
@@ -385,6 +777,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
+    scheduleListingRefresh();
   }
 
   /**
@@ -413,6 +806,26 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     return (gApp);
   }
 
+  /**
+   * Returns several gallery apps, read with one batch get
+   * @param galleryIds ids of the gallery apps you want
+   * @return the {@link GalleryApp}s by id, without the ones that don't exist
+   */
+  @Override
+  public Map<Long, GalleryApp> getGalleryApps(List<Long> galleryIds) {
+    List<Key<GalleryAppData>> keys = new ArrayList<Key<GalleryAppData>>();
+    for (Long galleryId : galleryIds) {
+      keys.add(galleryKey(galleryId));
+    }
+    Map<Long, GalleryApp> apps = new HashMap<Long, GalleryApp>();
+    for (GalleryAppData appData : ObjectifyService.begin().get(keys).values()) {
+      GalleryApp gApp = new GalleryApp();
+      makeGalleryApp(appData, gApp);
+      apps.put(appData.id, gApp);
+    }
+    return apps;
+  }
+
   /**
    * deletes an app
    * @param galleryId the id of gallery app to be deleted
@@ -461,6 +874,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
        } catch (ObjectifyException e) {
         throw CrashReport.createAndLogError(LOG, null,"gallery remove error", e);
       }
+      scheduleListingRefresh();
   }
 
 
@@ -554,17 +968,16 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
 
             // Retrieve the current number of likes
             numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            galleryAppData.numLikes = galleryAppData.numLikes + 1;
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
           }
         }
       });
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
+    if (numLikes.t != null) {
+      // Increase app's like/unread like count
+      addToCounterShard(galleryId, 0, 1);
+    }
     return numLikes.t;
   }
 
@@ -578,30 +991,23 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
     final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> removed = new Result<Boolean>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          removed.t = false;
           GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
           if (galleryAppData != null) {
             Key<GalleryAppData> galleryKey = galleryKey(galleryId);
             for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
               if(likeData.userId.equals(userId)){
                 datastore.delete(likeData);
+                removed.t = true;
                 break;
               }
             }
             numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            if(galleryAppData.numLikes > 0){
-              galleryAppData.numLikes = galleryAppData.numLikes - 1;
-            }
-
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
-            }
           }
         }
       });
@@ -609,6 +1015,10 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
+    if (removed.t) {
+      // Decrease app's like/unread like count
+      addToCounterShard(galleryId, 0, -1);
+    }
     return numLikes.t;
   }
 
@@ -620,22 +1030,11 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          //num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-          GalleryAppData galleryAppData = datastore.find(galleryKey);
-          num.t = galleryAppData.numLikes;
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
-    }
-    return num.t;
+    // Includes the likes that are not rolled up yet
+    Objectify datastore = ObjectifyService.begin();
+    GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
+    GalleryAppCounterShardData total = sumCounterShards(datastore, galleryId);
+    return Math.max(0, galleryAppData.numLikes + total.numLikes - galleryAppData.rolledUpLikes);
   }
 
   /**
@@ -687,10 +1086,12 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           num = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
           GalleryAppData galleryAppData = datastore.find(galleryKey);
           galleryAppData.numLikes = num;
+          // The like records already include the likes in the shards
+          galleryAppData.rolledUpLikes = sumCounterShards(datastore, galleryId).numLikes;
           datastore.put(galleryAppData);
           LOG.info("salvage on gallerId:" + galleryId + ", total likes:" + galleryAppData.numLikes);
         }
-      });
+      }, true);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.salvageGalleryApp", e);
@@ -712,6 +1113,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
             Key<GalleryAppData> galleryKey = galleryKey(appData.id);
             num = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
             appData.numLikes = num;
+            appData.rolledUpLikes = sumCounterShards(datastore, appData.id).numLikes;
             datastore.put(appData);
             LOG.info("salvage on gallerId:" + appData.id + ", total likes:" + appData.numLikes);
           }
@@ -1043,6 +1445,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.markReportAsResolved", e);
     }
+    scheduleListingRefresh();
     return success.t;
   }
   /**
@@ -1242,7 +1645,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     galleryApp.setMoreInfo(appData.moreInfo);
     galleryApp.setCredit(appData.credit);
 
-    galleryApp.setLikes(getNumLikes(appData.id));
+    galleryApp.setLikes(appData.numLikes);
   }
 
   private static String collectGalleryAppErrorInfo(final String galleryAppId) {
@@ -1355,9 +1758,24 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
+    runJobWithRetries(job, false);
+  }
+
+  /**
+   * Like {@link #runJobWithRetries(JobRetryHelper)}, but the transaction may
+   * be a cross group transaction, which can use up to 25 entity groups.
+   * @param job
+   * @param crossGroup whether the job uses more than one entity group
+   * @throws ObjectifyException
+   */
+  @VisibleForTesting
+  void runJobWithRetries(JobRetryHelper job, boolean crossGroup) throws ObjectifyException {
     int tries = 0;
     while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore = ObjectifyService.beginTransaction();
+      Objectify datastore = crossGroup
+          ? ObjectifyService.factory().begin(new ObjectifyOpts().setBeginTransaction(true)
+              .setTransactionOptions(TransactionOptions.Builder.withXG(true)))
+          : ObjectifyService.beginTransaction();
       try {
         job.run(datastore);
         datastore.getTxn().commit();
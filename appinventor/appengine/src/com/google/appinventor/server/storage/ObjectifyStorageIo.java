@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
@@ -17,13 +18,10 @@ import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
-import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.BlobMigrationData;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
@@ -62,6 +60,7 @@ import com.googlecode.objectify.Query;
 import java.io.ByteArrayOutputStream;
 
 // GCS imports
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
@@ -73,14 +72,24 @@ import com.google.appengine.tools.cloudstorage.RetryParams;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -111,15 +120,77 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // Which projects each user owns, checked by almost every request
+  private final ProjectOwnershipIndex projectIndex = new ProjectOwnershipIndex(memcache,
+      new ProjectOwnershipIndex.Loader() {
+        @Override
+        public HashMap<Long, String> load(String userId) {
+          return loadProjectTypes(userId);
+        }
+      });
+
+  // How much memory of the instance is used to keep users and files, in kilobytes
+  private static final Flag<Integer> userCacheKilobytes =
+      Flag.createFlag("storage.user.cache.kilobytes", 1024);
+  private static final Flag<Integer> fileCacheKilobytes =
+      Flag.createFlag("storage.file.cache.kilobytes", 16 * 1024);
+
+  // How long users are cached. getUser() is called on every authenticated
+  // RPC call to the system (out of OdeAuthFilter), so caching them will save
+  // a significant number of calls to the datastore. If someone is idle for
+  // more then a minute, it isn't unreasonable to hit the datastore again.
+  private static final int USER_EXPIRATION_SECONDS = 60;
+
+  // Users by User.usercachekey + "|" + userId
+  private final InstanceCache<User> userCache = new InstanceCache<User>("user", memcache,
+      new InstanceCache.ValueType<User>() {
+        @Override
+        public User copy(User user) {
+          return user.copy();
+        }
+
+        @Override
+        public int size(User user) {
+          // The strings of a user are short
+          return 512;
+        }
+      }, userCacheKilobytes.get() * 1024L, USER_EXPIRATION_SECONDS);
+
+  // Project files by the string of their key
+  private final InstanceCache<FileData> fileCache = new InstanceCache<FileData>("file", memcache,
+      new InstanceCache.ValueType<FileData>() {
+        @Override
+        public FileData copy(FileData fd) {
+          return copyFileData(fd);
+        }
+
+        @Override
+        public int size(FileData fd) {
+          return 512 + (fd.content == null ? 0 : fd.content.length);
+        }
+      }, fileCacheKilobytes.get() * 1024L, 0);
+
+  // Moves the files that are still in the Blobstore to GCS, in the background
+  private final BlobMigration blobMigration = new BlobMigration(this);
+
   private final GcsService gcsService;
 
   private static final String GCS_BUCKET_NAME;
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // How long project summaries (UserProject objects) are kept in memcache
+  private static final int PROJECT_SUMMARY_EXPIRATION_SECONDS = 60 * 60;
+
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
-  private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
+  // The number of files read from storage at the same time when exporting a project
+  private static final Flag<Integer> readParallelism =
+      Flag.createFlag("storage.read.parallelism", 8);
+
+  // The number of files written to GCS at the same time when saving several files
+  private static final Flag<Integer> writeParallelism =
+      Flag.createFlag("storage.write.parallelism", 8);
 
   // Use this class to define the work of a job that can be
   // retried. The "datastore" argument to run() is the Objectify
@@ -173,6 +244,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(NonceData.class);
     ObjectifyService.register(CorruptionRecord.class);
     ObjectifyService.register(SplashData.class);
+    ObjectifyService.register(BlobMigrationData.class);
 
     // Learn GCS Bucket from App Configuration or App Engine Default
     String gcsBucket = Flag.createFlag("gcs.bucket", "").get();
@@ -224,14 +296,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public User getUser(final String userId, final String email) {
     String cachekey = User.usercachekey + "|" + userId;
-    User tuser = (User) memcache.get(cachekey);
+    User tuser = userCache.get(cachekey);
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
       if (tuser.getUserName()==null) {
         setUserName(userId,tuser.getDefaultName());
         tuser.setUserName(tuser.getDefaultName());
       }
       return tuser;
-    } else {                    // If not in memcache, or tos
+    } else {                    // If not cached, or tos
                                 // not yet accepted, fetch from datastore
         tuser = new User(userId, email, null, null, 0, false, false, 0, null);
     }
@@ -266,13 +338,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-    memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
-    // The choice of one minute here is arbitrary. getUser() is called on every authenticated
-    // RPC call to the system (out of OdeAuthFilter), so using memcache will save a significant
-    // number of calls to the datastore. If someone is idle for more then a minute, it isn't
-    // unreasonable to hit the datastore again. By pruning memcache ourselves, we have a
-    // bit more control (maybe) of how things are flushed from memcache. Otherwise we are
-    // at the whim of whatever algorithm App Engine employs now or in the future.
+    userCache.put(cachekey, user); // Remember for one minute
+    // The choice of one minute here is arbitrary, see USER_EXPIRATION_SECONDS. By pruning
+    // memcache ourselves, we have a bit more control (maybe) of how things are flushed from
+    // memcache. Otherwise we are at the whim of whatever algorithm App Engine employs now or
+    // in the future.
     return user;
   }
 
@@ -337,11 +407,11 @@ public class ObjectifyStorageIo implements  StorageIo {
             userData.name = name;
             datastore.put(userData);
           }
-          // we need to change the memcache version of user
+          // we need to change the cached version of user
           User user = new User(userData.id,userData.email,name, userData.link, userData.emailFrequency, userData.tosAccepted,
               false, userData.type, userData.sessionid);
           String cachekey = User.usercachekey + "|" + userId;
-          memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
+          userCache.put(cachekey, user); // Remember for one minute
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -361,11 +431,11 @@ public class ObjectifyStorageIo implements  StorageIo {
             userData.link = link;
             datastore.put(userData);
           }
-          // we need to change the memcache version of user
+          // we need to change the cached version of user
           User user = new User(userData.id,userData.email,userData.name,link,userData.emailFrequency,userData.tosAccepted,
               false, userData.type, userData.sessionid);
           String cachekey = User.usercachekey + "|" + userId;
-          memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
+          userCache.put(cachekey, user); // Remember for one minute
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -384,11 +454,11 @@ public class ObjectifyStorageIo implements  StorageIo {
             userData.emailFrequency = emailFrequency;
             datastore.put(userData);
           }
-          // we need to change the memcache version of user
+          // we need to change the cached version of user
           User user = new User(userData.id,userData.email,userData.name,userData.link,emailFrequency,userData.tosAccepted,
               false, userData.type, userData.sessionid);
           String cachekey = User.usercachekey + "|" + userId;
-          memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
+          userCache.put(cachekey, user); // Remember for one minute
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -413,7 +483,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-    memcache.delete(cachekey);  // Flush cached copy because it changed
+    userCache.remove(cachekey);  // Flush cached copy because it changed
   }
 
   @Override
@@ -592,6 +662,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           datastore.put(upd);
         }
       }, true);
+      projectIndex.addProject(userId, projectId.t, project.getProjectType());
     } catch (ObjectifyException e) {
       for (FileData addedFile : addedFiles) {
         if (addedFile.isGCS) {  // Do something
@@ -628,6 +699,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     if (useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
       file.gcsName = makeGCSfileName(fileName, projectKey.getId());
+      file.gcsLength = content.length;
       GcsOutputChannel outputChannel =
         gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, file.gcsName), GcsFileOptions.getDefaultInstance());
       outputChannel.write(ByteBuffer.wrap(content));
@@ -655,6 +727,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           // delete any FileData objects associated with this project
         }
       }, true);
+      projectIndex.removeProject(userId, projectId);
       // second job deletes the project files and ProjectData in the project's
       // entity group
       runJobWithRetries(new JobRetryHelper() {
@@ -674,6 +747,10 @@ public class ObjectifyStorageIo implements  StorageIo {
           datastore.delete(projectKey);
         }
       }, true);
+      // Hold the summary key, so that a project list that read the project
+      // before it was deleted can't add its summary back.
+      memcache.delete(projectSummaryKey(projectId),
+          ProjectOwnershipIndex.INVALIDATION_HOLD_MILLIS);
       // have to delete the blobs outside of the user and project jobs
       for (String blobKeyString: blobKeys) {
         deleteBlobstoreFile(blobKeyString);
@@ -703,6 +780,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (projectData != null) {
             projectData.galleryId = galleryId;
             datastore.put(projectData);
+            updateProjectSummary(projectData);
           }
         }
       }, true);
@@ -720,6 +798,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (projectData != null) {
             projectData.attributionId = attributionId;
             datastore.put(projectData);
+            updateProjectSummary(projectData);
           }
         }
       }, true);
@@ -750,7 +829,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String loadProjectSettings(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -797,54 +876,120 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String getProjectType(final String userId, final long projectId) {
-//    final Result<String> projectType = new Result<String>();
-//    try {
-//      runJobWithRetries(new JobRetryHelper() {
-//        @Override
-//        public void run(Objectify datastore) {
-//          ProjectData pd = datastore.find(projectKey(projectId));
-//          if (pd != null) {
-//            projectType.t = pd.type;
-//          } else {
-//            projectType.t = "";
-//          }
-//        }
-//      });
-//    } catch (ObjectifyException e) {
-//      throw CrashReport.createAndLogError(LOG, null,
-//          collectUserProjectErrorInfo(userId, projectId), e);
-//    }
-    // We only have one project type, no need to ask about it
-    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+    String projectType = projectIndex.getProjectType(userId, projectId);
+    return projectType == null ? "" : projectType;
   }
 
-  @Override
-  public UserProject getUserProject(final String userId, final long projectId) {
-    final Result<ProjectData> projectData = new Result<ProjectData>();
+  /*
+   * Returns whether the user owns the project.
+   */
+  private boolean ownsProject(String userId, long projectId) {
+    return projectIndex.getProjectType(userId, projectId) != null;
+  }
+
+  /*
+   * Loads the index of the projects owned by a user from the datastore.
+   */
+  private HashMap<Long, String> loadProjectTypes(final String userId) {
+    final HashMap<Long, String> projectTypes = new HashMap<Long, String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectData.t = pd;
-          } else {
-            projectData.t = null;
+          projectTypes.clear();
+          Key<UserData> userKey = userKey(userId);
+          for (Key<UserProjectData> key :
+                   datastore.query(UserProjectData.class).ancestor(userKey).fetchKeys()) {
+            // We only have one project type, no need to read the projects for it
+            projectTypes.put(key.getId(), YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE);
           }
         }
       }, true);
     } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId), e);
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-    if (projectData.t == null) {
-      return null;
-    } else {
-      return new UserProject(projectId, projectData.t.name,
-          projectData.t.type, projectData.t.dateCreated,
-          projectData.t.dateModified, projectData.t.galleryId,
-          projectData.t.attributionId);
+    return projectTypes;
+  }
+
+  @Override
+  public UserProject getUserProject(final String userId, final long projectId) {
+    List<UserProject> userProjects = getUserProjects(userId, Collections.singletonList(projectId));
+    return userProjects.isEmpty() ? null : userProjects.get(0);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(final String userId, final List<Long> projectIds) {
+    // First look for the project summaries in memcache
+    final Map<Long, UserProject> userProjects = new HashMap<Long, UserProject>();
+    List<String> cacheKeys = new ArrayList<String>(projectIds.size());
+    for (long projectId : projectIds) {
+      cacheKeys.add(projectSummaryKey(projectId));
     }
+    for (Object cached : memcache.getAll(cacheKeys).values()) {
+      if (cached instanceof UserProject) {
+        UserProject userProject = (UserProject) cached;
+        userProjects.put(userProject.getProjectId(), userProject);
+      }
+    }
+
+    // Then get the rest from the datastore, all at once
+    final List<Key<ProjectData>> missingKeys = new ArrayList<Key<ProjectData>>();
+    for (long projectId : projectIds) {
+      if (!userProjects.containsKey(projectId)) {
+        missingKeys.add(projectKey(projectId));
+      }
+    }
+    if (!missingKeys.isEmpty()) {
+      final Map<String, UserProject> fetched = new HashMap<String, UserProject>();
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            fetched.clear();
+            for (ProjectData pd : datastore.get(missingKeys).values()) {
+              fetched.put(projectSummaryKey(pd.id), makeUserProject(pd));
+            }
+          }
+        }, false); // Each project is its own entity group, too many for a transaction
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+      }
+      for (UserProject userProject : fetched.values()) {
+        userProjects.put(userProject.getProjectId(), userProject);
+      }
+      // Don't overwrite a summary that a concurrent change has just stored,
+      // or add one for a project that was just deleted.
+      memcache.putAll(fetched, Expiration.byDeltaSeconds(PROJECT_SUMMARY_EXPIRATION_SECONDS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+
+    List<UserProject> result = new ArrayList<UserProject>(projectIds.size());
+    for (long projectId : projectIds) {
+      UserProject userProject = userProjects.get(projectId);
+      if (userProject != null) {
+        result.add(userProject);
+      }
+    }
+    return result;
+  }
+
+  private static UserProject makeUserProject(ProjectData pd) {
+    return new UserProject(pd.id, pd.name, pd.type, pd.dateCreated, pd.dateModified,
+        pd.galleryId, pd.attributionId);
+  }
+
+  private static String projectSummaryKey(long projectId) {
+    return "projectsummary|" + projectId;
+  }
+
+  /*
+   * Stores the summary of a project that has just been changed, so that
+   * project lists see the change. Readers don't overwrite it (see
+   * getUserProjects).
+   */
+  private void updateProjectSummary(ProjectData pd) {
+    memcache.put(projectSummaryKey(pd.id), makeUserProject(pd),
+        Expiration.byDeltaSeconds(PROJECT_SUMMARY_EXPIRATION_SECONDS));
   }
 
   @Override
@@ -894,7 +1039,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String getProjectHistory(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1165,7 +1310,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addSourceFilesToProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1186,7 +1331,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addOutputFilesToProject(final String userId, final long projectId,
       final String... fileNames) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1237,6 +1382,27 @@ public class ObjectifyStorageIo implements  StorageIo {
     return null;
   }
 
+  /*
+   * Returns a copy of a file that can be changed without changing the
+   * original. The content is shared, it is replaced rather than changed.
+   */
+  private static FileData copyFileData(FileData fd) {
+    FileData copy = new FileData();
+    copy.fileName = fd.fileName;
+    copy.projectKey = fd.projectKey;
+    copy.role = fd.role;
+    copy.content = fd.content;
+    copy.isBlob = fd.isBlob;
+    copy.blobstorePath = fd.blobstorePath;
+    copy.blobKey = fd.blobKey;
+    copy.isGCS = fd.isGCS;
+    copy.gcsName = fd.gcsName;
+    copy.gcsLength = fd.gcsLength;
+    copy.settings = fd.settings;
+    copy.lastBackup = fd.lastBackup;
+    return copy;
+  }
+
   @Override
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
@@ -1275,7 +1441,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     List<Key<FileData>> filesToRemove = new ArrayList<Key<FileData>>();
     for (String fileName : fileNames) {
       Key<FileData> key = projectFileKey(projectKey, fileName);
-      memcache.delete(key.getString()); // Remove it from memcache (if it is there)
+      fileCache.remove(key.getString()); // Remove it from the cache (if it is there)
       FileData fd = datastore.find(key);
       if (fd != null) {
         if (fd.role.equals(role)) {
@@ -1295,7 +1461,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public List<String> getProjectSourceFiles(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1317,7 +1483,7 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public List<String> getProjectOutputFiles(final String userId, final long projectId) {
-   if (!getProjects(userId).contains(projectId)) {
+   if (!ownsProject(userId, projectId)) {
      throw CrashReport.createAndLogError(LOG, null,
          collectUserProjectErrorInfo(userId, projectId),
          new UnauthorizedAccessException(userId, projectId, null));
@@ -1382,6 +1548,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       if ((modDate > (pd.dateModified + 1000*60)) && !doingConversion) {
         pd.dateModified = modDate;
         datastore.put(pd);
+        updateProjectSummary(pd);
       } else {
         // return the (old) dateModified
         modDate = pd.dateModified;
@@ -1414,12 +1581,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1428,11 +1590,11 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
           Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
-          fd = (FileData) memcache.get(key.getString());
+          fd = fileCache.get(key.getString());
           if (fd == null) {
             fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
           } else {
-            LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
+            LOG.log(Level.INFO, "Fetched " + key.getString() + " from the cache.");
           }
 
           // <Screen>.yail files are missing when user converts AI1 project to AI2
@@ -1449,62 +1611,21 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
 
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstoreKey.t = fd.blobKey;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (fd.isGCS) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
+          try {
+            Map<String, byte[]> gcsWrites = new HashMap<String, byte[]>();
+            String oldKey = setFileContent(fd, projectId, fileName, content, doingConversion,
+                gcsWrites);
+            if (oldKey != null) {
+              // mark the old blobstore blob for deletion
+              oldBlobstoreKey.t = oldKey;
             }
+            writeGcsFiles(gcsWrites);
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectProjectErrorInfo(userId, projectId, fileName), e);
           }
           datastore.put(fd);
-          memcache.put(key.getString(), fd); // Store the updated data in memcache
+          fileCache.put(key.getString(), fd); // Store the updated data in the cache
           modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
         }
 
@@ -1534,6 +1655,211 @@ public class ObjectifyStorageIo implements  StorageIo {
     return modTime.t;
   }
 
+  @Override
+  public long uploadFilesForce(final long projectId, final String userId,
+      final Map<String, String> contents, final String encoding) {
+    Map<String, byte[]> rawContents = new LinkedHashMap<String, byte[]>();
+    String fileName = null;
+    try {
+      for (Map.Entry<String, String> file : contents.entrySet()) {
+        fileName = file.getKey();
+        rawContents.put(fileName, file.getValue().getBytes(encoding));
+      }
+      return uploadRawFiles(projectId, userId, true, rawContents);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, byte[]> contents) throws BlocksTruncatedException {
+    validateGCS();
+    final Result<Long> modTime = new Result<Long>();
+    final List<FileData> savedFiles = new ArrayList<FileData>();
+    final List<String> oldBlobstoreKeys = new ArrayList<String>();
+    try {
+      // All the files are in the entity group of the project, so they are
+      // saved together, or not at all.
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          savedFiles.clear();
+          oldBlobstoreKeys.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> keys = new ArrayList<Key<FileData>>();
+          for (String fileName : contents.keySet()) {
+            keys.add(projectFileKey(projectKey, fileName));
+          }
+          Map<Key<FileData>, FileData> storedFiles = datastore.get(keys);  // batch get
+
+          Map<String, byte[]> gcsWrites = new HashMap<String, byte[]>();
+          for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+            String fileName = file.getKey();
+            byte[] content = file.getValue();
+            FileData fd = storedFiles.get(projectFileKey(projectKey, fileName));
+            // See uploadRawFile about missing <Screen>.yail files
+            if (fd == null && fileName.endsWith(".yail")) {
+              fd = createProjectFile(datastore, projectKey, FileData.RoleEnum.SOURCE, fileName);
+            }
+            Preconditions.checkState(fd != null);
+            if ((content.length < 125) && (fileName.endsWith(".bky")) && !force) {
+              checkForBlocksTruncation(fd);
+            }
+            try {
+              String oldKey = setFileContent(fd, projectId, fileName, content, false, gcsWrites);
+              if (oldKey != null) {
+                oldBlobstoreKeys.add(oldKey);
+              }
+            } catch (IOException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, projectId, fileName), e);
+            }
+            savedFiles.add(fd);
+          }
+          try {
+            // The files that go to GCS are written at the same time
+            writeGcsFiles(gcsWrites);
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserProjectErrorInfo(userId, projectId), e);
+          }
+          datastore.put(savedFiles);  // batch put
+          modTime.t = updateProjectModDate(datastore, projectId, false);
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      if (e.getMessage().startsWith("Blocks")) { // Convert Exception
+        throw new BlocksTruncatedException();
+      }
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+
+    // Store the updated data in the cache, now that it is committed
+    Map<String, FileData> cachedFiles = new HashMap<String, FileData>();
+    for (FileData fd : savedFiles) {
+      cachedFiles.put(projectFileKey(fd.projectKey, fd.fileName).getString(), fd);
+    }
+    fileCache.putAll(cachedFiles);
+    for (String oldBlobstoreKey : oldBlobstoreKeys) {
+      deleteBlobstoreFile(oldBlobstoreKey);
+    }
+    return modTime.t;
+  }
+
+  /*
+   * Points a file at new content. The content, if it goes to GCS, and the
+   * backup of the file, if one is due, are added to gcsWrites (GCS file name
+   * -> content) rather than written here, so that the caller can write the
+   * GCS files of several files at the same time.
+   *
+   * Returns the key of the old blobstore content of the file, which the
+   * caller must delete, or null.
+   */
+  private String setFileContent(FileData fd, long projectId, String fileName, byte[] content,
+      boolean doingConversion, Map<String, byte[]> gcsWrites) throws IOException {
+    String oldBlobstoreKey = fd.isBlob ? fd.blobKey : null;
+    if (useGCSforFile(fileName, content.length)) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      fd.gcsLength = content.length;
+      gcsWrites.put(fd.gcsName, content);
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else {
+      if (fd.isGCS) {     // Was a GCS file, must have gotten smaller
+                          // and is now stored in the data store
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the caller deletes the old
+      // contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    if (considerBackup(fileName) && !doingConversion
+        && (fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+      gcsWrites.put(makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId),
+          content);
+      fd.lastBackup = System.currentTimeMillis();
+    }
+    return oldBlobstoreKey;
+  }
+
+  /*
+   * Returns whether a daily backup is kept of a file.
+   */
+  private boolean considerBackup(String fileName) {
+    return useGcs && fileName.contains("src/")
+        && (fileName.endsWith(".blk")      // AI1 Blocks Files
+            || fileName.endsWith(".bky")   // Blockly files
+            || fileName.endsWith(".scm")); // Form Definitions
+  }
+
+  /*
+   * Writes files (GCS file name -> content) to GCS, several at a time.
+   */
+  private void writeGcsFiles(Map<String, byte[]> files) throws IOException {
+    int parallelism = Math.min(writeParallelism.get(), files.size());
+    if (parallelism <= 1) {
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        writeGcsFile(file.getKey(), file.getValue());
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        ThreadManager.currentRequestThreadFactory());
+    try {
+      List<Future<Void>> writes = new ArrayList<Future<Void>>();
+      for (final Map.Entry<String, byte[]> file : files.entrySet()) {
+        writes.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            writeGcsFile(file.getKey(), file.getValue());
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> write : writes) {
+        try {
+          write.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while writing to GCS");
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void writeGcsFile(String gcsName, byte[] content) throws IOException {
+    GcsOutputChannel outputChannel = gcsService.createOrReplace(
+        new GcsFilename(GCS_BUCKET_NAME, gcsName), GcsFileOptions.getDefaultInstance());
+    outputChannel.write(ByteBuffer.wrap(content));
+    outputChannel.close();
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1571,7 +1897,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long deleteFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1584,7 +1910,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
-          memcache.delete(fileKey.getString());
+          fileCache.remove(fileKey.getString());
           FileData fileData = datastore.find(fileKey);
           if (fileData != null) {
             oldBlobKeyString.t = fileData.blobKey;
@@ -1652,7 +1978,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
-    if (!getProjects(userId).contains(projectId)) {
+    if (!ownsProject(userId, projectId)) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
@@ -1664,7 +1990,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
-          fd.t = (FileData) memcache.get(fileKey.getString());
+          fd.t = fileCache.get(fileKey.getString());
           if (fd.t == null) {
             fd.t = datastore.find(fileKey);
           }
@@ -1679,71 +2005,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     if (fileData != null) {
       if (fileData.isGCS) {     // It's in the Cloud Store
         try {
-          int count;
-          boolean npfHappened = false;
-          boolean recovered = false;
-          for (count = 0; count < 5; count++) {
-            GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileData.gcsName);
-            int bytesRead = 0;
-            int fileSize = 0;
-            ByteBuffer resultBuffer;
-            try {
-              fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-              resultBuffer = ByteBuffer.allocate(fileSize);
-              GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-              try {
-                while (bytesRead < fileSize) {
-                  bytesRead += readChannel.read(resultBuffer);
-                  if (bytesRead < fileSize) {
-                    LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                  }
-                }
-                recovered = true;
-                result.t = resultBuffer.array();
-                // Should we downgrade to the blobstore (for debugging)?
-                // Note: We only run if we have at least 5 seconds of runtime left in the request
-                long timeRemaining = ApiProxy.getCurrentEnvironment().getRemainingMillis();
-                if (conversionEnabled && !useGcs && (timeRemaining > 5000)) {
-                  // Garf, Let's downgrade this file to the blobstore!
-                  // This is used for debugging -- so we can retry upgrading by
-                  // first downgrading!
-                  // Note: uploadRawFile will do the work!
-                  LOG.log(Level.INFO, "Downgrading " + fileName + " with " +
-                    timeRemaining + " left on the clock.");
-                  try {
-                    uploadRawFile(projectId, fileName, userId, true /* force */,
-                      result.t, true /* no project timestamp update */);
-                  } catch (BlocksTruncatedException e) {
-                    /* will never happen because force is true */
-                  }
-                }
-
-                break;          // We got the data, break out of the loop!
-              } finally {
-                readChannel.close();
-              }
-            } catch (NullPointerException e) {
-              // This happens if the object in GCS is non-existent, which would happen
-              // when people uploaded a zero length object. As of this change, we now
-              // store zero length objects into GCS, but there are plenty of older objects
-              // that are missing in GCS.
-              LOG.log(Level.WARNING, "downloadrawfile: NPF recorded for " + fileData.gcsName);
-              npfHappened = true;
-              resultBuffer = ByteBuffer.allocate(0);
-              result.t = resultBuffer.array();
-            }
-          }
-
-          // report out on how things went above
-          if (npfHappened) {    // We lost at least once
-            if (recovered) {
-              LOG.log(Level.WARNING, "recovered from NPF in downloadrawfile filename = " + fileData.gcsName +
-                " count = " + count);
-            } else {
-              LOG.log(Level.WARNING, "FATAL NPF in downloadrawfile filename = " + fileData.gcsName);
-            }
-          }
-
+          result.t = readGcsFile(fileData, false, "downloadrawfile");
         } catch (IOException e) {
           throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -1753,22 +2015,8 @@ public class ObjectifyStorageIo implements  StorageIo {
           if (fileData.blobKey == null) {
             throw new BlobReadException("blobKey is null");
           }
+          // Moved to GCS by the background migration, see BlobMigration
           result.t = getBlobstoreBytes(fileData.blobKey);
-          // Time to consider upgrading this file if we are moving to GCS
-          // Note: We only run if we have at least 5 seconds of runtime left in the request
-          long timeRemaining = ApiProxy.getCurrentEnvironment().getRemainingMillis();
-          if (conversionEnabled && useGcs && (timeRemaining > 5000)) {
-            // Upgrade the file to use GCS
-            // Note: uploadRawFile does the work for us!
-            LOG.log(Level.INFO, "Upgrading " + fileName + " with " +
-              timeRemaining + " left on the clock.");
-            try {
-              uploadRawFile(projectId, fileName, userId, true /* force */,
-                result.t, true /* no project timestamp update */);
-            } catch (BlocksTruncatedException e) {
-              /* will never happen because force is true */
-            }
-          }
         } catch (BlobReadException e) {
           throw CrashReport.createAndLogError(LOG, null,
               collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -1820,6 +2068,36 @@ public class ObjectifyStorageIo implements  StorageIo {
                                                  final boolean includeAndroidKeystore,
                                                  @Nullable String zipName,
                                                  final boolean fatalError) throws IOException {
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(zipFile);
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out, projectName);
+    out.close();
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int writeProjectSourceZip(String userId, long projectId,
+                                   boolean includeProjectHistory,
+                                   boolean includeAndroidKeystore,
+                                   boolean fatalError, ZipOutputStream out) throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, fatalError, out, new Result<String>());
+  }
+
+  private int writeProjectSourceZip(final String userId, final long projectId,
+                                    final boolean includeProjectHistory,
+                                    final boolean includeAndroidKeystore,
+                                    final boolean fatalError, final ZipOutputStream out,
+                                    final Result<String> projectName) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -1830,13 +2108,9 @@ public class ObjectifyStorageIo implements  StorageIo {
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -1865,85 +2139,27 @@ public class ObjectifyStorageIo implements  StorageIo {
       }, true);
 
       // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
-            }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (fd.isGCS) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
+      // blobs in the job. Several files are read at a time, but they are
+      // zipped in order as soon as they arrive, so only the files being read
+      // are in memory.
+      PrefetchingReader<FileData> reader = new PrefetchingReader<FileData>(fileData,
+          new PrefetchingReader.Loader<FileData>() {
+            @Override
+            public byte[] load(FileData fd) throws IOException {
+              return readProjectFile(userId, projectId, fd, fatalError);
             }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+          }, readParallelism.get(), ThreadManager.currentRequestThreadFactory());
+      try {
+        for (FileData fd : fileData) {
+          fileName = fd.fileName;
+          byte[] data = reader.next();
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount.t++;
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
+      } finally {
+        reader.close();
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -1965,7 +2181,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
 
     if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
+      // Nothing has been written to out, so callers can skip this project.
       throw new IllegalArgumentException("No files to download");
     }
 
@@ -1997,15 +2213,106 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
+    return fileCount.t;
+  }
 
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
+  /*
+   * Reads the content of a project file, wherever it is stored.
+   * Note: this must be called outside of any transaction (see getBlobstoreBytes).
+   */
+  private byte[] readProjectFile(String userId, long projectId, FileData fd,
+                                 boolean fatalError) {
+    byte[] data = null;
+    if (fd.isBlob) {
+      try {
+        if (fd.blobKey == null) {
+          throw new BlobReadException("blobKey is null");
+        }
+        data = getBlobstoreBytes(fd.blobKey);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+      }
+    } else if (fd.isGCS) {
+      try {
+        data = readGcsFile(fd, fatalError, "exportProjectFile");
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+      }
+    } else {
+      data = fd.content;
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    if (data == null) {     // This happens if file creation is interrupted
+      data = new byte[0];
+    }
+    return data;
+  }
+
+  /*
+   * Reads the content of a file stored in GCS. The length of the file is
+   * taken from the FileData if it is recorded there, which saves a metadata
+   * round trip.
+   */
+  private byte[] readGcsFile(FileData fd, boolean fatalError, String caller)
+      throws IOException {
+    GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+    if (fd.gcsLength == 0) {
+      return new byte[0];
+    } else if (fd.gcsLength > 0) {
+      try {
+        byte[] data = readGcsFile(gcsFileName, (int) fd.gcsLength);
+        if (data != null) {
+          return data;
+        }
+        LOG.log(Level.WARNING, caller + ": " + fd.gcsName + " is shorter than " + fd.gcsLength);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, caller + ": could not read " + fd.gcsName + " with length " +
+            fd.gcsLength, e);
+      }
+    }
+    // The length is not recorded or is wrong, so get it from GCS. There is no
+    // metadata if the object in GCS is non-existent, which would happen
+    // when people uploaded a zero length object. As of this change, we now
+    // store zero length objects into GCS, but there are plenty of older objects
+    // that are missing in GCS.
+    for (int count = 0; count < 5; count++) {
+      GcsFileMetadata metadata = gcsService.getMetadata(gcsFileName);
+      if (metadata != null) {
+        byte[] data = readGcsFile(gcsFileName, (int) metadata.getLength());
+        if (data != null) {
+          if (count > 0) {
+            LOG.log(Level.WARNING, "recovered from NPF in " + caller + " filename = " +
+                fd.gcsName + " count = " + count);
+          }
+          return data;
+        }
+      }
+      LOG.log(Level.WARNING, caller + ": NPF recorded for " + fd.gcsName);
+    }
+    LOG.log(Level.WARNING, "FATAL NPF in " + caller + " filename = " + fd.gcsName);
+    if (fatalError) {
+      throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
+    }
+    return new byte[0];
+  }
+
+  /*
+   * Reads a GCS file of the given length, or returns null if it is shorter.
+   */
+  private byte[] readGcsFile(GcsFilename gcsFileName, int fileSize) throws IOException {
+    ByteBuffer resultBuffer = ByteBuffer.allocate(fileSize);
+    GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
+    try {
+      while (resultBuffer.hasRemaining()) {
+        if (readChannel.read(resultBuffer) < 0) {
+          return null;
+        }
+      }
+    } finally {
+      readChannel.close();
+    }
+    return resultBuffer.array();
   }
 
   @Override
@@ -2327,7 +2634,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     Objectify datastore = ObjectifyService.begin();
     Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
     FileData fd;
-    fd = (FileData) memcache.get(fileKey.getString());
+    fd = fileCache.get(fileKey.getString());
     if (fd == null) {
       fd = datastore.find(fileKey);
     }
@@ -2382,62 +2689,110 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  // See if this person needs to have their projects upgraded and if so
-  // add a task to the task queue to take care of it
-  public void checkUpgrade(String userId) {
-    if (!conversionEnabled)     // Unless conversion is enabled...
-      return;
-    Objectify datastore = ObjectifyService.begin();
-    UserData userData = datastore.find(userKey(userId));
-    if ((userData.upgradedGCS && useGcs) ||
-      (!userData.upgradedGCS && !useGcs))
-      return;                   // All done.
-    Queue queue = QueueFactory.getQueue("blobupgrade");
-    queue.add(TaskOptions.Builder.withUrl("/convert").param("user", userId)
-      .etaMillis(System.currentTimeMillis() + 60000));
-    return;
-  }
-
-  public void doUpgrade(String userId) {
-    if (!conversionEnabled)     // Unless conversion is enabled...
-      return;                   // shouldn't really ever happen but...
-    Objectify datastore = ObjectifyService.begin();
-    UserData userData = datastore.find(userKey(userId));
-    if ((userData.upgradedGCS && useGcs) ||
-      (!userData.upgradedGCS && !useGcs))
-      return;                   // All done, another task did it!
-    List<Long> projectIds = getProjects(userId);
-    boolean anyFailed = false;
-    for (long projectId : projectIds) {
-      for (FileData fd : datastore.query(FileData.class).ancestor(projectKey(projectId))) {
-        if (fd.isBlob) {
-          if (useGcs) {         // Let's convert by just reading it!
-            downloadRawFile(userId, projectId, fd.fileName);
-          }
-        } else if (fd.isGCS) {
-          if (!useGcs) {        // Let's downgrade by just reading it!
-            downloadRawFile(userId, projectId, fd.fileName);
-          }
-        }
-      }
+  @Override
+  public void startBlobMigration(boolean dryRun) {
+    validateGCS();
+    if (!useGcs) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalStateException("Files can only be migrated to GCS when it is in use"));
     }
+    blobMigration.start(dryRun);
+  }
 
-    /*
-     * If we are running low on time, we may have not moved all files
-     * so exit now without marking the user as having been finished
-     */
-    if (ApiProxy.getCurrentEnvironment().getRemainingMillis() <= 5000)
-      return;
+  @Override
+  public void stopBlobMigration() {
+    blobMigration.stop();
+  }
 
-    /* If anything failed, also return without marking user */
-    if (anyFailed)
-      return;
+  @Override
+  public void resumeBlobMigration() {
+    blobMigration.resume();
+  }
 
-    datastore = ObjectifyService.beginTransaction();
-    userData = datastore.find(userKey(userId));
-    userData.upgradedGCS = useGcs;
-    datastore.put(userData);
-    datastore.getTxn().commit();
+  @Override
+  public void migrateBlobFiles(int shard, long runId) {
+    blobMigration.migrateNextProjects(shard, runId);
+  }
+
+  @Override
+  public List<String> getBlobMigrationStatus() {
+    return blobMigration.getStatus();
+  }
+
+  /*
+   * Returns the names of the files of a project that are in the Blobstore,
+   * for BlobMigration.
+   */
+  List<String> getBlobFileNames(long projectId) {
+    List<String> fileNames = new ArrayList<String>();
+    Objectify datastore = ObjectifyService.begin();
+    for (FileData fd : datastore.query(FileData.class).ancestor(projectKey(projectId))) {
+      if (fd.isBlob) {
+        fileNames.add(fd.fileName);
+      }
+    }
+    return fileNames;
+  }
+
+  /*
+   * Moves the content of a file from the Blobstore to GCS, or to the
+   * datastore if it is small, for BlobMigration. A dry run only reads the
+   * content.
+   *
+   * Returns the length of the content, or -1 if the file isn't in the
+   * Blobstore (anymore).
+   */
+  @VisibleForTesting
+  long migrateBlobFile(final long projectId, final String fileName, boolean dryRun) {
+    final Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
+    FileData stored = ObjectifyService.begin().find(fileKey);
+    if (stored == null || !stored.isBlob || stored.blobKey == null) {
+      return -1;
+    }
+    final String blobKey = stored.blobKey;
+    final byte[] content;
+    try {
+      // Read outside of the transaction, see getBlobstoreBytes
+      content = getBlobstoreBytes(blobKey);
+    } catch (BlobReadException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+    if (dryRun) {
+      return content.length;
+    }
+    final Result<FileData> migrated = new Result<FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          migrated.t = null;
+          FileData fd = datastore.find(fileKey);
+          // Unless the file was saved or deleted since its content was read
+          if (fd != null && fd.isBlob && blobKey.equals(fd.blobKey)) {
+            try {
+              Map<String, byte[]> gcsWrites = new HashMap<String, byte[]>();
+              setFileContent(fd, projectId, fileName, content, true /* no backup */, gcsWrites);
+              writeGcsFiles(gcsWrites);
+            } catch (IOException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(null, projectId, fileName), e);
+            }
+            datastore.put(fd);
+            migrated.t = fd;
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+    if (migrated.t == null) {
+      return -1;
+    }
+    fileCache.put(fileKey.getString(), migrated.t);
+    deleteBlobstoreFile(blobKey);
+    return content.length;
   }
 
   public SplashConfig getSplashConfig() {
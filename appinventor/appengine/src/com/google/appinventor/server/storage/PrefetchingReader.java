@@ -0,0 +1,130 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the contents of a list of stored items, such as project files in GCS,
+ * several at a time, and returns them in the order of the list.
+ *
+ * <p>At most {@code parallelism} reads are in flight, or finished but not yet
+ * returned by {@link #next}, at any time. A reader must be closed, so that its
+ * threads are gone before the request that created it ends.
+ *
+ * @param <T> the type of the items
+ */
+final class PrefetchingReader<T> implements Closeable {
+
+  /**
+   * Reads the content of one item.
+   */
+  interface Loader<T> {
+    byte[] load(T item) throws IOException;
+  }
+
+  private final List<T> items;
+  private final Loader<T> loader;
+  private final int parallelism;
+  // null if the items are read one at a time by next()
+  private final ExecutorService executor;
+  private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+  private int submitted;
+  private int returned;
+
+  /**
+   * Creates a reader and starts reading the first items.
+   *
+   * @param items  the items to read
+   * @param loader  reads an item
+   * @param parallelism  the maximum number of items read at the same time
+   * @param threadFactory  creates the threads that read the items
+   */
+  PrefetchingReader(List<T> items, Loader<T> loader, int parallelism,
+      ThreadFactory threadFactory) {
+    this.items = items;
+    this.loader = loader;
+    this.parallelism = Math.max(1, Math.min(parallelism, items.size()));
+    executor = (this.parallelism > 1)
+        ? Executors.newFixedThreadPool(this.parallelism, threadFactory)
+        : null;
+    prefetch();
+  }
+
+  boolean hasNext() {
+    return returned < items.size();
+  }
+
+  /**
+   * Returns the content of the next item, waiting for it to be read if needed.
+   */
+  byte[] next() throws IOException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (executor == null) {
+      return loader.load(items.get(returned++));
+    }
+    Future<byte[]> future = pending.removeFirst();
+    returned++;
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading " + items.get(returned - 1));
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      prefetch();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      for (Future<byte[]> future : pending) {
+        future.cancel(true);
+      }
+      pending.clear();
+      executor.shutdownNow();
+    }
+  }
+
+  private void prefetch() {
+    if (executor == null) {
+      return;
+    }
+    while (submitted < items.size() && pending.size() < parallelism) {
+      final T item = items.get(submitted++);
+      pending.addLast(executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return loader.load(item);
+        }
+      }));
+    }
+  }
+}
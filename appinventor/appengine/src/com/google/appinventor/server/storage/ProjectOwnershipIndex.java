@@ -0,0 +1,177 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Knows which projects each user owns, and their types.
+ *
+ * <p>Nearly every project RPC checks that the user owns the project before
+ * doing anything. Rather than querying the datastore for the user's projects
+ * each time, the index of a user ({@code projectId -> type}) is kept for the
+ * duration of the request and in memcache.
+ *
+ * <p>The index is kept consistent with the datastore as follows:
+ * <ul>
+ * <li>When a project is created or deleted, the memcache entry of its owner is
+ *     deleted and can't be re-added for {@link #INVALIDATION_HOLD_MILLIS}, so
+ *     that a request that loaded the index before the change can't store a
+ *     stale copy.
+ * <li>A cached index that doesn't contain a project is never trusted to deny
+ *     access. The index is loaded again from the datastore first.
+ * </ul>
+ *
+ * <p>The request scope is opened and closed by
+ * {@link com.google.appinventor.server.OdeAuthFilter}. Outside of it, only
+ * memcache is used.
+ */
+public final class ProjectOwnershipIndex {
+
+  /**
+   * Loads the index of a user from the datastore.
+   */
+  interface Loader {
+    HashMap<Long, String> load(String userId);
+  }
+
+  // How long a deleted memcache entry can't be re-added by a reader, in ms.
+  static final long INVALIDATION_HOLD_MILLIS = 10 * 1000;
+
+  private static final int EXPIRATION_SECONDS = 60 * 60;
+
+  private static final String MEMCACHE_KEY_PREFIX = "projectindex|";
+
+  /*
+   * The index of a user, as known to the current request.
+   */
+  private static final class Entry {
+    final HashMap<Long, String> types;
+    // Whether the index was loaded from the datastore during this request.
+    final boolean fresh;
+
+    Entry(HashMap<Long, String> types, boolean fresh) {
+      this.types = types;
+      this.fresh = fresh;
+    }
+  }
+
+  // null outside of a request scope
+  private static final ThreadLocal<Map<String, Entry>> requestEntries =
+      new ThreadLocal<Map<String, Entry>>();
+
+  private final MemcacheService memcache;
+  private final Loader loader;
+  private final CacheStats requestStats = CacheStats.forCache("project-index.request");
+  private final CacheStats memcacheStats = CacheStats.forCache("project-index.memcache");
+
+  ProjectOwnershipIndex(MemcacheService memcache, Loader loader) {
+    this.memcache = memcache;
+    this.loader = loader;
+  }
+
+  /**
+   * Starts keeping the indexes used by the current thread until
+   * {@link #endRequest} is called.
+   */
+  public static void beginRequest() {
+    requestEntries.set(new HashMap<String, Entry>());
+  }
+
+  /**
+   * Forgets the indexes used by the current thread.
+   */
+  public static void endRequest() {
+    requestEntries.remove();
+  }
+
+  /**
+   * Returns the type of a project if the user owns it, or {@code null} if the
+   * user doesn't own it or it doesn't exist.
+   */
+  String getProjectType(String userId, long projectId) {
+    Entry entry = getEntry(userId);
+    String type = entry.types.get(projectId);
+    if (type == null && !entry.fresh) {
+      // The cached index may predate the creation of the project.
+      entry = load(userId);
+      type = entry.types.get(projectId);
+    }
+    return type;
+  }
+
+  /**
+   * Records that a user created a project.
+   */
+  void addProject(String userId, long projectId, String type) {
+    Map<String, Entry> entries = requestEntries.get();
+    if (entries != null && entries.containsKey(userId)) {
+      entries.get(userId).types.put(projectId, type);
+    }
+    invalidate(userId);
+  }
+
+  /**
+   * Records that a user deleted a project.
+   */
+  void removeProject(String userId, long projectId) {
+    Map<String, Entry> entries = requestEntries.get();
+    if (entries != null && entries.containsKey(userId)) {
+      entries.get(userId).types.remove(projectId);
+    }
+    invalidate(userId);
+  }
+
+  private Entry getEntry(String userId) {
+    Map<String, Entry> entries = requestEntries.get();
+    if (entries != null) {
+      Entry entry = entries.get(userId);
+      if (entry != null) {
+        requestStats.hit();
+        return entry;
+      }
+      requestStats.miss();
+    }
+    Object cached = memcache.get(memcacheKey(userId));
+    if (cached instanceof HashMap) {
+      memcacheStats.hit();
+      @SuppressWarnings("unchecked")
+      Entry entry = new Entry((HashMap<Long, String>) cached, false);
+      if (entries != null) {
+        entries.put(userId, entry);
+      }
+      return entry;
+    }
+    memcacheStats.miss();
+    return load(userId);
+  }
+
+  private Entry load(String userId) {
+    HashMap<Long, String> types = loader.load(userId);
+    // Don't overwrite, or re-add during the hold, an index that a change has invalidated.
+    memcache.put(memcacheKey(userId), types, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+        SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    Entry entry = new Entry(new HashMap<Long, String>(types), true);
+    Map<String, Entry> entries = requestEntries.get();
+    if (entries != null) {
+      entries.put(userId, entry);
+    }
+    return entry;
+  }
+
+  private void invalidate(String userId) {
+    memcache.delete(memcacheKey(userId), INVALIDATION_HOLD_MILLIS);
+  }
+
+  private static String memcacheKey(String userId) {
+    return MEMCACHE_KEY_PREFIX + userId;
+  }
+}
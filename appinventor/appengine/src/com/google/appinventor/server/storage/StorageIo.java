@@ -18,7 +18,9 @@ import com.google.appinventor.shared.rpc.user.SplashConfig;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
 
@@ -221,6 +223,15 @@ public interface StorageIo {
 
   UserProject getUserProject(String userId, long projectId);
 
+  /**
+   * Returns the UserProject objects of several projects, fetched together.
+   * Projects that don't exist are left out.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectIds  project ids
+   * @return list of UserProject objects, in the order of {@code projectIds}
+   */
+  List<UserProject> getUserProjects(String userId, List<Long> projectIds);
+
   /**
    * Returns a project name.
    *
@@ -459,6 +470,31 @@ public interface StorageIo {
    */
   long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content);
 
+  /**
+   * Uploads several files of a project at once, forcing the save even with
+   * trivial workspaces. The files are stored together and the modification
+   * date of the project is updated once.
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param contents  the content of each file, by file ID
+   * @param encoding encoding of the contents
+   * @return modification date for project
+   */
+  long uploadFilesForce(long projectId, String userId, Map<String, String> contents,
+      String encoding);
+
+  /**
+   * Uploads several files of a project at once. The files are stored
+   * together and the modification date of the project is updated once.
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param force write files even if they are trivial workspaces
+   * @param contents  the content of each file, by file ID
+   * @return modification date for project
+   */
+  long uploadRawFiles(long projectId, String userId, boolean force, Map<String, byte[]> contents)
+      throws BlocksTruncatedException;
+
   /**
    * Deletes a file.
    * @param userId a user Id (the request is made on behalf of this user)
@@ -526,6 +562,26 @@ public interface StorageIo {
                                           @Nullable String zipName,
                                           boolean fatalError) throws IOException;
 
+  /**
+   * Writes project files to a zip archive. The files are read and zipped one
+   * at a time, so the archive can be streamed without holding it in memory.
+   *
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param fatalError set true to cause missing GCS file to throw exception
+   * @param out  the zip archive to write to; it is neither finished nor closed
+   *
+   * @return  the number of files written
+   * @throws IllegalArgumentException if the project has no source files, in
+   *         which case nothing has been written to {@code out}
+   */
+  int writeProjectSourceZip(String userId, long projectId,
+                            boolean includeProjectHistory,
+                            boolean includeAndroidKeystore,
+                            boolean fatalError, ZipOutputStream out) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -573,12 +629,22 @@ public interface StorageIo {
   // Cleanup expired nonces
   void cleanupNonces();
 
-  // Check to see if user needs projects upgraded (moved to GCS)
-  // if so, add task to task queue
-  void checkUpgrade(String userId);
+  // Start moving the project files that are still in the Blobstore to GCS,
+  // in the background. A dry run only counts the files that would be moved.
+  void startBlobMigration(boolean dryRun);
+
+  // Stop the migration, it can be resumed where it stopped
+  void stopBlobMigration();
+
+  // Resume a stopped migration
+  void resumeBlobMigration();
+
+  // Called by the task queue to migrate the next projects of a shard of the
+  // migration
+  void migrateBlobFiles(int shard, long runId);
 
-  // Called by the task queue to actually upgrade user's projects
-  void doUpgrade(String userId);
+  // The progress of the migration, as lines of text
+  List<String> getBlobMigrationStatus();
 
   // Retrieve the current Splash Screen Version
   SplashConfig getSplashConfig();
@@ -6,6 +6,10 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.flags.Flag;
+
+import java.io.File;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
@@ -15,8 +19,23 @@ package com.google.appinventor.server.storage;
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
+  // Where projects are stored: "objectify" for the App Engine datastore and
+  // Cloud Storage, or "local" for the local file system (LocalFileStorageIo)
+  private static final Flag<String> storageBackend = Flag.createFlag("storage.backend",
+      "objectify");
+
+  // The directory of the local file system storage
+  private static final Flag<String> localStorageRoot = Flag.createFlag("storage.local.root",
+      "appinventor-storage");
+
+  public static final StorageIo INSTANCE = createInstance();
   
   private StorageIoInstanceHolder() {} // not to be instantiated
-    
+
+  private static StorageIo createInstance() {
+    if (storageBackend.get().equals("local")) {
+      return new LocalFileStorageIo(new File(localStorageRoot.get()));
+    }
+    return new ObjectifyStorageIo();
+  }
 }
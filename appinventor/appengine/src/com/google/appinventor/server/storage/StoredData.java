@@ -58,7 +58,6 @@ public class StoredData {
 
     // Path to template project passed as GET parameter
     String templatePath;
-    boolean upgradedGCS;
   }
 
   // Project properties
@@ -184,6 +183,10 @@ public class StoredData {
     // The GCS filename, sans bucket name
     String gcsName;
 
+    // The length of the GCS file in bytes, or -1 if the file was stored before
+    // lengths were recorded
+    long gcsLength = -1;
+
     // File settings
     String settings;
 
@@ -272,4 +275,26 @@ public class StoredData {
     public int width;
   }
 
+  // The checkpoint of one shard of the background migration of project files
+  // from the Blobstore to GCS, see BlobMigration. The id is the shard number
+  // plus one.
+  @Unindexed
+  static final class BlobMigrationData {
+    @Id Long id;
+    // When the migration was started, tasks of other runs stop
+    long runId;
+    boolean dryRun;
+    // The shard covers the projects with ids in (lastProjectId, endProjectId].
+    // The projects up to lastProjectId are done.
+    long lastProjectId;
+    long endProjectId;
+    boolean stopped;
+    boolean done;
+    long updated;
+    long projects;
+    long files;
+    long bytes;
+    long failures;
+  }
+
 }
@@ -0,0 +1,143 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The change between the last saved content of a text file and its new
+ * content, sent to the App Inventor service instead of the whole new content.
+ *
+ * <p>An edit in the blocks editor usually changes a single region of a large
+ * .bky file, so the change is the text that replaces everything between the
+ * common prefix and the common suffix of the old and new contents.
+ *
+ * <p>The delta carries the MD5 checksums (see {@link ChecksumedLoadFile}) of
+ * the content it applies to and of the content it produces. The server checks
+ * both, so a delta against content that the server doesn't have, or a delta
+ * that was altered on the way, is refused rather than saved.
+ */
+public final class FileDelta implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 4311560786926424431L;
+
+  private String baseChecksum;
+  private int prefixLength;
+  private int suffixLength;
+  private String replacement;
+  private String checksum;
+  private int length;
+
+  /**
+   * Default constructor (for serialization only).
+   */
+  @SuppressWarnings("unused")
+  private FileDelta() {
+  }
+
+  private FileDelta(String baseChecksum, int prefixLength, int suffixLength, String replacement,
+      String checksum, int length) {
+    this.baseChecksum = baseChecksum;
+    this.prefixLength = prefixLength;
+    this.suffixLength = suffixLength;
+    this.replacement = replacement;
+    this.checksum = checksum;
+    this.length = length;
+  }
+
+  /**
+   * Creates the delta that turns one content into another.
+   *
+   * @param baseChecksum  the checksum of {@code base}, as returned by
+   *     {@link #checksum}
+   * @param base  the last content that the server has acknowledged
+   * @param content  the new content
+   */
+  public static FileDelta create(String baseChecksum, String base, String content)
+      throws ChecksumedFileException {
+    int maxCommon = Math.min(base.length(), content.length());
+    int prefixLength = 0;
+    while (prefixLength < maxCommon && base.charAt(prefixLength) == content.charAt(prefixLength)) {
+      prefixLength++;
+    }
+    int suffixLength = 0;
+    while (suffixLength < maxCommon - prefixLength
+        && base.charAt(base.length() - 1 - suffixLength)
+            == content.charAt(content.length() - 1 - suffixLength)) {
+      suffixLength++;
+    }
+    return new FileDelta(baseChecksum, prefixLength, suffixLength,
+        content.substring(prefixLength, content.length() - suffixLength), checksum(content),
+        content.length());
+  }
+
+  /**
+   * Applies the delta to the content that the server has.
+   *
+   * @param base  the current content of the file
+   * @return  the new content of the file
+   * @throws ChecksumedFileException  if {@code base} is not the content the
+   *     delta was made against, or the result is not the intended content
+   */
+  public String apply(String base) throws ChecksumedFileException {
+    if (!checksum(base).equals(baseChecksum)) {
+      throw new ChecksumedFileException("Delta doesn't apply to the stored content");
+    }
+    if (prefixLength + suffixLength > base.length()) {
+      throw new ChecksumedFileException("Delta is larger than the stored content");
+    }
+    String content = base.substring(0, prefixLength) + replacement
+        + base.substring(base.length() - suffixLength);
+    if (!checksum(content).equals(checksum)) {
+      throw new ChecksumedFileException("Checksum of the patched content doesn't match");
+    }
+    return content;
+  }
+
+  /**
+   * Returns the checksum of the new content, as returned by {@link #checksum}.
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Returns the number of characters of new content that are sent.
+   */
+  public int getReplacementLength() {
+    return replacement.length();
+  }
+
+  /**
+   * Returns the number of characters of the new content.
+   */
+  public int getContentLength() {
+    return length;
+  }
+
+  /**
+   * Returns the MD5 checksum of a content, as a hex string.
+   */
+  public static String checksum(String content) throws ChecksumedFileException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(content.getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new ChecksumedFileException(e.toString());
+    } catch (UnsupportedEncodingException e) {
+      throw new ChecksumedFileException(e.toString());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+/**
+ * Describes a file (using its project and file IDs) and its new content,
+ * given either whole or as its change from the last content saved by the
+ * client.
+ *
+ */
+public final class FileDescriptorWithDelta extends FileDescriptor {
+
+  // For serialization
+  private static final long serialVersionUID = -3021947468820714506L;
+
+  // Either the whole content or the change to it, the other is null
+  private String content;
+  private FileDelta delta;
+
+  /**
+   * Default constructor (for serialization only).
+   * Unfortunately this will prevent any fields from being marked as final!
+   */
+  @SuppressWarnings("unused")
+  private FileDescriptorWithDelta() {
+  }
+
+  /**
+   * Creates a new descriptor for a file and its whole content.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param content  file content
+   */
+  public FileDescriptorWithDelta(long projectId, String fileId, String content) {
+    super(projectId, fileId);
+    this.content = content;
+  }
+
+  /**
+   * Creates a new descriptor for a file and the change to its content.
+   *
+   * @param projectId  project ID
+   * @param fileId  file ID
+   * @param delta  the change from the last saved content
+   */
+  public FileDescriptorWithDelta(long projectId, String fileId, FileDelta delta) {
+    super(projectId, fileId);
+    this.delta = delta;
+  }
+
+  /**
+   * Returns the whole content of the associated file, or null if a delta is
+   * given instead.
+   *
+   * @return  file content
+   */
+  public String getContent() {
+    return content;
+  }
+
+  /**
+   * Returns the change to the content of the associated file, or null if the
+   * whole content is given instead.
+   *
+   * @return  the change from the last saved content
+   */
+  public FileDelta getDelta() {
+    return delta;
+  }
+}
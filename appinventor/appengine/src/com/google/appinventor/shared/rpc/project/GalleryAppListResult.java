@@ -6,6 +6,7 @@
 
 package com.google.appinventor.shared.rpc.project;
 
+import java.io.Serializable;
 import java.util.List;
 
 import com.google.gwt.user.client.rpc.IsSerializable;
@@ -16,10 +17,11 @@ import com.google.gwt.user.client.rpc.IsSerializable;
  * list of gallery apps (sliced results) and number of results.
  * @author blu2@dons.usfca.edu (Bin Lu)
  */
-public class GalleryAppListResult implements IsSerializable{
+public class GalleryAppListResult implements IsSerializable, Serializable {
   List<GalleryApp> apps;    //sliced results
   int totalCount;           //total number of all suitable results
   String keyword;           //search keyword, only for searching
+  String cursor;            //where the next page starts, null if unknown
   /**
    * default constructor
    */
@@ -72,6 +74,14 @@ public class GalleryAppListResult implements IsSerializable{
     this.keyword = keyword;
   }
 
+  /**
+   * setCursor based on given cursor
+   * @param cursor where the page after this one starts
+   */
+  public void setCursor(String cursor){
+    this.cursor = cursor;
+  }
+
   /**
    * @return apps list of GalleryApp
    */
@@ -92,4 +102,12 @@ public class GalleryAppListResult implements IsSerializable{
   public String getKeyword(){
     return keyword;
   }
+
+  /**
+   * @return cursor to pass when asking for the page after this one, or null
+   *     if that page has to be asked for by its start index
+   */
+  public String getCursor(){
+    return cursor;
+  }
 }
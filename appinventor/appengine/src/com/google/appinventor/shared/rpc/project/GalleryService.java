@@ -80,35 +80,43 @@ public interface GalleryService extends RemoteService {
    * updated galleryApps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, used instead of start
+   *     if not null
    * @return list of GalleryApps
    */
-  GalleryAppListResult getRecentApps(int start, int count);
+  GalleryAppListResult getRecentApps(int start, int count, String cursor);
 
   /**
    * Returns a wrapped class which contains a list of most downloaded
    * gallery apps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, used instead of start
+   *     if not null
    * @return list of GalleryApps
    */
-  GalleryAppListResult getMostDownloadedApps(int start, int count);
+  GalleryAppListResult getMostDownloadedApps(int start, int count, String cursor);
 
   /**
    * Returns a wrapped class which contains a list of most liked
    * gallery apps and total number of results in database
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, used instead of start
+   *     if not null
    * @return list of GalleryApps
    */
-  GalleryAppListResult getMostLikedApps(int start, int count);
+  GalleryAppListResult getMostLikedApps(int start, int count, String cursor);
 
   /**
    * Returns a wrapped class which contains a list of featured gallery app
    * @param start start index
    * @param count count number
+   * @param cursor the cursor of the previous page, used instead of start
+   *     if not null
    * @return list of gallery app
    */
-  GalleryAppListResult getFeaturedApp(int start, int count);
+  GalleryAppListResult getFeaturedApp(int start, int count, String cursor);
 
   /**
    * check if app is featured already
@@ -140,10 +148,12 @@ public interface GalleryService extends RemoteService {
    * @param keywords keywords to search for
    * @param start starting index
    * @param count number of apps to return
+   * @param cursor the cursor of the previous page, used instead of start
+   *     if not null
    * @return list of GalleryApps
    */
 
-  GalleryAppListResult findApps(String keywords, int start, int count);
+  GalleryAppListResult findApps(String keywords, int start, int count, String cursor);
 
   /**
    * Returns a GalleryApp object for the given id
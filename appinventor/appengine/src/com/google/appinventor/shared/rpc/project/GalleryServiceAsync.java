@@ -65,14 +65,14 @@ public interface GalleryServiceAsync {
    */
   void getNumApps(AsyncCallback<Integer> callback);
   /**
-   * @see @link{@link GalleryService#getRecentApps(int, int)
+   * @see @link{@link GalleryService#getRecentApps(int, int, String)
    */
-  void getRecentApps(int start, int count, AsyncCallback<GalleryAppListResult> callback);
+  void getRecentApps(int start, int count, String cursor, AsyncCallback<GalleryAppListResult> callback);
 
   /**
-   * @see @link{@link GalleryService#getFeaturedApp(int, int)
+   * @see @link{@link GalleryService#getFeaturedApp(int, int, String)
    */
-  void getFeaturedApp(int start, int count, AsyncCallback<GalleryAppListResult> callback);
+  void getFeaturedApp(int start, int count, String cursor, AsyncCallback<GalleryAppListResult> callback);
 
   /**
    * @see @link{@link GalleryService#isFeatured(long)
@@ -85,14 +85,14 @@ public interface GalleryServiceAsync {
   void markAppAsFeatured(long galleryId, AsyncCallback<Boolean> callback);
 
    /**
-   * @see @link{@link GalleryService#getMostDownloadedApps(int, int)
+   * @see @link{@link GalleryService#getMostDownloadedApps(int, int, String)
    */
-  void getMostDownloadedApps(int start, int count, AsyncCallback<GalleryAppListResult> callback);
+  void getMostDownloadedApps(int start, int count, String cursor, AsyncCallback<GalleryAppListResult> callback);
 
   /**
-  * @see @link{@link GalleryService#getMostLikedApps(int, int)
+  * @see @link{@link GalleryService#getMostLikedApps(int, int, String)
   */
- void getMostLikedApps(int start, int count, AsyncCallback<GalleryAppListResult> callback);
+ void getMostLikedApps(int start, int count, String cursor, AsyncCallback<GalleryAppListResult> callback);
 
   /**
    * @see @link{@link GalleryService#getDeveloperApps(String, int, int)
@@ -100,9 +100,9 @@ public interface GalleryServiceAsync {
   void getDeveloperApps(String userId, int start, int count, AsyncCallback<GalleryAppListResult> callback);
 
   /**
-   * @see @link{@link GalleryService#findApps(String, int, int)
+   * @see @link{@link GalleryService#findApps(String, int, int, String)
    */
-  void findApps(String keywords, int start, int count, AsyncCallback<GalleryAppListResult> callback);
+  void findApps(String keywords, int start, int count, String cursor, AsyncCallback<GalleryAppListResult> callback);
 
    /**
    * @see @link{@link GalleryService#getApp(long)
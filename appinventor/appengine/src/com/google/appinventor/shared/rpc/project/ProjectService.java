@@ -241,6 +241,25 @@ public interface ProjectService extends RemoteService {
   long save2(String sessionId, long projectId, String fileId, boolean force, String content) throws InvalidSessionException,
       BlocksTruncatedException;
 
+  /**
+   * Saves several files of a project, each given whole or as its change
+   * from the last content saved by this client. The files are saved
+   * together, with one update of the project's modification date. Files
+   * that can't be saved are reported in the result rather than failing the
+   * others: empty blocks workspaces that would replace non-empty ones, and
+   * changes to content that the service doesn't have.
+   *
+   * @param sessionId current session id
+   * @param projectId  project ID
+   * @param files  the files of the project and their content
+   * @return the modification date of the project and the files that were
+   *     not saved
+   *
+   * @see #save2(String, long, String, boolean, String)
+   */
+  SaveFilesResult saveFiles(String sessionId, long projectId, List<FileDescriptorWithDelta> files)
+      throws InvalidSessionException;
+
   /**
    * Saves the contents of multiple files.
    *
@@ -131,6 +131,12 @@ public interface ProjectServiceAsync {
    */
   void save2(String sessionId, long projectId, String fileId, boolean force, String source, AsyncCallback<Long> callback);
 
+  /**
+   * @see ProjectService#saveFiles(String, long, List)
+   */
+  void saveFiles(String sessionId, long projectId, List<FileDescriptorWithDelta> files,
+      AsyncCallback<SaveFilesResult> callback);
+
   /**
    * @see ProjectService#save(String, List)
    */
@@ -0,0 +1,64 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of saving several files of a project at once with
+ * {@link ProjectService#saveFiles}. The files that are not listed as
+ * truncated or stale were saved.
+ *
+ */
+public final class SaveFilesResult implements Serializable {
+
+  // For serialization
+  private static final long serialVersionUID = 6614739127716402841L;
+
+  private long modificationDate;
+  private ArrayList<String> truncatedFileIds = new ArrayList<String>();
+  private ArrayList<String> staleFileIds = new ArrayList<String>();
+
+  /**
+   * Returns the modification date of the project after the save, or 0 if no
+   * file was saved.
+   */
+  public long getModificationDate() {
+    return modificationDate;
+  }
+
+  public void setModificationDate(long modificationDate) {
+    this.modificationDate = modificationDate;
+  }
+
+  /**
+   * Returns the IDs of the blocks files that were not saved because their
+   * content is an empty workspace and the stored one is not (see
+   * {@link com.google.appinventor.shared.rpc.BlocksTruncatedException}).
+   */
+  public List<String> getTruncatedFileIds() {
+    return truncatedFileIds;
+  }
+
+  public void addTruncatedFileId(String fileId) {
+    truncatedFileIds.add(fileId);
+  }
+
+  /**
+   * Returns the IDs of the files that were not saved because their delta
+   * doesn't apply to the stored content (see {@link ChecksumedFileException}).
+   * The client should save their whole content.
+   */
+  public List<String> getStaleFileIds() {
+    return staleFileIds;
+  }
+
+  public void addStaleFileId(String fileId) {
+    staleFileIds.add(fileId);
+  }
+}
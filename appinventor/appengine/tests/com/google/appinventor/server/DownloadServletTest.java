@@ -6,7 +6,6 @@
 
 package com.google.appinventor.server;
 
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.riq.MockHttpServletRequest;
 import com.riq.MockHttpServletResponse;
@@ -18,10 +17,14 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 
 /**
@@ -43,8 +46,6 @@ public class DownloadServletTest {
   private static final String DUMMY_ZIP_FILENAME_WITH_TITLE = "MyProjectTitle123.aia";
   private static final String DOWNLOAD_URL = "http://localhost/baseUrl/download/";
 
-  private ProjectSourceZip dummyZip;
-  private ProjectSourceZip dummyZipWithTitle;
   private RawFile dummyApk;
   private RawFile dummyFile;
 
@@ -60,8 +61,6 @@ public class DownloadServletTest {
     exporterMock = PowerMock.createNiceMock(FileExporterImpl.class);
     PowerMock.expectNew(FileExporterImpl.class).andReturn(exporterMock).anyTimes();
 
-    dummyZip = new ProjectSourceZip(DUMMY_ZIP_FILENAME, new byte[] {}, 2);
-    dummyZipWithTitle = new ProjectSourceZip(DUMMY_ZIP_FILENAME_WITH_TITLE, new byte[] {}, 2);
     dummyApk = new RawFile(DUMMY_APK_FILENAME, new byte[] {});
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
@@ -76,8 +75,11 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null, false))
-        .andReturn(dummyZip);
+    expect(exporterMock.getProjectSourceZipName(USER_ID, PROJECT_ID))
+        .andReturn(DUMMY_ZIP_FILENAME);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), anyObject(OutputStream.class)))
+        .andReturn(2);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -91,9 +93,9 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq(false), anyObject(OutputStream.class)))
+        .andReturn(2);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -108,16 +110,22 @@ public class DownloadServletTest {
     IllegalArgumentException expectedException = new IllegalArgumentException();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/12345");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, 12345L, true, false, null, false))
+    expect(exporterMock.getProjectSourceZipName(USER_ID, 12345L))
+        .andReturn(".aia");
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(12345L), eq(true), eq(false),
+        eq(false), anyObject(OutputStream.class)))
         .andThrow(expectedException);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
     try {
-      download.doGet(request, new MockHttpServletResponse());
+      download.doGet(request, response);
       fail();
     } catch (IllegalArgumentException ex) {
       assertEquals(expectedException, ex);
     }
+    // Nothing was written, so the download was not started and an error can still be sent.
+    assertNull(response.getHeader("content-disposition"));
     PowerMock.verifyAll();
   }
 
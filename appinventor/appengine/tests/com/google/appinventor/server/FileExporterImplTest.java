@@ -167,5 +167,43 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testStreamingExportProjectSourceZip() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = exporter.exportProjectSourceZip(USER_ID, projectId, true, false, false, out);
+    ProjectSourceZip project = new ProjectSourceZip(PROJECT_NAME + ".aia", out.toByteArray(),
+        count);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(project);
+    assertEquals(3, content.size());
+    assertEquals(PROJECT_NAME + ".aia", exporter.getProjectSourceZipName(USER_ID, projectId));
+  }
+
+  public void testStreamingExportProjectSourceZipWithNonExistingProject() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, false, out);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(0, out.size());
+  }
+
+  public void testExportAllProjectsSourceZip() throws IOException {
+    // A project without source files is left out of the zip.
+    Project emptyProject = new Project("Empty");
+    emptyProject.setProjectType(FAKE_PROJECT_TYPE);
+    storageIo.createProject(USER_ID, emptyProject, SETTINGS);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int count = exporter.exportAllProjectsSourceZip(USER_ID, out);
+    assertEquals(1, count);
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+    ZipEntry zipEntry = zis.getNextEntry();
+    assertEquals(PROJECT_NAME + ".aia", zipEntry.getName());
+    ProjectSourceZip project = new ProjectSourceZip(zipEntry.getName(),
+        ByteStreams.toByteArray(zis), 2);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(project);
+    assertFalse(content.containsKey(FileExporter.REMIX_INFORMATION_FILE_PATH));
+    assertNull(zis.getNextEntry());
+  }
 }
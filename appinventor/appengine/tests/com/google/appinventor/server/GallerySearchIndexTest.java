@@ -0,0 +1,116 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for {@link GallerySearchIndex}.
+ *
+ */
+public class GallerySearchIndexTest extends LocalDatastoreTestCase {
+
+  private GallerySearchIndex searchIndex;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    searchIndex = GallerySearchIndex.getInstance();
+  }
+
+  private static GalleryApp makeApp(long galleryId, String title) {
+    GalleryApp app = new GalleryApp();
+    app.setGalleryAppId(galleryId);
+    app.setTitle(title);
+    app.setDescription("A game about " + title.toLowerCase());
+    app.setMoreInfo("http://example.com/" + galleryId);
+    app.setCredit("Remixed from HelloPurr");
+    app.setProjectName("Project" + galleryId);
+    app.setDeveloperName("Alyssa");
+    app.setDeveloperId("developer" + galleryId);
+    app.setProjectId(1000 + galleryId);
+    app.setCreationDate(1420070400000L + galleryId);
+    app.setUpdateDate(1420070500000L + galleryId);
+    app.setDownloads(42);
+    app.setLikes(7);
+    app.setActive(true);
+    return app;
+  }
+
+  public void testListingFields() {
+    searchIndex.indexApp(makeApp(1, "Kitty"));
+    GalleryAppListResult result = searchIndex.find("kitty", 0, 10, null);
+    assertEquals(1, result.getTotalCount());
+    GalleryApp app = result.getApps().get(0);
+    assertEquals(1, app.getGalleryAppId());
+    assertEquals("Kitty", app.getTitle());
+    assertEquals("A game about kitty", app.getDescription());
+    assertEquals("http://example.com/1", app.getMoreInfo());
+    assertEquals("Remixed from HelloPurr", app.getCredit());
+    assertEquals("Project1", app.getProjectName());
+    assertEquals("Alyssa", app.getDeveloperName());
+    assertEquals("developer1", app.getDeveloperId());
+    assertEquals(1001, app.getProjectId());
+    assertEquals(1420070400001L, app.getCreationDate());
+    assertEquals(1420070500001L, app.getUpdateDate());
+    assertEquals(42, app.getDownloads());
+    assertEquals(7, app.getLikes());
+    assertTrue(app.getActive());
+  }
+
+  public void testSearchQueries() {
+    searchIndex.indexApp(makeApp(1, "Kitty"));
+    searchIndex.indexApp(makeApp(2, "Puppy"));
+    // The title, description and developer name are searched
+    assertEquals(1, searchIndex.find("puppy", 0, 10, null).getTotalCount());
+    assertEquals(2, searchIndex.find("game", 0, 10, null).getTotalCount());
+    assertEquals(2, searchIndex.find("alyssa", 0, 10, null).getTotalCount());
+    assertEquals(0, searchIndex.find("hamster", 0, 10, null).getTotalCount());
+
+    // Re-indexing replaces the document
+    searchIndex.indexApp(makeApp(2, "Hamster"));
+    assertEquals(0, searchIndex.find("puppy", 0, 10, null).getTotalCount());
+    assertEquals(1, searchIndex.find("hamster", 0, 10, null).getTotalCount());
+
+    searchIndex.unIndexApp(1);
+    assertEquals(0, searchIndex.find("kitty", 0, 10, null).getTotalCount());
+  }
+
+  public void testPaging() {
+    Set<Long> indexed = new HashSet<Long>();
+    for (long galleryId = 1; galleryId <= 5; galleryId++) {
+      searchIndex.indexApp(makeApp(galleryId, "Kitty" + galleryId));
+      indexed.add(galleryId);
+    }
+    Set<Long> found = new HashSet<Long>();
+    GalleryAppListResult result = searchIndex.find("game", 0, 2, null);
+    assertEquals(5, result.getTotalCount());
+    assertEquals(2, result.getApps().size());
+    addIds(result, found);
+    // The first page has a cursor to the next
+    assertNotNull(result.getCursor());
+    result = searchIndex.find("game", 2, 2, result.getCursor());
+    assertEquals(2, result.getApps().size());
+    addIds(result, found);
+    result = searchIndex.find("game", 4, 2, result.getCursor());
+    assertEquals(1, result.getApps().size());
+    addIds(result, found);
+    assertEquals(indexed, found);
+
+    // Without a cursor the page starts at its offset
+    assertEquals(1, searchIndex.find("game", 4, 2, null).getApps().size());
+  }
+
+  private static void addIds(GalleryAppListResult result, Set<Long> ids) {
+    for (GalleryApp app : result.getApps()) {
+      assertTrue(ids.add(app.getGalleryAppId()));
+    }
+  }
+}
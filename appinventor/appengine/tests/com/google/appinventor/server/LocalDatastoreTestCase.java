@@ -9,7 +9,10 @@ package com.google.appinventor.server;
 import com.google.appinventor.common.testutils.TestUtils;
 
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalSearchServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
 import com.google.apphosting.utils.config.GenerationDirectory;
 
 import junit.framework.TestCase;
@@ -22,8 +25,17 @@ import junit.framework.TestCase;
 public abstract class LocalDatastoreTestCase extends TestCase {
   private static final String APPENGINE_GENERATED_DIR = TestUtils.APP_INVENTOR_ROOT_DIR +
       "/appengine/build/tests/appengine-generated";
+  private static final String QUEUE_XML_PATH = TestUtils.APP_INVENTOR_ROOT_DIR +
+      "/appengine/war/WEB-INF/queue.xml";
+  // The datastore is high replication, so that cross group transactions work,
+  // with every write applied at once. Queued tasks are kept, not run.
   private final LocalServiceTestHelper helper =
-      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+          new LocalMemcacheServiceTestConfig(),
+          new LocalSearchServiceTestConfig(),
+          new LocalTaskQueueTestConfig().setQueueXmlPath(QUEUE_XML_PATH)
+              .setDisableAutoTaskExecution(true));
 
   @Override
   protected void setUp() throws Exception {
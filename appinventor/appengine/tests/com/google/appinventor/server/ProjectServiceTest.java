@@ -16,10 +16,13 @@ import com.google.appinventor.server.encryption.KeyczarEncryptor;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.FileDelta;
 import com.google.appinventor.shared.rpc.project.FileDescriptor;
 import com.google.appinventor.shared.rpc.project.FileDescriptorWithContent;
+import com.google.appinventor.shared.rpc.project.FileDescriptorWithDelta;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
+import com.google.appinventor.shared.rpc.project.SaveFilesResult;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
@@ -288,6 +291,56 @@ public class ProjectServiceTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testSaveFiles() throws Exception {
+    expect(localUserMock.getUserId()).andReturn(USER_ID_ONE).anyTimes();
+    PowerMock.replayAll();
+    do_init();
+
+    long projectId = projectServiceImpl.newProject(
+        YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, PROJECT1_NAME,
+        new NewYoungAndroidProjectParameters(PACKAGE_BASE + PROJECT1_NAME)).getProjectId();
+    String scmFileId = "src/com/domain/noname/Project1/Screen1.scm";
+    String bkyFileId = "src/com/domain/noname/Project1/Screen1.bky";
+    StringBuilder blocks = new StringBuilder("<xml>");
+    for (int i = 0; i < 20; i++) {
+      blocks.append("<block type=\"text\" id=\"" + i + "\"></block>");
+    }
+    String bky = blocks.append("</xml>").toString();
+
+    // Whole contents
+    SaveFilesResult result = projectServiceImpl.saveFiles("test-session", projectId,
+        Lists.newArrayList(
+            new FileDescriptorWithDelta(projectId, scmFileId, YOUNG_ANDROID_PROJECT_SCM_SOURCE),
+            new FileDescriptorWithDelta(projectId, bkyFileId, bky)));
+    assertTrue(result.getStaleFileIds().isEmpty());
+    assertTrue(result.getTruncatedFileIds().isEmpty());
+    checkModificationDateMatchesStored(result.getModificationDate(), USER_ID_ONE, projectId);
+    assertEquals(bky, projectServiceImpl.load(projectId, bkyFileId));
+
+    // A delta from the stored content is saved, one from other content is stale
+    String bky2 = bky.replace("id=\"7\"", "id=\"seven\"");
+    result = projectServiceImpl.saveFiles("test-session", projectId, Lists.newArrayList(
+        new FileDescriptorWithDelta(projectId, bkyFileId,
+            FileDelta.create(FileDelta.checksum(bky), bky, bky2)),
+        new FileDescriptorWithDelta(projectId, scmFileId,
+            FileDelta.create(FileDelta.checksum("x"), "x", "y"))));
+    assertEquals(Lists.newArrayList(scmFileId), result.getStaleFileIds());
+    assertEquals(bky2, projectServiceImpl.load(projectId, bkyFileId));
+    assertEquals(YOUNG_ANDROID_PROJECT_SCM_SOURCE, projectServiceImpl.load(projectId, scmFileId));
+
+    // An empty workspace isn't saved over the blocks, the other files are
+    result = projectServiceImpl.saveFiles("test-session", projectId, Lists.newArrayList(
+        new FileDescriptorWithDelta(projectId, scmFileId,
+            YOUNG_ANDROID_PROJECT_SCM_SOURCE + YOUNG_ANDROID_COMMENT),
+        new FileDescriptorWithDelta(projectId, bkyFileId, "")));
+    assertEquals(Lists.newArrayList(bkyFileId), result.getTruncatedFileIds());
+    assertEquals(bky2, projectServiceImpl.load(projectId, bkyFileId));
+    assertEquals(YOUNG_ANDROID_PROJECT_SCM_SOURCE + YOUNG_ANDROID_COMMENT,
+        projectServiceImpl.load(projectId, scmFileId));
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testCopyProject() throws Exception {
     // Since only USER_ID_ONE is used in this test, we don't care how
@@ -0,0 +1,80 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests BuildServerPool class.
+ *
+ */
+public class BuildServerPoolTest extends LocalDatastoreTestCase {
+  private static final long NOW = 1000000;
+
+  public void testHostList() throws Exception {
+    assertEquals(Arrays.asList("localhost:9990"),
+        new BuildServerPool("localhost:9990", null).getHosts());
+    assertEquals(Arrays.asList("a:9990", "b:9990"),
+        new BuildServerPool(" a:9990, b:9990,", null).getHosts());
+  }
+
+  public void testParseStatus() throws Exception {
+    BuildServerPool.Status status = BuildServerPool.parseStatus(
+        "{\"buildserver-version\": \"v1\", \"active-build-tasks\": \"3\","
+        + " \"build-queue-depth\": \"1\", \"maximum-simultaneous-build-tasks-allowed\": \"8\"}",
+        "v1", NOW);
+    assertTrue(status.healthy);
+    assertTrue(status.compatible);
+    assertEquals(0.5, status.load, 0.001);
+
+    status = BuildServerPool.parseStatus(
+        "{\"buildserver-version\": \"v1\", \"active-build-tasks\": \"2\","
+        + " \"maximum-simultaneous-build-tasks-allowed\": \"unlimited\","
+        + " \"num-processors\": \"4\"}",
+        "v2", NOW);
+    assertFalse(status.compatible);
+    assertEquals(0.5, status.load, 0.001);
+
+    // Older build servers only have HTML variables.
+    status = BuildServerPool.parseStatus("<html></html>", "v1", NOW);
+    assertTrue(status.healthy);
+    assertTrue(status.compatible);
+  }
+
+  public void testDispatchOrder() throws Exception {
+    BuildServerPool pool = new BuildServerPool("a,b,c,d", "v1");
+    pool.setStatus("a", new BuildServerPool.Status(true, true, 0.75, NOW));
+    pool.setStatus("b", new BuildServerPool.Status(true, true, 0.25, NOW));
+    pool.setStatus("c", new BuildServerPool.Status(false, true, 0, NOW));
+    pool.setStatus("d", new BuildServerPool.Status(true, false, 0, NOW));
+    assertEquals(Arrays.asList("b", "a"), pool.getDispatchOrder(NOW));
+
+    // A build server that turned a build away goes to the end of the line, whatever its load.
+    pool.reportFailure("b");
+    long now = System.currentTimeMillis();
+    pool.setStatus("b", new BuildServerPool.Status(true, true, 0.25, now));
+    assertEquals(Arrays.asList("a", "b"), pool.getDispatchOrder(now));
+    assertEquals(Arrays.asList("b", "a"),
+        pool.getDispatchOrder(now + BuildServerPool.PENALTY_MILLIS + 1));
+  }
+
+  public void testNoUsableBuildServer() throws Exception {
+    BuildServerPool pool = new BuildServerPool("a,b", "v1");
+    pool.setStatus("a", new BuildServerPool.Status(false, true, 0, NOW));
+    pool.setStatus("b", new BuildServerPool.Status(true, false, 0, NOW));
+    assertEquals(Arrays.asList("a", "b"), pool.getDispatchOrder(NOW));
+  }
+
+  public void testBuildServerOfBuildIsRemembered() throws Exception {
+    BuildServerPool pool = new BuildServerPool("a,b", null);
+    assertEquals("a", pool.getBuildServer("build1"));
+    pool.recordBuildServer("build1", "b");
+    assertEquals("b", pool.getBuildServer("build1"));
+    assertEquals("b", new BuildServerPool("a,b", null).getBuildServer("build1"));
+  }
+}
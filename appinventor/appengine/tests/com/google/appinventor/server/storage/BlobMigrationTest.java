@@ -0,0 +1,259 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.BlobMigrationData;
+import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link BlobMigration}.
+ *
+ * <p>The datastore only has projects. Their files in the Blobstore are made
+ * up by {@link FakeBlobStorageIo}, which counts the files it is asked to
+ * migrate.
+ *
+ */
+public class BlobMigrationTest extends LocalDatastoreTestCase {
+
+  private static final String SHARDS_FLAG = "blob.migration.shards";
+  private static final String PROJECTS_PER_TASK_FLAG = "blob.migration.projects.per.task";
+  private static final String FILES_PER_SECOND_FLAG = "blob.migration.files.per.second";
+
+  private static final String ASSET_FILE_NAME = "assets/kitty.png";
+  private static final String BROKEN_FILE_NAME = "assets/broken.png";
+  private static final long FILE_LENGTH = 100;
+
+  private FakeBlobStorageIo storage;
+  private BlobMigration migration;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(FILES_PER_SECOND_FLAG, "1000");
+    // Registers the entities
+    storage = new FakeBlobStorageIo();
+    migration = new BlobMigration(storage);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty(SHARDS_FLAG);
+    System.clearProperty(PROJECTS_PER_TASK_FLAG);
+    System.clearProperty(FILES_PER_SECOND_FLAG);
+    super.tearDown();
+  }
+
+  public void testShardsCoverAllProjects() {
+    createProjects(200);
+    migration.start(false);
+    List<BlobMigrationData> checkpoints = getCheckpoints();
+    assertFalse(checkpoints.isEmpty());
+    assertTrue(checkpoints.size() <= 8);
+    assertEquals(checkpoints.size(), countMigrationTasks());
+
+    // The ranges of the shards follow each other, from the first project to the last
+    long start = 0;
+    for (BlobMigrationData checkpoint : checkpoints) {
+      assertEquals(checkpoints.get(0).runId, checkpoint.runId);
+      assertFalse(checkpoint.dryRun);
+      assertEquals(start, checkpoint.lastProjectId);
+      assertTrue(checkpoint.endProjectId > start);
+      start = checkpoint.endProjectId;
+    }
+    assertEquals(Long.MAX_VALUE, start);
+
+    // Every project is migrated by exactly one shard
+    long runId = checkpoints.get(0).runId;
+    for (BlobMigrationData checkpoint : checkpoints) {
+      int shard = (int) (checkpoint.id - 1);
+      while (!getCheckpoint(shard).done) {
+        migration.migrateNextProjects(shard, runId);
+      }
+    }
+    long projects = 0;
+    for (BlobMigrationData checkpoint : getCheckpoints()) {
+      projects += checkpoint.projects;
+    }
+    assertEquals(200, projects);
+    assertEquals(200, storage.migratedProjects.size());
+    assertEquals(200, countDistinct(storage.migratedProjects));
+  }
+
+  public void testCheckpointProgress() {
+    System.setProperty(SHARDS_FLAG, "1");
+    System.setProperty(PROJECTS_PER_TASK_FLAG, "5");
+    createProjects(12);
+    migration.start(false);
+    long runId = getCheckpoint(0).runId;
+    assertEquals(1, countMigrationTasks());
+
+    migration.migrateNextProjects(0, runId);
+    BlobMigrationData checkpoint = getCheckpoint(0);
+    assertEquals(5, checkpoint.lastProjectId);
+    assertEquals(5, checkpoint.projects);
+    assertEquals(5, checkpoint.files);
+    assertEquals(5 * FILE_LENGTH, checkpoint.bytes);
+    assertFalse(checkpoint.done);
+    // The task queued the next one
+    assertEquals(2, countMigrationTasks());
+
+    migration.migrateNextProjects(0, runId);
+    assertEquals(10, getCheckpoint(0).lastProjectId);
+    migration.migrateNextProjects(0, runId);
+    checkpoint = getCheckpoint(0);
+    assertEquals(12, checkpoint.lastProjectId);
+    assertEquals(12, checkpoint.projects);
+    assertEquals(12, checkpoint.files);
+    assertTrue(checkpoint.done);
+    assertEquals(3, countMigrationTasks());
+    assertTrue(migration.getStatus().get(0).startsWith("shard 0 done projects 12 files 12"));
+
+    // A done shard isn't migrated again
+    migration.migrateNextProjects(0, runId);
+    assertEquals(12, getCheckpoint(0).projects);
+    assertEquals(12, storage.migratedProjects.size());
+    assertFalse(storage.dryRuns.contains(true));
+  }
+
+  public void testStopAndResume() {
+    System.setProperty(SHARDS_FLAG, "1");
+    System.setProperty(PROJECTS_PER_TASK_FLAG, "5");
+    createProjects(12);
+    migration.start(false);
+    long runId = getCheckpoint(0).runId;
+
+    migration.stop();
+    assertTrue(getCheckpoint(0).stopped);
+    migration.migrateNextProjects(0, runId);
+    assertEquals(0, getCheckpoint(0).lastProjectId);
+    assertTrue(storage.migratedProjects.isEmpty());
+    List<String> status = migration.getStatus();
+    assertTrue(status.get(0).startsWith("shard 0 stopped projects 0"));
+    assertTrue(status.get(1).startsWith("total 0 running"));
+
+    migration.resume();
+    assertFalse(getCheckpoint(0).stopped);
+    assertEquals(2, countMigrationTasks());
+    migration.migrateNextProjects(0, runId);
+    assertEquals(5, getCheckpoint(0).lastProjectId);
+
+    // The tasks of another run are ignored
+    migration.migrateNextProjects(0, runId - 1);
+    assertEquals(5, getCheckpoint(0).lastProjectId);
+    assertEquals(5, storage.migratedProjects.size());
+
+    // A migration stopped partway resumes from its checkpoint
+    migration.stop();
+    migration.resume();
+    migration.migrateNextProjects(0, runId);
+    migration.migrateNextProjects(0, runId);
+    BlobMigrationData checkpoint = getCheckpoint(0);
+    assertTrue(checkpoint.done);
+    assertEquals(12, checkpoint.projects);
+    assertEquals(12, countDistinct(storage.migratedProjects));
+  }
+
+  public void testDryRunCounters() {
+    System.setProperty(SHARDS_FLAG, "1");
+    createProjects(3);
+    storage.brokenProjectId = 2;
+    migration.start(true);
+    BlobMigrationData checkpoint = getCheckpoint(0);
+    assertTrue(checkpoint.dryRun);
+
+    migration.migrateNextProjects(0, checkpoint.runId);
+    checkpoint = getCheckpoint(0);
+    assertTrue(checkpoint.done);
+    assertEquals(3, checkpoint.projects);
+    assertEquals(3, checkpoint.files);
+    assertEquals(3 * FILE_LENGTH, checkpoint.bytes);
+    assertEquals(1, checkpoint.failures);
+    assertFalse(storage.dryRuns.contains(false));
+    List<String> status = migration.getStatus();
+    assertEquals(2, status.size());
+    assertTrue(status.get(0).startsWith(
+        "shard 0 done (dry run) projects 3 files 3 bytes 300 failures 1"));
+    assertTrue(status.get(1).startsWith("total 0 running"));
+    assertTrue(status.get(1).contains("(dry run) projects 3 files 3 bytes 300 failures 1"));
+  }
+
+  public void testStatusWithoutMigration() {
+    assertEquals(Arrays.asList("No migration has been started"), migration.getStatus());
+  }
+
+  // Creates projects with the ids 1 to count
+  private static void createProjects(int count) {
+    List<ProjectData> projects = new ArrayList<ProjectData>();
+    for (long projectId = 1; projectId <= count; projectId++) {
+      ProjectData project = new ProjectData();
+      project.id = projectId;
+      project.name = "Project" + projectId;
+      projects.add(project);
+    }
+    ObjectifyService.begin().put(projects);
+  }
+
+  private static BlobMigrationData getCheckpoint(int shard) {
+    return ObjectifyService.begin().find(BlobMigrationData.class, shard + 1L);
+  }
+
+  private static List<BlobMigrationData> getCheckpoints() {
+    return ObjectifyService.begin().query(BlobMigrationData.class).order("__key__").list();
+  }
+
+  private static int countMigrationTasks() {
+    return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+        .get("blobmigration").getCountTasks();
+  }
+
+  private static int countDistinct(List<Long> ids) {
+    List<Long> sorted = new ArrayList<Long>(ids);
+    Collections.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.size(); i++) {
+      if (i == 0 || !sorted.get(i).equals(sorted.get(i - 1))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /*
+   * Pretends that every project has a file in the Blobstore, and that the
+   * project brokenProjectId also has one that can't be read.
+   */
+  private static class FakeBlobStorageIo extends ObjectifyStorageIo {
+    final List<Long> migratedProjects = new ArrayList<Long>();
+    final List<Boolean> dryRuns = new ArrayList<Boolean>();
+    long brokenProjectId;
+
+    @Override
+    List<String> getBlobFileNames(long projectId) {
+      if (projectId == brokenProjectId) {
+        return Arrays.asList(ASSET_FILE_NAME, BROKEN_FILE_NAME);
+      }
+      return Collections.singletonList(ASSET_FILE_NAME);
+    }
+
+    @Override
+    long migrateBlobFile(long projectId, String fileName, boolean dryRun) {
+      dryRuns.add(dryRun);
+      if (fileName.equals(BROKEN_FILE_NAME)) {
+        throw new RuntimeException("Can't read " + fileName);
+      }
+      migratedProjects.add(projectId);
+      return FILE_LENGTH;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests InstanceCache class.
+ *
+ */
+public class InstanceCacheTest extends LocalDatastoreTestCase {
+  private static final InstanceCache.ValueType<StringBuilder> TYPE =
+      new InstanceCache.ValueType<StringBuilder>() {
+        @Override
+        public StringBuilder copy(StringBuilder value) {
+          return new StringBuilder(value);
+        }
+
+        @Override
+        public int size(StringBuilder value) {
+          return value.length();
+        }
+      };
+
+  private MemcacheService memcache;
+  // Two App Engine instances sharing memcache
+  private InstanceCache<StringBuilder> cache;
+  private InstanceCache<StringBuilder> otherCache;
+  private CacheStats instanceStats;
+  private CacheStats memcacheStats;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    cache = new InstanceCache<StringBuilder>("test", memcache, TYPE, 10, 0);
+    otherCache = new InstanceCache<StringBuilder>("test", memcache, TYPE, 10, 0);
+    instanceStats = CacheStats.forCache("test.instance");
+    memcacheStats = CacheStats.forCache("test.memcache");
+  }
+
+  public void testGet() throws Exception {
+    assertNull(cache.get("a"));
+    cache.put("a", new StringBuilder("1"));
+    long hits = instanceStats.getHits();
+    assertEquals("1", cache.get("a").toString());
+    assertEquals(hits + 1, instanceStats.getHits());
+  }
+
+  public void testGetFromMemcache() throws Exception {
+    cache.put("a", new StringBuilder("1"));
+    long hits = memcacheStats.getHits();
+    assertEquals("1", otherCache.get("a").toString());
+    assertEquals(hits + 1, memcacheStats.getHits());
+    // Kept in the other instance now
+    long instanceHits = instanceStats.getHits();
+    assertEquals("1", otherCache.get("a").toString());
+    assertEquals(instanceHits + 1, instanceStats.getHits());
+  }
+
+  public void testPutInvalidatesOtherInstances() throws Exception {
+    cache.put("a", new StringBuilder("1"));
+    assertEquals("1", otherCache.get("a").toString());
+    cache.put("a", new StringBuilder("2"));
+    assertEquals("2", otherCache.get("a").toString());
+  }
+
+  public void testRemoveInvalidatesOtherInstances() throws Exception {
+    cache.put("a", new StringBuilder("1"));
+    assertEquals("1", otherCache.get("a").toString());
+    cache.remove("a");
+    assertNull(otherCache.get("a"));
+    assertNull(cache.get("a"));
+  }
+
+  public void testPutAll() throws Exception {
+    Map<String, StringBuilder> values = new HashMap<String, StringBuilder>();
+    values.put("a", new StringBuilder("1"));
+    values.put("b", new StringBuilder("2"));
+    assertNull(otherCache.get("a"));
+    cache.putAll(values);
+    assertEquals("1", otherCache.get("a").toString());
+    assertEquals("2", cache.get("b").toString());
+  }
+
+  public void testMemcacheFlushed() throws Exception {
+    cache.put("a", new StringBuilder("1"));
+    memcache.clearAll();
+    otherCache.put("a", new StringBuilder("2"));
+    // The version stamp started again, at a number that doesn't match
+    assertEquals("2", cache.get("a").toString());
+    memcache.clearAll();
+    assertNull(cache.get("a"));
+  }
+
+  public void testCopies() throws Exception {
+    StringBuilder value = new StringBuilder("1");
+    cache.put("a", value);
+    value.append("changed");
+    StringBuilder cached = cache.get("a");
+    cached.append("changed");
+    assertEquals("1", cache.get("a").toString());
+  }
+
+  public void testEviction() throws Exception {
+    long evictions = instanceStats.getEvictions();
+    cache.put("a", new StringBuilder("1234"));
+    cache.put("b", new StringBuilder("1234"));
+    cache.get("a");
+    // Over the capacity of 10, the least recently used value is evicted
+    cache.put("c", new StringBuilder("1234"));
+    assertEquals(evictions + 1, instanceStats.getEvictions());
+    long hits = instanceStats.getHits();
+    cache.get("a");
+    cache.get("c");
+    assertEquals(hits + 2, instanceStats.getHits());
+    long misses = instanceStats.getMisses();
+    // Still in memcache
+    assertEquals("1234", cache.get("b").toString());
+    assertEquals(misses + 1, instanceStats.getMisses());
+  }
+
+  public void testTooLarge() throws Exception {
+    cache.put("a", new StringBuilder("12345678901"));
+    long misses = instanceStats.getMisses();
+    assertEquals("12345678901", cache.get("a").toString());
+    assertEquals(misses + 1, instanceStats.getMisses());
+  }
+}
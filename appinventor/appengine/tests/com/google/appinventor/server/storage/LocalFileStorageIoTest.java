@@ -0,0 +1,198 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Tests LocalFileStorageIo class.
+ *
+ * <p>The cases that don't depend on how the files are stored are in
+ * {@link StorageIoTestCase}, which {@link ObjectifyStorageIoTest} extends
+ * too.
+ *
+ */
+public class LocalFileStorageIoTest extends StorageIoTestCase<LocalFileStorageIo> {
+
+  private static final String BLOCKS_FILE_NAME = "src/Screen1.bky";
+
+  private File root;
+
+  @Override
+  protected LocalFileStorageIo createStorageIo() throws IOException {
+    root = Files.createTempDirectory("localstorage").toFile();
+    return new LocalFileStorageIo(root);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    storage.close();
+    deleteRecursively(root);
+    super.tearDown();
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  public void testFindUserByEmail() {
+    final String USER_ID = "500";
+    final String USER_EMAIL = "user500@test.com";
+    final String USER_EMAIL_NEW = "newuser500@test.com";
+
+    storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(USER_ID, storage.findUserByEmail(USER_EMAIL));
+    storage.getUser(USER_ID, USER_EMAIL_NEW);
+    assertEquals(USER_ID, storage.findUserByEmail(USER_EMAIL_NEW));
+    try {
+      storage.findUserByEmail(USER_EMAIL);
+      fail();
+    } catch (java.util.NoSuchElementException e) {
+      // The user doesn't have this email address anymore
+    }
+  }
+
+  public void testProjectType() {
+    // Unlike ObjectifyStorageIo, which only has Young Android projects, the type is kept
+    final String USER_ID = "450";
+    long projectId = createProject(USER_ID);
+    assertEquals(FAKE_PROJECT_TYPE, storage.getProjectType(USER_ID, projectId));
+    assertEquals("", storage.getProjectType(USER_ID, projectId + 1));
+  }
+
+  public void testSetTosAccepted() {
+    final String USER_ID = "100";
+    LocalFileStorageIo.requireTos.setForTest(true);
+    User user = storage.getUser(USER_ID);
+    assertEquals(false, user.getUserTosAccepted());
+    storage.setTosAccepted(USER_ID);
+    assertEquals(true, storage.getUser(USER_ID).getUserTosAccepted());
+  }
+
+  public void testBlocksTruncation() throws BlocksTruncatedException {
+    final String USER_ID = "1180";
+    long projectId = createProject(USER_ID);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE_NAME);
+    storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, FILE_CONTENT2,
+        StorageUtil.DEFAULT_CHARSET);
+    try {
+      storage.uploadFile(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Blocks were replaced by an empty workspace");
+    } catch (BlocksTruncatedException e) {
+      // expected
+    }
+    storage.uploadFileForce(projectId, BLOCKS_FILE_NAME, USER_ID, "<xml/>",
+        StorageUtil.DEFAULT_CHARSET);
+    assertEquals("<xml/>", storage.downloadFile(USER_ID, projectId, BLOCKS_FILE_NAME,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testDownloadDeletedUserFile() {
+    final String USER_ID = "1250";
+    storage.getUser(USER_ID);
+    storage.addFilesToUser(USER_ID, FILE_NAME1);
+    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    storage.deleteUserFile(USER_ID, FILE_NAME1);
+    try {
+      storage.downloadRawUserFile(USER_ID, FILE_NAME1);
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+  }
+
+  public void testDownloadWhileUploading() throws Exception {
+    final String USER_ID = "1260";
+    final long projectId = createProject(USER_ID);
+    // Each upload removes the only reference to the previous content, whose
+    // content file is then deleted.
+    final String[] contents = { FILE_CONTENT1, FILE_CONTENT2 };
+    final Throwable[] failure = new Throwable[1];
+    Thread uploader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 200; i++) {
+            storage.uploadFileForce(projectId, FILE_NAME1, USER_ID, contents[i % 2],
+                StorageUtil.DEFAULT_CHARSET);
+          }
+        } catch (Throwable t) {
+          failure[0] = t;
+        }
+      }
+    };
+    uploader.start();
+    while (uploader.isAlive()) {
+      String content = storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+          StorageUtil.DEFAULT_CHARSET);
+      assertTrue(content.equals(FILE_CONTENT1) || content.equals(FILE_CONTENT2));
+    }
+    uploader.join();
+    assertNull(failure[0]);
+  }
+
+  public void testExportProjectSourceZip() throws IOException {
+    final String USER_ID = "1800";
+    long projectId = createProject(USER_ID);
+    storage.addFilesToUser(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+    storage.uploadRawUserFile(USER_ID, StorageUtil.ANDROID_KEYSTORE_FILENAME, RAW_FILE_CONTENT1);
+    ProjectSourceZip zip = storage.exportProjectSourceZip(USER_ID, projectId, false, true, null,
+        false);
+    assertEquals(PROJECT_NAME + ".aia", zip.getFileName());
+    assertEquals(4, zip.getFileCount());
+  }
+
+  public void testContentIsStoredOnce() throws Exception {
+    final String USER_ID = "1900";
+    long projectId1 = createProject(USER_ID);
+    long projectId2 = createProject(USER_ID);
+    // 3 files of the projects, each stored once
+    assertEquals(3, countContentFiles(new File(root, "blobs")));
+    storage.deleteProject(USER_ID, projectId1);
+    assertEquals(3, countContentFiles(new File(root, "blobs")));
+    storage.deleteProject(USER_ID, projectId2);
+    assertEquals(0, countContentFiles(new File(root, "blobs")));
+  }
+
+  public void testReopen() throws Exception {
+    final String USER_ID = "2000";
+    long projectId = createProject(USER_ID);
+    storage.storeSettings(USER_ID, SETTINGS);
+    storage.close();
+
+    storage = new LocalFileStorageIo(root);
+    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(createProject(USER_ID) > projectId);
+  }
+
+  private static int countContentFiles(File directory) {
+    int count = 0;
+    File[] children = directory.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        count += child.isDirectory() ? countContentFiles(child) : 1;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,262 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link ObjectifyGalleryStorageIo}.
+ *
+ */
+public class ObjectifyGalleryStorageIoTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "1";
+  private static final long PROJECT_ID = 1;
+
+  private ObjectifyGalleryStorageIo galleryStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    galleryStorage = new ObjectifyGalleryStorageIo();
+  }
+
+  private long createApp(String title) {
+    return galleryStorage.createGalleryApp(title, title, "description", "", "",
+        PROJECT_ID, USER_ID).getGalleryAppId();
+  }
+
+  private GalleryAppData getAppData(long galleryId) {
+    return ObjectifyService.begin().find(
+        new Key<GalleryAppData>(GalleryAppData.class, galleryId));
+  }
+
+  public void testShardedIncrements() {
+    long galleryId = createApp("Sharded");
+    for (int i = 0; i < 40; i++) {
+      galleryStorage.incrementDownloads(galleryId);
+    }
+    galleryStorage.increaseLikes(galleryId, "liker1");
+    galleryStorage.increaseLikes(galleryId, "liker2");
+    galleryStorage.increaseLikes(galleryId, "liker3");
+    galleryStorage.decreaseLikes(galleryId, "liker2");
+    // Not rolled up yet
+    assertEquals(0, getAppData(galleryId).numDownloads);
+    assertEquals(2, galleryStorage.getNumLikes(galleryId));
+
+    galleryStorage.rollUpCounters(galleryId);
+    GalleryAppData appData = getAppData(galleryId);
+    assertEquals(40, appData.numDownloads);
+    assertEquals(40, appData.unreadDownloads);
+    assertEquals(2, appData.numLikes);
+    assertEquals(2, appData.unreadLikes);
+    assertEquals(40, appData.rolledUpDownloads);
+    assertEquals(2, appData.rolledUpLikes);
+    assertEquals(2, galleryStorage.getNumLikes(galleryId));
+  }
+
+  public void testRepeatedRollups() {
+    long galleryId = createApp("Repeated");
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.increaseLikes(galleryId, "liker1");
+    galleryStorage.rollUpCounters(galleryId);
+    galleryStorage.rollUpCounters(galleryId);
+    GalleryAppData appData = getAppData(galleryId);
+    assertEquals(1, appData.numDownloads);
+    assertEquals(1, appData.numLikes);
+
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.decreaseLikes(galleryId, "liker1");
+    galleryStorage.rollUpCounters(galleryId);
+    galleryStorage.rollUpCounters(galleryId);
+    appData = getAppData(galleryId);
+    assertEquals(2, appData.numDownloads);
+    assertEquals(2, appData.unreadDownloads);
+    assertEquals(0, appData.numLikes);
+    assertEquals(0, appData.unreadLikes);
+  }
+
+  public void testConcurrentRollups() throws Exception {
+    final long galleryId = createApp("Concurrent");
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          // Share the datastore of the test
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          try {
+            for (int j = 0; j < 5; j++) {
+              galleryStorage.incrementDownloads(galleryId);
+              // Lets every change queue a rollup, as if the interval was over
+              MemcacheServiceFactory.getMemcacheService().clearAll();
+              galleryStorage.rollUpCounters(galleryId);
+            }
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    galleryStorage.rollUpCounters(galleryId);
+    GalleryAppData appData = getAppData(galleryId);
+    assertEquals(20, appData.numDownloads);
+    assertEquals(20, appData.unreadDownloads);
+    assertEquals(20, appData.rolledUpDownloads);
+  }
+
+  public void testRollupReindexesOnLargeChanges() {
+    long galleryId = createApp("Reindexed");
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(1, countIndexTasks());
+
+    for (int i = 0; i < 20; i++) {
+      galleryStorage.incrementDownloads(galleryId);
+    }
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(2, countIndexTasks());
+    assertEquals(21, getAppData(galleryId).indexedDownloads);
+
+    // Less than 10% more
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(22, getAppData(galleryId).numDownloads);
+    assertEquals(21, getAppData(galleryId).indexedDownloads);
+    assertEquals(2, countIndexTasks());
+
+    // A like is more than 10% of none
+    galleryStorage.increaseLikes(galleryId, "liker1");
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(3, countIndexTasks());
+    assertEquals(22, getAppData(galleryId).indexedDownloads);
+
+    // Inactive apps aren't indexed
+    galleryStorage.deactivateGalleryApp(galleryId);
+    for (int i = 0; i < 20; i++) {
+      galleryStorage.incrementDownloads(galleryId);
+    }
+    galleryStorage.rollUpCounters(galleryId);
+    assertEquals(3, countIndexTasks());
+  }
+
+  public void testCountMoved() {
+    assertFalse(ObjectifyGalleryStorageIo.countMoved(0, 0));
+    assertTrue(ObjectifyGalleryStorageIo.countMoved(0, 1));
+    assertTrue(ObjectifyGalleryStorageIo.countMoved(9, 8));
+    assertFalse(ObjectifyGalleryStorageIo.countMoved(100, 109));
+    assertTrue(ObjectifyGalleryStorageIo.countMoved(100, 110));
+    assertTrue(ObjectifyGalleryStorageIo.countMoved(100, 90));
+  }
+
+  private static int countIndexTasks() {
+    return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo()
+        .get("galleryindex").getCountTasks();
+  }
+
+  public void testRollUpMissingApp() {
+    // The app was deleted after its rollup was queued
+    galleryStorage.rollUpCounters(12345);
+    assertNull(getAppData(12345));
+  }
+
+  public void testFirstPageSnapshot() {
+    long galleryId1 = createApp("First");
+    long galleryId2 = createApp("Second");
+    GalleryAppListResult page = galleryStorage.getRecentGalleryApps(0, 10, null);
+    assertEquals(2, page.getTotalCount());
+    assertEquals(2, page.getApps().size());
+    // The end of the listing, so there is no next page
+    assertNull(page.getCursor());
+
+    // The snapshot is served until it is refreshed
+    long galleryId3 = createApp("Third");
+    page = galleryStorage.getRecentGalleryApps(0, 10, null);
+    assertEquals(2, page.getTotalCount());
+    assertEquals(2, page.getApps().size());
+
+    galleryStorage.refreshListings();
+    page = galleryStorage.getRecentGalleryApps(0, 10, null);
+    assertEquals(3, page.getTotalCount());
+    Set<Long> ids = new HashSet<Long>();
+    for (GalleryApp app : page.getApps()) {
+      ids.add(app.getGalleryAppId());
+    }
+    assertTrue(ids.contains(galleryId1));
+    assertTrue(ids.contains(galleryId2));
+    assertTrue(ids.contains(galleryId3));
+
+    // Pages within the first page are cut from it
+    page = galleryStorage.getRecentGalleryApps(1, 1, null);
+    assertEquals(3, page.getTotalCount());
+    assertEquals(1, page.getApps().size());
+    page = galleryStorage.getMostDownloadedApps(0, 10, null);
+    assertEquals(3, page.getApps().size());
+    page = galleryStorage.getFeaturedApp(0, 10, null);
+    assertEquals(0, page.getTotalCount());
+    assertTrue(page.getApps().isEmpty());
+  }
+
+  public void testCursorPaging() {
+    Set<Long> created = new HashSet<Long>();
+    for (int i = 0; i < 60; i++) {
+      created.add(createApp("App" + i));
+    }
+    galleryStorage.refreshListings();
+
+    Set<Long> seen = new HashSet<Long>();
+    GalleryAppListResult page = galleryStorage.getRecentGalleryApps(0, 25, null);
+    assertEquals(60, page.getTotalCount());
+    assertNull(page.getCursor());
+    addIds(page, seen);
+    // Reaches the end of the first page, which has the cursor of the query
+    page = galleryStorage.getRecentGalleryApps(25, 25, null);
+    assertNotNull(page.getCursor());
+    addIds(page, seen);
+    page = galleryStorage.getRecentGalleryApps(50, 25, page.getCursor());
+    assertEquals(60, page.getTotalCount());
+    assertEquals(10, page.getApps().size());
+    assertNull(page.getCursor());
+    addIds(page, seen);
+    assertEquals(created, seen);
+
+    // Without the cursor the page is queried by its start
+    page = galleryStorage.getRecentGalleryApps(50, 25, null);
+    assertEquals(10, page.getApps().size());
+    // A bad cursor is ignored
+    page = galleryStorage.getRecentGalleryApps(50, 25, "bad cursor");
+    assertEquals(10, page.getApps().size());
+  }
+
+  private static void addIds(GalleryAppListResult page, Set<Long> ids) {
+    for (GalleryApp app : page.getApps()) {
+      assertTrue(ids.add(app.getGalleryAppId()));
+    }
+  }
+}
@@ -6,51 +6,24 @@
 
 package com.google.appinventor.server.storage;
 
-import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appinventor.server.LocalDatastoreTestCase;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
-import com.google.appinventor.shared.rpc.project.Project;
-import com.google.appinventor.shared.rpc.project.RawFile;
-import com.google.appinventor.shared.rpc.project.TextFile;
-import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.rpc.user.User;
-import com.google.appinventor.shared.storage.StorageUtil;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ConcurrentModificationException;
-import java.util.List;
 
 /**
  * Tests for {@link ObjectifyStorageIo}.
  *
+ * <p>The cases that don't depend on how the files are stored are in
+ * {@link StorageIoTestCase}.
+ *
  * @author sharon@google.com (Sharon Perl)
  */
-public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
+public class ObjectifyStorageIoTest extends StorageIoTestCase<ObjectifyStorageIo> {
 
-  private static final String SETTINGS = "{settings: \"none\"}";
-  private static final String FAKE_PROJECT_TYPE = "FakeProjectType";
-  private static final String PROJECT_NAME = "Project1";
-  private static final String FILE_NAME1 = "File1.src";
-  private static final String FILE_NAME2 = "src/File2.blk";
-  private static final String RAW_FILE_NAME1 = "assets/File1.jpg";
-  private static final String RAW_FILE_NAME2 = "assets/File2.wav";
-  private static final String FILE_NAME_OUTPUT = "File.apk";
-  private static final String FILE_CONTENT1 = "The quick onyx goblin jumps over the lazy dwarf";
-  private static final String FILE_CONTENT2 = "This Pangram contains four a's, one b, two c's, "
-      + "one d, thirty e's, six f's, five g's, seven h's, eleven i's, one j, one k, two l's, "
-      + "two m's, eighteen n's, fifteen o's, two p's, one q, five r's, twenty-seven s's, "
-      + "eighteen t's, two u's, seven v's, eight w's, two x's, three y's, & one z.";
-  private static final byte[] RAW_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
-  private static final byte[] RAW_FILE_CONTENT2 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
-  private static final byte[] FILE_CONTENT_OUTPUT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
-  private static final String FORM_NAME = "Form1";
-  private static final String FORM_QUALIFIED_NAME = "com.yourdomain." + FORM_NAME;
   private static final String ASSET_FILE_NAME1 = "assets/kitty.jpg";
   private static final byte[] ASSET_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
   private static final String APK_FILE_NAME1 = "/ode/build/Android/HelloPurr.apk";
@@ -58,59 +31,23 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   private static final String BLOCK_FILE_NAME = "src/blocks.blk";
   private static final byte[] BLOCK_FILE_CONTENT = {(byte) 0, (byte) 1, (byte) 32, (byte) 255};
 
-  private ObjectifyStorageIo storage;
-  private Project project;
+  private final LocalDatastoreTestCase helper = LocalDatastoreTestCase.createHelper();
 
   @Override
-  protected void setUp() throws Exception {
-    super.setUp();
-    storage = new ObjectifyStorageIo();
-
-    project = new Project(PROJECT_NAME);
-    project.setProjectType(FAKE_PROJECT_TYPE);
-    project.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT1));
-    project.addTextFile(new TextFile(FILE_NAME2, FILE_CONTENT2));
-    project.addRawFile(new RawFile(RAW_FILE_NAME1, RAW_FILE_CONTENT1));
-    project.addRawFile(new RawFile(RAW_FILE_NAME2, RAW_FILE_CONTENT2));
+  protected ObjectifyStorageIo createStorageIo() {
+    return new ObjectifyStorageIo();
   }
 
-  private void createUserFiles(String userId, ObjectifyStorageIo storage)
-    throws UnsupportedEncodingException {
-    // remove files in case they were already created
-    storage.getUser(userId);  // ensure userId exists in the DB
-    storage.deleteUserFile(userId, FILE_NAME1);
-    storage.deleteUserFile(userId, FILE_NAME2);
-    storage.deleteUserFile(userId, RAW_FILE_NAME1);
-    storage.deleteUserFile(userId, RAW_FILE_NAME2);
-    storage.createRawUserFile(userId, FILE_NAME1,
-        FILE_CONTENT1.getBytes(StorageUtil.DEFAULT_CHARSET));
-    // note: the following 3 files should be stored in blobstore
-    storage.createRawUserFile(userId, FILE_NAME2,
-        FILE_CONTENT2.getBytes(StorageUtil.DEFAULT_CHARSET));
-    storage.createRawUserFile(userId, RAW_FILE_NAME1, RAW_FILE_CONTENT1);
-    storage.createRawUserFile(userId, RAW_FILE_NAME2, RAW_FILE_CONTENT2);
+  @Override
+  protected void setUp() throws Exception {
+    helper.setUpThread();
+    super.setUp();
   }
 
-  public void testGetUser() {
-    final String USER_ID = "500";
-    final String USER_EMAIL = "user500@test.com";
-    final String USER_EMAIL_NEW = "newuser500@test.com";
-
-    User user1 = storage.getUser(USER_ID, USER_EMAIL);
-    assertEquals(USER_ID, user1.getUserId());
-    assertEquals(USER_EMAIL, user1.getUserEmail());
-
-    User user2 = storage.getUser(USER_ID);
-    assertEquals(USER_ID, user2.getUserId());
-    assertEquals(USER_EMAIL, user2.getUserEmail());
-
-    User user3 = storage.getUser(USER_ID, USER_EMAIL_NEW);
-    assertEquals(USER_ID, user3.getUserId());
-    assertEquals(USER_EMAIL_NEW, user3.getUserEmail());
-
-    User user4 = storage.getUser(USER_ID);
-    assertEquals(USER_ID, user4.getUserId());
-    assertEquals(USER_EMAIL_NEW, user4.getUserEmail());
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    helper.tearDown();
   }
 
   public void testSetTosAccepted() {
@@ -122,25 +59,6 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertEquals(true, storage.getUser(USER_ID).getUserTosAccepted());
   }
 
-  public void testLoadSettingsNewUser() {
-    final String USER_ID = "200";
-    assertEquals("", storage.loadSettings(USER_ID));
-  }
-
-  public void testStoreLoadSettings() {
-    final String USER_ID = "300";
-    storage.getUser(USER_ID);
-    storage.storeSettings(USER_ID, SETTINGS);
-    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
-  }
-
-  public void testCreateProjectSuccessful() {
-    final String USER_ID = "400";
-    storage.getUser(USER_ID);
-    storage.createProject(USER_ID, project, SETTINGS);
-    assertEquals(1, storage.getProjects(USER_ID).size());
-  }
-
   public void testCreateProjectFailFirst() {
     final String USER_ID = "600";
     // fail on first job in createProject (2nd job overall)
@@ -173,228 +91,6 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     fail();
   }
 
-
-  public void testUploadBeforeAdd() throws BlocksTruncatedException {
-    final String USER_ID = "800";
-    storage.getUser(USER_ID);
-    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
-    try {
-      storage.uploadFile(projectId, FILE_NAME1, USER_ID, "does not matter",
-          StorageUtil.DEFAULT_CHARSET);
-      fail("Allowed upload before add");
-    } catch (IllegalStateException ignored) {
-      // File upload should be preceded by add
-    }
-    try {
-      storage.uploadRawFile(projectId, FILE_NAME1, USER_ID, true, "does not matter".getBytes());
-      fail("Allowed upload before add");
-    } catch (IllegalStateException ignored) {
-      // File upload should be preceded by add
-    }
-  }
-
-  public void testUploadUserFileBeforeAdd() {
-    final String USER_ID = "900";
-    storage.getUser(USER_ID);
-    try {
-      storage.uploadUserFile(USER_ID, FILE_NAME1, "does not matter",
-          StorageUtil.DEFAULT_CHARSET);
-      fail("Allowed upload before add");
-    } catch (IllegalStateException ignored) {
-      // File upload should be preceded by add
-    }
-    try {
-      storage.uploadRawUserFile(USER_ID, FILE_NAME2, "does not matter".getBytes());
-      fail("Allowed upload before add");
-    } catch (IllegalStateException ignored) {
-      // File upload should be preceded by add
-    }
-  }
-
-  public void testMuliRoleFile() {
-    final String USER_ID = "1000";
-    storage.getUser(USER_ID);
-    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
-    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
-    try {
-      storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME1);
-      fail("File role changed");
-    } catch (IllegalStateException ignored) {
-      // File role change is not allowed
-    }
-    try {
-      storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME1);
-      fail("File role changed");
-    } catch (IllegalStateException ignored) {
-      // File role change is not allowed
-    } catch (RuntimeException ignored) {
-      // File role change is not allowed
-    }
-  }
-
-  public void testUpdateModificationTime() throws BlocksTruncatedException {
-    final String USER_ID = "1100";
-    storage.getUser(USER_ID);
-    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
-    UserProject uproject = storage.getUserProject(USER_ID, projectId);
-    long creationDate = uproject.getDateCreated();
-    long modificationDate = uproject.getDateModified();
-    assertEquals(creationDate, modificationDate);
-    long oldModificationDate = modificationDate;
-
-    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
-    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertEquals(oldModificationDate, modificationDate);
-    oldModificationDate = modificationDate;
-
-    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME1);
-    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertEquals(oldModificationDate, modificationDate);
-    oldModificationDate = modificationDate;
-
-    storage.addSourceFilesToProject(USER_ID, projectId, true, FILE_NAME1);
-    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    // Note: Modification date will not change due to restrictions where we only
-    // update project modification date if it is more then a minute since the last
-    // update.
-    assertTrue(oldModificationDate <= modificationDate);
-    oldModificationDate = modificationDate;
-
-    storage.removeSourceFilesFromProject(USER_ID, projectId, true, FILE_NAME1);
-    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertTrue(oldModificationDate <= modificationDate);
-    oldModificationDate = modificationDate;
-
-    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
-    modificationDate = storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
-        StorageUtil.DEFAULT_CHARSET);
-    assertTrue(oldModificationDate <= modificationDate);
-    oldModificationDate = modificationDate;
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertEquals(oldModificationDate, modificationDate);
-    oldModificationDate = modificationDate;
-
-    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
-    modificationDate = storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID,
-        true, FILE_CONTENT_OUTPUT);
-    assertTrue(oldModificationDate <= modificationDate);
-    oldModificationDate = modificationDate;
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertEquals(oldModificationDate, modificationDate);
-    oldModificationDate = modificationDate;
-
-
-    modificationDate = storage.deleteFile(USER_ID, projectId, FILE_NAME1);
-    assertTrue(oldModificationDate <= modificationDate);
-    oldModificationDate = modificationDate;
-    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
-    assertEquals(oldModificationDate, modificationDate);
-    oldModificationDate = modificationDate;
-  }
-
-  public void testAddRemoveFile() throws BlocksTruncatedException {
-    final String USER_ID = "1200";
-    storage.getUser(USER_ID);
-    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
-    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
-    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
-    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
-    storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID, true, FILE_CONTENT_OUTPUT);
-
-    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
-    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
-        StorageUtil.DEFAULT_CHARSET));
-    assertTrue(
-        java.util.Arrays.equals(FILE_CONTENT_OUTPUT,
-                                storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT)));
-
-    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME1);
-    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
-
-    storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME_OUTPUT);
-    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
-    assertFalse(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
-  }
-
-  public void testAddRemoveUserFile() {
-    // Note that neither FILE_NAME1 nor FILE_NAME_OUTPUT should exist
-    // at the start of this test
-    final String USER_ID = "1100";
-    storage.getUser(USER_ID);
-    storage.addFilesToUser(USER_ID, FILE_NAME1);
-    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1,
-        StorageUtil.DEFAULT_CHARSET);
-    storage.addFilesToUser(USER_ID, FILE_NAME_OUTPUT);
-    storage.uploadRawUserFile(USER_ID, FILE_NAME_OUTPUT, FILE_CONTENT_OUTPUT);
-
-    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
-    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
-    assertEquals(FILE_CONTENT1, storage.downloadUserFile(USER_ID, FILE_NAME1,
-        StorageUtil.DEFAULT_CHARSET));
-    assertEquals(new String(FILE_CONTENT_OUTPUT),
-        new String(storage.downloadRawUserFile(USER_ID, FILE_NAME_OUTPUT)));
-
-    storage.deleteUserFile(USER_ID, FILE_NAME1);
-    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
-    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
-
-    storage.deleteUserFile(USER_ID, FILE_NAME_OUTPUT);
-    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
-    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
-  }
-
-  public void testUnsupportedEncoding() throws BlocksTruncatedException {
-    final String USER_ID = "1100";
-    storage.getUser(USER_ID);
-    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
-    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
-    try {
-      storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, "No such encoding");
-      fail("Unsupported encoding accepted");
-    } catch (RuntimeException e) {
-      // This encoding is not supported
-      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
-    }
-    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
-    try {
-      storage.downloadFile(USER_ID, projectId, FILE_NAME1, "No such encoding");
-      fail("Unsupported encoding accepted");
-    } catch (RuntimeException e) {
-      // This encoding is not supported
-      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
-    }
-  }
-
-  public void testUnsupportedEncodingUserFIle() {
-    // Note that neither FILE_NAME1 nor FILE_NAME_OUTPUT should exist
-    // at the start of this test
-    final String USER_ID = "1100";
-    storage.getUser(USER_ID);
-    storage.addFilesToUser(USER_ID, FILE_NAME1);
-    try {
-      storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1, "No such encoding");
-      fail("Unsupported encoding accepted");
-    } catch (RuntimeException e) {
-      // This encoding is not supported
-      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
-    }
-    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1,
-        StorageUtil.DEFAULT_CHARSET);
-    try {
-      storage.downloadUserFile(USER_ID, FILE_NAME1, "No such encoding");
-      fail("Unsupported encoding accepted");
-    } catch (RuntimeException e) {
-      // This encoding is not supported
-      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
-    }
-  }
-
   public void testBlobFiles() throws BlocksTruncatedException {
     final String USER_ID = "1300";
     storage.getUser(USER_ID);
@@ -431,6 +127,27 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // TODO(sharon): should test large blob files (e.g., >2MB (chunk size), >4MB (row size));
   }
 
+  public void testBlobMigrationSkipsFilesNotInBlobstore() throws BlocksTruncatedException {
+    final String USER_ID = "1305";
+    storage.getUser(USER_ID);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, ASSET_FILE_NAME1);
+    storage.uploadRawFile(projectId, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCK_FILE_NAME);
+    storage.uploadRawFile(projectId, BLOCK_FILE_NAME, USER_ID, true, BLOCK_FILE_CONTENT);
+
+    assertTrue(storage.getBlobFileNames(projectId).isEmpty());
+    assertEquals(-1, storage.migrateBlobFile(projectId, ASSET_FILE_NAME1, false));
+    assertEquals(-1, storage.migrateBlobFile(projectId, BLOCK_FILE_NAME, false));
+    assertEquals(-1, storage.migrateBlobFile(projectId, "src/missing.bky", false));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId, BLOCK_FILE_NAME)));
+  }
+
   public void testOldBlockFilesInDatastoreStillWork() throws BlocksTruncatedException {
     // Create new storage object that forces storage in the datastore
     ObjectifyStorageIo oldStyleStorage = new ObjectifyStorageIo() {
@@ -477,24 +194,6 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertNull(result);
   }
 
-  public void testWrongUserThrowsException() throws Exception {
-    final String USER_ID = "1600";
-    final String USER_ID2 = "1700";
-    createUserFiles(USER_ID, storage);
-
-    long projectId = storage.createProject(USER_ID, project, SETTINGS);
-    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
-        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
-    try {
-      storage.downloadRawFile(USER_ID2, projectId, RAW_FILE_NAME1);
-      fail();
-    } catch (Exception e) {
-      assertTrue(e instanceof UnauthorizedAccessException
-                 || e.getCause() instanceof UnauthorizedAccessException);
-    }
-  }
-
-
   /*
    * Fail on the Nth call to runJobWithRetries, where N is the value of the
    * failingRun argument to the constructor. Also allows counting 
@@ -531,16 +230,4 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
       return numDeletedBlobs;
     }
   }
-
-  private long createProject(String userId, String name, String type, String fileName) {
-    return createProject(userId, name, type, fileName, storage);
-  }
-
-  private long createProject(String userId, String name, String type, String fileName,
-                             ObjectifyStorageIo storageIo) {
-    Project project = new Project(name);
-    project.setProjectType(type);
-    project.addTextFile(new TextFile(fileName, ""));
-    return storageIo.createProject(userId, project, SETTINGS);
-  }
 }
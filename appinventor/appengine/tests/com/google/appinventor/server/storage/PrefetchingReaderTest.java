@@ -0,0 +1,132 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests PrefetchingReader class.
+ *
+ */
+public class PrefetchingReaderTest extends TestCase {
+  private static List<String> names(int count) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      names.add("file" + i);
+    }
+    return names;
+  }
+
+  public void testItemsAreReturnedInOrder() throws Exception {
+    List<String> names = names(20);
+    PrefetchingReader<String> reader = new PrefetchingReader<String>(names,
+        new PrefetchingReader.Loader<String>() {
+          @Override
+          public byte[] load(String name) throws IOException {
+            try {
+              // Later items finish first.
+              Thread.sleep(20 - Integer.parseInt(name.substring(4)));
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            }
+            return name.getBytes("UTF-8");
+          }
+        }, 4, Executors.defaultThreadFactory());
+    try {
+      for (String name : names) {
+        assertTrue(reader.hasNext());
+        assertEquals(name, new String(reader.next(), "UTF-8"));
+      }
+      assertFalse(reader.hasNext());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testReadsAreConcurrentAndBounded() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch threeStarted = new CountDownLatch(3);
+    PrefetchingReader<String> reader = new PrefetchingReader<String>(names(12),
+        new PrefetchingReader.Loader<String>() {
+          @Override
+          public byte[] load(String name) throws IOException {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+              maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            threeStarted.countDown();
+            try {
+              // The first reads only finish once three of them run at the same time.
+              threeStarted.await(5, TimeUnit.SECONDS);
+              Thread.sleep(5);
+            } catch (InterruptedException e) {
+              throw new IOException(e);
+            } finally {
+              running.decrementAndGet();
+            }
+            return new byte[0];
+          }
+        }, 3, Executors.defaultThreadFactory());
+    try {
+      while (reader.hasNext()) {
+        reader.next();
+      }
+    } finally {
+      reader.close();
+    }
+    assertEquals(3, maxRunning.get());
+  }
+
+  public void testFailuresAreReportedForTheirItem() throws Exception {
+    PrefetchingReader<String> reader = new PrefetchingReader<String>(names(3),
+        new PrefetchingReader.Loader<String>() {
+          @Override
+          public byte[] load(String name) throws IOException {
+            if (name.equals("file1")) {
+              throw new FileNotFoundException(name);
+            }
+            return new byte[0];
+          }
+        }, 2, Executors.defaultThreadFactory());
+    try {
+      reader.next();
+      try {
+        reader.next();
+        fail();
+      } catch (FileNotFoundException e) {
+        assertEquals("file1", e.getMessage());
+      }
+      reader.next();
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testNoThreadsWithoutParallelism() throws Exception {
+    final Thread caller = Thread.currentThread();
+    PrefetchingReader<String> reader = new PrefetchingReader<String>(names(2),
+        new PrefetchingReader.Loader<String>() {
+          @Override
+          public byte[] load(String name) throws IOException {
+            assertSame(caller, Thread.currentThread());
+            return new byte[0];
+          }
+        }, 1, Executors.defaultThreadFactory());
+    reader.next();
+    reader.next();
+    reader.close();
+  }
+}
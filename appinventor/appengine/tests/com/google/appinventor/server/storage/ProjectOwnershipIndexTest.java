@@ -0,0 +1,85 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appinventor.server.LocalDatastoreTestCase;
+
+import java.util.HashMap;
+
+/**
+ * Tests ProjectOwnershipIndex class.
+ *
+ */
+public class ProjectOwnershipIndexTest extends LocalDatastoreTestCase {
+  private static final String USER_ID = "1000";
+  private static final String TYPE = "YoungAndroid";
+
+  // The projects in the "datastore"
+  private final HashMap<Long, String> projects = new HashMap<Long, String>();
+  private int loads;
+  private ProjectOwnershipIndex index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    projects.put(1L, TYPE);
+    index = new ProjectOwnershipIndex(MemcacheServiceFactory.getMemcacheService(),
+        new ProjectOwnershipIndex.Loader() {
+          @Override
+          public HashMap<Long, String> load(String userId) {
+            loads++;
+            return new HashMap<Long, String>(projects);
+          }
+        });
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    ProjectOwnershipIndex.endRequest();
+    super.tearDown();
+  }
+
+  public void testRequestScope() throws Exception {
+    ProjectOwnershipIndex.beginRequest();
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    // Loaded during this request, so a project that isn't there doesn't exist.
+    assertNull(index.getProjectType(USER_ID, 2));
+    assertEquals(1, loads);
+  }
+
+  public void testMemcache() throws Exception {
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    assertEquals(1, loads);
+  }
+
+  public void testMissingProjectIsCheckedAgainstTheDatastore() throws Exception {
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    // Created behind the back of the index, as if the invalidation was lost.
+    projects.put(2L, TYPE);
+    assertEquals(TYPE, index.getProjectType(USER_ID, 2));
+    assertEquals(2, loads);
+  }
+
+  public void testAddAndRemoveProject() throws Exception {
+    ProjectOwnershipIndex.beginRequest();
+    assertEquals(TYPE, index.getProjectType(USER_ID, 1));
+    projects.put(2L, TYPE);
+    index.addProject(USER_ID, 2, TYPE);
+    assertEquals(TYPE, index.getProjectType(USER_ID, 2));
+    projects.remove(1L);
+    index.removeProject(USER_ID, 1);
+    assertNull(index.getProjectType(USER_ID, 1));
+    assertEquals(1, loads);
+
+    // Other requests don't see a stale index either.
+    ProjectOwnershipIndex.endRequest();
+    assertEquals(TYPE, index.getProjectType(USER_ID, 2));
+    assertNull(index.getProjectType(USER_ID, 1));
+  }
+}
@@ -0,0 +1,134 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares the latency of opening, saving and exporting a project with
+ * {@link ObjectifyStorageIo} (on the local datastore of the App Engine test
+ * environment) and with {@link LocalFileStorageIo}.
+ *
+ * <p>This isn't a test, run it with
+ * {@code java com.google.appinventor.server.storage.StorageIoBenchmark [iterations]}
+ * and the test class path.
+ *
+ */
+public class StorageIoBenchmark {
+  private static final String USER_ID = "benchmark";
+  private static final int SCREENS = 5;
+  private static final int ASSETS = 10;
+  private static final int WARMUP_ITERATIONS = 20;
+
+  private final StorageIo storage;
+  private final long projectId;
+  private final Project project = new Project("Benchmark");
+  // Saves alternate between two versions of the blocks, so every save changes them
+  private final Map<String, String> blocks = new LinkedHashMap<String, String>();
+  private final Map<String, String> otherBlocks = new LinkedHashMap<String, String>();
+  private int saves;
+
+  StorageIoBenchmark(StorageIo storage) {
+    this.storage = storage;
+    project.setProjectType("YoungAndroid");
+    for (int i = 1; i <= SCREENS; i++) {
+      String screen = "src/com/example/Benchmark/Screen" + i;
+      project.addTextFile(new TextFile(screen + ".scm", repeat("{\"$Name\":\"Button\"}", 200)));
+      project.addTextFile(new TextFile(screen + ".bky", repeat("<block type=\"text\"/>", 2000)));
+      blocks.put(screen + ".bky", repeat("<block type=\"math\"/>", 2000));
+      otherBlocks.put(screen + ".bky", repeat("<block type=\"logic\"/>", 2000));
+    }
+    for (int i = 1; i <= ASSETS; i++) {
+      byte[] asset = new byte[50 * 1024];
+      asset[0] = (byte) i;
+      project.addRawFile(new RawFile("assets/image" + i + ".png", asset));
+    }
+    storage.getUser(USER_ID);
+    projectId = storage.createProject(USER_ID, project, "");
+  }
+
+  void open() {
+    for (String fileName : storage.getProjectSourceFiles(USER_ID, projectId)) {
+      if (!fileName.startsWith("assets/")) {
+        storage.downloadFile(USER_ID, projectId, fileName, StorageUtil.DEFAULT_CHARSET);
+      }
+    }
+  }
+
+  void save() {
+    storage.uploadFilesForce(projectId, USER_ID, saves++ % 2 == 0 ? blocks : otherBlocks,
+        StorageUtil.DEFAULT_CHARSET);
+  }
+
+  void export() throws Exception {
+    storage.exportProjectSourceZip(USER_ID, projectId, true, false, null, false);
+  }
+
+  /*
+   * Runs the operations and prints their mean latency in milliseconds.
+   */
+  void run(String name, int iterations) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      open();
+      save();
+      export();
+    }
+    long open = 0;
+    long save = 0;
+    long export = 0;
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      open();
+      long opened = System.nanoTime();
+      save();
+      long saved = System.nanoTime();
+      export();
+      long exported = System.nanoTime();
+      open += opened - start;
+      save += saved - opened;
+      export += exported - saved;
+    }
+    System.out.println(String.format("%-10s open %8.3f ms  save %8.3f ms  export %8.3f ms",
+        name, open / 1e6 / iterations, save / 1e6 / iterations, export / 1e6 / iterations));
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder sb = new StringBuilder(s.length() * count);
+    for (int i = 0; i < count; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+    LocalDatastoreTestCase helper = LocalDatastoreTestCase.createHelper();
+    helper.setUpThread();
+    try {
+      new StorageIoBenchmark(new ObjectifyStorageIo()).run("objectify", iterations);
+    } finally {
+      helper.tearDown();
+    }
+
+    File root = Files.createTempDirectory("storagebenchmark").toFile();
+    LocalFileStorageIo localStorage = new LocalFileStorageIo(root);
+    try {
+      new StorageIoBenchmark(localStorage).run("local", iterations);
+    } finally {
+      localStorage.close();
+    }
+  }
+}
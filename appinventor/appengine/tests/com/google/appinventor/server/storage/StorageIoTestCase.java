@@ -0,0 +1,402 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Abstract base class for the tests of a {@link StorageIo}. Its cases are
+ * the contract of the interface, which every implementation must pass;
+ * subclasses create the implementation and add the cases that depend on
+ * how it stores things.
+ *
+ * @param <S> the type of the StorageIo under test
+ */
+public abstract class StorageIoTestCase<S extends StorageIo> extends TestCase {
+
+  static final String SETTINGS = "{settings: \"none\"}";
+  static final String FAKE_PROJECT_TYPE = "FakeProjectType";
+  static final String PROJECT_NAME = "Project1";
+  static final String FILE_NAME1 = "File1.src";
+  static final String FILE_NAME2 = "src/File2.blk";
+  static final String RAW_FILE_NAME1 = "assets/File1.jpg";
+  static final String FILE_NAME_OUTPUT = "File.apk";
+  static final String FILE_CONTENT1 = "The quick onyx goblin jumps over the lazy dwarf";
+  static final String FILE_CONTENT2 = "This Pangram contains four a's, one b, two c's, "
+      + "one d, thirty e's, six f's, five g's, seven h's, eleven i's, one j, one k, two l's, "
+      + "two m's, eighteen n's, fifteen o's, two p's, one q, five r's, twenty-seven s's, "
+      + "eighteen t's, two u's, seven v's, eight w's, two x's, three y's, & one z.";
+  static final byte[] RAW_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  static final byte[] FILE_CONTENT_OUTPUT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  static final String FORM_QUALIFIED_NAME = "com.yourdomain.Form1";
+
+  protected S storage;
+  // Two text files and a raw file
+  protected Project project;
+
+  /**
+   * Creates the StorageIo under test, with nothing stored.
+   */
+  protected abstract S createStorageIo() throws Exception;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    storage = createStorageIo();
+
+    project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FILE_NAME1, FILE_CONTENT1));
+    project.addTextFile(new TextFile(FILE_NAME2, FILE_CONTENT2));
+    project.addRawFile(new RawFile(RAW_FILE_NAME1, RAW_FILE_CONTENT1));
+  }
+
+  /**
+   * Creates the user and a copy of {@link #project}.
+   */
+  long createProject(String userId) {
+    storage.getUser(userId);
+    return storage.createProject(userId, project, SETTINGS);
+  }
+
+  /**
+   * Creates a project with one empty text file.
+   */
+  long createProject(String userId, String name, String type, String fileName) {
+    Project project = new Project(name);
+    project.setProjectType(type);
+    project.addTextFile(new TextFile(fileName, ""));
+    return storage.createProject(userId, project, SETTINGS);
+  }
+
+  public void testGetUser() {
+    final String USER_ID = "500";
+    final String USER_EMAIL = "user500@test.com";
+    final String USER_EMAIL_NEW = "newuser500@test.com";
+
+    User user1 = storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(USER_ID, user1.getUserId());
+    assertEquals(USER_EMAIL, user1.getUserEmail());
+
+    User user2 = storage.getUser(USER_ID);
+    assertEquals(USER_ID, user2.getUserId());
+    assertEquals(USER_EMAIL, user2.getUserEmail());
+
+    User user3 = storage.getUser(USER_ID, USER_EMAIL_NEW);
+    assertEquals(USER_ID, user3.getUserId());
+    assertEquals(USER_EMAIL_NEW, user3.getUserEmail());
+
+    User user4 = storage.getUser(USER_ID);
+    assertEquals(USER_ID, user4.getUserId());
+    assertEquals(USER_EMAIL_NEW, user4.getUserEmail());
+  }
+
+  public void testLoadSettingsNewUser() {
+    final String USER_ID = "200";
+    assertEquals("", storage.loadSettings(USER_ID));
+  }
+
+  public void testStoreLoadSettings() {
+    final String USER_ID = "300";
+    storage.getUser(USER_ID);
+    storage.storeSettings(USER_ID, SETTINGS);
+    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
+  }
+
+  public void testCreateProject() {
+    final String USER_ID = "400";
+    long projectId = createProject(USER_ID);
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    assertEquals(3, storage.getProjectSourceFiles(USER_ID, projectId).size());
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    assertTrue(createProject(USER_ID) != projectId);
+  }
+
+  public void testUploadBeforeAdd() throws BlocksTruncatedException {
+    final String USER_ID = "800";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    try {
+      storage.uploadFile(projectId, FILE_NAME1, USER_ID, "does not matter",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+    try {
+      storage.uploadRawFile(projectId, FILE_NAME1, USER_ID, true, "does not matter".getBytes());
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+  }
+
+  public void testUploadUserFileBeforeAdd() {
+    final String USER_ID = "900";
+    storage.getUser(USER_ID);
+    try {
+      storage.uploadUserFile(USER_ID, FILE_NAME1, "does not matter",
+          StorageUtil.DEFAULT_CHARSET);
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+    try {
+      storage.uploadRawUserFile(USER_ID, FILE_NAME2, "does not matter".getBytes());
+      fail("Allowed upload before add");
+    } catch (IllegalStateException ignored) {
+      // File upload should be preceded by add
+    }
+  }
+
+  public void testMuliRoleFile() {
+    final String USER_ID = "1000";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    try {
+      storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME1);
+      fail("File role changed");
+    } catch (IllegalStateException ignored) {
+      // File role change is not allowed
+    }
+    try {
+      storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME1);
+      fail("File role changed");
+    } catch (RuntimeException ignored) {
+      // File role change is not allowed
+    }
+  }
+
+  public void testUpdateModificationTime() throws BlocksTruncatedException {
+    final String USER_ID = "1100";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    UserProject uproject = storage.getUserProject(USER_ID, projectId);
+    long creationDate = uproject.getDateCreated();
+    long modificationDate = uproject.getDateModified();
+    assertEquals(creationDate, modificationDate);
+    long oldModificationDate = modificationDate;
+
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(oldModificationDate, modificationDate);
+    oldModificationDate = modificationDate;
+
+    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME1);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(oldModificationDate, modificationDate);
+    oldModificationDate = modificationDate;
+
+    storage.addSourceFilesToProject(USER_ID, projectId, true, FILE_NAME1);
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    // Note: Modification date will not change due to restrictions where we only
+    // update project modification date if it is more then a minute since the last
+    // update.
+    assertTrue(oldModificationDate <= modificationDate);
+    oldModificationDate = modificationDate;
+
+    storage.removeSourceFilesFromProject(USER_ID, projectId, true, FILE_NAME1);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertTrue(oldModificationDate <= modificationDate);
+    oldModificationDate = modificationDate;
+
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    modificationDate = storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    assertTrue(oldModificationDate <= modificationDate);
+    oldModificationDate = modificationDate;
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(oldModificationDate, modificationDate);
+    oldModificationDate = modificationDate;
+
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    modificationDate = storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID,
+        true, FILE_CONTENT_OUTPUT);
+    assertTrue(oldModificationDate <= modificationDate);
+    oldModificationDate = modificationDate;
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(oldModificationDate, modificationDate);
+    oldModificationDate = modificationDate;
+
+    modificationDate = storage.deleteFile(USER_ID, projectId, FILE_NAME1);
+    assertTrue(oldModificationDate <= modificationDate);
+    oldModificationDate = modificationDate;
+    modificationDate = storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(oldModificationDate, modificationDate);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+  }
+
+  public void testUploadSeveralFiles() throws BlocksTruncatedException {
+    final String USER_ID = "1150";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, FILE_NAME2);
+    long oldModificationDate = storage.getProjectDateModified(USER_ID, projectId);
+
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME1, FILE_CONTENT1);
+    contents.put(FILE_NAME2, FILE_CONTENT2);
+    long modificationDate = storage.uploadFilesForce(projectId, USER_ID, contents,
+        StorageUtil.DEFAULT_CHARSET);
+    assertTrue(oldModificationDate <= modificationDate);
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testAddRemoveFile() throws BlocksTruncatedException {
+    final String USER_ID = "1200";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    storage.addOutputFilesToProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    storage.uploadRawFile(projectId, FILE_NAME_OUTPUT, USER_ID, true, FILE_CONTENT_OUTPUT);
+
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawFile(USER_ID, projectId, FILE_NAME_OUTPUT)));
+
+    storage.removeSourceFilesFromProject(USER_ID, projectId, false, FILE_NAME1);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    assertTrue(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
+
+    storage.removeOutputFilesFromProject(USER_ID, projectId, FILE_NAME_OUTPUT);
+    assertFalse(storage.getProjectSourceFiles(USER_ID, projectId).contains(FILE_NAME1));
+    assertFalse(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
+  }
+
+  public void testAddRemoveUserFile() {
+    final String USER_ID = "1100";
+    storage.getUser(USER_ID);
+    storage.addFilesToUser(USER_ID, FILE_NAME1);
+    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    storage.addFilesToUser(USER_ID, FILE_NAME_OUTPUT);
+    storage.uploadRawUserFile(USER_ID, FILE_NAME_OUTPUT, FILE_CONTENT_OUTPUT);
+
+    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
+    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
+    assertEquals(FILE_CONTENT1, storage.downloadUserFile(USER_ID, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertTrue(Arrays.equals(FILE_CONTENT_OUTPUT,
+        storage.downloadRawUserFile(USER_ID, FILE_NAME_OUTPUT)));
+
+    storage.deleteUserFile(USER_ID, FILE_NAME1);
+    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
+    assertTrue(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
+
+    storage.deleteUserFile(USER_ID, FILE_NAME_OUTPUT);
+    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME1));
+    assertFalse(storage.getUserFiles(USER_ID).contains(FILE_NAME_OUTPUT));
+  }
+
+  public void testUnsupportedEncoding() throws BlocksTruncatedException {
+    final String USER_ID = "1100";
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1);
+    try {
+      storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, "No such encoding");
+      fail("Unsupported encoding accepted");
+    } catch (RuntimeException e) {
+      // This encoding is not supported
+      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
+    }
+    storage.uploadFile(projectId, FILE_NAME1, USER_ID, FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    try {
+      storage.downloadFile(USER_ID, projectId, FILE_NAME1, "No such encoding");
+      fail("Unsupported encoding accepted");
+    } catch (RuntimeException e) {
+      // This encoding is not supported
+      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
+    }
+  }
+
+  public void testUnsupportedEncodingUserFile() {
+    final String USER_ID = "1100";
+    storage.getUser(USER_ID);
+    storage.addFilesToUser(USER_ID, FILE_NAME1);
+    try {
+      storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1, "No such encoding");
+      fail("Unsupported encoding accepted");
+    } catch (RuntimeException e) {
+      // This encoding is not supported
+      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
+    }
+    storage.uploadUserFile(USER_ID, FILE_NAME1, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    try {
+      storage.downloadUserFile(USER_ID, FILE_NAME1, "No such encoding");
+      fail("Unsupported encoding accepted");
+    } catch (RuntimeException e) {
+      // This encoding is not supported
+      assertTrue(e.getCause() instanceof UnsupportedEncodingException);
+    }
+  }
+
+  public void testGetUserProjects() {
+    final String USER_ID = "1550";
+    storage.getUser(USER_ID);
+    long projectId1 = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    long projectId2 = createProject(USER_ID, "Project2", FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    List<UserProject> projects = storage.getUserProjects(USER_ID,
+        Arrays.asList(projectId2, projectId1 + projectId2 + 10, projectId1));
+    assertEquals(2, projects.size());
+    assertEquals("Project2", projects.get(0).getProjectName());
+    assertEquals(PROJECT_NAME, projects.get(1).getProjectName());
+
+    // The summaries of the projects must follow their changes
+    storage.setProjectGalleryId(USER_ID, projectId1, 42);
+    assertEquals(42, storage.getUserProject(USER_ID, projectId1).getGalleryId());
+    storage.deleteProject(USER_ID, projectId1);
+    assertNull(storage.getUserProject(USER_ID, projectId1));
+    assertEquals(Arrays.asList(projectId2), storage.getProjects(USER_ID));
+  }
+
+  public void testWrongUserThrowsException() throws Exception {
+    final String USER_ID = "1600";
+    final String USER_ID2 = "1700";
+    long projectId = createProject(USER_ID);
+    assertTrue(Arrays.equals(RAW_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId, RAW_FILE_NAME1)));
+    try {
+      storage.downloadRawFile(USER_ID2, projectId, RAW_FILE_NAME1);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.shared.rpc.project;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests FileDelta class.
+ *
+ */
+public class FileDeltaTest extends TestCase {
+  private static final String BASE = "<xml><block type=\"a\"/><block type=\"b\"/></xml>";
+
+  private static FileDelta delta(String base, String content) throws Exception {
+    return FileDelta.create(FileDelta.checksum(base), base, content);
+  }
+
+  public void testChangeInTheMiddle() throws Exception {
+    String content = "<xml><block type=\"a\"/><block type=\"c\"/><block type=\"b\"/></xml>";
+    FileDelta delta = delta(BASE, content);
+    assertEquals(content, delta.apply(BASE));
+    assertEquals(content.length() - BASE.length(), delta.getReplacementLength());
+    assertEquals(content.length(), delta.getContentLength());
+    assertEquals(FileDelta.checksum(content), delta.getChecksum());
+  }
+
+  public void testEdgeCases() throws Exception {
+    String[] contents = {BASE, "", "x" + BASE, BASE + "x", BASE.substring(5),
+        BASE.substring(0, 5), "aaaa"};
+    for (String content : contents) {
+      assertEquals(content, delta(BASE, content).apply(BASE));
+      assertEquals(BASE, delta(content, BASE).apply(content));
+    }
+    // Repeated characters must not be counted in both the prefix and the suffix.
+    assertEquals("aa", delta("aaaa", "aa").apply("aaaa"));
+    assertEquals("aaaa", delta("aa", "aaaa").apply("aa"));
+  }
+
+  public void testOtherBaseIsRefused() throws Exception {
+    FileDelta delta = delta(BASE, BASE + "x");
+    try {
+      delta.apply(BASE + "y");
+      fail();
+    } catch (ChecksumedFileException e) {
+      // expected
+    }
+  }
+
+  public void testChecksum() throws Exception {
+    assertEquals("d41d8cd98f00b204e9800998ecf8427e", FileDelta.checksum(""));
+    ChecksumedLoadFile file = new ChecksumedLoadFile();
+    file.setContent(BASE);
+    assertEquals(BASE, file.getContent());
+  }
+}
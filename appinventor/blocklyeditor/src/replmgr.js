@@ -599,6 +599,9 @@ Blockly.ReplMgr.processRetvals = function(responses) {
         case "popScreen":
             window.parent.BlocklyPanel_popScreen();
             break;
+        case "stats":
+            console.log("Companion " + r.source + ": " + r.value);
+            break;
         case "error":
             console.log("processRetVals: Error value = " + r.value);
             runtimeerr(escapeHTML(r.value) + Blockly.Msg.REPL_NO_ERROR_FIVE_SECONDS);
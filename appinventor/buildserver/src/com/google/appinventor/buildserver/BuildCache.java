@@ -0,0 +1,222 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content addressed cache of build outputs, kept on disk between builds.
+ *
+ * <p>Entries are files or directories stored under {@code <cache dir>/<kind>/<key>}, where the
+ * key is a hash of everything that went into producing the entry (see {@link #newHasher}).
+ * Entries are never modified once stored, so a hit can be used without further checks. When the
+ * total size goes over the limit, the least recently used entries are deleted.
+ *
+ * <p>This extends the pre-dexed library cache of {@link DexExecTask} to the user's own code.
+ */
+final class BuildCache {
+  /** Compiled classes of one screen. */
+  static final String SCREEN_CLASSES = "classes";
+  /** Compiled classes of the YAIL runtime. */
+  static final String RUNTIME_CLASSES = "runtime";
+  /** Dexed classes of one screen or of the YAIL runtime. */
+  static final String DEX = "dex";
+  /** Signed and aligned APK of a whole project. */
+  static final String APK = "apk";
+
+  static final String[] KINDS = { SCREEN_CLASSES, RUNTIME_CLASSES, DEX, APK };
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  // Guarded by this.
+  private long totalBytes;
+
+  private final ConcurrentMap<String, Counters> counters =
+      new ConcurrentHashMap<String, Counters>();
+  private final AtomicInteger evictionCount = new AtomicInteger(0);
+
+  /**
+   * Creates a BuildCache, picking up the entries left by a previous run of the build server.
+   *
+   * @param cacheDir the directory in which entries are stored
+   * @param maxBytes the maximum total size of the entries
+   */
+  BuildCache(File cacheDir, long maxBytes) {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    cacheDir.mkdirs();
+    totalBytes = FileUtils.sizeOfDirectory(cacheDir);
+    LOG.info("Build cache " + cacheDir + " contains " + totalBytes + " bytes");
+  }
+
+  /**
+   * Returns a hasher for computing cache keys. Callers must add everything that affects the
+   * content of the entry.
+   */
+  static Hasher newHasher() {
+    return Hashing.sha1().newHasher();
+  }
+
+  /**
+   * Adds the content of a file to a hasher, along with its name.
+   */
+  static void hashFile(Hasher hasher, String name, File file) throws IOException {
+    hasher.putString(name, Charsets.UTF_8);
+    hasher.putBytes(Files.toByteArray(file));
+  }
+
+  /**
+   * Returns the cached entry, or {@code null} if there is none.
+   */
+  File get(String kind, String key) {
+    File entry = getEntryFile(kind, key);
+    if (entry.exists()) {
+      // Record the use for LRU eviction.
+      entry.setLastModified(System.currentTimeMillis());
+      getCounters(kind).hits.incrementAndGet();
+      return entry;
+    }
+    getCounters(kind).misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Stores a copy of a file or directory as the cached entry. If the entry already exists, it is
+   * left alone. Errors are logged and otherwise ignored, since the cache is only an optimization.
+   */
+  void put(String kind, String key, File source) {
+    File entry = getEntryFile(kind, key);
+    if (entry.exists()) {
+      return;
+    }
+    File kindDir = entry.getParentFile();
+    kindDir.mkdirs();
+    // Copy to a temporary name first, so that other builds never see a partial entry.
+    File tmp = new File(kindDir, key + ".tmp-" + Thread.currentThread().getId());
+    try {
+      if (source.isDirectory()) {
+        FileUtils.copyDirectory(source, tmp);
+      } else {
+        Files.copy(source, tmp);
+      }
+      long size = FileUtils.sizeOf(tmp);
+      if (!tmp.renameTo(entry)) {
+        // Another build stored the same entry first.
+        FileUtils.deleteQuietly(tmp);
+        return;
+      }
+      synchronized (this) {
+        totalBytes += size;
+      }
+      getCounters(kind).stores.incrementAndGet();
+      evictIfNeeded();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to store " + kind + " " + key + " in the build cache", e);
+      FileUtils.deleteQuietly(tmp);
+    }
+  }
+
+  private synchronized void evictIfNeeded() {
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+    List<File> entries = new ArrayList<File>();
+    File[] kindDirs = cacheDir.listFiles();
+    if (kindDirs != null) {
+      for (File kindDir : kindDirs) {
+        File[] kindEntries = kindDir.listFiles();
+        if (kindEntries != null) {
+          entries.addAll(Arrays.asList(kindEntries));
+        }
+      }
+    }
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long aTime = a.lastModified();
+        long bTime = b.lastModified();
+        return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+      }
+    });
+    for (File entry : entries) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      if (entry.getName().contains(".tmp-")) {
+        continue;
+      }
+      long size = FileUtils.sizeOf(entry);
+      FileUtils.deleteQuietly(entry);
+      totalBytes -= size;
+      evictionCount.incrementAndGet();
+    }
+  }
+
+  private File getEntryFile(String kind, String key) {
+    return new File(new File(cacheDir, kind), key);
+  }
+
+  private Counters getCounters(String kind) {
+    Counters kindCounters = counters.get(kind);
+    if (kindCounters == null) {
+      counters.putIfAbsent(kind, new Counters());
+      kindCounters = counters.get(kind);
+    }
+    return kindCounters;
+  }
+
+  int getHitCount(String kind) {
+    return getCounters(kind).hits.get();
+  }
+
+  int getMissCount(String kind) {
+    return getCounters(kind).misses.get();
+  }
+
+  int getStoreCount(String kind) {
+    return getCounters(kind).stores.get();
+  }
+
+  int getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  private static class Counters {
+    final AtomicInteger hits = new AtomicInteger(0);
+    final AtomicInteger misses = new AtomicInteger(0);
+    final AtomicInteger stores = new AtomicInteger(0);
+  }
+}
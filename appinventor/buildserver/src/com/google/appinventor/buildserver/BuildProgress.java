@@ -0,0 +1,149 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The progress of a single build.
+ *
+ * <p>Builds started by the build server are registered under a build ID chosen by the caller,
+ * so that the progress of each build can be polled separately. Finished builds are kept for
+ * {@link #RETENTION_MILLIS} so that the last poll sees 100%.
+ */
+final class BuildProgress {
+  /**
+   * The stages of a build, in the order in which they run.
+   */
+  enum Stage { QUEUED, EXTRACT, YAIL, PREPARE, KAWA, DX, AAPT, APKBUILDER, SIGN, ZIPALIGN, DONE }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildProgress.class.getName());
+
+  // How long the progress of a finished build is kept.
+  static final long RETENTION_MILLIS = 10 * 60 * 1000;
+
+  private static final ConcurrentMap<String, BuildProgress> builds =
+      new ConcurrentHashMap<String, BuildProgress>();
+
+  private final String buildId;
+  private int progress = 0;
+  private Stage stage = Stage.QUEUED;
+  private final Map<Stage, Long> stageStartTimes = new LinkedHashMap<Stage, Long>();
+  private Boolean succeeded;
+  private long finishTime;
+
+  /**
+   * Creates a BuildProgress that is not registered, for builds that nobody polls, like
+   * command line builds.
+   */
+  BuildProgress() {
+    this(null);
+  }
+
+  private BuildProgress(String buildId) {
+    this.buildId = buildId;
+    stageStartTimes.put(Stage.QUEUED, System.currentTimeMillis());
+  }
+
+  /**
+   * Registers a new build. A previous build with the same ID is replaced.
+   */
+  static BuildProgress register(String buildId) {
+    removeExpired();
+    BuildProgress buildProgress = new BuildProgress(buildId);
+    builds.put(buildId, buildProgress);
+    return buildProgress;
+  }
+
+  /**
+   * Returns the progress of the build with the given ID, or {@code null} if there is no such
+   * build or it finished too long ago.
+   */
+  static BuildProgress get(String buildId) {
+    return buildId == null ? null : builds.get(buildId);
+  }
+
+  static int getTrackedBuildCount() {
+    return builds.size();
+  }
+
+  private static void removeExpired() {
+    long now = System.currentTimeMillis();
+    for (Iterator<BuildProgress> it = builds.values().iterator(); it.hasNext();) {
+      if (it.next().isExpired(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  String getBuildId() {
+    return buildId;
+  }
+
+  /**
+   * Records that the build entered the given stage.
+   */
+  synchronized void startStage(Stage stage) {
+    this.stage = stage;
+    stageStartTimes.put(stage, System.currentTimeMillis());
+  }
+
+  synchronized void setProgress(int progress) {
+    this.progress = progress;
+    LOG.info("Build " + buildId + ": the current progress is " + progress + "%");
+  }
+
+  synchronized int getProgress() {
+    return progress;
+  }
+
+  synchronized Stage getStage() {
+    return stage;
+  }
+
+  synchronized void finish(boolean succeeded) {
+    this.succeeded = succeeded;
+    if (succeeded) {
+      progress = 100;
+    }
+    finishTime = System.currentTimeMillis();
+    startStage(Stage.DONE);
+  }
+
+  private synchronized boolean isExpired(long now) {
+    return finishTime != 0 && now - finishTime > RETENTION_MILLIS;
+  }
+
+  /**
+   * Returns the progress as JSON, with the start time of every stage reached so far in
+   * milliseconds since the epoch.
+   */
+  synchronized JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    json.put("progress", progress);
+    json.put("stage", stage.name().toLowerCase());
+    json.put("done", stage == Stage.DONE);
+    if (succeeded != null) {
+      json.put("succeeded", succeeded.booleanValue());
+    }
+    JSONObject stages = new JSONObject();
+    for (Map.Entry<Stage, Long> entry : stageStartTimes.entrySet()) {
+      stages.put(entry.getKey().name().toLowerCase(), entry.getValue().longValue());
+    }
+    json.put("stages", stages);
+    return json;
+  }
+}
@@ -39,7 +39,7 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -49,6 +49,7 @@ import java.util.zip.ZipOutputStream;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
@@ -95,6 +96,58 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--maxSimultaneousKawaCompiles",
+      usage = "Maximum number of Kawa compiles that can run in parallel. 0 means as many as the cores and memory allow.")
+    int maxSimultaneousKawaCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDx",
+      usage = "Maximum number of DX runs that can run in parallel. 0 means as many as the cores and memory allow.")
+    int maxSimultaneousDx = 0;
+
+    @Option(name = "--childProcessMemoryBudgetMb",
+      usage = "Memory available to Kawa and DX child processes together, in MB. 0 means the physical memory not used by the build server heap.")
+    int childProcessMemoryBudgetMb = 0;
+
+    @Option(name = "--kawaCompilerPoolSize",
+      usage = "Number of warm Kawa compiler processes to keep running. 0 means a new Kawa process is launched for each build.")
+    int kawaCompilerPoolSize = 0;
+
+    @Option(name = "--kawaWorkerMaxJobs",
+      usage = "Number of compiles after which a warm Kawa compiler process is replaced. 0 means never.")
+    int kawaWorkerMaxJobs = 100;
+
+    @Option(name = "--buildCacheDir",
+      usage = "The directory in which compiled screens, dex output and APKs are cached between builds. If not set, nothing is cached.")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheSizeMb",
+      usage = "Maximum size of the build cache, in MB.")
+    int buildCacheSizeMb = 1024;
+
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for one of the --maxSimultaneousBuilds to finish. 0 means builds are rejected when the server is at capacity.")
+    int maxQueuedBuilds = 20;
+
+    @Option(name = "--maxQueuedBuildsPerOwner",
+      usage = "Maximum number of waiting builds of a single user (or requesting host). 0 means no limit other than --maxQueuedBuilds.")
+    int maxQueuedBuildsPerOwner = 2;
+
+    @Option(name = "--maxQueueWaitSeconds",
+      usage = "How long a build may wait in the queue before it fails.")
+    int maxQueueWaitSeconds = 300;
+
+    @Option(name = "--smallProjectMaxBytes",
+      usage = "Projects whose source zip is at most this size are queued ahead of larger ones.")
+    long smallProjectMaxBytes = 256 * 1024;
+
+    @Option(name = "--minHeapHeadroomMb",
+      usage = "Builds are rejected when the heap can hold less than this many more MB after the last garbage collection. 0 disables the check.")
+    int minHeapHeadroomMb = 64;
+
+    @Option(name = "--minFreePhysicalMemoryMb",
+      usage = "Builds are rejected when the machine has less than this many MB of free physical memory. 0 disables the check.")
+    int minFreePhysicalMemoryMb = 0;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -109,6 +162,9 @@ public class BuildServer {
   private static final MediaType ZIP_MEDIA_TYPE =
     new MediaType("application", "zip", ImmutableMap.of("charset", "utf-8"));
 
+  // Response header of build-all-from-zip-async giving the position of the build in the queue.
+  static final String QUEUE_POSITION_HEADER = "X-Build-Queue-Position";
+
   private static final AtomicInteger buildCount = new AtomicInteger(0);
 
   // The number of build requests for this server run
@@ -126,11 +182,11 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
-  // The build executor used to limit the number of simultaneous builds.
-  // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
+  // The build queue used to limit the number of simultaneous builds.
+  // NOTE(lizlooney) - the buildQueue must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static FairBuildQueue buildQueue;
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -174,10 +230,49 @@ public class BuildServer {
     }
   }
 
+  /**
+   * Returns the server's variables.
+   *
+   * @param format  "json" for a JSON object, "prometheus" for the Prometheus text format (numeric
+   *     variables only), anything else for HTML
+   */
   @GET
   @Path("vars")
-  @Produces(MediaType.TEXT_HTML)
-  public Response var() throws IOException {
+  @Produces({MediaType.TEXT_HTML, MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN})
+  public Response var(@QueryParam("format") String format) throws IOException, JSONException {
+    Map<String, String> variables = getVariables();
+    if ("json".equals(format)) {
+      JSONObject json = new JSONObject();
+      for (Map.Entry<String, String> variable : variables.entrySet()) {
+        json.put(variable.getKey(), variable.getValue());
+      }
+      return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
+    }
+    if ("prometheus".equals(format)) {
+      StringBuilder text = new StringBuilder();
+      for (Map.Entry<String, String> variable : variables.entrySet()) {
+        try {
+          double value = Double.parseDouble(variable.getValue());
+          text.append("buildserver_").append(variable.getKey().replace('-', '_'))
+            .append(' ').append(value).append('\n');
+        } catch (NumberFormatException e) {
+          // Prometheus only takes numbers.
+        }
+      }
+      return Response.ok(text.toString(), MediaType.TEXT_PLAIN_TYPE).build();
+    }
+
+    StringBuilder html = new StringBuilder();
+    html.append("<html><body><tt>");
+    for (Map.Entry<String, String> variable : variables.entrySet()) {
+      html.append("<b>").append(variable.getKey()).append("</b> ")
+        .append(variable.getValue()).append("<br>");
+    }
+    html.append("</tt></body></html>");
+    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+  }
+
+  private Map<String, String> getVariables() {
     Map<String, String> variables = new LinkedHashMap<String, String>();
 
     // Runtime
@@ -213,33 +308,91 @@ public class BuildServer {
     variables.put("max-memory", runtime.maxMemory() + "");
     variables.put("used-heap", memoryBean.getHeapMemoryUsage().getUsed() + "");
     variables.put("used-non-heap", memoryBean.getNonHeapMemoryUsage().getUsed() + "");
+    MemoryMonitor.getInstance().addVariables(variables);
 
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("tracked-build-progress-entries", BuildProgress.getTrackedBuildCount() + "");
 
     // Build tasks
-    int max = buildExecutor.getMaxActiveTasks();
+    int max = buildQueue.getMaxActiveTasks();
     if (max == 0) {
       variables.put("maximum-simultaneous-build-tasks-allowed", "unlimited");
     } else {
       variables.put("maximum-simultaneous-build-tasks-allowed", max + "");
     }
-    variables.put("completed-build-tasks", buildExecutor.getCompletedTaskCount() + "");
-    maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
+    variables.put("completed-build-tasks", buildQueue.getCompletedTaskCount() + "");
+    maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildQueue.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
-    variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("active-build-tasks", buildQueue.getActiveTaskCount() + "");
+    buildQueue.addVariables(variables);
+
+    // Kawa and DX stages
+    BuildStageScheduler stageScheduler = Compiler.getStageScheduler();
+    variables.put("child-process-slots", stageScheduler.getChildProcessSlots() + "");
+    variables.put("child-process-slots-held-by-kawa-workers",
+        stageScheduler.getReservedChildProcessCount() + "");
+    for (BuildStageScheduler.Stage stage : BuildStageScheduler.Stage.values()) {
+      String prefix = stage.name().toLowerCase() + "-stage-";
+      variables.put(prefix + "slots", stageScheduler.getSlots(stage) + "");
+      variables.put(prefix + "active", stageScheduler.getActiveCount(stage) + "");
+      variables.put(prefix + "queue-depth", stageScheduler.getQueueDepth(stage) + "");
+      variables.put(prefix + "admitted", stageScheduler.getAdmittedCount(stage) + "");
+      variables.put(prefix + "average-wait-in-ms", stageScheduler.getAverageWaitMillis(stage) + "");
+      variables.put(prefix + "maximum-wait-in-ms", stageScheduler.getMaxWaitMillis(stage) + "");
+    }
 
-    StringBuilder html = new StringBuilder();
-    html.append("<html><body><tt>");
-    for (Map.Entry<String, String> variable : variables.entrySet()) {
-      html.append("<b>").append(variable.getKey()).append("</b> ")
-        .append(variable.getValue()).append("<br>");
+    // Kawa compiler pool
+    KawaCompilerPool kawaCompilerPool = Compiler.getKawaCompilerPool();
+    if (kawaCompilerPool != null) {
+      variables.put("kawa-compiler-pool-size", kawaCompilerPool.getMaxWorkers() + "");
+      variables.put("kawa-compiler-live-workers", kawaCompilerPool.getLiveWorkerCount() + "");
+      variables.put("kawa-compiler-idle-workers", kawaCompilerPool.getIdleWorkerCount() + "");
+      variables.put("kawa-compiler-started-workers", kawaCompilerPool.getStartedWorkerCount() + "");
+      variables.put("kawa-compiler-completed-jobs", kawaCompilerPool.getCompletedJobCount() + "");
     }
-    html.append("</tt></body></html>");
-    return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
+
+    BuildCache buildCache = Compiler.getBuildCache();
+    if (buildCache != null) {
+      for (String kind : BuildCache.KINDS) {
+        variables.put("build-cache-" + kind + "-hits", buildCache.getHitCount(kind) + "");
+        variables.put("build-cache-" + kind + "-misses", buildCache.getMissCount(kind) + "");
+        variables.put("build-cache-" + kind + "-stores", buildCache.getStoreCount(kind) + "");
+      }
+      variables.put("build-cache-evictions", buildCache.getEvictionCount() + "");
+      variables.put("build-cache-size-in-bytes", buildCache.getTotalBytes() + "");
+      variables.put("build-cache-maximum-size-in-bytes", buildCache.getMaxBytes() + "");
+    }
+    return variables;
+  }
+
+  /**
+   * Returns the progress of an asynchronous build as JSON. The build must have been started by
+   * {@link #buildAllFromZipFileAsync} with the same buildId.
+   *
+   * @param buildId  the buildId parameter given when the build was started
+   * @return a JSON object with the fields buildId, progress (percent), stage, done, succeeded (once
+   *     done), queuePosition (while waiting for other builds) and stages, which maps each stage
+   *     reached so far to its start time
+   */
+  @GET
+  @Path("progress/{buildId}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response progress(@PathParam("buildId") String buildId) throws JSONException {
+    BuildProgress buildProgress = BuildProgress.get(buildId);
+    if (buildProgress == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("Unknown build " + buildId).build();
+    }
+    JSONObject json = buildProgress.toJson();
+    int queuePosition = buildQueue.getPosition(buildId);
+    if (queuePosition > 0) {
+      json.put("queuePosition", queuePosition);
+    }
+    return Response.ok(json.toString(), MediaType.APPLICATION_JSON_TYPE).build();
   }
 
   /**
@@ -378,8 +531,17 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param buildId  An identifier for this build, used to poll its progress at
+   *     progress/{buildId}. If absent, a random one is used.
+   * @param priority  "high" to queue the build ahead of normal builds, for example for companion
+   *     builds. Small projects are always queued ahead of normal builds.
    * @param inputZipFile  The zip file representing the App Inventor source code.
-   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
+   *     An empty file does not start a build; the response then contains the progress of the
+   *     build with the given buildId. This is deprecated in favor of progress/{buildId}.
+   * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503). When the build
+   *     has to wait for other builds, the {@value #QUEUE_POSITION_HEADER} header of an OK response
+   *     gives its position in the queue (0 means it started right away), as does
+   *     progress/{buildId} later on.
    */
   @POST
   @Path("build-all-from-zip-async")
@@ -388,16 +550,22 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("buildId") String buildId,
+    @QueryParam("priority") String priority,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
     inputZip = inputZipFile;
     inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
     String requesting_host = (new URL(callbackUrlStr)).getHost();
+    int queuePosition = 0;
 
     //for the request for update part, the file should be empty
     if (inputZip.length() == 0L) {
       cleanUp();
+      BuildProgress buildProgress = BuildProgress.get(buildId);
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("" + (buildProgress == null ? 0 : buildProgress.getProgress())).build();
     } else {
       if (getShutdownState() == ShutdownState.DOWN) {
         LOG.info("request received while shutdown completely");
@@ -442,58 +610,69 @@ public class BuildServer {
         }
       }
 
-      Runnable buildTask = new Runnable() {
+      if (buildId == null || buildId.isEmpty()) {
+        buildId = UUID.randomUUID().toString();
+      }
+      if (!MemoryMonitor.getInstance().hasHeadroom()) {
+        // This request was rejected because starting another build could run the server (or the
+        // machine) out of memory.
+        rejectedAsyncBuildRequests.incrementAndGet();
+        cleanUp();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently low on memory.").build();
+      }
+
+      final BuildProgress buildProgress = BuildProgress.register(buildId);
+      projectBuilder.setBuildProgress(buildProgress);
+
+      FairBuildQueue.QueuedBuild buildTask = new FairBuildQueue.QueuedBuild() {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
             try {
               LOG.info("START NEW BUILD " + count);
-              checkMemory();
+              MemoryMonitor.getInstance().startBuild();
               buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
+              sendZipToCallback(callbackUrlStr);
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+            } finally {
+              if (buildProgress.getStage() != BuildProgress.Stage.DONE) {
+                buildProgress.finish(false);
+              }
+              cleanUp();
+              long childPeakRss = MemoryMonitor.getInstance().finishBuild();
+              LOG.info("BUILD " + count + " FINISHED, child process peak RSS: " + childPeakRss +
+                " bytes");
+            }
+          }
+
+          @Override
+          public void expire() {
+            try {
+              buildProgress.finish(false);
+              createZip(Result.createFailingResult("",
+                  "The build server is currently at maximum capacity. Please try again later."),
+                  inputZipFile);
+              sendZipToCallback(callbackUrlStr);
+            } catch (Exception e) {
+              LOG.severe("Exception: " + e.getMessage() + " while expiring a queued build");
             } finally {
               cleanUp();
-              checkMemory();
-              LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      String owner = (userName == null || userName.isEmpty()) ? requesting_host : userName;
+      FairBuildQueue.Priority queuePriority =
+          ("high".equals(priority) || inputZip.length() <= commandLineOptions.smallProjectMaxBytes)
+          ? FairBuildQueue.Priority.HIGH : FairBuildQueue.Priority.NORMAL;
       try {
-        buildExecutor.execute(buildTask);
-      } catch (RejectedExecutionException e) {
+        queuePosition = buildQueue.submit(buildId, owner, queuePriority, buildTask);
+      } catch (FairBuildQueue.RejectedBuildException e) {
         // This request was rejected because all threads in the build
-        // executor are busy.
+        // executor are busy and the queue can't take it.
         rejectedAsyncBuildRequests.incrementAndGet();
+        buildProgress.finish(false);
         cleanUp();
         // Here, we use SERVICE_UNAVAILABLE (response code 503), which
         // means (according to rfc2616, section 10) "The server is
@@ -501,16 +680,58 @@ public class BuildServer {
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity (" + e.getReason() + ").").build();
       }
     }
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .header(QUEUE_POSITION_HEADER, queuePosition)
+      .entity("" + projectBuilder.getBuildProgress().getProgress()).build();
+  }
+
+  /*
+   * Sends the output zip back to the callbackUrl.
+   */
+  private void sendZipToCallback(String callbackUrlStr) throws IOException {
+    LOG.info("CallbackURL: " + callbackUrlStr);
+    URL callbackUrl = new URL(callbackUrlStr);
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+    try {
+      BufferedInputStream bufferedInputStream = new BufferedInputStream(
+        new FileInputStream(outputZip));
+      try {
+        ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
+        bufferedOutputStream.flush();
+      } finally {
+        bufferedInputStream.close();
+      }
+    } finally {
+      bufferedOutputStream.close();
+    }
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
+      // TODO(user) Maybe do some retries
+    }
   }
 
   private void buildAndCreateZip(String userName, File inputZipFile)
     throws IOException, JSONException {
     Result buildResult = build(userName, inputZipFile);
+    projectBuilder.getBuildProgress().finish(buildResult.succeeded());
+    createZip(buildResult, inputZipFile);
+  }
+
+  /*
+   * Creates the zip file with the build results: the APK and keystore, if any, and build.out.
+   */
+  private void createZip(Result buildResult, File inputZipFile)
+    throws IOException, JSONException {
     boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
@@ -569,7 +790,6 @@ public class BuildServer {
     if (outputKeystore != null) {
       outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
-    checkMemory();
     return buildResult;
   }
 
@@ -591,13 +811,6 @@ public class BuildServer {
     }
   }
 
-  private static void checkMemory() {
-    MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
-    mBean.gc();
-    LOG.info("Build " + buildCount + " current used memory: "
-      + mBean.getHeapMemoryUsage().getUsed() + " bytes");
-  }
-
   public static void main(String[] args) throws IOException {
     // TODO(markf): Eventually we'll figure out how to appropriately start and stop the server when
     // it's run in a production environment.   For now, just kill the process
@@ -612,7 +825,42 @@ public class BuildServer {
     }
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildQueue = new FairBuildQueue(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds, commandLineOptions.maxQueuedBuildsPerOwner,
+        commandLineOptions.maxQueueWaitSeconds * 1000L);
+
+    Compiler.setStageScheduler(BuildStageScheduler.create(commandLineOptions.childProcessRamMb,
+        commandLineOptions.childProcessMemoryBudgetMb,
+        commandLineOptions.maxSimultaneousKawaCompiles, commandLineOptions.maxSimultaneousDx));
+
+    // Warm Kawa workers hold child process slots. Leave one slot for DX so that idle workers
+    // can never keep it waiting.
+    BuildStageScheduler stageScheduler = Compiler.getStageScheduler();
+    int kawaCompilerPoolSize = Math.min(commandLineOptions.kawaCompilerPoolSize,
+        stageScheduler.getChildProcessSlots() - 1);
+    if (kawaCompilerPoolSize < commandLineOptions.kawaCompilerPoolSize) {
+      LOG.warning("Only " + stageScheduler.getChildProcessSlots() + " child processes fit in "
+          + "memory, reducing the warm Kawa compiler processes to " + kawaCompilerPoolSize);
+    }
+    if (kawaCompilerPoolSize > 0) {
+      final KawaCompilerPool kawaCompilerPool = new KawaCompilerPool(stageScheduler,
+          kawaCompilerPoolSize, commandLineOptions.kawaWorkerMaxJobs);
+      Compiler.setKawaCompilerPool(kawaCompilerPool);
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          kawaCompilerPool.shutdown();
+        }
+      });
+    }
+    MemoryMonitor.getInstance().setMinimumHeadroom(
+        commandLineOptions.minHeapHeadroomMb * 1024L * 1024L,
+        commandLineOptions.minFreePhysicalMemoryMb * 1024L * 1024L);
+
+    if (commandLineOptions.buildCacheDir != null) {
+      Compiler.setBuildCache(new BuildCache(new File(commandLineOptions.buildCacheDir),
+          commandLineOptions.buildCacheSizeMb * 1024L * 1024L));
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -625,6 +873,9 @@ public class BuildServer {
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
     }
+    if (kawaCompilerPoolSize > 0) {
+      LOG.info("Warm Kawa compiler processes = " + kawaCompilerPoolSize);
+    }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
     LOG.info("Visit: http://" + hostAddress + ":" + port +
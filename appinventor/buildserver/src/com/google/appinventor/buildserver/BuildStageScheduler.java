@@ -0,0 +1,234 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Admits the memory hungry stages of a build (Kawa and DX child processes).
+ *
+ * <p>Each stage has its own number of slots, so that several Kawa compiles and several DX runs
+ * can happen at once. In addition, every stage run needs one child process slot, which is the
+ * number of child processes of {@code childProcessRamMb} that fit in memory. Slots are always
+ * acquired in the same order (stage, then child process) and handed out fairly, so builds are
+ * admitted in arrival order and cannot deadlock.
+ *
+ * <p>Long-lived child processes, such as the warm workers of the {@link KawaCompilerPool}, hold
+ * a child process slot for as long as they run, idle or not, so that they count against the same
+ * memory budget. A stage that runs in such a process does not take another child process slot.
+ */
+final class BuildStageScheduler {
+  enum Stage { KAWA, DX }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildStageScheduler.class.getName());
+
+  /**
+   * A scheduler that runs only one Kawa or DX process at a time. This is the behavior when the
+   * build server has not been configured, for example when building from the command line.
+   */
+  static final BuildStageScheduler SERIAL = new BuildStageScheduler(1, 1, 1);
+
+  private final int childProcessSlots;
+  private final Semaphore childProcesses;
+  private final AtomicInteger reservedChildProcesses = new AtomicInteger(0);
+  private final Map<Stage, StageSlots> stages = new EnumMap<Stage, StageSlots>(Stage.class);
+
+  /**
+   * Creates a BuildStageScheduler.
+   *
+   * @param kawaSlots the maximum number of simultaneous Kawa compiles
+   * @param dxSlots the maximum number of simultaneous DX runs
+   * @param childProcessSlots the maximum number of simultaneous Kawa and DX runs together
+   */
+  BuildStageScheduler(int kawaSlots, int dxSlots, int childProcessSlots) {
+    Preconditions.checkArgument(kawaSlots > 0 && dxSlots > 0 && childProcessSlots > 0);
+    this.childProcessSlots = childProcessSlots;
+    childProcesses = new Semaphore(childProcessSlots, true);
+    stages.put(Stage.KAWA, new StageSlots(kawaSlots));
+    stages.put(Stage.DX, new StageSlots(dxSlots));
+  }
+
+  /**
+   * Creates a BuildStageScheduler sized for this machine.
+   *
+   * @param childProcessRamMb maximum ram that can be used by a child process, in MB
+   * @param memoryBudgetMb memory available to child processes, in MB, 0 means all of the
+   *     physical memory not reserved for the build server's own heap
+   * @param maxKawa the maximum number of simultaneous Kawa compiles, 0 means automatic
+   * @param maxDx the maximum number of simultaneous DX runs, 0 means automatic
+   */
+  static BuildStageScheduler create(int childProcessRamMb, int memoryBudgetMb, int maxKawa,
+      int maxDx) {
+    if (memoryBudgetMb <= 0) {
+      long physicalMb = getTotalPhysicalMemoryMb();
+      long heapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+      memoryBudgetMb = (int) Math.max(0, physicalMb - heapMb);
+    }
+    int childProcessSlots = Math.max(1, memoryBudgetMb / Math.max(1, childProcessRamMb));
+    int processors = Runtime.getRuntime().availableProcessors();
+    int autoSlots = Math.max(1, Math.min(processors, childProcessSlots));
+    int kawaSlots = maxKawa > 0 ? maxKawa : autoSlots;
+    int dxSlots = maxDx > 0 ? maxDx : autoSlots;
+    LOG.info("Build stage slots: kawa = " + kawaSlots + ", dx = " + dxSlots +
+        ", child processes = " + childProcessSlots);
+    return new BuildStageScheduler(kawaSlots, dxSlots, childProcessSlots);
+  }
+
+  /**
+   * Waits until the given stage may run in a new child process. Every call must be followed by a
+   * call to {@link #release(Stage)}.
+   */
+  void acquire(Stage stage) throws InterruptedException {
+    acquire(stage, true);
+  }
+
+  /**
+   * Waits until the given stage may run. Every call must be followed by a call to
+   * {@link #release(Stage, boolean)} with the same {@code childProcess}.
+   *
+   * @param stage the stage
+   * @param childProcess whether the stage needs a child process slot, false if it runs in a
+   *     process that holds one through {@link #tryReserveChildProcess()}
+   */
+  void acquire(Stage stage, boolean childProcess) throws InterruptedException {
+    StageSlots slots = stages.get(stage);
+    long start = System.currentTimeMillis();
+    slots.waiting.incrementAndGet();
+    try {
+      slots.semaphore.acquire();
+      if (childProcess) {
+        try {
+          childProcesses.acquire();
+        } catch (InterruptedException e) {
+          slots.semaphore.release();
+          throw e;
+        }
+      }
+    } finally {
+      slots.waiting.decrementAndGet();
+    }
+    long waitMillis = System.currentTimeMillis() - start;
+    slots.active.incrementAndGet();
+    slots.admitted.incrementAndGet();
+    slots.totalWaitMillis.addAndGet(waitMillis);
+    long maxWait;
+    while (waitMillis > (maxWait = slots.maxWaitMillis.get())) {
+      if (slots.maxWaitMillis.compareAndSet(maxWait, waitMillis)) {
+        break;
+      }
+    }
+  }
+
+  void release(Stage stage) {
+    release(stage, true);
+  }
+
+  void release(Stage stage, boolean childProcess) {
+    StageSlots slots = stages.get(stage);
+    slots.active.decrementAndGet();
+    if (childProcess) {
+      childProcesses.release();
+    }
+    slots.semaphore.release();
+  }
+
+  /**
+   * Takes a child process slot for a long-lived process if one is free and no stage is waiting
+   * for it. The slot is held until {@link #releaseReservedChildProcess()} is called.
+   *
+   * @return {@code true} if the slot was taken
+   */
+  boolean tryReserveChildProcess() throws InterruptedException {
+    // Unlike tryAcquire(), a timed tryAcquire doesn't take the slot ahead of waiting stages.
+    if (childProcesses.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+      reservedChildProcesses.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  void releaseReservedChildProcess() {
+    reservedChildProcesses.decrementAndGet();
+    childProcesses.release();
+  }
+
+  /**
+   * Returns whether a stage is waiting for a child process slot.
+   */
+  boolean isChildProcessWanted() {
+    return childProcesses.hasQueuedThreads();
+  }
+
+  int getReservedChildProcessCount() {
+    return reservedChildProcesses.get();
+  }
+
+  int getChildProcessSlots() {
+    return childProcessSlots;
+  }
+
+  int getSlots(Stage stage) {
+    return stages.get(stage).slots;
+  }
+
+  int getActiveCount(Stage stage) {
+    return stages.get(stage).active.get();
+  }
+
+  int getQueueDepth(Stage stage) {
+    return stages.get(stage).waiting.get();
+  }
+
+  int getAdmittedCount(Stage stage) {
+    return stages.get(stage).admitted.get();
+  }
+
+  long getAverageWaitMillis(Stage stage) {
+    StageSlots slots = stages.get(stage);
+    int admitted = slots.admitted.get();
+    return admitted == 0 ? 0 : slots.totalWaitMillis.get() / admitted;
+  }
+
+  long getMaxWaitMillis(Stage stage) {
+    return stages.get(stage).maxWaitMillis.get();
+  }
+
+  private static long getTotalPhysicalMemoryMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize()
+          / (1024 * 1024);
+    }
+    // We can't tell, so only allow what the build server itself may use.
+    return 2 * Runtime.getRuntime().maxMemory() / (1024 * 1024);
+  }
+
+  private static class StageSlots {
+    final int slots;
+    final Semaphore semaphore;
+    final AtomicInteger waiting = new AtomicInteger(0);
+    final AtomicInteger active = new AtomicInteger(0);
+    final AtomicInteger admitted = new AtomicInteger(0);
+    final AtomicLong totalWaitMillis = new AtomicLong(0);
+    final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+    StageSlots(int slots) {
+      this.slots = slots;
+      semaphore = new Semaphore(slots, true);
+    }
+  }
+}
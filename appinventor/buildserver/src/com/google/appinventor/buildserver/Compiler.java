@@ -11,6 +11,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
@@ -20,6 +21,8 @@ import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import org.apache.commons.io.FileUtils;
+
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
@@ -29,15 +32,18 @@ import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
@@ -54,10 +60,22 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
+  // Kawa and DX processes can use a lot of memory. The scheduler limits how many of them run at
+  // the same time. Until the build server configures it, only one Kawa or DX process runs at a time.
+  private static volatile BuildStageScheduler stageScheduler = BuildStageScheduler.SERIAL;
+
+  // Warm Kawa compiler processes. If null, a new Kawa process is launched for each build.
+  private static volatile KawaCompilerPool kawaCompilerPool;
+
+  // Classes and dex files of previous builds. If null, everything is compiled for each build.
+  private static volatile BuildCache buildCache;
+
+  // Hashes of the runtime files, which don't change while the build server runs.
+  private static final ConcurrentMap<String, String> resourceHashes =
+      new ConcurrentHashMap<String, String>();
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // The hash of everything besides the project that goes into an APK. See getApkToolchainKey().
+  private static String apkToolchainKey;
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -125,6 +143,9 @@ public final class Compiler {
   @VisibleForTesting
   static final String YAIL_RUNTIME =
       RUNTIME_FILES_DIR + "runtime.scm";
+  // The class that Kawa compiles runtime.scm into.
+  private static final String YAIL_RUNTIME_CLASS_FILE =
+      "com/google/youngandroid/runtime.class";
   private static final String MAC_ZIPALIGN_TOOL =
       "/tools/mac/zipalign";
   private static final String WINDOWS_ZIPALIGN_TOOL =
@@ -180,6 +201,7 @@ public final class Compiler {
   private Set<String> assetsNeeded; // Set of component assets
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
+  private final BuildProgress buildProgress;
 
   /*
    * Generate the set of Android permissions needed by this project.
@@ -504,6 +526,7 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param buildProgress  the progress of this build
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
@@ -511,12 +534,14 @@ public final class Compiler {
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
                                 boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                int childProcessRam, String dexCacheDir,
+                                BuildProgress buildProgress) throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir);
+                                     childProcessRam, dexCacheDir, buildProgress);
+    buildProgress.startStage(BuildProgress.Stage.PREPARE);
 
     // Get names of component-required libraries and assets.
     compiler.generateLibraryNames();
@@ -533,7 +558,7 @@ public final class Compiler {
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(10);
+    buildProgress.setProgress(10);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -548,7 +573,7 @@ public final class Compiler {
     if (permissionsNeeded == null) {
       return false;
     }
-    setProgress(15);
+    buildProgress.setProgress(15);
 
     // Generate AndroidManifest.xml
     out.println("________Generating manifest file");
@@ -556,7 +581,7 @@ public final class Compiler {
     if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
       return false;
     }
-    setProgress(20);
+    buildProgress.setProgress(20);
 
     // Insert native libraries
     out.println("________Attaching native libraries");
@@ -572,14 +597,16 @@ public final class Compiler {
 
     // Create class files.
     out.println("________Compiling source files");
+    buildProgress.startStage(BuildProgress.Stage.KAWA);
     File classesDir = createDirectory(buildDir, "classes");
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
-    setProgress(35);
+    buildProgress.setProgress(35);
 
     // Invoke dx on class files
     out.println("________Invoking DX");
+    buildProgress.startStage(BuildProgress.Stage.DX);
     // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
     // overhead for subsequent runs).  I think it's because of the need to dx the entire
     // kawa runtime every time.  We should probably only do that once and then copy all the
@@ -600,40 +627,44 @@ public final class Compiler {
     if (!compiler.runDx(classesDir, dexedClasses)) {
       return false;
     }
-    setProgress(85);
+    buildProgress.setProgress(85);
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
+    buildProgress.startStage(BuildProgress.Stage.AAPT);
     File deployDir = createDirectory(buildDir, "deploy");
     String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".ap_";
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
+    buildProgress.setProgress(90);
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
+    buildProgress.startStage(BuildProgress.Stage.APKBUILDER);
     String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
         project.getProjectName() + ".apk";
     if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
       return false;
     }
-    setProgress(95);
+    buildProgress.setProgress(95);
 
     // Sign the apk file
     out.println("________Signing the apk file");
+    buildProgress.startStage(BuildProgress.Stage.SIGN);
     if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
       return false;
     }
 
     // ZipAlign the apk file
     out.println("________ZipAligning the apk file");
+    buildProgress.startStage(BuildProgress.Stage.ZIPALIGN);
     if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
       return false;
     }
 
-    setProgress(100);
+    buildProgress.setProgress(100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -723,6 +754,13 @@ public final class Compiler {
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
            PrintStream userErrors, boolean isForCompanion,
            int childProcessMaxRam, String dexCacheDir) {
+    this(project, componentTypes, out, err, userErrors, isForCompanion, childProcessMaxRam,
+         dexCacheDir, new BuildProgress());
+  }
+
+  private Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
+                   PrintStream userErrors, boolean isForCompanion,
+                   int childProcessMaxRam, String dexCacheDir, BuildProgress buildProgress) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
@@ -731,6 +769,7 @@ public final class Compiler {
     this.isForCompanion = isForCompanion;
     this.childProcessRamMb = childProcessMaxRam;
     this.dexCacheDir = dexCacheDir;
+    this.buildProgress = buildProgress;
   }
 
   /*
@@ -741,6 +780,7 @@ public final class Compiler {
     try {
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
+      List<String> sourceFileRelativePaths = Lists.newArrayListWithCapacity(sources.size());
       List<String> classFileNames = Lists.newArrayListWithCapacity(sources.size());
       boolean userCodeExists = false;
       for (Project.SourceDescriptor source : sources) {
@@ -773,6 +813,7 @@ public final class Compiler {
           }
         }
         sourceFileNames.add(sourceFileName);
+        sourceFileRelativePaths.add(sourceFileRelativePath);
         classFileNames.add(classFileName);
       }
 
@@ -799,6 +840,38 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
+
+      // Reuse the classes of the screens, and of the runtime, that previous builds compiled from
+      // the same source with the same runtime and libraries.
+      BuildCache cache = buildCache;
+      List<String> sourcesToCompile = sourceFileNames;
+      List<String> screenKeys = null;
+      String toolchainKey = null;
+      boolean compileRuntime = true;
+      if (cache != null) {
+        toolchainKey = getToolchainKey(classpath, yailRuntime);
+        String packageName = Signatures.getPackageName(project.getMainClass());
+        sourcesToCompile = Lists.newArrayList();
+        screenKeys = Lists.newArrayListWithCapacity(sources.size());
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          Hasher hasher = BuildCache.newHasher();
+          hasher.putString(toolchainKey, Charsets.UTF_8);
+          hasher.putString(packageName, Charsets.UTF_8);
+          BuildCache.hashFile(hasher, sourceFileRelativePaths.get(i),
+              new File(sourceFileNames.get(i)));
+          String screenKey = hasher.hash().toString();
+          screenKeys.add(screenKey);
+          if (!copyFromCache(cache, BuildCache.SCREEN_CLASSES, screenKey, classesDir)) {
+            sourcesToCompile.add(sourceFileNames.get(i));
+          }
+        }
+        compileRuntime =
+            !copyFromCache(cache, BuildCache.RUNTIME_CLASSES, toolchainKey, classesDir);
+        LOG.info("Screens reused from the build cache: " +
+            (sourceFileNames.size() - sourcesToCompile.size()) + " of " + sourceFileNames.size() +
+            ", runtime reused: " + !compileRuntime);
+      }
+
       List<String> kawaCommandArgs = Lists.newArrayList();
       int mx = childProcessRamMb - 200;
       Collections.addAll(kawaCommandArgs,
@@ -815,8 +888,10 @@ public final class Compiler {
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
+      kawaCommandArgs.addAll(sourcesToCompile);
+      if (compileRuntime) {
+        kawaCommandArgs.add(yailRuntime);
+      }
       String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
 
       long start = System.currentTimeMillis();
@@ -825,9 +900,28 @@ public final class Compiler {
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      BuildStageScheduler scheduler = stageScheduler;
+      if (sourcesToCompile.isEmpty() && !compileRuntime) {
+        // Everything came from the build cache.
+        kawaSuccess = true;
+      } else {
+        // A pool worker already holds a child process slot, so a pooled compile takes none.
+        KawaCompilerPool pool = kawaCompilerPool;
+        scheduler.acquire(BuildStageScheduler.Stage.KAWA, pool == null);
+        try {
+          if (pool != null) {
+            // The runtime is preloaded by the worker, so "-f yailRuntime" is not passed again.
+            List<String> kawaArgs = kawaCommandArgs.subList(kawaCommandArgs.indexOf("-d"),
+                kawaCommandArgs.size());
+            kawaSuccess = pool.compile(classpath, mx, yailRuntime, kawaArgs,
+                new PrintStream(kawaOutputStream));
+          } else {
+            kawaSuccess = Execution.execute(null, kawaCommandLine,
+                System.out, new PrintStream(kawaOutputStream));
+          }
+        } finally {
+          scheduler.release(BuildStageScheduler.Stage.KAWA, pool == null);
+        }
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
@@ -851,10 +945,29 @@ public final class Compiler {
           return false;
         }
       }
+
+      if (cache != null) {
+        for (int i = 0; i < sourceFileNames.size(); i++) {
+          if (sourcesToCompile.contains(sourceFileNames.get(i))) {
+            String classFileRelativePath = sourceFileRelativePaths.get(i)
+                .replace(YoungAndroidConstants.YAIL_EXTENSION, ".class");
+            storeInCache(cache, BuildCache.SCREEN_CLASSES, screenKeys.get(i), classesDir,
+                classFileRelativePath);
+          }
+        }
+        if (compileRuntime) {
+          storeInCache(cache, BuildCache.RUNTIME_CLASSES, toolchainKey, classesDir,
+              YAIL_RUNTIME_CLASS_FILE);
+        }
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
       return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
+      return false;
     }
 
     return true;
@@ -986,8 +1099,13 @@ public final class Compiler {
   }
 
   private boolean runDx(File classesDir, String dexedClasses) {
+    // When there is a build cache, the user's classes are dexed separately so that the dex output
+    // of unchanged screens can be reused.
+    BuildCache cache = (dexCacheDir == null) ? null : buildCache;
     List<File> inputList = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    if (cache == null) {
+      inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    }
     inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
     inputList.add(new File(getResource(KAWA_RUNTIME)));
     inputList.add(new File(getResource(ACRA_RUNTIME)));
@@ -1013,10 +1131,31 @@ public final class Compiler {
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      setProgress(75);
+    BuildStageScheduler scheduler = stageScheduler;
+    try {
+      scheduler.acquire(BuildStageScheduler.Stage.DX);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+      return false;
+    }
+    try {
+      buildProgress.setProgress(50);
+      if (cache != null) {
+        List<File> preDexedInputs = new ArrayList<File>();
+        dxSuccess = dexClassesWithCache(cache, classesDir,
+            createDirectory(new File(dexedClasses).getParentFile(), "dexinputs"), preDexedInputs);
+        dexTask.setPreDexedInputs(preDexedInputs);
+      } else {
+        dxSuccess = true;
+      }
+      dxSuccess = dxSuccess && dexTask.execute(inputList);
+      buildProgress.setProgress(75);
+    } catch (IOException e) {
+      e.printStackTrace();
+      dxSuccess = false;
+    } finally {
+      scheduler.release(BuildStageScheduler.Stage.DX);
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
@@ -1250,19 +1389,234 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
+  /**
+   * Sets the pool of warm Kawa compiler processes used by all subsequent builds.
+   *
+   * @param pool  the pool to use, or {@code null} to launch a new Kawa process for each build
+   */
+  static void setKawaCompilerPool(KawaCompilerPool pool) {
+    kawaCompilerPool = pool;
+  }
+
+  static KawaCompilerPool getKawaCompilerPool() {
+    return kawaCompilerPool;
   }
 
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
+  /**
+   * Sets the scheduler that admits the Kawa and DX stages of all subsequent builds.
+   */
+  static void setStageScheduler(BuildStageScheduler scheduler) {
+    stageScheduler = scheduler;
+  }
+
+  static BuildStageScheduler getStageScheduler() {
+    return stageScheduler;
+  }
+
+  /**
+   * Sets the cache of build outputs used by all subsequent builds.
+   *
+   * @param cache  the cache to use, or {@code null} to compile everything for each build
+   */
+  static void setBuildCache(BuildCache cache) {
+    buildCache = cache;
+  }
+
+  static BuildCache getBuildCache() {
+    return buildCache;
+  }
+
+  /*
+   * Returns a hash of the runtime, Kawa and component libraries that a compile uses.
+   */
+  private static String getToolchainKey(String classpath, String yailRuntime) throws IOException {
+    List<String> hashes = Lists.newArrayList();
+    for (String path : classpath.split(File.pathSeparator)) {
+      hashes.add(getResourceHash(path));
+    }
+    // The order of the component libraries isn't stable.
+    Collections.sort(hashes);
+    Hasher hasher = BuildCache.newHasher();
+    for (String hash : hashes) {
+      hasher.putString(hash, Charsets.UTF_8);
+    }
+    hasher.putString(getResourceHash(yailRuntime), Charsets.UTF_8);
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns a hash of the runtime, Kawa, component libraries, component build
+   * information and DX that every APK is built with. It is computed once, as
+   * these don't change while the build server runs.
+   */
+  static synchronized String getApkToolchainKey() throws IOException {
+    if (apkToolchainKey == null) {
+      List<String> resourcePaths = Lists.newArrayList(SIMPLE_ANDROID_RUNTIME_JAR, KAWA_RUNTIME,
+          ACRA_RUNTIME, ANDROID_RUNTIME, YAIL_RUNTIME, DX_JAR, COMPONENT_BUILD_INFO);
+      // Any component library may be needed by some project.
+      Set<String> libraries = Sets.newTreeSet();
+      try {
+        JSONArray componentsArray = new JSONArray(Resources.toString(
+            Compiler.class.getResource(COMPONENT_BUILD_INFO), Charsets.UTF_8));
+        for (int i = 0; i < componentsArray.length(); i++) {
+          JSONArray librariesArray =
+              componentsArray.getJSONObject(i).getJSONArray(LIBRARIES_TARGET);
+          for (int j = 0; j < librariesArray.length(); j++) {
+            libraries.add(librariesArray.getString(j));
+          }
+        }
+      } catch (JSONException e) {
+        throw new IOException("Unable to read " + COMPONENT_BUILD_INFO, e);
+      }
+      for (String library : libraries) {
+        resourcePaths.add(RUNTIME_FILES_DIR + library);
+      }
+      Hasher hasher = BuildCache.newHasher();
+      for (String resourcePath : resourcePaths) {
+        hasher.putString(getResourceHash(getResource(resourcePath)), Charsets.UTF_8);
+      }
+      apkToolchainKey = hasher.hash().toString();
+    }
+    return apkToolchainKey;
+  }
+
+  /*
+   * Returns the hash of a file written by getResource().
+   */
+  private static String getResourceHash(String path) throws IOException {
+    String hash = resourceHashes.get(path);
+    if (hash == null) {
+      Hasher hasher = BuildCache.newHasher();
+      BuildCache.hashFile(hasher, PathUtil.basename(path), new File(path));
+      hash = hasher.hash().toString();
+      resourceHashes.put(path, hash);
     }
+    return hash;
+  }
+
+  /*
+   * Copies the cached class files into classesDir. Returns false if there is no such entry.
+   */
+  private static boolean copyFromCache(BuildCache cache, String kind, String key, File classesDir) {
+    File entry = cache.get(kind, key);
+    if (entry == null) {
+      return false;
+    }
+    try {
+      FileUtils.copyDirectory(entry, classesDir);
+      return true;
+    } catch (IOException e) {
+      // The entry may have been evicted while we were copying it.
+      LOG.log(Level.WARNING, "Unable to copy " + kind + " " + key + " from the build cache", e);
+      return false;
+    }
+  }
+
+  /*
+   * Stores the class file at classFileRelativePath, along with its inner classes, in the cache.
+   */
+  private static void storeInCache(BuildCache cache, String kind, String key, File classesDir,
+      String classFileRelativePath) throws IOException {
+    File staging = Files.createTempDir();
+    try {
+      File classFile = new File(classesDir, classFileRelativePath);
+      String className = classFile.getName().substring(0, classFile.getName().lastIndexOf('.'));
+      File stagingDir = new File(staging, classFileRelativePath).getParentFile();
+      stagingDir.mkdirs();
+      for (File file : listClassFiles(classFile.getParentFile(), className)) {
+        Files.copy(file, new File(stagingDir, file.getName()));
+      }
+      cache.put(kind, key, staging);
+    } finally {
+      FileUtils.deleteQuietly(staging);
+    }
+  }
+
+  /*
+   * Returns the class file of the given class in dir, followed by the class files of its inner
+   * classes.
+   */
+  private static List<File> listClassFiles(File dir, final String className) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.equals(className + ".class") ||
+            (name.startsWith(className + "$") && name.endsWith(".class"));
+      }
+    });
+    List<File> classFiles = Lists.newArrayList();
+    if (files != null) {
+      classFiles.addAll(Arrays.asList(files));
+      Collections.sort(classFiles);
+    }
+    return classFiles;
+  }
+
+  /*
+   * Dexes the classes in classesDir, one top level class (with its inner classes) at a time,
+   * reusing the dex output of previous builds for classes that did not change. The dexed jars
+   * are added to preDexedInputs.
+   */
+  private boolean dexClassesWithCache(BuildCache cache, File classesDir, File workDir,
+      List<File> preDexedInputs) throws IOException {
+    // Group the class files by top level class.
+    Map<String, List<String>> groups = new TreeMap<String, List<String>>();
+    String classesPath = classesDir.getAbsolutePath() + File.separator;
+    for (File file : FileUtils.listFiles(classesDir, new String[] { "class" }, true)) {
+      String relativePath = file.getAbsolutePath().substring(classesPath.length());
+      int dollar = relativePath.indexOf('$');
+      String group = dollar == -1
+          ? relativePath.substring(0, relativePath.length() - ".class".length())
+          : relativePath.substring(0, dollar);
+      List<String> groupFiles = groups.get(group);
+      if (groupFiles == null) {
+        groupFiles = Lists.newArrayList();
+        groups.put(group, groupFiles);
+      }
+      groupFiles.add(relativePath);
+    }
+
+    String dxHash = getResourceHash(getResource(DX_JAR));
+    int hits = 0;
+    for (List<String> groupFiles : groups.values()) {
+      Collections.sort(groupFiles);
+      Hasher hasher = BuildCache.newHasher();
+      hasher.putString(dxHash, Charsets.UTF_8);
+      for (String relativePath : groupFiles) {
+        BuildCache.hashFile(hasher, relativePath, new File(classesDir, relativePath));
+      }
+      String key = hasher.hash().toString();
+      File dexedJar = new File(workDir, key + ".jar");
+      File entry = cache.get(BuildCache.DEX, key);
+      if (entry != null) {
+        try {
+          Files.copy(entry, dexedJar);
+          preDexedInputs.add(dexedJar);
+          hits++;
+          continue;
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to copy dex " + key + " from the build cache", e);
+        }
+      }
+
+      File groupDir = new File(workDir, key);
+      for (String relativePath : groupFiles) {
+        File target = new File(groupDir, relativePath);
+        target.getParentFile().mkdirs();
+        Files.copy(new File(classesDir, relativePath), target);
+      }
+      DexExecTask dexTask = new DexExecTask();
+      dexTask.setExecutable(getResource(DX_JAR));
+      dexTask.setOutput(dexedJar.getAbsolutePath());
+      dexTask.setChildProcessRamMb(childProcessRamMb);
+      dexTask.setDisableDexMerger(true);
+      if (!dexTask.execute(Lists.newArrayList(groupDir))) {
+        return false;
+      }
+      cache.put(BuildCache.DEX, key, dexedJar);
+      preDexedInputs.add(dexedJar);
+    }
+    LOG.info("Classes dexed from the build cache: " + hits + " of " + groups.size());
+    return true;
   }
 }
@@ -44,6 +44,7 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
+    private List<File> mPreDexedInputs = Collections.emptyList();
     private static Map<String, String> alreadyChecked = new HashMap<String, String>();
 
     private static Object semaphore = new Object(); // Used to protect dex cache creation
@@ -93,6 +94,14 @@ public class DexExecTask  {
         mDisableDexMerger = disable;
     }
 
+    /**
+     * Sets inputs that are already dexed. They are merged into the output as they are.
+     * @param preDexedInputs the dexed jars.
+     */
+    public void setPreDexedInputs(List<File> preDexedInputs) {
+        mPreDexedInputs = preDexedInputs;
+    }
+
     private boolean preDexLibraries(List<File> inputs) {
         if (mDisableDexMerger || inputs.size() == 1) {
             // only one input, no need to put a pre-dexed version, even if this path is
@@ -173,6 +182,7 @@ public class DexExecTask  {
         // pre dex libraries if needed
         boolean successPredex = preDexLibraries(paths);
         if (!successPredex) return false;
+        paths.addAll(mPreDexedInputs);
 
         System.out.println(String.format(
                 "Converting compiled files and external libraries into %1$s...", mOutput));
@@ -109,9 +109,14 @@ public final class Execution {
     }
     try {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
+      MemoryMonitor.ChildProcessWatch watch = MemoryMonitor.getInstance().watch(process);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      try {
+        return process.waitFor() == 0;
+      } finally {
+        watch.stop();
+      }
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -132,6 +137,7 @@ public final class Execution {
       StringBuffer err) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
     Process process = Runtime.getRuntime().exec(command, null, workingDir);
+    MemoryMonitor.ChildProcessWatch watch = MemoryMonitor.getInstance().watch(process);
     Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
     Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
     try {
@@ -140,6 +146,8 @@ public final class Execution {
       errThread.join();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
+    } finally {
+      watch.stop();
     }
     return process.exitValue();
   }
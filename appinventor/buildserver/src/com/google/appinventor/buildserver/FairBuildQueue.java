@@ -0,0 +1,386 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs a limited number of builds at once, and queues the others.
+ *
+ * <p>Queued builds are started in priority order. Within a priority, builds are taken from each
+ * owner (a user or a requesting host) in turn, so that one owner sending many builds does not
+ * delay everybody else. The queue is bounded, both in total and per owner, and a build that
+ * waited longer than the maximum wait is expired instead of being started.
+ *
+ * <p>Builds run on a pool of at most the maximum number of active builds threads. With a queue
+ * size of 0, builds arriving while the maximum number of builds are running are rejected.
+ */
+final class FairBuildQueue {
+  enum Priority { HIGH, NORMAL }
+
+  /**
+   * A build that can be queued.
+   */
+  interface QueuedBuild extends Runnable {
+    /**
+     * Called, on a thread of the queue, instead of {@link #run} when the build waited too long.
+     */
+    void expire();
+  }
+
+  /**
+   * Thrown when a build is not accepted. The reason is one of the REJECTED_ constants.
+   */
+  static class RejectedBuildException extends RejectedExecutionException {
+    private static final long serialVersionUID = -2354187094530613442L;
+
+    private final String reason;
+
+    RejectedBuildException(String reason) {
+      super("Build rejected: " + reason);
+      this.reason = reason;
+    }
+
+    String getReason() {
+      return reason;
+    }
+  }
+
+  // Reasons for which builds are rejected.
+  static final String REJECTED_QUEUE_FULL = "queue-full";
+  static final String REJECTED_OWNER_LIMIT = "owner-limit";
+  static final String REJECTED_WAIT_TOO_LONG = "wait-too-long";
+  static final String REJECTED_EXPIRED = "expired";
+  static final String[] REJECTION_REASONS = {
+    REJECTED_QUEUE_FULL, REJECTED_OWNER_LIMIT, REJECTED_WAIT_TOO_LONG, REJECTED_EXPIRED
+  };
+
+  // Upper bounds of the queue wait histogram buckets, in seconds.
+  static final long[] WAIT_BUCKETS_SECONDS = { 1, 5, 15, 30, 60, 120, 300 };
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FairBuildQueue.class.getName());
+
+  // The maximum number of active tasks. O means unlimited.
+  private final int maxActiveTasks;
+  private final int maxQueuedTasks;
+  private final int maxQueuedTasksPerOwner;
+  private final long maxWaitMillis;
+
+  // For each priority, the queued builds of each owner. The first owner is the next to be
+  // served. Guarded by this.
+  private final Map<Priority, LinkedHashMap<String, Deque<Entry>>> queues =
+      new EnumMap<Priority, LinkedHashMap<String, Deque<Entry>>>(Priority.class);
+  private int queuedTaskCount = 0;
+  private int activeTaskCount = 0;
+  private int completedTaskCount = 0;
+  private int maxQueuedTaskCount = 0;
+  // Average run time of a build, in ms, or 0 if no build completed yet.
+  private long averageRunMillis = 0;
+
+  private final ConcurrentMap<String, AtomicInteger> rejections =
+      new ConcurrentHashMap<String, AtomicInteger>();
+  private final MemoryMonitor.Histogram waitSeconds =
+      new MemoryMonitor.Histogram(WAIT_BUCKETS_SECONDS);
+
+  // Runs the builds. Builds are only handed to it while there is capacity, so it never queues
+  // more than the build that a finishing build starts.
+  private final ExecutorService buildExecutor;
+  // Checks for waiting builds that expired, and runs their expire().
+  private final ScheduledExecutorService expirer =
+      Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("build-queue-expirer"));
+
+  /**
+   * Creates a FairBuildQueue.
+   *
+   * @param maxActiveTasks the maximum number of builds running at once, 0 means unlimited
+   * @param maxQueuedTasks the maximum number of waiting builds
+   * @param maxQueuedTasksPerOwner the maximum number of waiting builds of a single owner, 0
+   *     means no limit other than maxQueuedTasks
+   * @param maxWaitMillis how long a build may wait before it is expired
+   */
+  FairBuildQueue(int maxActiveTasks, int maxQueuedTasks, int maxQueuedTasksPerOwner,
+      long maxWaitMillis) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxQueuedTasks;
+    this.maxQueuedTasksPerOwner = maxQueuedTasksPerOwner;
+    this.maxWaitMillis = maxWaitMillis;
+    ThreadFactory buildThreads = new NamedThreadFactory("build");
+    buildExecutor = (maxActiveTasks == 0)
+        ? Executors.newCachedThreadPool(buildThreads)
+        : Executors.newFixedThreadPool(maxActiveTasks, buildThreads);
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new LinkedHashMap<String, Deque<Entry>>());
+    }
+    for (String reason : REJECTION_REASONS) {
+      rejections.put(reason, new AtomicInteger(0));
+    }
+    if (maxQueuedTasks > 0) {
+      expirer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          expireWaitingBuilds();
+        }
+      }, 1, 1, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Starts the build if there is capacity, or queues it.
+   *
+   * @param id an identifier of the build, for {@link #getPosition}
+   * @param owner the user or host the build is for
+   * @param priority the priority of the build
+   * @return 0 if the build was started, or its position in the queue, starting at 1
+   * @throws RejectedBuildException if the build can be neither started nor queued
+   */
+  synchronized int submit(String id, String owner, Priority priority, QueuedBuild build) {
+    if (maxActiveTasks == 0 || activeTaskCount < maxActiveTasks) {
+      waitSeconds.record(0);
+      start(build);
+      return 0;
+    }
+    if (queuedTaskCount >= maxQueuedTasks) {
+      throw reject(REJECTED_QUEUE_FULL);
+    }
+    LinkedHashMap<String, Deque<Entry>> owners = queues.get(priority);
+    Deque<Entry> ownerQueue = owners.get(owner);
+    if (maxQueuedTasksPerOwner > 0 && ownerQueue != null &&
+        ownerQueue.size() >= maxQueuedTasksPerOwner) {
+      throw reject(REJECTED_OWNER_LIMIT);
+    }
+    if (ownerQueue == null) {
+      ownerQueue = new ArrayDeque<Entry>();
+      owners.put(owner, ownerQueue);
+    }
+    Entry entry = new Entry(id, build);
+    ownerQueue.addLast(entry);
+    queuedTaskCount++;
+    maxQueuedTaskCount = Math.max(maxQueuedTaskCount, queuedTaskCount);
+    int position = getPosition(id);
+    // Don't accept builds that will obviously wait too long.
+    long estimatedWaitMillis = averageRunMillis * position / maxActiveTasks;
+    if (estimatedWaitMillis > maxWaitMillis) {
+      remove(entry);
+      throw reject(REJECTED_WAIT_TOO_LONG);
+    }
+    LOG.info("Build " + id + " queued at position " + position);
+    return position;
+  }
+
+  /**
+   * Returns the position of the build in the queue, starting at 1, or 0 if it is not queued.
+   */
+  synchronized int getPosition(String id) {
+    // Replay the order in which the queued builds will be started.
+    int position = 0;
+    for (LinkedHashMap<String, Deque<Entry>> owners : queues.values()) {
+      List<Iterator<Entry>> rounds = new ArrayList<Iterator<Entry>>();
+      for (Deque<Entry> ownerQueue : owners.values()) {
+        rounds.add(ownerQueue.iterator());
+      }
+      boolean more = true;
+      while (more) {
+        more = false;
+        for (Iterator<Entry> round : rounds) {
+          if (round.hasNext()) {
+            more = true;
+            position++;
+            if (round.next().id.equals(id)) {
+              return position;
+            }
+          }
+        }
+      }
+    }
+    return 0;
+  }
+
+  private RejectedBuildException reject(String reason) {
+    rejections.get(reason).incrementAndGet();
+    return new RejectedBuildException(reason);
+  }
+
+  // Must be called with the lock held.
+  private void start(final QueuedBuild build) {
+    activeTaskCount++;
+    buildExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.currentTimeMillis();
+        try {
+          build.run();
+        } finally {
+          finished(System.currentTimeMillis() - start);
+        }
+      }
+    });
+  }
+
+  private synchronized void finished(long runMillis) {
+    activeTaskCount--;
+    completedTaskCount++;
+    // Exponential moving average, so that the estimate follows the current load.
+    averageRunMillis = (averageRunMillis == 0) ? runMillis : (3 * averageRunMillis + runMillis) / 4;
+    Entry next = poll();
+    if (next != null) {
+      waitSeconds.record((System.currentTimeMillis() - next.queuedTime) / 1000);
+      start(next.build);
+    }
+  }
+
+  // Must be called with the lock held.
+  private Entry poll() {
+    for (LinkedHashMap<String, Deque<Entry>> owners : queues.values()) {
+      Iterator<Map.Entry<String, Deque<Entry>>> it = owners.entrySet().iterator();
+      if (it.hasNext()) {
+        Map.Entry<String, Deque<Entry>> first = it.next();
+        Entry entry = first.getValue().removeFirst();
+        // Move the owner to the end of the line.
+        it.remove();
+        if (!first.getValue().isEmpty()) {
+          owners.put(first.getKey(), first.getValue());
+        }
+        queuedTaskCount--;
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  // Must be called with the lock held.
+  private void remove(Entry entry) {
+    for (LinkedHashMap<String, Deque<Entry>> owners : queues.values()) {
+      for (Iterator<Deque<Entry>> it = owners.values().iterator(); it.hasNext();) {
+        Deque<Entry> ownerQueue = it.next();
+        if (ownerQueue.remove(entry)) {
+          queuedTaskCount--;
+          if (ownerQueue.isEmpty()) {
+            it.remove();
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  private void expireWaitingBuilds() {
+    List<Entry> expired = new ArrayList<Entry>();
+    synchronized (this) {
+      long oldest = System.currentTimeMillis() - maxWaitMillis;
+      for (LinkedHashMap<String, Deque<Entry>> owners : queues.values()) {
+        for (Deque<Entry> ownerQueue : owners.values()) {
+          for (Entry entry : ownerQueue) {
+            if (entry.queuedTime < oldest) {
+              expired.add(entry);
+            }
+          }
+        }
+      }
+      for (Entry entry : expired) {
+        remove(entry);
+        rejections.get(REJECTED_EXPIRED).incrementAndGet();
+      }
+    }
+    for (Entry entry : expired) {
+      LOG.warning("Build " + entry.id + " expired after waiting " + maxWaitMillis + " ms");
+      try {
+        entry.build.expire();
+      } catch (RuntimeException e) {
+        // An exception would cancel the periodic check for expired builds.
+        LOG.severe("Exception: " + e + " while expiring build " + entry.id);
+      }
+    }
+  }
+
+  int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  synchronized int getActiveTaskCount() {
+    return activeTaskCount;
+  }
+
+  synchronized int getCompletedTaskCount() {
+    return completedTaskCount;
+  }
+
+  synchronized int getQueuedTaskCount() {
+    return queuedTaskCount;
+  }
+
+  int getRejectedCount(String reason) {
+    return rejections.get(reason).get();
+  }
+
+  /**
+   * Adds the queue variables shown on /buildserver/vars.
+   */
+  synchronized void addVariables(Map<String, String> variables) {
+    variables.put("build-queue-maximum-size", maxQueuedTasks + "");
+    variables.put("build-queue-maximum-size-per-owner", maxQueuedTasksPerOwner + "");
+    variables.put("build-queue-maximum-wait-in-ms", maxWaitMillis + "");
+    variables.put("build-queue-depth", queuedTaskCount + "");
+    variables.put("build-queue-maximum-depth-occurred", maxQueuedTaskCount + "");
+    for (Priority priority : Priority.values()) {
+      int depth = 0;
+      for (Deque<Entry> ownerQueue : queues.get(priority).values()) {
+        depth += ownerQueue.size();
+      }
+      variables.put("build-queue-" + priority.name().toLowerCase() + "-priority-depth",
+          depth + "");
+    }
+    variables.put("build-queue-average-build-time-in-ms", averageRunMillis + "");
+    for (String reason : REJECTION_REASONS) {
+      variables.put("build-queue-rejected-" + reason, getRejectedCount(reason) + "");
+    }
+    waitSeconds.addVariables(variables, "build-queue-wait-in-seconds");
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  private static class Entry {
+    final String id;
+    final QueuedBuild build;
+    final long queuedTime = System.currentTimeMillis();
+
+    Entry(String id, QueuedBuild build) {
+      this.id = id;
+      this.build = build;
+    }
+  }
+}
@@ -0,0 +1,287 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of long-lived Kawa compiler processes.
+ *
+ * <p>Starting a JVM and loading the YAIL runtime takes most of the time of a Kawa compile. The
+ * pool keeps up to {@code maxWorkers} {@link KawaCompilerWorker} processes running, each with
+ * runtime.scm already loaded, and hands compile jobs to them. A worker runs one job at a time,
+ * so the number of workers is also the number of Kawa compiles that can run at once.
+ *
+ * <p>Workers are keyed by their classpath and heap size, since those are fixed when the process
+ * starts. A worker is discarded after it has run {@code maxJobsPerWorker} jobs, or as soon as a
+ * job fails, so that state left behind by a bad compile never leaks into another build.
+ *
+ * <p>Each worker holds a child process slot of the {@link BuildStageScheduler} from when it
+ * starts until it stops, so idle workers count against the memory budget of the build server.
+ * When no slot is free, the pool stops its least recently used idle worker to make room, and a
+ * worker that finishes a job while a stage waits for a slot is stopped rather than kept.
+ */
+final class KawaCompilerPool {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerPool.class.getName());
+
+  // How long to wait before trying again for a child process slot, in ms
+  private static final long CHILD_PROCESS_RETRY_MILLIS = 100;
+
+  private final BuildStageScheduler scheduler;
+  private final int maxWorkers;
+  private final int maxJobsPerWorker;
+
+  // Workers that are not running a job. Guarded by this.
+  private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+  // Workers that are running, whether idle or busy. Guarded by this.
+  private int liveWorkerCount;
+
+  private final AtomicInteger startedWorkerCount = new AtomicInteger(0);
+  private final AtomicInteger completedJobCount = new AtomicInteger(0);
+
+  /**
+   * Creates a KawaCompilerPool.
+   *
+   * @param scheduler the scheduler whose child process slots the workers hold
+   * @param maxWorkers the maximum number of worker processes
+   * @param maxJobsPerWorker the number of jobs after which a worker is replaced, 0 means never
+   */
+  KawaCompilerPool(BuildStageScheduler scheduler, int maxWorkers, int maxJobsPerWorker) {
+    Preconditions.checkArgument(maxWorkers > 0);
+    this.scheduler = scheduler;
+    this.maxWorkers = maxWorkers;
+    this.maxJobsPerWorker = maxJobsPerWorker;
+  }
+
+  /**
+   * Compiles YAIL source files with a warm worker process.
+   *
+   * @param classpath  the classpath for the Kawa compiler, not including this class
+   * @param maxHeapMb  maximum heap of the worker process, in MB
+   * @param yailRuntime  the path of runtime.scm, loaded once when the worker starts
+   * @param kawaArgs  the Kawa command line arguments for this compile
+   * @param output  the stream to which the compiler output is written
+   * @return  {@code true} if the compile succeeds, {@code false} otherwise
+   */
+  boolean compile(String classpath, int maxHeapMb, String yailRuntime, List<String> kawaArgs,
+                  PrintStream output) {
+    Worker worker;
+    try {
+      worker = acquire(classpath, maxHeapMb, yailRuntime);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start a Kawa compiler worker", e);
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+
+    boolean success = false;
+    try {
+      success = worker.run(kawaArgs, output);
+      return success;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Kawa compiler worker failed", e);
+      return false;
+    } finally {
+      completedJobCount.incrementAndGet();
+      release(worker, success);
+    }
+  }
+
+  public int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  public synchronized int getLiveWorkerCount() {
+    return liveWorkerCount;
+  }
+
+  public synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  public int getStartedWorkerCount() {
+    return startedWorkerCount.get();
+  }
+
+  public int getCompletedJobCount() {
+    return completedJobCount.get();
+  }
+
+  /**
+   * Stops all idle workers. Busy workers are stopped when their job finishes.
+   */
+  synchronized void shutdown() {
+    for (Worker worker : idleWorkers) {
+      discard(worker);
+    }
+    idleWorkers.clear();
+  }
+
+  private Worker acquire(String classpath, int maxHeapMb, String yailRuntime)
+      throws IOException, InterruptedException {
+    String key = classpath + File.pathSeparator + maxHeapMb + File.pathSeparator + yailRuntime;
+    synchronized (this) {
+      while (true) {
+        for (Iterator<Worker> it = idleWorkers.iterator(); it.hasNext();) {
+          Worker worker = it.next();
+          if (worker.key.equals(key)) {
+            it.remove();
+            return worker;
+          }
+        }
+        if (liveWorkerCount < maxWorkers && scheduler.tryReserveChildProcess()) {
+          break;
+        }
+        if (!idleWorkers.isEmpty()) {
+          // Make room by stopping the least recently used worker with a different classpath.
+          discard(idleWorkers.removeFirst());
+          continue;
+        }
+        // Wait for a worker to become idle, or for a DX run to free a child process slot.
+        wait(CHILD_PROCESS_RETRY_MILLIS);
+      }
+      liveWorkerCount++;
+    }
+
+    // Start the new worker outside of the lock; this is the slow part.
+    try {
+      Worker worker = new Worker(key, classpath, maxHeapMb, yailRuntime);
+      startedWorkerCount.incrementAndGet();
+      return worker;
+    } catch (IOException e) {
+      synchronized (this) {
+        liveWorkerCount--;
+        scheduler.releaseReservedChildProcess();
+        notifyAll();
+      }
+      throw e;
+    }
+  }
+
+  private synchronized void release(Worker worker, boolean reusable) {
+    // An idle worker would keep a waiting stage from its child process slot.
+    if (reusable && worker.isReusable() && !scheduler.isChildProcessWanted()) {
+      idleWorkers.addLast(worker);
+    } else {
+      discard(worker);
+    }
+    notifyAll();
+  }
+
+  // Stops a worker that has been taken out of idleWorkers, or was never put there. Guarded by this.
+  private void discard(Worker worker) {
+    worker.destroy();
+    liveWorkerCount--;
+    scheduler.releaseReservedChildProcess();
+  }
+
+  /*
+   * Returns the classpath entry (jar or directory) that contains KawaCompilerWorker.
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * A running KawaCompilerWorker process.
+   */
+  private class Worker {
+    private final String key;
+    private final Process process;
+    private final BufferedReader fromWorker;
+    private final Writer toWorker;
+    private int jobCount;
+    private boolean alive = true;
+
+    Worker(String key, String classpath, int maxHeapMb, String yailRuntime)
+        throws IOException {
+      this.key = key;
+      ProcessBuilder processBuilder = new ProcessBuilder(
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + maxHeapMb + "M",
+          "-cp", classpath + File.pathSeparator + getWorkerClasspath(),
+          KawaCompilerWorker.class.getName(),
+          yailRuntime);
+      processBuilder.redirectErrorStream(true);
+      LOG.info("Starting Kawa compiler worker: " + processBuilder.command());
+      long start = System.currentTimeMillis();
+      process = processBuilder.start();
+      fromWorker = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+      toWorker = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+
+      // Wait until the YAIL runtime is loaded. Anything printed before that goes to the log.
+      String line;
+      while ((line = fromWorker.readLine()) != null) {
+        if (line.equals(KawaCompilerWorker.READY_MARKER)) {
+          LOG.info("Kawa compiler worker ready in " +
+              ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+          return;
+        }
+        LOG.info("Kawa compiler worker: " + line);
+      }
+      destroy();
+      throw new IOException("Kawa compiler worker exited before loading the YAIL runtime");
+    }
+
+    boolean run(List<String> kawaArgs, PrintStream output) throws IOException {
+      jobCount++;
+      StringBuilder job = new StringBuilder();
+      job.append(kawaArgs.size()).append('\n');
+      for (String arg : kawaArgs) {
+        Preconditions.checkArgument(arg.indexOf('\n') == -1, "Invalid Kawa argument: %s", arg);
+        job.append(arg).append('\n');
+      }
+      toWorker.write(job.toString());
+      toWorker.flush();
+
+      String line;
+      while ((line = fromWorker.readLine()) != null) {
+        if (line.startsWith(KawaCompilerWorker.DONE_MARKER)) {
+          output.flush();
+          return Boolean.parseBoolean(
+              line.substring(KawaCompilerWorker.DONE_MARKER.length()));
+        }
+        output.println(line);
+      }
+      // Kawa exits the process when a source file has errors.
+      output.flush();
+      alive = false;
+      return false;
+    }
+
+    boolean isReusable() {
+      return alive && (maxJobsPerWorker == 0 || jobCount < maxJobsPerWorker);
+    }
+
+    void destroy() {
+      alive = false;
+      process.destroy();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main class of a long-lived Kawa compiler process started by {@link KawaCompilerPool}.
+ *
+ * <p>The worker loads the YAIL runtime once at startup and then reads compile jobs from its
+ * standard input. A job is a line containing the number of arguments, followed by one line per
+ * argument. The arguments are passed as is to {@code kawa.repl.processArgs}.
+ *
+ * <p>Everything the worker (or Kawa) prints goes to standard output. When a job is finished, the
+ * worker prints a line starting with {@link #DONE_MARKER}, followed by {@code true} or
+ * {@code false}. Kawa calls System.exit when it finds errors in a source file; the pool sees
+ * that as the end of the output stream and treats the job as failed.
+ *
+ * <p>Kawa is not on the build server's compile time classpath, so it is accessed via reflection.
+ */
+public final class KawaCompilerWorker {
+  static final String READY_MARKER = "\u0001KAWA-WORKER-READY";
+  static final String DONE_MARKER = "\u0001KAWA-WORKER-DONE ";
+
+  private KawaCompilerWorker() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of the YAIL runtime (runtime.scm) to preload
+   */
+  public static void main(String[] args) throws Exception {
+    // Send Kawa's error output to the same stream as the protocol markers, so that the pool can
+    // attribute it to the job that produced it. This must happen before any Kawa class is loaded.
+    PrintStream output = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+    System.setOut(output);
+    System.setErr(output);
+
+    Method processArgs = Class.forName("kawa.repl")
+        .getMethod("processArgs", String[].class, int.class, int.class);
+    Object moduleManager = Class.forName("gnu.expr.ModuleManager")
+        .getMethod("getInstance").invoke(null);
+    Method clearModules = moduleManager.getClass().getMethod("clear");
+    Method errDefault = Class.forName("gnu.mapping.OutPort").getMethod("errDefault");
+
+    // Load the YAIL runtime once. This is what makes the worker "warm".
+    String[] preload = { "-f", args[0] };
+    processArgs.invoke(null, preload, 0, preload.length);
+    output.println(READY_MARKER);
+
+    BufferedReader input = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String line;
+    while ((line = input.readLine()) != null) {
+      String[] jobArgs = new String[Integer.parseInt(line.trim())];
+      for (int i = 0; i < jobArgs.length; i++) {
+        jobArgs[i] = input.readLine();
+      }
+
+      boolean success;
+      try {
+        processArgs.invoke(null, jobArgs, 0, jobArgs.length);
+        success = true;
+      } catch (InvocationTargetException e) {
+        e.getCause().printStackTrace(output);
+        success = false;
+      }
+      // Forget the modules compiled for this job so that the next project, which may use the
+      // same class names, does not pick them up.
+      clearModules.invoke(moduleManager);
+      flush(errDefault.invoke(null));
+      output.println(DONE_MARKER + success);
+    }
+  }
+
+  private static void flush(Object port) {
+    try {
+      ((Flushable) port).flush();
+    } catch (IOException e) {
+      // OK to ignore, the output is only used for diagnostics.
+    }
+  }
+}
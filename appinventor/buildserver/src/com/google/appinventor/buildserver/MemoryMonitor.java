@@ -0,0 +1,385 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Passive memory telemetry for the build server, and the admission check that rejects builds
+ * when memory is low.
+ *
+ * <p>Nothing here forces a garbage collection. Heap headroom is computed from the memory pool
+ * usage after the last collection, which the JVM keeps track of anyway. GC pauses are recorded
+ * from the JVM's GC notifications. The peak resident set size of child processes (Kawa, DX,
+ * aapt...) is sampled from /proc, so it is only available on Linux.
+ */
+final class MemoryMonitor {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MemoryMonitor.class.getName());
+
+  // Upper bounds of the GC pause histogram buckets, in ms. The last bucket has no upper bound.
+  static final long[] GC_PAUSE_BUCKETS_MS = { 1, 5, 10, 50, 100, 500, 1000, 5000 };
+
+  // Upper bounds of the per build child process peak RSS histogram buckets, in MB.
+  static final long[] CHILD_RSS_BUCKETS_MB = { 128, 256, 512, 1024, 1536, 2048, 3072 };
+
+  // How often the RSS of running child processes is sampled.
+  private static final long CHILD_SAMPLE_INTERVAL_MS = 250;
+
+  private static final MemoryMonitor INSTANCE = new MemoryMonitor();
+
+  private final Histogram gcPauses = new Histogram(GC_PAUSE_BUCKETS_MS);
+  private final Histogram childPeakRss = new Histogram(CHILD_RSS_BUCKETS_MB);
+  private final AtomicLong maxChildPeakRssBytes = new AtomicLong(0);
+  private final AtomicLong lowMemoryRejections = new AtomicLong(0);
+
+  // The peak child process RSS of the build running on the current thread.
+  private final ThreadLocal<AtomicLong> buildChildPeakRss = new ThreadLocal<AtomicLong>();
+
+  private final ScheduledExecutorService sampler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "child-process-rss-sampler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private volatile long minHeapHeadroomBytes = 0;
+  private volatile long minFreePhysicalMemoryBytes = 0;
+
+  static MemoryMonitor getInstance() {
+    return INSTANCE;
+  }
+
+  MemoryMonitor() {
+    listenForGcPauses();
+  }
+
+  /**
+   * Sets the thresholds below which {@link #hasHeadroom} returns false. 0 disables a check.
+   */
+  void setMinimumHeadroom(long minHeapHeadroomBytes, long minFreePhysicalMemoryBytes) {
+    this.minHeapHeadroomBytes = minHeapHeadroomBytes;
+    this.minFreePhysicalMemoryBytes = minFreePhysicalMemoryBytes;
+  }
+
+  /**
+   * Returns true if there is enough memory to start another build. If not, the rejection is
+   * counted and logged.
+   */
+  boolean hasHeadroom() {
+    return hasHeadroom(getHeapHeadroomBytes(), getFreePhysicalMemoryBytes());
+  }
+
+  boolean hasHeadroom(long heapHeadroomBytes, long freePhysicalMemoryBytes) {
+    if (minHeapHeadroomBytes > 0 && heapHeadroomBytes < minHeapHeadroomBytes) {
+      lowMemoryRejections.incrementAndGet();
+      LOG.warning("Not enough heap for a new build: " + heapHeadroomBytes + " bytes left");
+      return false;
+    }
+    if (minFreePhysicalMemoryBytes > 0 && freePhysicalMemoryBytes >= 0 &&
+        freePhysicalMemoryBytes < minFreePhysicalMemoryBytes) {
+      lowMemoryRejections.incrementAndGet();
+      LOG.warning("Not enough physical memory for a new build: " + freePhysicalMemoryBytes +
+          " bytes free");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns how much more the heap can hold, not counting the garbage collected by the last
+   * collection of each pool.
+   */
+  static long getHeapHeadroomBytes() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        MemoryUsage afterGc = pool.getCollectionUsage();
+        used += (afterGc != null) ? afterGc.getUsed() : pool.getUsage().getUsed();
+      }
+    }
+    return Runtime.getRuntime().maxMemory() - used;
+  }
+
+  /**
+   * Returns the free physical memory of the machine, or -1 if it is not known.
+   */
+  static long getFreePhysicalMemoryBytes() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize();
+    }
+    return -1;
+  }
+
+  /**
+   * Starts attributing the child processes started by the current thread to a new build.
+   */
+  void startBuild() {
+    buildChildPeakRss.set(new AtomicLong(0));
+  }
+
+  /**
+   * Stops attributing child processes to the build running on the current thread, and returns
+   * the peak RSS of its child processes in bytes.
+   */
+  long finishBuild() {
+    AtomicLong peak = buildChildPeakRss.get();
+    buildChildPeakRss.remove();
+    if (peak == null) {
+      return 0;
+    }
+    long peakBytes = peak.get();
+    if (peakBytes > 0) {
+      childPeakRss.record(peakBytes / (1024 * 1024));
+    }
+    return peakBytes;
+  }
+
+  /**
+   * Samples the peak RSS of a child process until the returned watch is stopped. The peak is
+   * attributed to the build running on the current thread.
+   */
+  ChildProcessWatch watch(Process process) {
+    final int pid = getPid(process);
+    final AtomicLong buildPeak = buildChildPeakRss.get();
+    final ChildProcessWatch watch = new ChildProcessWatch(buildPeak);
+    if (pid > 0 && new File("/proc/" + pid + "/status").exists()) {
+      watch.future = sampler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          watch.sample(pid);
+        }
+      }, 0, CHILD_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    return watch;
+  }
+
+  /**
+   * A child process whose RSS is being sampled.
+   */
+  final class ChildProcessWatch {
+    private final AtomicLong buildPeak;
+    private final AtomicLong peak = new AtomicLong(0);
+    private volatile ScheduledFuture<?> future;
+
+    private ChildProcessWatch(AtomicLong buildPeak) {
+      this.buildPeak = buildPeak;
+    }
+
+    private void sample(int pid) {
+      long hwm = readPeakRssBytes(pid);
+      if (hwm > 0) {
+        updateMax(peak, hwm);
+      }
+    }
+
+    /**
+     * Stops sampling, and returns the peak RSS of the process in bytes (0 if unknown).
+     */
+    long stop() {
+      if (future != null) {
+        future.cancel(false);
+      }
+      long peakBytes = peak.get();
+      updateMax(maxChildPeakRssBytes, peakBytes);
+      if (buildPeak != null) {
+        updateMax(buildPeak, peakBytes);
+      }
+      return peakBytes;
+    }
+  }
+
+  /*
+   * Returns the peak RSS (VmHWM) of the process, or 0 if the process is gone.
+   */
+  private static long readPeakRssBytes(int pid) {
+    try {
+      for (String line : Files.readLines(new File("/proc/" + pid + "/status"), Charsets.UTF_8)) {
+        if (line.startsWith("VmHWM:")) {
+          // For example "VmHWM:	  123456 kB"
+          String[] fields = line.substring("VmHWM:".length()).trim().split("\\s+");
+          return Long.parseLong(fields[0]) * 1024;
+        }
+      }
+    } catch (IOException e) {
+      // The process exited.
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Unexpected /proc/" + pid + "/status format", e);
+    }
+    return 0;
+  }
+
+  /*
+   * Returns the process id of a child process, or -1 if it can't be found.
+   */
+  static int getPid(Process process) {
+    try {
+      // Java 9 and later.
+      return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+    } catch (Exception e) {
+      // Fall through.
+    }
+    try {
+      // java.lang.UNIXProcess before Java 9.
+      Field pidField = process.getClass().getDeclaredField("pid");
+      pidField.setAccessible(true);
+      return pidField.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private void listenForGcPauses() {
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gcBean instanceof NotificationEmitter) {
+        ((NotificationEmitter) gcBean).addNotificationListener(new NotificationListener() {
+          @Override
+          public void handleNotification(Notification notification, Object handback) {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(
+                notification.getType())) {
+              GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                  (CompositeData) notification.getUserData());
+              gcPauses.record(info.getGcInfo().getDuration());
+            }
+          }
+        }, null, null);
+      }
+    }
+  }
+
+  /**
+   * Adds the memory variables shown on /buildserver/vars.
+   */
+  void addVariables(Map<String, String> variables) {
+    long directBytes = 0;
+    long mappedBytes = 0;
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        directBytes = pool.getMemoryUsed();
+      } else if (pool.getName().equals("mapped")) {
+        mappedBytes = pool.getMemoryUsed();
+      }
+    }
+    variables.put("heap-headroom-in-bytes", getHeapHeadroomBytes() + "");
+    variables.put("direct-buffer-memory-in-bytes", directBytes + "");
+    variables.put("mapped-buffer-memory-in-bytes", mappedBytes + "");
+    variables.put("free-physical-memory-in-bytes", getFreePhysicalMemoryBytes() + "");
+
+    long gcCount = 0;
+    long gcTimeMillis = 0;
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, gcBean.getCollectionCount());
+      gcTimeMillis += Math.max(0, gcBean.getCollectionTime());
+    }
+    variables.put("gc-count", gcCount + "");
+    variables.put("gc-time-in-ms", gcTimeMillis + "");
+    gcPauses.addVariables(variables, "gc-pause-in-ms");
+
+    variables.put("maximum-child-process-peak-rss-in-bytes", maxChildPeakRssBytes.get() + "");
+    childPeakRss.addVariables(variables, "build-child-process-peak-rss-in-mb");
+
+    File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+    variables.put("temp-disk-total-in-bytes", tmpDir.getTotalSpace() + "");
+    variables.put("temp-disk-usable-in-bytes", tmpDir.getUsableSpace() + "");
+
+    variables.put("low-memory-rejected-builds", lowMemoryRejections.get() + "");
+  }
+
+  long getLowMemoryRejectionCount() {
+    return lowMemoryRejections.get();
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get())) {
+      if (max.compareAndSet(current, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * A histogram with fixed buckets. Counts are cumulative, like Prometheus histograms.
+   */
+  static final class Histogram {
+    private final long[] bounds;
+    // One count per bound, plus one for values above the last bound.
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong(0);
+
+    Histogram(long[] bounds) {
+      this.bounds = bounds;
+      counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    void record(long value) {
+      int i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+      counts.incrementAndGet(i);
+      sum.addAndGet(value);
+    }
+
+    /**
+     * Returns the number of recorded values that are at most bounds[bucket], or the total count
+     * if bucket is bounds.length.
+     */
+    long getCumulativeCount(int bucket) {
+      long count = 0;
+      for (int i = 0; i <= bucket; i++) {
+        count += counts.get(i);
+      }
+      return count;
+    }
+
+    long getSum() {
+      return sum.get();
+    }
+
+    void addVariables(Map<String, String> variables, String name) {
+      for (int i = 0; i < bounds.length; i++) {
+        variables.put(name + "-bucket-le-" + bounds[i], getCumulativeCount(i) + "");
+      }
+      variables.put(name + "-bucket-le-inf", getCumulativeCount(bounds.length) + "");
+      variables.put(name + "-count", getCumulativeCount(bounds.length) + "");
+      variables.put(name + "-sum", getSum() + "");
+    }
+  }
+}
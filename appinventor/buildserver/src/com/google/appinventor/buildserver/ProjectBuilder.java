@@ -7,13 +7,16 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.utils.StringUtils;
+import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
 import com.google.common.io.Files;
 import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
@@ -23,9 +26,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
@@ -47,6 +52,7 @@ public final class ProjectBuilder {
   private File outputApk;
   private File outputKeystore;
   private boolean saveKeystore;
+  private BuildProgress buildProgress = new BuildProgress();
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
@@ -80,6 +86,18 @@ public final class ProjectBuilder {
     return outputKeystore;
   }
 
+  /**
+   * Sets the object used to report the progress of the build. By default, the progress is not
+   * visible outside of this ProjectBuilder.
+   */
+  void setBuildProgress(BuildProgress buildProgress) {
+    this.buildProgress = buildProgress;
+  }
+
+  BuildProgress getBuildProgress() {
+    return buildProgress;
+  }
+
   /**
    * Creates a new directory beneath the system's temporary directory (as
    * defined by the {@code java.io.tmpdir} system property), and returns its
@@ -120,6 +138,7 @@ public final class ProjectBuilder {
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        buildProgress.startStage(BuildProgress.Stage.EXTRACT);
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
@@ -127,6 +146,29 @@ public final class ProjectBuilder {
           return Result.createFailingResult("", "Problems processing zip file.");
         }
 
+        // If the same project was built before with the same keystore, reuse its APK.
+        BuildCache cache = Compiler.getBuildCache();
+        String apkKey = null;
+        File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
+        if (cache != null && keyStoreFile.exists()) {
+          apkKey = getApkKey(projectRoot, sourceFiles, isForCompanion);
+          File cachedApk = cache.get(BuildCache.APK, apkKey);
+          if (cachedApk != null) {
+            try {
+              outputApk = new File(outputDir, getProjectProperties(projectRoot).getProjectName() +
+                  ".apk");
+              Files.copy(cachedApk, outputApk);
+              LOG.info("Reusing the APK " + apkKey + " from the build cache");
+              return new Result(true, "", "");
+            } catch (IOException e) {
+              // The entry may have been evicted while we were copying it.
+              LOG.warning("Unable to copy the APK " + apkKey + " from the build cache: " + e);
+              outputApk = null;
+            }
+          }
+        }
+
+        buildProgress.startStage(BuildProgress.Stage.YAIL);
         try {
           genYailFilesIfNecessary(sourceFiles);
         } catch (YailGenerationException e) {
@@ -138,7 +180,6 @@ public final class ProjectBuilder {
           return Result.createFailingResult("", "Unexpected problems generating YAIL.");
         }
 
-        File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
@@ -163,7 +204,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, buildProgress);
         console.close();
         userErrors.close();
 
@@ -181,6 +222,9 @@ public final class ProjectBuilder {
           } else {
             outputApk = new File(outputDir, outputFile.getName());
             Files.copy(outputFile, outputApk);
+            if (apkKey != null) {
+              cache.put(BuildCache.APK, apkKey, outputFile);
+            }
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
@@ -202,6 +246,29 @@ public final class ProjectBuilder {
     }
   }
 
+  /*
+   * Returns the build cache key of a project's APK. The key covers every project file, including
+   * the keystore, so an APK from the cache is signed just like a new build would be, and the
+   * runtime and tools it is built with, so a redeployed build server doesn't reuse APKs that were
+   * built with an older runtime.
+   */
+  private static String getApkKey(File projectRoot, List<String> sourceFiles,
+      boolean isForCompanion) throws IOException {
+    Hasher hasher = BuildCache.newHasher();
+    hasher.putString(Strings.nullToEmpty(GitBuildId.getVersion()), Charsets.UTF_8);
+    hasher.putString(Compiler.getApkToolchainKey(), Charsets.UTF_8);
+    hasher.putBoolean(isForCompanion);
+    String rootPath = projectRoot.getAbsolutePath() + File.separator;
+    List<String> files = Lists.newArrayList(sourceFiles);
+    Collections.sort(files);
+    for (String file : files) {
+      File projectFile = new File(file);
+      BuildCache.hashFile(hasher, projectFile.getAbsolutePath().substring(rootPath.length()),
+          projectFile);
+    }
+    return hasher.hash().toString();
+  }
+
   private void genYailFilesIfNecessary(List<String> sourceFiles)
       throws IOException, YailGenerationException {
     // Filter out the files that aren't really source files (i.e. that don't end in .scm or .yail)
@@ -213,6 +280,7 @@ public final class ProjectBuilder {
             return input.endsWith(FORM_PROPERTIES_EXTENSION) || input.endsWith(YAIL_EXTENSION);
           }
         });
+    List<String> rootPaths = Lists.newArrayList();
     for (String sourceFile : formAndYailSourceFiles) {
       if (sourceFile.endsWith(FORM_PROPERTIES_EXTENSION)) {
         String rootPath = sourceFile.substring(0, sourceFile.length()
@@ -221,10 +289,13 @@ public final class ProjectBuilder {
         // Note: Famous last words: The following contains() makes this method O(n**2) but n should
         // be pretty small.
         if (!sourceFiles.contains(yailFilePath)) {
-          generateYail(rootPath);
+          rootPaths.add(rootPath);
         }
       }
     }
+    if (!rootPaths.isEmpty()) {
+      generateYail(rootPaths);
+    }
   }
 
   private static Set<String> getAllComponentTypes() throws IOException {
@@ -413,43 +484,87 @@ public final class ProjectBuilder {
     return new Project(projectRoot.getAbsolutePath() + "/" + PROJECT_PROPERTIES_FILE_NAME);
   }
 
-  private File generateYail(String rootName) throws IOException, YailGenerationException {
-    String formPropertiesPath = rootName + FORM_PROPERTIES_EXTENSION;
-    String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
-    String yailPath = rootName + YAIL_EXTENSION;
-
-    String[] commandLine = {
+  /*
+   * Generates the YAIL of the given forms with a single YailGeneratorBatch process, which works
+   * on several forms in parallel.
+   */
+  private void generateYail(List<String> rootNames) throws IOException, YailGenerationException {
+    int threads = Math.min(rootNames.size(), Runtime.getRuntime().availableProcessors());
+    List<String> commandLineList = Lists.newArrayList(
       System.getProperty("java.home") + "/bin/java",
       "-mx1024M",
-      "-jar",
+      "-cp",
+      getClasspath(YailGeneratorBatch.class),
+      YailGeneratorBatch.class.getName(),
       Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
-      new File(formPropertiesPath).getAbsolutePath(),
-      new File(codeblocksSourcePath).getAbsolutePath(),
-      yailPath
-    };
+      Integer.toString(threads));
+    for (String rootName : rootNames) {
+      commandLineList.add(rootName + FORM_PROPERTIES_EXTENSION);
+      commandLineList.add(rootName + CODEBLOCKS_SOURCE_EXTENSION);
+      commandLineList.add(rootName + YAIL_EXTENSION);
+    }
+    String[] commandLine = commandLineList.toArray(new String[commandLineList.size()]);
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
-    if (exitValue == 0) {
-      String generatedYailString = out.toString();
-      File generatedYailFile = new File(yailPath);
-      Files.write(generatedYailString, generatedYailFile, Charsets.UTF_8);
-      return generatedYailFile;
-    } else {
-      String formName = PathUtil.trimOffExtension(PathUtil.basename(formPropertiesPath));
-      if (exitValue == 1) {
-        // Failed to generate yail for legitimate reasons, such as empty sockets.
-        throw new YailGenerationException("Unable to generate code for " + formName + "."
-            + "\n -- err is " + err.toString()
-            + "\n -- out is" + out.toString(),
-            formName);
-      } else {
-        // Any other exit value is unexpected.
-        throw new RuntimeException("YailGenerator for form " + formName
-            + " exited with code " + exitValue
+    long start = System.currentTimeMillis();
+    int batchExitValue = Execution.execute(null, commandLine, out, err);
+    LOG.info("YAIL generation for " + rootNames.size() + " forms took " +
+        (System.currentTimeMillis() - start) + " ms");
+
+    // Collect the exit value of each form.
+    Integer[] exitValues = new Integer[rootNames.size()];
+    for (String line : out.toString().split("\n")) {
+      if (line.startsWith(YailGeneratorBatch.RESULT_MARKER)) {
+        String[] result = line.substring(YailGeneratorBatch.RESULT_MARKER.length()).trim()
+            .split(" ");
+        exitValues[Integer.parseInt(result[0])] = Integer.parseInt(result[1]);
+      }
+    }
+
+    // Report the first form that failed, like when forms were generated one at a time.
+    for (int i = 0; i < rootNames.size(); i++) {
+      File generatedYailFile = new File(rootNames.get(i) + YAIL_EXTENSION);
+      File errorFile = new File(generatedYailFile.getPath() + YailGeneratorBatch.ERROR_SUFFIX);
+      String formName = PathUtil.basename(rootNames.get(i));
+      Integer exitValue = exitValues[i];
+      if (exitValue == null) {
+        throw new RuntimeException("YailGeneratorBatch exited with code " + batchExitValue
+            + " before generating code for " + formName
             + "\n -- err is " + err.toString()
             + "\n -- out is" + out.toString());
       }
+      String formErr = errorFile.exists() ? Files.toString(errorFile, Charsets.UTF_8) : "";
+      errorFile.delete();
+      if (exitValue != 0) {
+        String formOut = generatedYailFile.exists()
+            ? Files.toString(generatedYailFile, Charsets.UTF_8) : "";
+        generatedYailFile.delete();
+        if (exitValue == 1) {
+          // Failed to generate yail for legitimate reasons, such as empty sockets.
+          throw new YailGenerationException("Unable to generate code for " + formName + "."
+              + "\n -- err is " + formErr
+              + "\n -- out is" + formOut,
+              formName);
+        } else {
+          // Any other exit value is unexpected.
+          throw new RuntimeException("YailGenerator for form " + formName
+              + " exited with code " + exitValue
+              + "\n -- err is " + formErr
+              + "\n -- out is" + formOut);
+        }
+      }
+    }
+  }
+
+  /*
+   * Returns the jar or directory that contains the given class.
+   */
+  private static String getClasspath(Class<?> clazz) throws IOException {
+    try {
+      return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI())
+          .getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
     }
   }
 
@@ -469,8 +584,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
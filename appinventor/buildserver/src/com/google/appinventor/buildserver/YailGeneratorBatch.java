@@ -0,0 +1,244 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+
+/**
+ * Main class of a process that generates the YAIL of all the forms of a project.
+ *
+ * <p>YailGenerator.jar only handles one form per run, so running it directly costs a JVM
+ * startup per form. This class runs the generator's main method in-process, on several threads
+ * at once, each form with its own class loader so that forms don't share the generator's static
+ * state. What the generator prints to System.out is streamed to the form's .yail file, and what
+ * it prints to System.err goes to the .yail file name followed by {@link #ERROR_SUFFIX}. Calls
+ * to System.exit are turned into the form's exit value.
+ *
+ * <p>For each form, the process prints a line starting with {@link #RESULT_MARKER}, followed by
+ * the index of the form and its exit value.
+ */
+public final class YailGeneratorBatch {
+  static final String RESULT_MARKER = "\u0001YAIL-RESULT ";
+  static final String ERROR_SUFFIX = ".err";
+
+  // The exit value reported when the generator throws an exception.
+  static final int UNEXPECTED_ERROR = -1;
+
+  private YailGeneratorBatch() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  the path of YailGenerator.jar, the number of threads, and then for each form
+   *              the paths of its .scm, .bky and .yail files
+   */
+  public static void main(String[] args) throws Exception {
+    PrintStream output = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+    List<String[]> forms = new ArrayList<String[]>();
+    for (int i = 2; i + 2 < args.length; i += 3) {
+      forms.add(new String[] { args[i], args[i + 1], args[i + 2] });
+    }
+    int[] exitValues = generate(new File(args[0]), forms, Integer.parseInt(args[1]));
+    for (int i = 0; i < exitValues.length; i++) {
+      output.println(RESULT_MARKER + i + " " + exitValues[i]);
+    }
+  }
+
+  /**
+   * Generates the YAIL of the given forms, and returns the exit value of each.
+   *
+   * @param generatorJar  YailGenerator.jar
+   * @param forms  the paths of the .scm, .bky and .yail files of each form
+   * @param threads  the maximum number of forms to process at once
+   */
+  static int[] generate(final File generatorJar, List<String[]> forms, int threads)
+      throws IOException, InterruptedException {
+    final String mainClassName = getMainClassName(generatorJar);
+    PrintStream savedOut = System.out;
+    PrintStream savedErr = System.err;
+    SecurityManager savedSecurityManager = System.getSecurityManager();
+    OutputStream out = new ThreadOutputStream(savedOut, ThreadOutputStream.OUT);
+    OutputStream err = new ThreadOutputStream(savedErr, ThreadOutputStream.ERR);
+    System.setOut(new PrintStream(out, true, "UTF-8"));
+    System.setErr(new PrintStream(err, true, "UTF-8"));
+    System.setSecurityManager(new ExitTrappingSecurityManager());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+      for (final String[] form : forms) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return generate(generatorJar, mainClassName, form);
+          }
+        }));
+      }
+      int[] exitValues = new int[forms.size()];
+      for (int i = 0; i < exitValues.length; i++) {
+        try {
+          exitValues[i] = futures.get(i).get();
+        } catch (ExecutionException e) {
+          e.getCause().printStackTrace(savedErr);
+          exitValues[i] = UNEXPECTED_ERROR;
+        }
+      }
+      return exitValues;
+    } finally {
+      executor.shutdown();
+      System.setSecurityManager(savedSecurityManager);
+      System.setOut(savedOut);
+      System.setErr(savedErr);
+    }
+  }
+
+  private static int generate(File generatorJar, String mainClassName, String[] form)
+      throws IOException {
+    String yailPath = form[2];
+    OutputStream yail = new BufferedOutputStream(new FileOutputStream(yailPath));
+    PrintStream err = new PrintStream(new FileOutputStream(yailPath + ERROR_SUFFIX), true,
+        "UTF-8");
+    ThreadOutputStream.set(yail, err);
+    // Each form gets its own copy of the generator's classes.
+    URLClassLoader loader = new URLClassLoader(new URL[] { generatorJar.toURI().toURL() },
+        ClassLoader.getSystemClassLoader().getParent());
+    try {
+      Method main = loader.loadClass(mainClassName).getMethod("main", String[].class);
+      main.invoke(null, (Object) new String[] {
+          new File(form[0]).getAbsolutePath(), new File(form[1]).getAbsolutePath(), yailPath });
+      return 0;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof ExitException) {
+        return ((ExitException) e.getCause()).status;
+      }
+      e.getCause().printStackTrace(err);
+      return UNEXPECTED_ERROR;
+    } catch (ReflectiveOperationException e) {
+      e.printStackTrace(err);
+      return UNEXPECTED_ERROR;
+    } finally {
+      System.out.flush();
+      System.err.flush();
+      ThreadOutputStream.set(null, null);
+      loader.close();
+      yail.close();
+      err.close();
+    }
+  }
+
+  private static String getMainClassName(File jar) throws IOException {
+    JarFile jarFile = new JarFile(jar);
+    try {
+      return jarFile.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+    } finally {
+      jarFile.close();
+    }
+  }
+
+  /*
+   * Sends the output of each thread (and of the threads it starts) to the streams set for it.
+   */
+  private static class ThreadOutputStream extends OutputStream {
+    private static final InheritableThreadLocal<OutputStream[]> STREAMS =
+        new InheritableThreadLocal<OutputStream[]>();
+
+    static final int OUT = 0;
+    static final int ERR = 1;
+
+    private final OutputStream defaultStream;
+    private final int index;
+
+    ThreadOutputStream(OutputStream defaultStream, int index) {
+      this.defaultStream = defaultStream;
+      this.index = index;
+    }
+
+    static boolean isRedirected() {
+      return STREAMS.get() != null;
+    }
+
+    static void set(OutputStream out, OutputStream err) {
+      if (out == null) {
+        STREAMS.remove();
+      } else {
+        STREAMS.set(new OutputStream[] { out, err });
+      }
+    }
+
+    private OutputStream target() {
+      OutputStream[] streams = STREAMS.get();
+      return streams == null ? defaultStream : streams[index];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      target().flush();
+    }
+  }
+
+  /*
+   * Turns System.exit calls made by the generator into ExitExceptions.
+   */
+  private static class ExitTrappingSecurityManager extends SecurityManager {
+    @Override
+    public void checkExit(int status) {
+      if (ThreadOutputStream.isRedirected()) {
+        throw new ExitException(status);
+      }
+    }
+
+    @Override
+    public void checkPermission(Permission permission) {
+      // Everything else is allowed.
+    }
+
+    @Override
+    public void checkPermission(Permission permission, Object context) {
+      // Everything else is allowed.
+    }
+  }
+
+  private static class ExitException extends SecurityException {
+    private static final long serialVersionUID = 3418226545924157309L;
+
+    final int status;
+
+    ExitException(int status) {
+      super("System.exit(" + status + ")");
+      this.status = status;
+    }
+  }
+}
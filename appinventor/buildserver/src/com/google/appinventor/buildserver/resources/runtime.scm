@@ -1715,7 +1715,14 @@ list, use the make-yail-list constructor with no arguments.
   (cdr yail-list))
 
 (define (set-yail-list-contents! yail-list contents)
-  (set-cdr! yail-list contents))
+  (set-cdr! yail-list contents)
+  (yail-list-changed! yail-list))
+
+;; A YailList keeps its elements in an array for indexed access from Java.
+;; Operations that change the pairs of a yail list must drop that array.
+(define (yail-list-changed! yail-list)
+  (if (instance? yail-list YailList)
+      (*:clearSnapshot (as YailList yail-list))))
 
 
 (define (insert-yail-list-header x)
@@ -1879,7 +1886,8 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "List index too large")))
-  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value))
+  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value)
+  (yail-list-changed! yail-list))
 
 
 
@@ -1911,7 +1919,8 @@ list, use the make-yail-list constructor with no arguments.
                    (get-display-representation yail-list))
            "List index too large"))
       (let ((pair-pointing-to-deletion (list-tail yail-list (- index2 1))))
-        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))))))
+        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))
+        (yail-list-changed! yail-list)))))
 
 
 ;; Implements the Blocks insert list item operation
@@ -1944,7 +1953,8 @@ list, use the make-yail-list constructor with no arguments.
         (if (= index2 1)
             (set-yail-list-contents! yail-list (cons item contents))
             (let ((at-item (list-tail contents (- index2 2))))
-              (set-cdr! at-item (cons item (cdr at-item)))))))))
+              (set-cdr! at-item (cons item (cdr at-item)))))
+        (yail-list-changed! yail-list)))))
 
 ;; Extends list A by appending the elements of list B to it
 ;; Modifies list A
@@ -1961,7 +1971,8 @@ list, use the make-yail-list constructor with no arguments.
   ;; We have to operate on the yail-list itself, not the contents, because
   ;; the contents might be empty
   (set-cdr! (list-tail yail-list-A (length (yail-list-contents yail-list-A)))
-        (list-copy (yail-list-contents yail-list-B))))
+        (list-copy (yail-list-contents yail-list-B)))
+  (yail-list-changed! yail-list-A))
 
 
 ;; Extend list A by appending the items to it
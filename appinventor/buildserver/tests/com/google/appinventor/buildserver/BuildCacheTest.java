@@ -0,0 +1,96 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+/**
+ * Tests BuildCache class.
+ *
+ */
+public class BuildCacheTest extends TestCase {
+  private File tmpDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testFilesAndDirectoriesAreCached() throws Exception {
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 1024 * 1024);
+    assertNull(cache.get(BuildCache.APK, "key"));
+    assertEquals(1, cache.getMissCount(BuildCache.APK));
+
+    File apk = writeFile("app.apk", "apk");
+    cache.put(BuildCache.APK, "key", apk);
+    File entry = cache.get(BuildCache.APK, "key");
+    assertEquals("apk", Files.toString(entry, Charsets.UTF_8));
+    assertEquals(1, cache.getHitCount(BuildCache.APK));
+    assertEquals(1, cache.getStoreCount(BuildCache.APK));
+
+    File classes = new File(tmpDir, "classes");
+    writeFile("classes/a/Screen1.class", "screen");
+    writeFile("classes/a/Screen1$frame.class", "frame");
+    cache.put(BuildCache.SCREEN_CLASSES, "key", classes);
+    entry = cache.get(BuildCache.SCREEN_CLASSES, "key");
+    assertEquals("frame", Files.toString(new File(entry, "a/Screen1$frame.class"), Charsets.UTF_8));
+    assertEquals(0, cache.getHitCount(BuildCache.DEX));
+  }
+
+  public void testKeysDependOnContent() throws Exception {
+    File file = writeFile("Screen1.yail", "(foo)");
+    String first = hash("Screen1.yail", file);
+    assertEquals(first, hash("Screen1.yail", file));
+    assertFalse(first.equals(hash("Screen2.yail", file)));
+    writeFile("Screen1.yail", "(bar)");
+    assertFalse(first.equals(hash("Screen1.yail", file)));
+  }
+
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    BuildCache cache = new BuildCache(new File(tmpDir, "cache"), 25);
+    cache.put(BuildCache.DEX, "first", writeFile("first", "0123456789"));
+    cache.put(BuildCache.DEX, "second", writeFile("second", "0123456789"));
+    // Make "first" the most recently used entry.
+    new File(tmpDir, "cache/dex/second").setLastModified(System.currentTimeMillis() - 10000);
+    assertNotNull(cache.get(BuildCache.DEX, "first"));
+
+    cache.put(BuildCache.DEX, "third", writeFile("third", "0123456789"));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(20, cache.getTotalBytes());
+    assertNull(cache.get(BuildCache.DEX, "second"));
+    assertNotNull(cache.get(BuildCache.DEX, "first"));
+    assertNotNull(cache.get(BuildCache.DEX, "third"));
+
+    // A new cache picks up the entries of the previous one.
+    assertEquals(20, new BuildCache(new File(tmpDir, "cache"), 25).getTotalBytes());
+  }
+
+  private File writeFile(String name, String content) throws Exception {
+    File file = new File(tmpDir, name);
+    file.getParentFile().mkdirs();
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static String hash(String name, File file) throws Exception {
+    Hasher hasher = BuildCache.newHasher();
+    BuildCache.hashFile(hasher, name, file);
+    return hasher.hash().toString();
+  }
+}
@@ -0,0 +1,58 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Tests BuildProgress class.
+ *
+ */
+public class BuildProgressTest extends TestCase {
+  public void testBuildsAreTrackedSeparately() throws Exception {
+    BuildProgress first = BuildProgress.register("first");
+    BuildProgress second = BuildProgress.register("second");
+    first.setProgress(35);
+    second.setProgress(85);
+    assertEquals(35, BuildProgress.get("first").getProgress());
+    assertEquals(85, BuildProgress.get("second").getProgress());
+    assertNull(BuildProgress.get("third"));
+    assertNull(BuildProgress.get(null));
+  }
+
+  public void testStagesAreReported() throws Exception {
+    BuildProgress buildProgress = BuildProgress.register("stages");
+    buildProgress.startStage(BuildProgress.Stage.EXTRACT);
+    buildProgress.startStage(BuildProgress.Stage.KAWA);
+    buildProgress.setProgress(20);
+
+    JSONObject json = buildProgress.toJson();
+    assertEquals("stages", json.getString("buildId"));
+    assertEquals(20, json.getInt("progress"));
+    assertEquals("kawa", json.getString("stage"));
+    assertFalse(json.getBoolean("done"));
+    assertFalse(json.has("succeeded"));
+    JSONObject stages = json.getJSONObject("stages");
+    assertTrue(stages.has("queued"));
+    assertTrue(stages.has("extract"));
+    assertTrue(stages.has("kawa"));
+    assertFalse(stages.has("dx"));
+
+    buildProgress.finish(true);
+    json = buildProgress.toJson();
+    assertEquals(100, json.getInt("progress"));
+    assertTrue(json.getBoolean("done"));
+    assertTrue(json.getBoolean("succeeded"));
+  }
+
+  public void testUnregisteredProgressIsNotVisible() throws Exception {
+    BuildProgress buildProgress = new BuildProgress();
+    buildProgress.setProgress(50);
+    assertNull(BuildProgress.get(buildProgress.getBuildId()));
+  }
+}
@@ -0,0 +1,105 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.BuildStageScheduler.Stage;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests BuildStageScheduler class.
+ *
+ */
+public class BuildStageSchedulerTest extends TestCase {
+  public void testStagesRunInParallel() throws Exception {
+    BuildStageScheduler scheduler = new BuildStageScheduler(2, 1, 3);
+    scheduler.acquire(Stage.KAWA);
+    scheduler.acquire(Stage.KAWA);
+    scheduler.acquire(Stage.DX);
+    assertEquals(2, scheduler.getActiveCount(Stage.KAWA));
+    assertEquals(1, scheduler.getActiveCount(Stage.DX));
+    scheduler.release(Stage.KAWA);
+    scheduler.release(Stage.KAWA);
+    scheduler.release(Stage.DX);
+    assertEquals(0, scheduler.getActiveCount(Stage.KAWA));
+    assertEquals(2, scheduler.getAdmittedCount(Stage.KAWA));
+  }
+
+  public void testStageWaitsForChildProcessSlot() throws Exception {
+    final BuildStageScheduler scheduler = new BuildStageScheduler(2, 2, 1);
+    scheduler.acquire(Stage.KAWA);
+
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread dx = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scheduler.acquire(Stage.DX);
+          admitted.countDown();
+          scheduler.release(Stage.DX);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    });
+    dx.start();
+
+    // DX has a free stage slot, but the only child process slot is used by Kawa.
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, scheduler.getQueueDepth(Stage.DX));
+
+    scheduler.release(Stage.KAWA);
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    dx.join();
+    assertEquals(0, scheduler.getQueueDepth(Stage.DX));
+    assertTrue(scheduler.getMaxWaitMillis(Stage.DX) >= 200);
+  }
+
+  public void testReservedChildProcessSlot() throws Exception {
+    final BuildStageScheduler scheduler = new BuildStageScheduler(2, 2, 1);
+    assertTrue(scheduler.tryReserveChildProcess());
+    assertFalse(scheduler.tryReserveChildProcess());
+    assertEquals(1, scheduler.getReservedChildProcessCount());
+
+    // A stage that runs in the reserving process doesn't need another slot.
+    scheduler.acquire(Stage.KAWA, false);
+    assertEquals(1, scheduler.getActiveCount(Stage.KAWA));
+    scheduler.release(Stage.KAWA, false);
+
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread dx = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scheduler.acquire(Stage.DX);
+          admitted.countDown();
+          scheduler.release(Stage.DX);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    });
+    dx.start();
+
+    assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+    assertTrue(scheduler.isChildProcessWanted());
+    scheduler.releaseReservedChildProcess();
+    assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    dx.join();
+    assertFalse(scheduler.isChildProcessWanted());
+    assertEquals(0, scheduler.getReservedChildProcessCount());
+  }
+
+  public void testCreateUsesMemoryBudget() throws Exception {
+    BuildStageScheduler scheduler = BuildStageScheduler.create(1024, 3 * 1024, 0, 5);
+    assertEquals(3, scheduler.getChildProcessSlots());
+    assertTrue(scheduler.getSlots(Stage.KAWA) <= 3);
+    assertEquals(5, scheduler.getSlots(Stage.DX));
+  }
+}
@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.FairBuildQueue.Priority;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests FairBuildQueue class.
+ *
+ */
+public class FairBuildQueueTest extends TestCase {
+  private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+  }
+
+  public void testBuildIsRejectedWithoutQueue() throws Exception {
+    FairBuildQueue queue = new FairBuildQueue(2, 0, 0, 60000);
+    assertEquals(0, queue.submit("1", "a", Priority.NORMAL, new Build("1")));
+    assertEquals(0, queue.submit("2", "b", Priority.NORMAL, new Build("2")));
+    assertEquals(2, queue.getActiveTaskCount());
+    try {
+      queue.submit("3", "c", Priority.NORMAL, new Build("3"));
+      fail();
+    } catch (FairBuildQueue.RejectedBuildException e) {
+      assertEquals(FairBuildQueue.REJECTED_QUEUE_FULL, e.getReason());
+    }
+    assertEquals(1, queue.getRejectedCount(FairBuildQueue.REJECTED_QUEUE_FULL));
+  }
+
+  public void testOwnersTakeTurnsAndPriorityGoesFirst() throws Exception {
+    FairBuildQueue queue = new FairBuildQueue(1, 10, 0, 60000);
+    CountDownLatch done = new CountDownLatch(5);
+    queue.submit("running", "a", Priority.NORMAL, new Build("running"));
+    assertEquals(1, queue.submit("a1", "a", Priority.NORMAL, new Build("a1", done)));
+    assertEquals(2, queue.submit("a2", "a", Priority.NORMAL, new Build("a2", done)));
+    // b1 goes before a2, since "a" already has a build ahead of it.
+    assertEquals(2, queue.submit("b1", "b", Priority.NORMAL, new Build("b1", done)));
+    assertEquals(3, queue.getPosition("a2"));
+    assertEquals(1, queue.submit("c1", "c", Priority.HIGH, new Build("c1", done)));
+    assertEquals(5, queue.submit("b2", "b", Priority.NORMAL, new Build("b2", done)));
+    assertEquals(5, queue.getQueuedTaskCount());
+    assertEquals(0, queue.getPosition("running"));
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("running", started.get(0));
+    assertEquals("c1 a1 b1 a2 b2", joinStarted(1));
+  }
+
+  public void testOwnerLimit() throws Exception {
+    FairBuildQueue queue = new FairBuildQueue(1, 10, 1, 60000);
+    queue.submit("running", "a", Priority.NORMAL, new Build("running"));
+    queue.submit("a1", "a", Priority.NORMAL, new Build("a1"));
+    try {
+      queue.submit("a2", "a", Priority.NORMAL, new Build("a2"));
+      fail();
+    } catch (FairBuildQueue.RejectedBuildException e) {
+      assertEquals(FairBuildQueue.REJECTED_OWNER_LIMIT, e.getReason());
+    }
+    assertEquals(2, queue.submit("b1", "b", Priority.NORMAL, new Build("b1")));
+  }
+
+  public void testWaitingBuildExpires() throws Exception {
+    FairBuildQueue queue = new FairBuildQueue(1, 10, 0, 100);
+    queue.submit("running", "a", Priority.NORMAL, new Build("running"));
+    Build waiting = new Build("waiting");
+    queue.submit("waiting", "b", Priority.NORMAL, waiting);
+    assertTrue(waiting.expired.await(5, TimeUnit.SECONDS));
+    assertEquals(0, queue.getQueuedTaskCount());
+    assertEquals(1, queue.getRejectedCount(FairBuildQueue.REJECTED_EXPIRED));
+    assertFalse(started.contains("waiting"));
+  }
+
+  private String joinStarted(int from) {
+    StringBuilder sb = new StringBuilder();
+    for (String id : started.subList(from, started.size())) {
+      sb.append(sb.length() == 0 ? "" : " ").append(id);
+    }
+    return sb.toString();
+  }
+
+  private class Build implements FairBuildQueue.QueuedBuild {
+    private final String id;
+    private final CountDownLatch done;
+    final CountDownLatch expired = new CountDownLatch(1);
+
+    Build(String id) {
+      this(id, null);
+    }
+
+    Build(String id, CountDownLatch done) {
+      this.id = id;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      started.add(id);
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      if (done != null) {
+        done.countDown();
+      }
+    }
+
+    @Override
+    public void expire() {
+      expired.countDown();
+    }
+  }
+}
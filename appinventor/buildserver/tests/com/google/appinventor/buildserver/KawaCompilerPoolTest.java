@@ -0,0 +1,160 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.buildserver.BuildStageScheduler.Stage;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Tests KawaCompilerPool class.
+ *
+ */
+public class KawaCompilerPoolTest extends TestCase {
+  private File tmpDir;
+  private String kawaJar;
+  private String runtime;
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    kawaJar = new File(Class.forName("kawa.repl").getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getAbsolutePath();
+    File runtimeFile = new File(tmpDir, "runtime.scm");
+    Files.write("(define-syntax twice (syntax-rules () ((_ x) (* 2 x))))\n",
+        runtimeFile, Charsets.UTF_8);
+    runtime = runtimeFile.getAbsolutePath();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testWorkerIsReused() throws Exception {
+    KawaCompilerPool pool = new KawaCompilerPool(new BuildStageScheduler(1, 1, 2), 1, 0);
+    try {
+      assertTrue(compile(pool, "First", "(define x (twice 21))\n"));
+      assertTrue(compile(pool, "Second", "(define y (twice 4))\n"));
+      assertTrue(new File(tmpDir, "classes/First.class").exists());
+      assertTrue(new File(tmpDir, "classes/Second.class").exists());
+      assertEquals(1, pool.getStartedWorkerCount());
+      assertEquals(2, pool.getCompletedJobCount());
+      assertEquals(1, pool.getIdleWorkerCount());
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(0, pool.getLiveWorkerCount());
+  }
+
+  public void testWorkerIsReplacedAfterMaxJobs() throws Exception {
+    KawaCompilerPool pool = new KawaCompilerPool(new BuildStageScheduler(1, 1, 2), 1, 1);
+    try {
+      assertTrue(compile(pool, "First", "(define x (twice 21))\n"));
+      assertTrue(compile(pool, "Second", "(define y (twice 4))\n"));
+      assertEquals(2, pool.getStartedWorkerCount());
+      assertEquals(0, pool.getLiveWorkerCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testFailedCompileDiscardsWorker() throws Exception {
+    KawaCompilerPool pool = new KawaCompilerPool(new BuildStageScheduler(1, 1, 2), 1, 0);
+    try {
+      assertFalse(compile(pool, "Broken", "(define x (twice 21)\n"));
+      assertFalse(new File(tmpDir, "classes/Broken.class").exists());
+      assertEquals(0, pool.getLiveWorkerCount());
+      assertTrue(compile(pool, "Fixed", "(define x (twice 21))\n"));
+      assertEquals(2, pool.getStartedWorkerCount());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  public void testIdleWorkerHoldsChildProcessSlot() throws Exception {
+    BuildStageScheduler scheduler = new BuildStageScheduler(1, 1, 1);
+    KawaCompilerPool pool = new KawaCompilerPool(scheduler, 2, 0);
+    try {
+      assertTrue(compile(pool, "First", "(define x (twice 21))\n"));
+      assertEquals(1, pool.getIdleWorkerCount());
+      assertEquals(1, scheduler.getReservedChildProcessCount());
+      assertFalse(scheduler.tryReserveChildProcess());
+
+      // The only slot is held by the idle worker, so it is stopped to start one with another heap.
+      assertTrue(compile(pool, "Second", "(define y (twice 4))\n", 200));
+      assertEquals(2, pool.getStartedWorkerCount());
+      assertEquals(1, pool.getLiveWorkerCount());
+      assertEquals(1, scheduler.getReservedChildProcessCount());
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(0, pool.getLiveWorkerCount());
+    assertEquals(0, scheduler.getReservedChildProcessCount());
+  }
+
+  public void testWorkerIsStoppedWhenStageWaitsForSlot() throws Exception {
+    final BuildStageScheduler scheduler = new BuildStageScheduler(1, 1, 2);
+    KawaCompilerPool pool = new KawaCompilerPool(scheduler, 1, 0);
+    Thread dx = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          scheduler.acquire(Stage.DX);
+          scheduler.release(Stage.DX);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    });
+    // A Kawa stage without the pool holds one slot and the worker takes the other.
+    scheduler.acquire(Stage.KAWA);
+    try {
+      assertTrue(compile(pool, "First", "(define x (twice 21))\n"));
+      assertEquals(1, pool.getIdleWorkerCount());
+      dx.start();
+      while (!scheduler.isChildProcessWanted()) {
+        Thread.sleep(10);
+      }
+      // DX is waiting for a slot when the worker's next job finishes.
+      assertTrue(compile(pool, "Second", "(define y (twice 4))\n"));
+      dx.join(5000);
+      assertFalse(dx.isAlive());
+      assertEquals(0, pool.getLiveWorkerCount());
+      assertEquals(0, scheduler.getReservedChildProcessCount());
+    } finally {
+      scheduler.release(Stage.KAWA);
+      pool.shutdown();
+    }
+  }
+
+  private boolean compile(KawaCompilerPool pool, String name, String source) throws Exception {
+    return compile(pool, name, source, 256);
+  }
+
+  private boolean compile(KawaCompilerPool pool, String name, String source, int maxHeapMb)
+      throws Exception {
+    File sourceFile = new File(tmpDir, name + ".scm");
+    Files.write(source, sourceFile, Charsets.UTF_8);
+    File classesDir = new File(tmpDir, "classes");
+    classesDir.mkdirs();
+    List<String> kawaArgs = Lists.newArrayList(
+        "-d", classesDir.getAbsolutePath(),
+        "-C", sourceFile.getAbsolutePath());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    return pool.compile(kawaJar, maxHeapMb, runtime, kawaArgs, new PrintStream(output));
+  }
+}
@@ -0,0 +1,70 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests MemoryMonitor class.
+ *
+ */
+public class MemoryMonitorTest extends TestCase {
+  public void testHistogramCountsAreCumulative() throws Exception {
+    MemoryMonitor.Histogram histogram = new MemoryMonitor.Histogram(new long[] { 10, 100 });
+    histogram.record(5);
+    histogram.record(10);
+    histogram.record(50);
+    histogram.record(1000);
+    assertEquals(2, histogram.getCumulativeCount(0));
+    assertEquals(3, histogram.getCumulativeCount(1));
+    assertEquals(4, histogram.getCumulativeCount(2));
+    assertEquals(1065, histogram.getSum());
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    histogram.addVariables(variables, "pause");
+    assertEquals("2", variables.get("pause-bucket-le-10"));
+    assertEquals("4", variables.get("pause-bucket-le-inf"));
+    assertEquals("4", variables.get("pause-count"));
+  }
+
+  public void testAdmissionControl() throws Exception {
+    MemoryMonitor monitor = new MemoryMonitor();
+    assertTrue(monitor.hasHeadroom(0, 0));
+
+    monitor.setMinimumHeadroom(100, 1000);
+    assertTrue(monitor.hasHeadroom(100, 1000));
+    assertFalse(monitor.hasHeadroom(99, 1000));
+    assertFalse(monitor.hasHeadroom(100, 999));
+    // Unknown free physical memory doesn't block builds.
+    assertTrue(monitor.hasHeadroom(100, -1));
+    assertEquals(2, monitor.getLowMemoryRejectionCount());
+  }
+
+  public void testChildProcessPeakRssIsAttributedToBuild() throws Exception {
+    if (!new File("/proc/self/status").exists()) {
+      return;  // Only supported on Linux.
+    }
+    MemoryMonitor monitor = new MemoryMonitor();
+    monitor.startBuild();
+    Process process = Runtime.getRuntime().exec(new String[] { "sleep", "1" });
+    MemoryMonitor.ChildProcessWatch watch = monitor.watch(process);
+    process.waitFor();
+    long peak = watch.stop();
+    assertTrue(peak > 0);
+    assertEquals(peak, monitor.finishBuild());
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    monitor.addVariables(variables);
+    assertEquals(peak + "", variables.get("maximum-child-process-peak-rss-in-bytes"));
+    assertEquals("1", variables.get("build-child-process-peak-rss-in-mb-count"));
+    assertTrue(variables.containsKey("gc-pause-in-ms-bucket-le-inf"));
+    assertTrue(variables.containsKey("heap-headroom-in-bytes"));
+  }
+}
@@ -0,0 +1,120 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Tests YailGeneratorBatch class.
+ *
+ */
+public class YailGeneratorBatchTest extends TestCase {
+  private File tmpDir;
+  private File generatorJar;
+
+  /**
+   * Stands in for YailGenerator.jar: prints the content of the form, or fails like the real
+   * generator does on forms with empty sockets.
+   */
+  public static class FakeGenerator {
+    private static int runs = 0;
+
+    public static void main(String[] args) throws Exception {
+      BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+      String form = reader.readLine();
+      reader.close();
+      if (form.equals("empty socket")) {
+        System.err.print("empty socket in " + args[1]);
+        System.exit(1);
+      }
+      runs++;
+      System.out.print("(yail " + form + " " + runs + ")");
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    tmpDir = Files.createTempDir();
+    generatorJar = new File(tmpDir, "YailGenerator.jar");
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, FakeGenerator.class.getName());
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(generatorJar), manifest);
+    try {
+      String classFileName = FakeGenerator.class.getName().replace('.', '/') + ".class";
+      jar.putNextEntry(new JarEntry(classFileName));
+      InputStream classFile =
+          FakeGenerator.class.getClassLoader().getResourceAsStream(classFileName);
+      try {
+        ByteStreams.copy(classFile, jar);
+      } finally {
+        classFile.close();
+      }
+      jar.closeEntry();
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tmpDir);
+  }
+
+  public void testFormsAreGeneratedInParallel() throws Exception {
+    List<String[]> forms = new ArrayList<String[]>();
+    for (int i = 1; i <= 4; i++) {
+      forms.add(writeForm("Screen" + i, "screen" + i));
+    }
+    int[] exitValues = YailGeneratorBatch.generate(generatorJar, forms, 2);
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(0, exitValues[i - 1]);
+      // Every form has its own copy of the generator's static state.
+      assertEquals("(yail screen" + i + " 1)",
+          Files.toString(new File(tmpDir, "Screen" + i + ".yail"), Charsets.UTF_8));
+    }
+  }
+
+  public void testFailuresAreReportedPerForm() throws Exception {
+    List<String[]> forms = new ArrayList<String[]>();
+    forms.add(writeForm("Screen1", "screen1"));
+    forms.add(writeForm("Screen2", "empty socket"));
+    int[] exitValues = YailGeneratorBatch.generate(generatorJar, forms, 2);
+    assertEquals(0, exitValues[0]);
+    assertEquals(1, exitValues[1]);
+    File errorFile = new File(tmpDir, "Screen2.yail" + YailGeneratorBatch.ERROR_SUFFIX);
+    String err = Files.toString(errorFile, Charsets.UTF_8);
+    assertTrue(err.startsWith("empty socket in "));
+  }
+
+  private String[] writeForm(String name, String content) throws Exception {
+    File form = new File(tmpDir, name + ".scm");
+    Files.write(content, form, Charsets.UTF_8);
+    return new String[] {
+      form.getPath(),
+      new File(tmpDir, name + ".bky").getPath(),
+      new File(tmpDir, name + ".yail").getPath()
+    };
+  }
+}
@@ -103,6 +103,11 @@ public final class Ball extends Sprite {
     // ignored
   }
 
+  @Override
+  int shape() {
+    return SHAPE_CIRCLE;
+  }
+
   @Override
   public boolean containsPoint(double qx, double qy) {
     double xCenter = xLeft + radius;
@@ -24,6 +24,7 @@ import com.google.appinventor.components.runtime.util.ErrorMessages;
 import com.google.appinventor.components.runtime.util.FileUtil;
 import com.google.appinventor.components.runtime.util.MediaUtil;
 import com.google.appinventor.components.runtime.util.PaintUtil;
+import com.google.appinventor.components.runtime.util.SpatialGrid;
 
 import android.app.Activity;
 import android.content.Context;
@@ -34,6 +35,7 @@ import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -45,8 +47,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -116,11 +124,39 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
   private static final int DEFAULT_BACKGROUND_COLOR = Component.COLOR_WHITE;
   private static final int DEFAULT_TEXTALIGNMENT = Component.ALIGNMENT_CENTER;
   private static final int FLING_INTERVAL = 1000;  // ms
+  private static final int SPRITE_GRID_CELL_SIZE = 64;
 
   // Keep track of enclosed sprites.  This list should always be
   // sorted by increasing sprite.Z().
   private final List<Sprite> sprites;
 
+  // The sprites by the grid cells that their bounding boxes overlap, so that
+  // collisions and touches only check the sprites nearby.
+  private final SpatialGrid<Sprite> spriteGrid =
+      new SpatialGrid<Sprite>(SPRITE_GRID_CELL_SIZE);
+
+  // The position of each sprite in sprites, to check the sprites found in
+  // the grid in the same order as before.
+  private final Map<Sprite, Integer> spriteOrder = new HashMap<Sprite, Integer>();
+  private final Comparator<Sprite> zOrder = new Comparator<Sprite>() {
+    @Override
+    public int compare(Sprite sprite1, Sprite sprite2) {
+      return spriteOrder.get(sprite1) - spriteOrder.get(sprite2);
+    }
+  };
+
+  // Moves the sprites in frames
+  private final CanvasAnimator animator;
+
+  // Whether the animator is moving sprites, and the sprites changed since it
+  // began.  Their collisions are checked and the area they were and are drawn
+  // in is redrawn when it's done.
+  private boolean inFrame;
+  private final Set<Sprite> changedSprites = new LinkedHashSet<Sprite>();
+
+  // The area of the view where each sprite was last drawn
+  private final Map<Sprite, Rect> drawnBounds = new HashMap<Sprite, Rect>();
+
   // Handle touches and drags
   private final MotionEventParser motionEventParser;
 
@@ -248,7 +284,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
           lastY = y;
           drag = false;
           isDrag = false;
-          for (Sprite sprite : sprites) {
+          for (Sprite sprite : spritesNear(rect)) {
             if (sprite.Enabled() && sprite.Visible() && sprite.intersectsWith(rect)) {
               draggedSprites.add(sprite);
               sprite.TouchDown(startX, startY);
@@ -275,7 +311,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
           // Update draggedSprites by adding any that are currently being
           // touched.
-          for (Sprite sprite : sprites) {
+          for (Sprite sprite : spritesNear(rect)) {
             if (!draggedSprites.contains(sprite)
                 && sprite.Enabled() && sprite.Visible()
                 && sprite.intersectsWith(rect)) {
@@ -408,6 +444,12 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
       // drawn first, potentially being hidden by Sprites with higher Z values.
       for (Sprite sprite : sprites) {
         sprite.onDraw(canvas0);
+        Rect bounds = drawnBounds.get(sprite);
+        if (bounds == null) {
+          bounds = new Rect();
+          drawnBounds.put(sprite, bounds);
+        }
+        getDrawingBounds(sprite, bounds);
       }
       drawn = true;
     }
@@ -696,7 +738,8 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     TextAlignment(DEFAULT_TEXTALIGNMENT);
     FontSize(Component.FONT_DEFAULT_SIZE);
 
-    sprites = new LinkedList<Sprite>();
+    sprites = new ArrayList<Sprite>();
+    animator = new CanvasAnimator(this, new Handler());
     motionEventParser = new MotionEventParser();
     mGestureDetector = new GestureDetector(context, new FlingGestureListener());
   }
@@ -749,15 +792,13 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
     // ordered by creation time.  While we don't wish to guarantee
     // this behavior going forward, it does provide consistency
     // with how things worked before Z layering was added.
-    for (int i = 0; i < sprites.size(); i++) {
-      if (sprites.get(i).Z() > sprite.Z()) {
-        sprites.add(i, sprite);
-        return;
-      }
+    int i = 0;
+    while (i < sprites.size() && sprites.get(i).Z() <= sprite.Z()) {
+      i++;
     }
-
-    // Add to end if it has the highest Z value.
-    sprites.add(sprite);
+    sprites.add(i, sprite);
+    updateSpriteOrder();
+    updateSpriteBounds(sprite);
   }
 
   /**
@@ -767,6 +808,49 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    */
   void removeSprite(Sprite sprite) {
     sprites.remove(sprite);
+    updateSpriteOrder();
+    spriteGrid.remove(sprite);
+    changedSprites.remove(sprite);
+    drawnBounds.remove(sprite);
+  }
+
+  private void updateSpriteOrder() {
+    spriteOrder.clear();
+    for (int i = 0; i < sprites.size(); i++) {
+      spriteOrder.put(sprites.get(i), i);
+    }
+  }
+
+  /**
+   * Updates where a sprite is in {@link #spriteGrid}.  This is needed
+   * whenever its location or size may have changed.
+   *
+   * @param sprite the sprite that may have moved
+   */
+  void updateSpriteBounds(Sprite sprite) {
+    // Sprite.colliding() checks the bounding boxes with a 1 pixel border.
+    spriteGrid.put(sprite, sprite.getBoundingBox(1));
+  }
+
+  /*
+   * Returns the sprites in this canvas that may intersect a box, in the
+   * order of sprites.
+   */
+  private List<Sprite> spritesNear(BoundingBox box) {
+    Set<Sprite> found = new HashSet<Sprite>();
+    spriteGrid.query(box, found);
+    return inZOrder(found);
+  }
+
+  private List<Sprite> inZOrder(Collection<Sprite> found) {
+    List<Sprite> ordered = new ArrayList<Sprite>(found.size());
+    for (Sprite sprite : found) {
+      if (spriteOrder.containsKey(sprite)) {
+        ordered.add(sprite);
+      }
+    }
+    Collections.sort(ordered, zOrder);
+    return ordered;
   }
 
   /**
@@ -815,10 +899,79 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * @param sprite the sprite whose location, size, or appearance has changed
    */
   void registerChange(Sprite sprite) {
+    updateSpriteBounds(sprite);
+    if (inFrame) {
+      changedSprites.add(sprite);
+      return;
+    }
     view.invalidate();
     findSpriteCollisions(sprite);
   }
 
+  // Methods for moving sprites
+
+  /**
+   * Starts, restarts or stops moving a sprite on its interval, after its
+   * Enabled or Interval properties change.
+   *
+   * @param sprite the sprite
+   */
+  void animateSprite(Sprite sprite) {
+    animator.update(sprite);
+  }
+
+  /**
+   * Defers the work of {@link #registerChange(Sprite)} until
+   * {@link #endFrame()}, while the animator moves the sprites due in a frame.
+   */
+  void beginFrame() {
+    inFrame = true;
+  }
+
+  /**
+   * Redraws the area where the sprites changed since {@link #beginFrame()}
+   * were and are drawn, and checks their collisions.
+   */
+  void endFrame() {
+    inFrame = false;
+    if (changedSprites.isEmpty()) {
+      return;
+    }
+    List<Sprite> changed = new ArrayList<Sprite>(changedSprites);
+    changedSprites.clear();
+    Rect dirty = new Rect();
+    Rect bounds = new Rect();
+    for (Sprite sprite : changed) {
+      Rect drawnBound = drawnBounds.get(sprite);
+      if (drawnBound != null) {
+        dirty.union(drawnBound);
+      }
+      getDrawingBounds(sprite, bounds);
+      dirty.union(bounds);
+    }
+    view.invalidate(dirty);
+    for (Sprite sprite : changed) {
+      findSpriteCollisions(sprite);
+    }
+  }
+
+  /*
+   * Sets bounds to the area of the view a sprite is drawn in: a square
+   * around its center that holds it at any rotation, plus rounding.
+   */
+  private void getDrawingBounds(Sprite sprite, Rect bounds) {
+    float density = $form().deviceDensity();
+    double halfDiagonal = Math.sqrt(sprite.Width() * sprite.Width()
+        + sprite.Height() * sprite.Height()) / 2;
+    double centerX = sprite.X() + sprite.Width() / 2.0;
+    double centerY = sprite.Y() + sprite.Height() / 2.0;
+    int margin = (int) Math.ceil(density) + 1;
+    bounds.set((int) Math.floor((centerX - halfDiagonal) * density) - margin,
+        (int) Math.floor((centerY - halfDiagonal) * density) - margin,
+        (int) Math.ceil((centerX + halfDiagonal) * density) + margin,
+        (int) Math.ceil((centerY + halfDiagonal) * density) + margin);
+  }
+
 
   // Methods for detecting collisions
 
@@ -835,10 +988,16 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
    * and
    * {@link com.google.appinventor.components.runtime.Sprite#Enabled()}.
    *
+   * <p>Only the sprites near the moved sprite in {@link #spriteGrid} can be
+   * newly colliding with it, and only those registered as colliding with it
+   * can cease to, so only those are checked.
+   *
    * @param movedSprite the sprite that has just changed position
    */
   protected void findSpriteCollisions(Sprite movedSprite) {
-    for (Sprite sprite : sprites) {
+    Set<Sprite> candidates = new HashSet<Sprite>(movedSprite.getRegisteredCollisions());
+    spriteGrid.query(movedSprite.getBoundingBox(1), candidates);
+    for (Sprite sprite : inZOrder(candidates)) {
       if (sprite != movedSprite) {
         // Check whether we already raised an event for their collision.
         if (movedSprite.CollidingWith(sprite)) {
@@ -1466,7 +1625,7 @@ public final class Canvas extends AndroidViewComponent implements ComponentConta
 
       boolean spriteHandledFling = false;
 
-      for (Sprite sprite : sprites) {
+      for (Sprite sprite : spritesNear(rect)) {
         if (sprite.Enabled() && sprite.Visible() &&
             sprite.intersectsWith(rect)) {
           sprite.Flung(x, y, speed, heading, vx, vy);
@@ -0,0 +1,175 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime;
+
+import com.google.appinventor.components.runtime.util.JellybeanUtil;
+import com.google.appinventor.components.runtime.util.RetValManager;
+import com.google.appinventor.components.runtime.util.SdkLevel;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves the enabled sprites of a canvas, each every {@link Sprite#Interval()}
+ * milliseconds, in frames synchronized with the display.
+ *
+ * <p>All the sprites due to move by a frame move in it, between
+ * {@link Canvas#beginFrame()} and {@link Canvas#endFrame()}, so the canvas
+ * checks their collisions once they have all moved and redraws once.  A
+ * sprite moves at the first frame after its interval has passed since it
+ * was due before, so its average rate is what its interval says. A sprite
+ * that has fallen behind by more than an interval doesn't catch up with
+ * extra moves.
+ *
+ * <p>No frames are requested while no sprite is due within a frame.
+ *
+ * <p>In the companion, the frame statistics are sent to the blocks editor,
+ * which logs them to the browser console.
+ *
+ */
+final class CanvasAnimator implements Runnable {
+  // What the frame statistics are labeled with in the blocks editor
+  private static final String STATS_SOURCE = "CanvasAnimator";
+
+  // The time of a frame at 60 frames per second, in ms
+  private static final int FRAME_TIME = 16;
+
+  // How often the frame statistics are sent to the blocks editor from the
+  // companion, in ms
+  private static final int STATS_INTERVAL = 10000;
+
+  private final Canvas canvas;
+  private final Handler handler;
+
+  // The uptime at which each enabled sprite moves next, in ms
+  private final Map<Sprite, Long> dueTimes = new LinkedHashMap<Sprite, Long>();
+
+  // Whether run() will be called for a frame
+  private boolean framePending;
+
+  // Requests the frame for the sprites due next, shortly before they are due
+  private final Runnable wakeUp = new Runnable() {
+    @Override
+    public void run() {
+      requestFrame();
+    }
+  };
+
+  // Frame statistics, since the animator was created
+  private long frames;
+  private long moves;
+  private long totalFrameNanos;
+  private long maxFrameNanos;
+  private long lastStatsSent;
+
+  CanvasAnimator(Canvas canvas, Handler handler) {
+    this.canvas = canvas;
+    this.handler = handler;
+  }
+
+  /**
+   * Starts, restarts or stops moving a sprite after its Enabled or Interval
+   * properties change.  An enabled sprite moves next after its interval.
+   *
+   * @param sprite the sprite
+   */
+  void update(Sprite sprite) {
+    if (sprite.Enabled()) {
+      dueTimes.put(sprite, SystemClock.uptimeMillis() + Math.max(0, sprite.Interval()));
+    } else {
+      dueTimes.remove(sprite);
+    }
+    schedule();
+  }
+
+  /**
+   * Returns the frame statistics: frames, sprite moves per frame, and the
+   * mean and longest times of the frames.
+   */
+  String getStats() {
+    return String.format("frames %d moves/frame %.1f mean frame time %.3f ms"
+        + " max frame time %.3f ms",
+        frames, frames == 0 ? 0.0 : (double) moves / frames,
+        frames == 0 ? 0.0 : totalFrameNanos / 1e6 / frames, maxFrameNanos / 1e6);
+  }
+
+  // Runnable implementation, a frame
+
+  @Override
+  public void run() {
+    framePending = false;
+    long start = System.nanoTime();
+    long now = SystemClock.uptimeMillis();
+    List<Sprite> due = new ArrayList<Sprite>();
+    for (Map.Entry<Sprite, Long> entry : dueTimes.entrySet()) {
+      long dueTime = entry.getValue();
+      if (dueTime <= now) {
+        Sprite sprite = entry.getKey();
+        due.add(sprite);
+        int interval = Math.max(0, sprite.Interval());
+        entry.setValue(dueTime + interval > now ? dueTime + interval : now + interval);
+      }
+    }
+    if (!due.isEmpty()) {
+      canvas.beginFrame();
+      try {
+        for (Sprite sprite : due) {
+          sprite.alarm();
+        }
+      } finally {
+        canvas.endFrame();
+      }
+      long frameNanos = System.nanoTime() - start;
+      frames++;
+      moves += due.size();
+      totalFrameNanos += frameNanos;
+      maxFrameNanos = Math.max(maxFrameNanos, frameNanos);
+      if (canvas.$form() instanceof ReplForm && now - lastStatsSent >= STATS_INTERVAL) {
+        lastStatsSent = now;
+        RetValManager.sendStats(STATS_SOURCE, getStats());
+      }
+    }
+    schedule();
+  }
+
+  /*
+   * Requests the frame for the sprites due next, or a wake up shortly
+   * before they are due.
+   */
+  private void schedule() {
+    handler.removeCallbacks(wakeUp);
+    if (framePending || dueTimes.isEmpty()) {
+      return;
+    }
+    long next = Long.MAX_VALUE;
+    for (long dueTime : dueTimes.values()) {
+      next = Math.min(next, dueTime);
+    }
+    long delay = next - SystemClock.uptimeMillis();
+    if (delay > FRAME_TIME) {
+      handler.postDelayed(wakeUp, delay - FRAME_TIME);
+    } else {
+      requestFrame();
+    }
+  }
+
+  private void requestFrame() {
+    if (framePending) {
+      return;
+    }
+    framePending = true;
+    if (SdkLevel.getLevel() >= SdkLevel.LEVEL_JELLYBEAN) {
+      JellybeanUtil.postFrameCallback(this);
+    } else {
+      handler.postDelayed(this, FRAME_TIME);
+    }
+  }
+}
@@ -135,6 +135,12 @@ public class ImageSprite extends Sprite {
     registerChange();
   }
 
+  // Collisions are with the unrotated picture, as containsPoint() has it.
+  @Override
+  int shape() {
+    return SHAPE_BOX;
+  }
+
   // The actual width/height of an ImageSprite whose Width/Height property is set to Automatic or
   // Fill Parent will be the width/height of the image.
 
@@ -16,7 +16,7 @@ import com.google.appinventor.components.common.PropertyTypeConstants;
 import com.google.appinventor.components.runtime.errors.AssertionFailure;
 import com.google.appinventor.components.runtime.errors.IllegalArgumentError;
 import com.google.appinventor.components.runtime.util.BoundingBox;
-import com.google.appinventor.components.runtime.util.TimerInternal;
+import com.google.appinventor.components.runtime.util.GeometryUtil;
 
 import android.os.Handler;
 import android.util.Log;
@@ -45,8 +45,13 @@ public abstract class Sprite extends VisibleComponent
   private static final boolean DEFAULT_VISIBLE = true;
   private static final double DEFAULT_Z = 1.0;
 
+  // Shapes whose collisions and touches are found without testing every
+  // point with containsPoint(), see shape().
+  static final int SHAPE_OTHER = 0;
+  static final int SHAPE_BOX = 1;
+  static final int SHAPE_CIRCLE = 2;
+
   protected final Canvas canvas;              // enclosing Canvas
-  private final TimerInternal timerInternal;  // timer to control movement
   private final Handler androidUIHandler;     // for posting actions
 
   // Keeps track of which other sprites are currently colliding with this one.
@@ -61,6 +66,7 @@ public abstract class Sprite extends VisibleComponent
 
   // Properties: These are protected, instead of private, both so they
   // can be used by subclasses and tests.
+  protected boolean enabled;   // whether the sprite moves
   protected int interval;      // number of milliseconds until next move
   protected boolean visible = true;
   // TODO(user): Convert to have co-ordinates be center, not upper left.
@@ -112,9 +118,6 @@ public abstract class Sprite extends VisibleComponent
     // Maintain a list of collisions.
     registeredCollisions = new HashSet<Sprite>();
 
-    // Set in motion.
-    timerInternal = new TimerInternal(this, DEFAULT_ENABLED, DEFAULT_INTERVAL, handler);
-
     this.form = container.$form();
 
     // Set default property values.
@@ -158,11 +161,12 @@ public abstract class Sprite extends VisibleComponent
       description = "Controls whether the sprite moves when its speed is non-zero.",
       category = PropertyCategory.BEHAVIOR)
   public boolean Enabled() {
-    return timerInternal.Enabled();
+    return enabled;
   }
 
   /**
-   * Enabled property setter method: starts or stops the timer.
+   * Enabled property setter method: starts or stops the timer.  The canvas
+   * moves its enabled sprites, see {@link CanvasAnimator}.
    *
    * @param enabled  {@code true} starts the timer, {@code false} stops it
    */
@@ -171,7 +175,8 @@ public abstract class Sprite extends VisibleComponent
       defaultValue = DEFAULT_ENABLED ? "True" : "False")
   @SimpleProperty
       public void Enabled(boolean enabled) {
-    timerInternal.Enabled(enabled);
+    this.enabled = enabled;
+    canvas.animateSprite(this);
   }
 
   /**
@@ -221,7 +226,7 @@ public abstract class Sprite extends VisibleComponent
       "then the sprite will move 10 pixels every 50 milliseconds.",
       category = PropertyCategory.BEHAVIOR)
   public int Interval() {
-    return timerInternal.Interval();
+    return interval;
   }
 
   /**
@@ -234,7 +239,8 @@ public abstract class Sprite extends VisibleComponent
       defaultValue = DEFAULT_INTERVAL + "")
   @SimpleProperty
   public void Interval(int interval) {
-    timerInternal.Interval(interval);
+    this.interval = interval;
+    canvas.animateSprite(this);
   }
 
   /**
@@ -664,6 +670,7 @@ public abstract class Sprite extends VisibleComponent
     // before all components had been constructed.
     if (!initialized) {
       // During REPL, components are not initalized, but we still want to repaint the canvas.
+      canvas.updateSpriteBounds(this);
       canvas.getView().invalidate();
       return;
     }
@@ -839,13 +846,24 @@ public abstract class Sprite extends VisibleComponent
   /**
    * Determines whether two sprites are in collision.  Note that we cannot
    * merely see whether the rectangular regions around each intersect, since
-   * some types of sprite, such as BallSprite, are not rectangular.
+   * some types of sprite, such as BallSprite, are not rectangular.  Sprites
+   * collide if they both contain a point of the intersection of their bounding
+   * boxes, one apart from its top left corner.  Two boxes (see {@link #shape()})
+   * are intersected exactly, which gives the same result.
    *
    * @param sprite1 one sprite
    * @param sprite2 another sprite
    * @return {@code true} if they are in collision, {@code false} otherwise
    */
   public static boolean colliding(Sprite sprite1, Sprite sprite2) {
+    int shape1 = sprite1.shape();
+    int shape2 = sprite2.shape();
+    if (shape1 == SHAPE_BOX && shape2 == SHAPE_BOX) {
+      return GeometryUtil.boxesIntersect(
+          sprite1.X(), sprite1.Y(), sprite1.Width(), sprite1.Height(),
+          sprite2.X(), sprite2.Y(), sprite2.Width(), sprite2.Height());
+    }
+
     // If the bounding boxes don't intersect, there can be no collision.
     BoundingBox rect1 = sprite1.getBoundingBox(1);
     BoundingBox rect2 = sprite2.getBoundingBox(1);
@@ -853,6 +871,20 @@ public abstract class Sprite extends VisibleComponent
       return false;
     }
 
+    // Circles are searched for points of the intersection column by column.
+    if (shape1 == SHAPE_CIRCLE && shape2 == SHAPE_CIRCLE) {
+      double r1 = sprite1.Width() / 2.0;
+      double r2 = sprite2.Width() / 2.0;
+      return GeometryUtil.circlesShareGridPoint(sprite1.X() + r1, sprite1.Y() + r1, r1,
+          sprite2.X() + r2, sprite2.Y() + r2, r2, rect1);
+    }
+    if (shape1 == SHAPE_CIRCLE && shape2 == SHAPE_BOX) {
+      return circleCollidingWithBox(sprite1, sprite2, rect1);
+    }
+    if (shape1 == SHAPE_BOX && shape2 == SHAPE_CIRCLE) {
+      return circleCollidingWithBox(sprite2, sprite1, rect1);
+    }
+
     // If we get here, rect1 has been mutated to hold the intersection of the
     // two bounding boxes.  Now check every point in the intersection to see if
     // both sprites contain that point.
@@ -867,6 +899,12 @@ public abstract class Sprite extends VisibleComponent
     return false;
   }
 
+  private static boolean circleCollidingWithBox(Sprite circle, Sprite box, BoundingBox grid) {
+    double r = circle.Width() / 2.0;
+    return GeometryUtil.circleAndBoxShareGridPoint(circle.X() + r, circle.Y() + r, r,
+        box.X(), box.Y(), box.X() + box.Width(), box.Y() + box.Height(), grid);
+  }
+
   /**
    * Determines whether this sprite intersects with the given rectangle.
    *
@@ -881,8 +919,25 @@ public abstract class Sprite extends VisibleComponent
     }
 
     // If we get here, rect1 has been mutated to hold the intersection of the
-    // two bounding boxes.  Now check every point in the intersection to see if
-    // the sprite contains it.
+    // two bounding boxes.  The loop below checks points only if the
+    // intersection is wider and taller than a point.
+    double left = rect1.getLeft();
+    double top = rect1.getTop();
+    double right = rect1.getRight();
+    double bottom = rect1.getBottom();
+    switch (shape()) {
+      case SHAPE_BOX:
+        // The box contains the first point checked.
+        return left < right && top < bottom;
+      case SHAPE_CIRCLE:
+        // The points checked are those in the intersection, less its right
+        // and bottom edges.
+        double r = Width() / 2.0;
+        return GeometryUtil.circleAndBoxShareGridPoint(
+            xLeft + r, yTop + r, r, left, top, right, bottom, rect1);
+    }
+
+    // Check every point in the intersection to see if the sprite contains it.
     for (double x = rect1.getLeft(); x < rect1.getRight(); x++) {
       for (double y = rect1.getTop(); y < rect1.getBottom(); y++) {
         if (containsPoint(x, y)) {
@@ -906,6 +961,27 @@ public abstract class Sprite extends VisibleComponent
         qy >= yTop && qy < yTop + Height();
   }
 
+  /**
+   * Returns the shape of this sprite, which lets {@link #colliding} and
+   * {@link #intersectsWith} compute exactly instead of testing points:
+   * {@link #SHAPE_BOX} if the sprite contains the points of its bounding box,
+   * as {@link #containsPoint} does, {@link #SHAPE_CIRCLE} if it contains
+   * the points of the circle that fits in its bounding box, or
+   * {@link #SHAPE_OTHER}.
+   *
+   * @return the shape of this sprite
+   */
+  int shape() {
+    return SHAPE_OTHER;
+  }
+
+  /**
+   * Returns the sprites that this sprite is registered to be colliding with.
+   */
+  Set<Sprite> getRegisteredCollisions() {
+    return registeredCollisions;
+  }
+
   // Convenience methods for dealing with hitting the screen edge and collisions
 
   // AlarmHandler implementation
@@ -933,14 +1009,14 @@ public abstract class Sprite extends VisibleComponent
 
   @Override
   public void onDestroy() {
-    timerInternal.Enabled(false);
+    Enabled(false);
   }
 
   // Deleteable implementation
 
   @Override
   public void onDelete() {
-    timerInternal.Enabled(false);
+    Enabled(false);
     canvas.removeSprite(this);
   }
 
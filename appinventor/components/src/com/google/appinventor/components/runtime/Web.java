@@ -737,7 +737,7 @@ public class Web extends AndroidNonvisibleComponent implements Component {
   // VisibleForTesting
   static Object decodeJsonText(String jsonText) throws IllegalArgumentException {
     try {
-      return JsonUtil.getObjectFromJson(jsonText);
+      return JsonUtil.getYailObjectFromJson(jsonText);
     } catch (JSONException e) {
       throw new IllegalArgumentException("jsonText is not a legal JSON value");
     }
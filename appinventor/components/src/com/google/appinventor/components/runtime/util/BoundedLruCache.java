@@ -0,0 +1,155 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache that holds values up to a total size, evicting the least recently
+ * used values to make room for new ones.  By default each value has size 1,
+ * so the size bounds the number of values; subclasses override
+ * {@link #sizeOf(Object)} to bound something else, such as bytes.
+ *
+ * <p>The cache counts its hits, misses and evictions.  It is safe to use
+ * from several threads.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class BoundedLruCache<K, V> {
+  // In access order, least recently used first
+  private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+  private final int maxSize;
+  private int size;
+
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxSize the most total size of the values
+   */
+  public BoundedLruCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Returns the size of a value, 1 unless overridden.  A value's size must not
+   * change while it is in the cache.
+   *
+   * @param value the value
+   */
+  protected int sizeOf(V value) {
+    return 1;
+  }
+
+  /**
+   * Returns the value for a key and makes it the most recently used, or
+   * returns null if the key isn't in the cache.
+   *
+   * @param key the key
+   */
+  public synchronized V get(K key) {
+    V value = map.get(key);
+    if (value != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return value;
+  }
+
+  /**
+   * Puts a value in the cache as the most recently used, evicting the least
+   * recently used values while the total size is too large.  A value larger
+   * than the cache isn't kept.
+   *
+   * @param key the key
+   * @param value the value, not null
+   * @return the previous value for the key, or null
+   */
+  public synchronized V put(K key, V value) {
+    V previous = remove(key);
+    int valueSize = sizeOf(value);
+    if (valueSize <= maxSize) {
+      trimTo(maxSize - valueSize);
+      map.put(key, value);
+      size += valueSize;
+    }
+    return previous;
+  }
+
+  /**
+   * Removes the value for a key, if there is one.
+   *
+   * @param key the key
+   * @return the removed value, or null
+   */
+  public synchronized V remove(K key) {
+    V previous = map.remove(key);
+    if (previous != null) {
+      size -= sizeOf(previous);
+    }
+    return previous;
+  }
+
+  /**
+   * Removes all the values.
+   */
+  public synchronized void clear() {
+    map.clear();
+    size = 0;
+  }
+
+  /**
+   * Returns the total size of the values in the cache.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the most total size of the values in the cache.
+   */
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the number of calls to {@link #get(Object)} that found a value.
+   */
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of calls to {@link #get(Object)} that found no value.
+   */
+  public synchronized int missCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of values evicted to make room for others.
+   */
+  public synchronized int evictionCount() {
+    return evictionCount;
+  }
+
+  private void trimTo(int targetSize) {
+    Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+    while (size > targetSize && iterator.hasNext()) {
+      V value = iterator.next().getValue();
+      iterator.remove();
+      size -= sizeOf(value);
+      evictionCount++;
+    }
+  }
+}
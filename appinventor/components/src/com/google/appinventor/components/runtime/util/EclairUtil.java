@@ -8,6 +8,7 @@ package com.google.appinventor.components.runtime.util;
 import com.google.appinventor.components.runtime.WebViewer;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -104,4 +105,14 @@ public class EclairUtil {
     return form.getPackageManager().getInstallerPackageName(pname);
   }
 
+  /**
+   * Calls {@link ActivityManager#getMemoryClass()}, the approximate memory
+   * in megabytes that the application should stay within.
+   *
+   * @param context - The context of the application
+   */
+  public static int getMemoryClass(Context context) {
+    return ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+  }
+
 }
@@ -0,0 +1,123 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+/**
+ * Intersection tests between the shapes of sprites.
+ *
+ * <p>A box at (x, y) of width w and height h contains the points with
+ * x &lt;= px &lt; x + w and y &lt;= py &lt; y + h, like
+ * {@link com.google.appinventor.components.runtime.Sprite#containsPoint}.
+ * A circle contains the points at most its radius from its center, like
+ * {@link com.google.appinventor.components.runtime.Ball#containsPoint}.
+ *
+ * <p>Sprites collide when they share a point of a grid: the points one
+ * apart from the top left corner of the intersection of their bounding
+ * boxes, as Sprite tested them one by one. Two boxes share a grid point
+ * exactly when they intersect. For circles the grid is searched column by
+ * column, which gives the same results as testing every point.
+ *
+ */
+public final class GeometryUtil {
+
+  private GeometryUtil() {
+  }
+
+  /**
+   * Determines whether two boxes share a point.
+   *
+   * @return {@code true} if they intersect, {@code false} otherwise
+   */
+  public static boolean boxesIntersect(double x1, double y1, double w1, double h1,
+                                       double x2, double y2, double w2, double h2) {
+    return Math.max(x1, x2) < Math.min(x1 + w1, x2 + w2)
+        && Math.max(y1, y2) < Math.min(y1 + h1, y2 + h2);
+  }
+
+  /**
+   * Determines whether two circles share a point of a grid.
+   *
+   * @param grid the points (left + i, top + j) for i, j &gt;= 0, up to and
+   *        including its right and bottom
+   * @return {@code true} if they share a grid point, {@code false} otherwise
+   */
+  public static boolean circlesShareGridPoint(double cx1, double cy1, double r1,
+                                              double cx2, double cy2, double r2,
+                                              BoundingBox grid) {
+    double top = grid.getTop();
+    double bottom = grid.getBottom();
+    for (double px = grid.getLeft(); px <= grid.getRight(); px++) {
+      double halfChord1 = halfChord(r1, px - cx1);
+      double halfChord2 = halfChord(r2, px - cx2);
+      if (halfChord1 < 0 || halfChord2 < 0) {
+        continue;
+      }
+      // The points of the column in both circles, give or take rounding
+      double from = Math.max(cy1 - halfChord1, cy2 - halfChord2);
+      double to = Math.min(cy1 + halfChord1, cy2 + halfChord2);
+      for (double py = firstGridPoint(top, from); py <= bottom && py <= to + 1; py++) {
+        if (circleContains(cx1, cy1, r1, px, py) && circleContains(cx2, cy2, r2, px, py)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Determines whether a circle and a box share a point of a grid.
+   *
+   * @param boxRight the right edge of the box, which it doesn't contain
+   * @param boxBottom the bottom edge of the box, which it doesn't contain
+   * @param grid the points (left + i, top + j) for i, j &gt;= 0, up to and
+   *        including its right and bottom
+   * @return {@code true} if they share a grid point, {@code false} otherwise
+   */
+  public static boolean circleAndBoxShareGridPoint(double cx, double cy, double r,
+                                                   double boxLeft, double boxTop,
+                                                   double boxRight, double boxBottom,
+                                                   BoundingBox grid) {
+    double top = grid.getTop();
+    double bottom = grid.getBottom();
+    for (double px = grid.getLeft(); px <= grid.getRight(); px++) {
+      double halfChord = halfChord(r, px - cx);
+      if (halfChord < 0 || px < boxLeft || px >= boxRight) {
+        continue;
+      }
+      double from = Math.max(cy - halfChord, boxTop);
+      double to = Math.min(cy + halfChord, boxBottom);
+      for (double py = firstGridPoint(top, from); py <= bottom && py <= to + 1; py++) {
+        if (circleContains(cx, cy, r, px, py) && py >= boxTop && py < boxBottom) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Returns half the length of the chord of a circle at a distance from its
+   * center, or -1 if the circle doesn't reach that far.
+   */
+  private static double halfChord(double r, double distance) {
+    double squared = r * r - distance * distance;
+    return squared < 0 ? -1 : Math.sqrt(squared);
+  }
+
+  /*
+   * Returns the grid point just before a coordinate, or the first grid point.
+   * The caller tests the grid points from there, so that rounding in
+   * computing the coordinate doesn't skip a point.
+   */
+  private static double firstGridPoint(double first, double coordinate) {
+    return first + Math.max(0, Math.ceil(coordinate - first) - 1);
+  }
+
+  // Tests a point as Ball.containsPoint does
+  private static boolean circleContains(double cx, double cy, double r, double px, double py) {
+    return (px - cx) * (px - cx) + (py - cy) * (py - cy) <= r * r;
+  }
+}
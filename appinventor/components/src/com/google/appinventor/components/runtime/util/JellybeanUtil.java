@@ -8,6 +8,7 @@ package com.google.appinventor.components.runtime.util;
 import android.graphics.Point;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Display;
 
 /**
@@ -23,4 +24,18 @@ public class JellybeanUtil {
     display.getRealSize(outSize);
   }
 
+  /**
+   * Runs a runnable on the UI thread at the start of the next display frame.
+   *
+   * @param runnable what to run, which must be called on the UI thread
+   */
+  public static void postFrameCallback(final Runnable runnable) {
+    Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          runnable.run();
+        }
+      });
+  }
+
 }
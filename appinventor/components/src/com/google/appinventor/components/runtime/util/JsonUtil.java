@@ -6,6 +6,7 @@
 
 package com.google.appinventor.components.runtime.util;
 
+import gnu.kawa.functions.Arithmetic;
 import gnu.lists.FString;
 import gnu.math.IntFraction;
 
@@ -152,14 +153,33 @@ public class JsonUtil {
   }
 
   public static String getJsonRepresentation(Object value) throws JSONException {
+    StringBuilder json = new StringBuilder();
+    appendJsonRepresentation(value, json);
+    return json.toString();
+  }
+
+  /**
+   * Appends the JSON representation of a value, as getJsonRepresentation
+   * returns it, to a StringBuilder. Lists and arrays are written element by
+   * element into the same StringBuilder rather than each into a string of
+   * its own.
+   *
+   * @param value the value
+   * @param json the StringBuilder to append to
+   * @throws JSONException if the value can't be represented in JSON.
+   */
+  static void appendJsonRepresentation(Object value, StringBuilder json) throws JSONException {
     if (value == null || value.equals(null)) {
-      return "null";
+      json.append("null");
+      return;
     }
     if (value instanceof FString) {
-      return JSONObject.quote(value.toString());
+      json.append(JSONObject.quote(value.toString()));
+      return;
     }
     if (value instanceof YailList) {
-      return ((YailList) value).toJSONString();
+      ((YailList) value).appendJSON(json);
+      return;
     }
     // The Json tokener used in getOnjectFromJson cannot handle
     // fractions.  So we Json encode fractions by first converting
@@ -169,26 +189,29 @@ public class JsonUtil {
     // StoreValue.  See the "warning" comment in runtime.scm at
     // call-component-method.
     if (value instanceof IntFraction) {
-      return JSONObject.numberToString((Number) ((IntFraction)value).doubleValue());
+      json.append(JSONObject.numberToString((Number) ((IntFraction)value).doubleValue()));
+      return;
     }
     if (value instanceof Number) {
-      return JSONObject.numberToString((Number) value);
+      json.append(JSONObject.numberToString((Number) value));
+      return;
     }
     if (value instanceof Boolean) {
-      return value.toString();
+      json.append(value.toString());
+      return;
     }
     if (value.getClass().isArray()) {
-      StringBuilder sb = new StringBuilder();
-      sb.append("[");
+      json.append("[");
       String separator = "";
       for (Object o: (Object[]) value) {
-        sb.append(separator).append(getJsonRepresentation(o));
+        json.append(separator);
+        appendJsonRepresentation(o, json);
         separator = ",";
       }
-      sb.append("]");
-      return sb.toString();
+      json.append("]");
+      return;
     }
-    return JSONObject.quote(value.toString());
+    json.append(JSONObject.quote(value.toString()));
   }
 
   public static Object getObjectFromJson(String jsonString) throws JSONException {
@@ -215,5 +238,47 @@ public class JsonUtil {
       throw new JSONException("Invalid JSON string.");
     }
   }
-}
 
+  /**
+   * Decodes a JSON text like getObjectFromJson, but with JSON arrays and
+   * objects as YailLists whose elements are already YAIL values, so the
+   * runtime has nothing left to convert. The text is decoded in one pass,
+   * without building JSONArray and JSONObject trees and lists of them first.
+   * Text that isn't strict JSON, such as the unquoted strings that
+   * JSONTokener accepts, is decoded by getObjectFromJson instead and then
+   * converted.
+   *
+   * @param jsonString the JSON text
+   * @return the decoded value
+   * @throws JSONException if the text can't be decoded
+   */
+  public static Object getYailObjectFromJson(String jsonString) throws JSONException {
+    if ((jsonString == null) || jsonString.equals("")) {
+      // As in getObjectFromJson.
+      return "";
+    }
+    try {
+      return YailJsonDecoder.decode(jsonString);
+    } catch (YailJsonDecoder.UnsupportedJsonException e) {
+      return toYailObject(getObjectFromJson(jsonString));
+    }
+  }
+
+  /*
+   * Converts what getObjectFromJson returns to YAIL values, as the runtime's
+   * sanitize-component-data does.
+   */
+  private static Object toYailObject(Object value) {
+    if (value instanceof List) {
+      List<Object> elements = new ArrayList<Object>();
+      for (Object element : (List<?>) value) {
+        elements.add(toYailObject(element));
+      }
+      return YailList.makeList(elements);
+    }
+    if (value instanceof Number) {
+      return Arithmetic.asNumeric(value);
+    }
+    return value;
+  }
+}
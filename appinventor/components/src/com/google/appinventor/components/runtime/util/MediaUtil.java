@@ -25,6 +25,7 @@ import android.view.Display;
 import android.view.WindowManager;
 import android.widget.VideoView;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -53,6 +54,24 @@ public class MediaUtil {
   // tempFileMap maps cached media (assets, etc) to their respective temp files.
   private static final Map<String, File> tempFileMap = new HashMap<String, File>();
 
+  // The bitmap cache holds up to this fraction of the memory class of the device.
+  private static final int BITMAP_CACHE_FRACTION = 8;
+  // The memory class, in MB, assumed before Eclair, where it can't be asked for.
+  private static final int DEFAULT_MEMORY_CLASS = 16;
+  private static final int MAX_CACHED_IMAGE_SIZES = 256;
+  // How much of an image can be read to find its size and still be read again to decode it.
+  // Beyond this, for example after a large EXIF thumbnail, the image is opened a second time.
+  private static final int BOUNDS_READ_LIMIT = 256 * 1024;
+
+  // bitmapCache maps the cache keys of images, with their sample sizes and the device density, to
+  // the bitmaps decoded from them. It is created by getBitmapCache.
+  private static BoundedLruCache<String, Bitmap> bitmapCache;
+
+  // boundsCache maps the cache keys of images to their widths and heights, so that the sample size
+  // of an image is known without opening it.
+  private static final BoundedLruCache<String, int[]> boundsCache =
+      new BoundedLruCache<String, int[]>(MAX_CACHED_IMAGE_SIZES);
+
   private MediaUtil() {
   }
 
@@ -286,6 +305,9 @@ public class MediaUtil {
    *
    * <p/>If mediaPath is null or empty, null is returned.
    *
+   * <p/>The bitmaps of images that don't change are cached and shared by the
+   * drawables returned, so the drawables' bitmaps must not be modified.
+   *
    * @param form the Form
    * @param mediaPath the path to the media
    * @return a Drawable or null
@@ -300,11 +322,26 @@ public class MediaUtil {
     // Unlike other types of media, we don't cache image files from the internet to temp files.
     // The image at a particular URL, such as an image from a web cam, may change over time.
     // When the app says to fetch the image, we need to get the latest image, not one that we
-    // cached previously.
+    // cached previously. For the same reason, getCacheKey doesn't give a key for such images.
+    String cacheKey = getCacheKey(mediaPath, mediaSource);
+
+    if (cacheKey != null) {
+      int[] bounds = boundsCache.get(cacheKey);
+      if (bounds != null) {
+        int sampleSize = getSampleSize(form, bounds[0], bounds[1]);
+        Bitmap bitmap = getBitmapCache(form).get(getBitmapKey(form, cacheKey, sampleSize));
+        if (bitmap != null) {
+          return newBitmapDrawable(form, bitmap);
+        }
+      }
+    }
 
-    InputStream is1;
+    // Decode the size of the image from the start of the stream, then go back and decode its
+    // bitmap from the same stream, so that the image is opened and read once without holding
+    // all of its bytes.
+    InputStream is;
     try {
-      is1 = openMedia(form, mediaPath, mediaSource);
+      is = openMedia(form, mediaPath, mediaSource);
     } catch (IOException e) {
       if (mediaSource == MediaSource.CONTACT_URI) {
         // There's no photo for this contact, return a placeholder image.
@@ -313,52 +350,142 @@ public class MediaUtil {
       }
       throw e;
     }
-
     BitmapFactory.Options options;
+    Bitmap originalBitmap;
+    is = new BufferedInputStream(is);
     try {
-      options = getBitmapOptions(form, is1, mediaPath);
-    } finally {
-      is1.close();
-    }
+      is.mark(BOUNDS_READ_LIMIT);
+      options = getBitmapOptions(form, is, mediaPath);
+      try {
+        is.reset();
+      } catch (IOException e) {
+        // The size was further into the image than the mark. Open it again.
+        is.close();
+        is = new BufferedInputStream(openMedia(form, mediaPath, mediaSource));
+      }
+      if (cacheKey != null) {
+        boundsCache.put(cacheKey, new int[] { options.outWidth, options.outHeight });
+      }
+      options.inJustDecodeBounds = false;
 
-    InputStream is2 = openMedia(form, mediaPath, mediaSource);
-    try {
       Log.d(LOG_TAG, "mediaPath = " + mediaPath);
-      BitmapDrawable originalBitmapDrawable = new BitmapDrawable(decodeStream(is2, null, options));
-      // If options.inSampleSize == 1, then the image was not unreasonably large and may represent
-      // the actual size the user intended for the image. However we still have to scale it by
-      // the device density.
-      // However if we *did* sample the image to make it smaller, then that means that the image
-      // was not sized specifically for the application. In that case it makes no sense to
-      // scale it, so we don't.
-      // When we scale the image we do the following steps:
-      //   1. set the density in the returned bitmap drawable.
-      //   2. calculate scaled width and height
-      //   3. create a scaled bitmap with the scaled measures
-      //   4. create a new bitmap drawable with the scaled bitmap
-      //   5. set the density in the scaled bitmap.
-
-      originalBitmapDrawable.setTargetDensity(form.getResources().getDisplayMetrics());
-      if ((options.inSampleSize != 1) || (form.deviceDensity() == 1.0f)) {
-        return originalBitmapDrawable;
-      }
+      originalBitmap = decodeStream(is, null, options);
+    } finally {
+      is.close();
+    }
+    if (originalBitmap == null) {
+      throw new IOException("Unable to decode image " + mediaPath + ".");
+    }
+    BitmapDrawable originalBitmapDrawable = new BitmapDrawable(originalBitmap);
+    // If options.inSampleSize == 1, then the image was not unreasonably large and may represent
+    // the actual size the user intended for the image. However we still have to scale it by
+    // the device density.
+    // However if we *did* sample the image to make it smaller, then that means that the image
+    // was not sized specifically for the application. In that case it makes no sense to
+    // scale it, so we don't.
+    // When we scale the image we do the following steps:
+    //   1. set the density in the returned bitmap drawable.
+    //   2. calculate scaled width and height
+    //   3. create a scaled bitmap with the scaled measures
+    //   4. create a new bitmap drawable with the scaled bitmap
+    //   5. set the density in the scaled bitmap.
+
+    originalBitmapDrawable.setTargetDensity(form.getResources().getDisplayMetrics());
+    Bitmap bitmap;
+    if ((options.inSampleSize != 1) || (form.deviceDensity() == 1.0f)) {
+      bitmap = originalBitmap;
+    } else {
       int scaledWidth = (int) (form.deviceDensity() * originalBitmapDrawable.getIntrinsicWidth());
       int scaledHeight = (int) (form.deviceDensity() * originalBitmapDrawable.getIntrinsicHeight());
       Log.d(LOG_TAG, "form.deviceDensity() = " + form.deviceDensity());
       Log.d(LOG_TAG, "originalBitmapDrawable.getIntrinsicWidth() = " + originalBitmapDrawable.getIntrinsicWidth());
       Log.d(LOG_TAG, "originalBitmapDrawable.getIntrinsicHeight() = " + originalBitmapDrawable.getIntrinsicHeight());
-      Bitmap scaledBitmap = Bitmap.createScaledBitmap(originalBitmapDrawable.getBitmap(),
-          scaledWidth, scaledHeight, false);
-      BitmapDrawable scaledBitmapDrawable = new BitmapDrawable(scaledBitmap);
-      scaledBitmapDrawable.setTargetDensity(form.getResources().getDisplayMetrics());
+      bitmap = Bitmap.createScaledBitmap(originalBitmap, scaledWidth, scaledHeight, false);
+      if (bitmap != originalBitmap) {
+        // Nothing else refers to the unscaled bitmap, so free its pixels now rather than at the
+        // next collection.
+        originalBitmap.recycle();
+      }
       System.gc();              // We likely used a lot of memory, so gc now.
-      return scaledBitmapDrawable;
+    }
 
-    } finally {
-      if (is2 != null) {
-        is2.close();
-      }
+    if (cacheKey != null) {
+      getBitmapCache(form).put(getBitmapKey(form, cacheKey, options.inSampleSize), bitmap);
     }
+    return newBitmapDrawable(form, bitmap);
+  }
+
+  private static BitmapDrawable newBitmapDrawable(Form form, Bitmap bitmap) {
+    // A drawable has state, such as its bounds, so each caller gets its own drawable.
+    BitmapDrawable bitmapDrawable = new BitmapDrawable(bitmap);
+    bitmapDrawable.setTargetDensity(form.getResources().getDisplayMetrics());
+    return bitmapDrawable;
+  }
+
+  /**
+   * Returns the cache of decoded bitmaps, creating it with an eighth of the
+   * memory class of the device if it doesn't exist yet.
+   *
+   * @param context the Context
+   */
+  static synchronized BoundedLruCache<String, Bitmap> getBitmapCache(Context context) {
+    if (bitmapCache == null) {
+      int memoryClass = (SdkLevel.getLevel() >= SdkLevel.LEVEL_ECLAIR)
+          ? EclairUtil.getMemoryClass(context)
+          : DEFAULT_MEMORY_CLASS;
+      bitmapCache = new BoundedLruCache<String, Bitmap>(
+          memoryClass * 1024 * 1024 / BITMAP_CACHE_FRACTION) {
+        @Override
+        protected int sizeOf(Bitmap bitmap) {
+          return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+      };
+      Log.i(LOG_TAG, "Bitmap cache size = " + bitmapCache.maxSize());
+    }
+    return bitmapCache;
+  }
+
+  /*
+   * Returns the key that the size and bitmaps of an image are cached under, or null if the image
+   * may change without its path changing. Files, including the assets that the companion
+   * receives, are keyed by their modification times and lengths as well, so that a file that is
+   * replaced isn't found in the cache.
+   */
+  private static String getCacheKey(String mediaPath, MediaSource mediaSource) {
+    File file;
+    switch (mediaSource) {
+      case ASSET:
+        return mediaPath;
+
+      case REPL_ASSET:
+        file = new File(replAssetPath(mediaPath));
+        break;
+
+      case SDCARD:
+        file = new File(mediaPath);
+        break;
+
+      case FILE_URL:
+        try {
+          file = new File(fileUrlToFilePath(mediaPath));
+        } catch (IOException e) {
+          return null;
+        }
+        break;
+
+      default:
+        return null;
+    }
+    long lastModified = file.lastModified();
+    if (lastModified == 0) {
+      // The file doesn't exist, or can't be read.
+      return null;
+    }
+    return mediaPath + "@" + lastModified + "," + file.length();
+  }
+
+  private static String getBitmapKey(Form form, String cacheKey, int sampleSize) {
+    return cacheKey + "/" + sampleSize + "/" + form.deviceDensity();
   }
 
   private static Bitmap decodeStream(InputStream is, Rect outPadding, BitmapFactory.Options opts) {
@@ -399,9 +526,13 @@ public class MediaUtil {
     BitmapFactory.Options options = new BitmapFactory.Options();
     options.inJustDecodeBounds = true;
     decodeStream(is, null, options);
-    int imageWidth = options.outWidth;
-    int imageHeight = options.outHeight;
+    options.inSampleSize = getSampleSize(form, options.outWidth, options.outHeight);
+    Log.d(LOG_TAG, "getBitmapOptions: sampleSize = " + options.inSampleSize
+        + " mediaPath = " + mediaPath);
+    return options;
+  }
 
+  private static int getSampleSize(Form form, int imageWidth, int imageHeight) {
     // Get the screen size.
     Display display = ((WindowManager) form.getSystemService(Context.WINDOW_SERVICE)).
         getDefaultDisplay();
@@ -426,12 +557,7 @@ public class MediaUtil {
     while ((imageWidth / sampleSize > maxWidth) && (imageHeight / sampleSize > maxHeight)) {
       sampleSize *= 2;
     }
-    options = new BitmapFactory.Options();
-    Log.d(LOG_TAG, "getBitmapOptions: sampleSize = " + sampleSize + " mediaPath = " + mediaPath
-      + " maxWidth = " + maxWidth + " maxHeight = " + maxHeight +
-      " display width = " + display.getWidth() + " display height = " + display.getHeight());
-    options.inSampleSize = sampleSize;
-    return options;
+    return sampleSize;
   }
 
   // SoundPool related methods
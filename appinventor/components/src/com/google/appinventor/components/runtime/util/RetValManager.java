@@ -136,6 +136,33 @@ public class RetValManager {
     }
   }
 
+  /*
+   * sendStats -- Send performance statistics to the Blocks Editor, which
+   * logs them to the browser console.
+   *
+   * @param source What the statistics are about
+   * @param stats The statistics
+   */
+  public static void sendStats(String source, String stats) {
+    synchronized (semaphore) {
+      JSONObject retval = new JSONObject();
+      try {
+        retval.put("status", "OK");
+        retval.put("type", "stats");
+        retval.put("source", source);
+        retval.put("value", stats);
+      } catch (JSONException e) {
+        Log.e(LOG_TAG, "Error building retval", e);
+        return;
+      }
+      boolean sendNotify = currentArray.isEmpty();
+      currentArray.add(retval);
+      if (sendNotify) {
+        semaphore.notifyAll();
+      }
+    }
+  }
+
   /*
    * fetch -- Fetch all pending results as a JSON encoded array.
    *
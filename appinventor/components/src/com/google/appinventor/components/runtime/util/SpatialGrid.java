@@ -0,0 +1,207 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid of square cells over the plane, which finds the items
+ * whose bounding boxes may intersect a given box without looking at every
+ * item. Each item is listed in the cells its bounding box overlaps.
+ *
+ * <p>Items so large that they overlap more than {@link #MAX_CELLS} cells, or
+ * so far out that their cells can't be numbered, are kept aside and found
+ * by every query instead.
+ *
+ * @param <T> the type of the items
+ */
+public final class SpatialGrid<T> {
+  /**
+   * The most cells an item is listed in.
+   */
+  public static final int MAX_CELLS = 64;
+
+  // Cells further out than this are treated like large items
+  private static final double MAX_INDEX = 1 << 30;
+
+  private static final class Entry<T> {
+    final T item;
+    // Left column, top row, right column and bottom row of the cells of the
+    // item, or null for a large item
+    int[] range;
+    // The last query that found the item
+    int query;
+
+    Entry(T item) {
+      this.item = item;
+    }
+  }
+
+  private final double cellSize;
+
+  // The items in each non-empty cell, by the cell's column and row
+  private final Map<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+
+  private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+
+  private final List<Entry<T>> largeEntries = new ArrayList<Entry<T>>();
+
+  private int queries;
+
+  /**
+   * Creates an empty grid.
+   *
+   * @param cellSize the width and height of the cells
+   */
+  public SpatialGrid(double cellSize) {
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * Adds an item to the grid, or moves it if it is already there.
+   *
+   * @param item the item
+   * @param box the bounding box of the item
+   */
+  public void put(T item, BoundingBox box) {
+    Entry<T> entry = entries.get(item);
+    if (entry == null) {
+      entry = new Entry<T>(item);
+      entries.put(item, entry);
+    } else {
+      if (sameCells(entry.range, box)) {
+        return;
+      }
+      unlist(entry);
+    }
+    entry.range = cellRange(box);
+    int[] range = entry.range;
+    if (range == null) {
+      largeEntries.add(entry);
+      return;
+    }
+    for (int column = range[0]; column <= range[2]; column++) {
+      for (int row = range[1]; row <= range[3]; row++) {
+        Long cell = cellKey(column, row);
+        List<Entry<T>> cellEntries = cells.get(cell);
+        if (cellEntries == null) {
+          cellEntries = new ArrayList<Entry<T>>(4);
+          cells.put(cell, cellEntries);
+        }
+        cellEntries.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Removes an item from the grid, if it is there.
+   *
+   * @param item the item
+   */
+  public void remove(T item) {
+    Entry<T> entry = entries.remove(item);
+    if (entry != null) {
+      unlist(entry);
+    }
+  }
+
+  /**
+   * Adds the items whose bounding boxes may intersect a box to a collection,
+   * each item once.
+   *
+   * @param box the box
+   * @param results the collection to add the items to
+   */
+  public void query(BoundingBox box, Collection<T> results) {
+    int query = ++queries;
+    for (Entry<T> entry : largeEntries) {
+      entry.query = query;
+      results.add(entry.item);
+    }
+    int[] range = cellRange(box);
+    if (range == null) {
+      for (Entry<T> entry : entries.values()) {
+        if (entry.query != query) {
+          results.add(entry.item);
+        }
+      }
+      return;
+    }
+    for (int column = range[0]; column <= range[2]; column++) {
+      for (int row = range[1]; row <= range[3]; row++) {
+        List<Entry<T>> cellEntries = cells.get(cellKey(column, row));
+        if (cellEntries != null) {
+          for (Entry<T> entry : cellEntries) {
+            if (entry.query != query) {
+              entry.query = query;
+              results.add(entry.item);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of items in the grid.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private void unlist(Entry<T> entry) {
+    int[] range = entry.range;
+    if (range == null) {
+      largeEntries.remove(entry);
+      return;
+    }
+    for (int column = range[0]; column <= range[2]; column++) {
+      for (int row = range[1]; row <= range[3]; row++) {
+        Long cell = cellKey(column, row);
+        List<Entry<T>> cellEntries = cells.get(cell);
+        cellEntries.remove(entry);
+        if (cellEntries.isEmpty()) {
+          cells.remove(cell);
+        }
+      }
+    }
+  }
+
+  private boolean sameCells(int[] range, BoundingBox box) {
+    return range != null
+        && range[0] == Math.floor(box.getLeft() / cellSize)
+        && range[1] == Math.floor(box.getTop() / cellSize)
+        && range[2] == Math.floor(box.getRight() / cellSize)
+        && range[3] == Math.floor(box.getBottom() / cellSize);
+  }
+
+  /*
+   * Returns the cells that a box overlaps, or null if there are more than
+   * MAX_CELLS or the box is too odd to place.
+   */
+  private int[] cellRange(BoundingBox box) {
+    double left = Math.floor(box.getLeft() / cellSize);
+    double top = Math.floor(box.getTop() / cellSize);
+    double right = Math.floor(box.getRight() / cellSize);
+    double bottom = Math.floor(box.getBottom() / cellSize);
+    // The negations are also true for NaN coordinates
+    if (!(left <= right && top <= bottom
+          && (right - left + 1) * (bottom - top + 1) <= MAX_CELLS
+          && Math.abs(left) < MAX_INDEX && Math.abs(right) < MAX_INDEX
+          && Math.abs(top) < MAX_INDEX && Math.abs(bottom) < MAX_INDEX)) {
+      return null;
+    }
+    return new int[] { (int) left, (int) top, (int) right, (int) bottom };
+  }
+
+  private static Long cellKey(int column, int row) {
+    return ((long) column << 32) | (row & 0xffffffffL);
+  }
+}
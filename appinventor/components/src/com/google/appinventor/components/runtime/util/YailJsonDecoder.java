@@ -0,0 +1,348 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decodes JSON text to YAIL values in one pass over the text, giving what
+ * {@link JsonUtil#getObjectFromJson(String)} gives once the runtime has
+ * sanitized it: JSON arrays become YailLists, JSON objects become YailLists
+ * of [key, value] YailLists sorted by key, numbers become Kawa numbers, and
+ * within arrays and objects null becomes the string "null" and the strings
+ * "true" and "false" (in any case) become booleans.
+ *
+ * <p>Only strict JSON is decoded.  The lenient forms that JSONTokener also
+ * accepts, such as unquoted strings, comments and duplicate keys, are
+ * rejected with {@link UnsupportedJsonException} so that the caller can
+ * decode the text with JSONTokener instead, as are mistakes.
+ *
+ */
+final class YailJsonDecoder {
+
+  /**
+   * Signals text that the decoder leaves to JSONTokener.
+   */
+  static final class UnsupportedJsonException extends Exception {
+    private UnsupportedJsonException() {
+    }
+
+    @Override
+    public Throwable fillInStackTrace() {
+      // The exception is shared and only means "use JSONTokener".
+      return this;
+    }
+  }
+
+  private static final UnsupportedJsonException UNSUPPORTED = new UnsupportedJsonException();
+
+  private static final Comparator<Object[]> BY_KEY = new Comparator<Object[]>() {
+    @Override
+    public int compare(Object[] pair1, Object[] pair2) {
+      return ((String) pair1[0]).compareTo((String) pair2[0]);
+    }
+  };
+
+  private final String json;
+  private int pos;
+
+  private YailJsonDecoder(String json) {
+    this.json = json;
+  }
+
+  /**
+   * Decodes a JSON text.  At the top level, null is null and strings are
+   * kept as they are, as {@link JsonUtil#getObjectFromJson(String)} keeps
+   * them.
+   *
+   * @param json the JSON text, not empty
+   * @return the YAIL value
+   * @throws UnsupportedJsonException if the text isn't strict JSON
+   */
+  static Object decode(String json) throws UnsupportedJsonException {
+    YailJsonDecoder decoder = new YailJsonDecoder(json);
+    decoder.skipWhitespace();
+    Object value;
+    char c = decoder.peek();
+    if (c == '"') {
+      value = decoder.readString();
+    } else if (c == 'n') {
+      decoder.readWord("null");
+      value = null;
+    } else {
+      value = decoder.readValue();
+    }
+    decoder.skipWhitespace();
+    if (decoder.pos != json.length()) {
+      throw UNSUPPORTED;
+    }
+    return value;
+  }
+
+  private Object readValue() throws UnsupportedJsonException {
+    switch (peek()) {
+      case '[':
+        return readArray();
+      case '{':
+        return readObject();
+      case '"':
+        String string = readString();
+        if (string.equalsIgnoreCase("true")) {
+          return Boolean.TRUE;
+        } else if (string.equalsIgnoreCase("false")) {
+          return Boolean.FALSE;
+        }
+        return string;
+      case 't':
+        readWord("true");
+        return Boolean.TRUE;
+      case 'f':
+        readWord("false");
+        return Boolean.FALSE;
+      case 'n':
+        readWord("null");
+        return "null";
+      default:
+        return readNumber();
+    }
+  }
+
+  private YailList readArray() throws UnsupportedJsonException {
+    pos++;  // [
+    skipWhitespace();
+    if (peek() == ']') {
+      pos++;
+      return YailList.makeEmptyList();
+    }
+    List<Object> elements = new ArrayList<Object>();
+    while (true) {
+      elements.add(readValue());
+      skipWhitespace();
+      char c = next();
+      if (c == ']') {
+        return YailList.makeList(elements);
+      } else if (c != ',') {
+        throw UNSUPPORTED;
+      }
+      skipWhitespace();
+    }
+  }
+
+  private YailList readObject() throws UnsupportedJsonException {
+    pos++;  // {
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return YailList.makeEmptyList();
+    }
+    List<Object[]> pairs = new ArrayList<Object[]>();
+    while (true) {
+      if (peek() != '"') {
+        throw UNSUPPORTED;
+      }
+      String key = readString();
+      skipWhitespace();
+      if (next() != ':') {
+        throw UNSUPPORTED;
+      }
+      skipWhitespace();
+      pairs.add(new Object[] { key, readValue() });
+      skipWhitespace();
+      char c = next();
+      if (c == '}') {
+        break;
+      } else if (c != ',') {
+        throw UNSUPPORTED;
+      }
+      skipWhitespace();
+    }
+    Object[][] sortedPairs = pairs.toArray(new Object[pairs.size()][]);
+    Arrays.sort(sortedPairs, BY_KEY);
+    Object[] elements = new Object[sortedPairs.length];
+    for (int i = 0; i < sortedPairs.length; i++) {
+      if (i > 0 && sortedPairs[i][0].equals(sortedPairs[i - 1][0])) {
+        // Which of the values JSONTokener keeps depends on the JSON library.
+        throw UNSUPPORTED;
+      }
+      elements[i] = YailList.makeList(sortedPairs[i]);
+    }
+    return YailList.makeList(elements);
+  }
+
+  private String readString() throws UnsupportedJsonException {
+    int start = ++pos;  // "
+    // Most strings have no escapes and are copied from the text in one piece.
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c == '"') {
+        return json.substring(start, pos++);
+      } else if (c == '\\') {
+        break;
+      } else if (c < ' ') {
+        throw UNSUPPORTED;
+      }
+      pos++;
+    }
+    StringBuilder sb = new StringBuilder(pos - start + 16);
+    sb.append(json, start, pos);
+    while (true) {
+      char c = next();
+      if (c == '"') {
+        return sb.toString();
+      } else if (c < ' ') {
+        // This includes the end of the text.
+        throw UNSUPPORTED;
+      } else if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      c = next();
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          sb.append(c);
+          break;
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > json.length()) {
+            throw UNSUPPORTED;
+          }
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(json.charAt(pos++), 16);
+            if (digit < 0) {
+              throw UNSUPPORTED;
+            }
+            code = (code << 4) | digit;
+          }
+          sb.append((char) code);
+          break;
+        default:
+          throw UNSUPPORTED;
+      }
+    }
+  }
+
+  private Object readNumber() throws UnsupportedJsonException {
+    int start = pos;
+    if (peek() == '-') {
+      pos++;
+    }
+    if (peek() == '0') {
+      pos++;
+    } else if (!skipDigits()) {
+      throw UNSUPPORTED;
+    }
+    boolean integral = true;
+    if (peek() == '.') {
+      integral = false;
+      pos++;
+      if (!skipDigits()) {
+        throw UNSUPPORTED;
+      }
+    }
+    char c = peek();
+    if (c == 'e' || c == 'E') {
+      integral = false;
+      pos++;
+      c = peek();
+      if (c == '+' || c == '-') {
+        pos++;
+      }
+      if (!skipDigits()) {
+        throw UNSUPPORTED;
+      }
+    }
+    checkDelimiter();
+    String number = json.substring(start, pos);
+    // Like JSONTokener, take integers as longs if they fit and as doubles otherwise.
+    if (integral) {
+      try {
+        return IntNum.make(Long.parseLong(number));
+      } catch (NumberFormatException e) {
+        // Too large for a long.
+      }
+    }
+    return DFloNum.make(Double.parseDouble(number));
+  }
+
+  private boolean skipDigits() {
+    int start = pos;
+    while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+      pos++;
+    }
+    return pos > start;
+  }
+
+  private void readWord(String word) throws UnsupportedJsonException {
+    if (!json.startsWith(word, pos)) {
+      throw UNSUPPORTED;
+    }
+    pos += word.length();
+    checkDelimiter();
+  }
+
+  /*
+   * Checks that a literal ends where the decoder stopped reading it. JSONTokener
+   * reads "truely" or "12ab" as unquoted strings.
+   */
+  private void checkDelimiter() throws UnsupportedJsonException {
+    switch (peek()) {
+      case 0:
+      case ' ':
+      case '\t':
+      case '\n':
+      case '\r':
+      case ',':
+      case ']':
+      case '}':
+        return;
+      default:
+        throw UNSUPPORTED;
+    }
+  }
+
+  private void skipWhitespace() {
+    while (pos < json.length()) {
+      char c = json.charAt(pos);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      pos++;
+    }
+  }
+
+  // Returns the next character without reading it, or 0 at the end of the text
+  private char peek() {
+    return pos < json.length() ? json.charAt(pos) : 0;
+  }
+
+  // Reads the next character, or returns 0 at the end of the text
+  private char next() {
+    return pos < json.length() ? json.charAt(pos++) : 0;
+  }
+}
@@ -23,11 +23,21 @@ import android.util.Log;
  * by the Kawa framework. YailList is the main list primitive used
  * by App Inventor components.
  *
+ * <p>Walking the pairs to get an element takes time proportional to
+ * its index, so the list also keeps its elements in an array, the
+ * snapshot, for indexed access from Java. The snapshot is built when
+ * first needed, or comes for free when the list is made from a Java
+ * collection. The list operations of runtime.scm change the pairs
+ * directly, so they drop the snapshot with {@link #clearSnapshot}.
+ *
  */
 public class YailList extends Pair {
 
   private static final String LOG_TAG = "YailList";
 
+  // The elements of the list, or null if they have to be read from the pairs
+  private transient Object[] snapshot;
+
   // Component writers take note!
   // If you want to pass back a list to the blocks language, the
   // straightforward way to do this is simply to pass
@@ -49,6 +59,12 @@ public class YailList extends Pair {
     super(YailConstants.YAIL_HEADER, cdrval);
   }
 
+  // The list takes ownership of elements, which must be those of cdrval.
+  private YailList(Object cdrval, Object[] elements) {
+    super(YailConstants.YAIL_HEADER, cdrval);
+    snapshot = elements;
+  }
+
   /**
    * Create an empty YailList YailList from an array.
    */
@@ -68,16 +84,51 @@ public class YailList extends Pair {
    * Create a YailList from a List.
    */
   public static YailList makeList(List vals) {
-    LList newCdr = Pair.makeList(vals);
-    return new YailList(newCdr);
+    return makeList((Collection) vals);
   }
 
   /**
    * Create a YailList from a Collection.
    */
   public static YailList makeList(Collection vals) {
-    LList newCdr = Pair.makeList(vals.toArray(), 0);
-    return new YailList(newCdr);
+    // toArray() returns a new array, which becomes the snapshot.
+    Object[] elements = vals.toArray();
+    LList newCdr = Pair.makeList(elements, 0);
+    return new YailList(newCdr, elements);
+  }
+
+  /**
+   * Forget the elements kept for indexed access. This must be called
+   * after the pairs of the list are changed.
+   */
+  public void clearSnapshot() {
+    snapshot = null;
+  }
+
+  @Override
+  public void setCdr(Object cdr) {
+    super.setCdr(cdr);
+    snapshot = null;
+  }
+
+  /*
+   * Returns the elements of the list, reading them from the pairs if
+   * needed. The array must not be changed.
+   */
+  private Object[] snapshot() {
+    Object[] elements = snapshot;
+    if (elements == null) {
+      if (cdr instanceof Pair) {
+        elements = ((Pair) cdr).toArray();
+      } else if (cdr instanceof LList) {
+        elements = ((LList) cdr).toArray();
+      } else {
+        throw new YailRuntimeError("YailList cannot be represented as an array",
+            "YailList Error.");
+      }
+      snapshot = elements;
+    }
+    return elements;
   }
 
   /**
@@ -85,13 +136,7 @@ public class YailList extends Pair {
    */
   @Override
   public Object[] toArray() {
-    if (cdr instanceof Pair) {
-      return ((Pair) cdr).toArray();
-    } else if (cdr instanceof LList) {
-      return ((LList) cdr).toArray();
-    } else {
-      throw new YailRuntimeError("YailList cannot be represented as an array", "YailList Error.");
-    }
+    return snapshot().clone();
   }
 
   /**
@@ -102,10 +147,10 @@ public class YailList extends Pair {
    */
 
   public String[] toStringArray() {
-    int size = this.size();
-    String[] objects = new String[size];
-    for (int i = 1; i <= size; i++) {
-      objects[i - 1] = YailListElementToString(get(i));
+    Object[] elements = snapshot();
+    String[] objects = new String[elements.length];
+    for (int i = 0; i < elements.length; i++) {
+      objects[i] = YailListElementToString(elements[i]);
     }
     return objects;
   }
@@ -132,20 +177,26 @@ public class YailList extends Pair {
    * Boolean, YailList, FString and arrays containing these types.
    */
   public String toJSONString() {
+    StringBuilder json = new StringBuilder();
+    appendJSON(json);
+    return json.toString();
+  }
+
+  /**
+   * Appends the JSON representation of this YailList, as toJSONString
+   * returns it, to a StringBuilder.
+   */
+  void appendJSON(StringBuilder json) {
     try {
-      StringBuilder json = new StringBuilder();
       String separator = "";
       json.append('[');
-      int size = this.size();
-      for (int i = 1; i <= size; i++) {
-        Object value = get(i);
-        json.append(separator).append(JsonUtil.getJsonRepresentation(value));
+      for (Object value : snapshot()) {
+        json.append(separator);
+        JsonUtil.appendJsonRepresentation(value, json);
         separator = ",";
       }
       json.append(']');
 
-      return json.toString();
-
     } catch (JSONException e) {
       throw new YailRuntimeError("List failed to convert to JSON.", "JSON Creation Error.");
     }
@@ -156,7 +207,24 @@ public class YailList extends Pair {
    */
   @Override
   public int size() {
-    return super.size() - 1;
+    return snapshot().length;
+  }
+
+  /**
+   * Return the element at the given index, where the header of the list
+   * is at index 0 and the first element at index 1.
+   */
+  @Override
+  public Object get(int index) {
+    if (index == 0) {
+      return car;
+    }
+    Object[] elements = snapshot();
+    if (index < 0 || index > elements.length) {
+      throw new IndexOutOfBoundsException("Index " + index + " of a list of size "
+          + elements.length);
+    }
+    return elements[index - 1];
   }
 
   /**
@@ -10,23 +10,38 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.appinventor.components.runtime.util.RetValManager;
+import com.google.appinventor.components.runtime.util.SdkLevel;
+
+import android.graphics.Rect;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.api.easymock.PowerMock;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Tests Sprite.java.
  *
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ Canvas.class, Handler.class, Form.class, View.class })
+@PrepareForTest(value = { Canvas.class, Handler.class, Form.class, View.class, ReplForm.class,
+                          Rect.class, SystemClock.class, SdkLevel.class },
+                fullyQualifiedNames = "com.google.appinventor.components.runtime.Canvas$CanvasView")
 public class SpriteTest {
   static class TestSprite extends Sprite {
     private int height;
@@ -106,6 +121,25 @@ public class SpriteTest {
 
 }
 
+  // A sprite that records its moves instead of moving
+  private class MovingSprite extends TestSprite {
+    private final String name;
+    private int moves;
+
+    private MovingSprite(String name, int interval) {
+      super(canvasMock, handlerMock);
+      this.name = name;
+      Interval(interval);
+      Enabled(true);
+    }
+
+    @Override
+    public void alarm() {
+      moves++;
+      events.add("move " + name);
+    }
+  }
+
   private static final double DELTA = .0001;  // for floating-point comparisons
 
   private final Form formMock = PowerMock.createNiceMock(Form.class);
@@ -113,11 +147,33 @@ public class SpriteTest {
   private final Canvas canvasMock = PowerMock.createNiceMock(Canvas.class);
   private final Handler handlerMock = PowerMock.createNiceMock(Handler.class);
 
+  // What the mocks of the animation tests were asked to do, in order
+  private final List<String> events = new ArrayList<String>();
+
+  // The uptime of the animation tests, in ms
+  private long now = 1000;
+
+  // The runnables posted to the handler of the animator, and their delays
+  private final List<Runnable> posted = new ArrayList<Runnable>();
+  private final List<Long> delays = new ArrayList<Long>();
+
   @Before
   public void setUp() throws Exception {
     EasyMock.expect(canvasMock.getView()).andReturn(canvasViewMock).anyTimes();
     EasyMock.expect(canvasMock.$form()).andReturn(formMock).anyTimes();
     EasyMock.replay(canvasViewMock, canvasMock, handlerMock);
+
+    // The animation tests set the uptime, and get frames as before Jellybean
+    PowerMock.mockStatic(SystemClock.class);
+    EasyMock.expect(SystemClock.uptimeMillis()).andAnswer(new IAnswer<Long>() {
+      @Override
+      public Long answer() {
+        return now;
+      }
+    }).anyTimes();
+    PowerMock.mockStatic(SdkLevel.class);
+    EasyMock.expect(SdkLevel.getLevel()).andReturn(SdkLevel.LEVEL_FROYO).anyTimes();
+    PowerMock.replay(SystemClock.class, SdkLevel.class);
   }
 
   protected double normalizeRadians(double r) {
@@ -295,4 +351,214 @@ public class SpriteTest {
     assertEquals(0.0, bigCat.X(), DELTA);
     assertEquals(0.0, bigCat.Y(), DELTA);
   }
+
+  // Returns an answer that records an event
+  private IAnswer<Object> record(final String event) {
+    return new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        events.add(event);
+        return null;
+      }
+    };
+  }
+
+  // Creates an animator for a canvas and handler that record the frames
+  private CanvasAnimator createAnimator(Form form) {
+    Canvas frameCanvasMock = PowerMock.createNiceMock(Canvas.class);
+    EasyMock.expect(frameCanvasMock.$form()).andReturn(form).anyTimes();
+    frameCanvasMock.beginFrame();
+    EasyMock.expectLastCall().andAnswer(record("begin")).anyTimes();
+    frameCanvasMock.endFrame();
+    EasyMock.expectLastCall().andAnswer(record("end")).anyTimes();
+
+    Handler frameHandlerMock = PowerMock.createNiceMock(Handler.class);
+    EasyMock.expect(frameHandlerMock.postDelayed(EasyMock.<Runnable>anyObject(),
+        EasyMock.anyLong())).andAnswer(new IAnswer<Boolean>() {
+          @Override
+          public Boolean answer() {
+            posted.add((Runnable) EasyMock.getCurrentArguments()[0]);
+            delays.add((Long) EasyMock.getCurrentArguments()[1]);
+            return true;
+          }
+        }).anyTimes();
+    EasyMock.replay(frameCanvasMock, frameHandlerMock);
+    return new CanvasAnimator(frameCanvasMock, frameHandlerMock);
+  }
+
+  private Runnable lastPosted() {
+    return posted.get(posted.size() - 1);
+  }
+
+  private long lastDelay() {
+    return delays.get(delays.size() - 1);
+  }
+
+  @Test
+  public void testAnimatorMovesDueSprites() {
+    CanvasAnimator animator = createAnimator(formMock);
+    MovingSprite sprite = new MovingSprite("cat", 100);
+    animator.update(sprite);
+    // Due at 1100, the animator wakes up a frame before
+    assertEquals(1, posted.size());
+    assertEquals(84, lastDelay());
+    Runnable wakeUp = lastPosted();
+    assertTrue(wakeUp != animator);
+
+    now = 1084;
+    wakeUp.run();
+    assertEquals(animator, lastPosted());
+    assertEquals(16, lastDelay());
+
+    now = 1100;
+    animator.run();
+    assertEquals(1, sprite.moves);
+    assertEquals(Arrays.asList("begin", "move cat", "end"), events);
+    assertEquals(wakeUp, lastPosted());
+    assertEquals(84, lastDelay());
+
+    // A frame before the sprite is due doesn't move it
+    now = 1150;
+    animator.run();
+    assertEquals(1, sprite.moves);
+    assertEquals(3, events.size());
+
+    // A sprite that is late moves on its interval from when it was due
+    now = 1205;
+    animator.run();
+    assertEquals(2, sprite.moves);
+    now = 1299;
+    animator.run();
+    assertEquals(2, sprite.moves);
+    now = 1300;
+    animator.run();
+    assertEquals(3, sprite.moves);
+  }
+
+  @Test
+  public void testAnimatorDoesNotCatchUp() {
+    CanvasAnimator animator = createAnimator(formMock);
+    MovingSprite sprite = new MovingSprite("cat", 100);
+    animator.update(sprite);
+
+    // More than two intervals late, the sprite moves once
+    now = 1350;
+    animator.run();
+    assertEquals(1, sprite.moves);
+    animator.run();
+    assertEquals(1, sprite.moves);
+    // and next after an interval from now
+    now = 1449;
+    animator.run();
+    assertEquals(1, sprite.moves);
+    now = 1450;
+    animator.run();
+    assertEquals(2, sprite.moves);
+  }
+
+  @Test
+  public void testAnimatorMovesDueSpritesInOneFrame() {
+    CanvasAnimator animator = createAnimator(formMock);
+    MovingSprite cat = new MovingSprite("cat", 100);
+    MovingSprite mouse = new MovingSprite("mouse", 50);
+    MovingSprite dog = new MovingSprite("dog", 300);
+    animator.update(cat);
+    animator.update(mouse);
+    animator.update(dog);
+
+    now = 1100;
+    animator.run();
+    assertEquals(Arrays.asList("begin", "move cat", "move mouse", "end"), events);
+    assertTrue(animator.getStats().startsWith("frames 1 moves/frame 2.0 "));
+
+    // A disabled sprite stops moving, and no frames are requested for none
+    events.clear();
+    cat.Enabled(false);
+    animator.update(cat);
+    mouse.Enabled(false);
+    animator.update(mouse);
+    dog.Enabled(false);
+    int postedCount = posted.size();
+    animator.update(dog);
+    now = 1400;
+    animator.run();
+    assertTrue(events.isEmpty());
+    assertEquals(postedCount, posted.size());
+  }
+
+  @Test
+  public void testAnimatorSendsStatsFromCompanion() {
+    // Nothing is sent outside of the companion
+    RetValManager.fetch(false);
+    CanvasAnimator animator = createAnimator(formMock);
+    animator.update(new MovingSprite("cat", 100));
+    now = 20000;
+    animator.run();
+    assertFalse(RetValManager.fetch(false).contains("stats"));
+
+    ReplForm replFormMock = PowerMock.createNiceMock(ReplForm.class);
+    EasyMock.replay(replFormMock);
+    animator = createAnimator(replFormMock);
+    animator.update(new MovingSprite("cat", 100));
+    now = 20100;
+    animator.run();
+    String values = RetValManager.fetch(false);
+    assertTrue(values.contains("\"type\":\"stats\""));
+    assertTrue(values.contains("frames 1 moves"));
+  }
+
+  @Test
+  public void testCanvasDefersChangesInFrames() throws Exception {
+    Canvas canvas = PowerMock.createPartialMock(Canvas.class,
+        "updateSpriteBounds", "findSpriteCollisions", "$form");
+    View view = (View) PowerMock.createNiceMock(
+        Whitebox.getInnerClassType(Canvas.class, "CanvasView"));
+    Form densityFormMock = PowerMock.createNiceMock(Form.class);
+    EasyMock.expect(densityFormMock.deviceDensity()).andReturn(1.0f).anyTimes();
+    Rect rectMock = PowerMock.createNiceMock(Rect.class);
+    PowerMock.expectNew(Rect.class).andReturn(rectMock).anyTimes();
+    Whitebox.setInternalState(canvas, "view", view);
+    Whitebox.setInternalState(canvas, "changedSprites", new LinkedHashSet<Sprite>());
+    Whitebox.setInternalState(canvas, "drawnBounds", new HashMap<Sprite, Rect>());
+
+    TestSprite cat = TestSprite.createTestSprite(canvasMock, handlerMock);
+    TestSprite mouse = TestSprite.createTestSprite(canvasMock, handlerMock);
+    EasyMock.expect(canvas.$form()).andReturn(densityFormMock).anyTimes();
+    canvas.updateSpriteBounds(cat);
+    EasyMock.expectLastCall().andAnswer(record("bounds cat")).anyTimes();
+    canvas.updateSpriteBounds(mouse);
+    EasyMock.expectLastCall().andAnswer(record("bounds mouse")).anyTimes();
+    canvas.findSpriteCollisions(cat);
+    EasyMock.expectLastCall().andAnswer(record("collisions cat")).anyTimes();
+    canvas.findSpriteCollisions(mouse);
+    EasyMock.expectLastCall().andAnswer(record("collisions mouse")).anyTimes();
+    view.invalidate();
+    EasyMock.expectLastCall().andAnswer(record("invalidate")).anyTimes();
+    view.invalidate(rectMock);
+    EasyMock.expectLastCall().andAnswer(record("invalidate area")).anyTimes();
+    PowerMock.replay(canvas, view, densityFormMock, rectMock, Rect.class);
+
+    // Outside of a frame a change is handled at once
+    canvas.registerChange(cat);
+    assertEquals(Arrays.asList("bounds cat", "invalidate", "collisions cat"), events);
+
+    // In a frame only the bounds are updated, until the frame ends
+    events.clear();
+    canvas.beginFrame();
+    canvas.registerChange(cat);
+    canvas.registerChange(mouse);
+    canvas.registerChange(cat);
+    assertEquals(Arrays.asList("bounds cat", "bounds mouse", "bounds cat"), events);
+    events.clear();
+    canvas.endFrame();
+    assertEquals(Arrays.asList("invalidate area", "collisions cat", "collisions mouse"), events);
+
+    // A frame without changes redraws nothing
+    events.clear();
+    canvas.beginFrame();
+    canvas.endFrame();
+    assertTrue(events.isEmpty());
+    canvas.registerChange(mouse);
+    assertEquals(Arrays.asList("bounds mouse", "invalidate", "collisions mouse"), events);
+  }
 }
@@ -9,6 +9,9 @@ package com.google.appinventor.components.runtime;
 import com.google.appinventor.components.runtime.util.ErrorMessages;
 import com.google.appinventor.components.runtime.util.YailList;
 
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
@@ -49,38 +52,38 @@ public class WebTest extends TestCase {
     assertEquals(Boolean.TRUE, web.decodeJsonText("True"));
     assertEquals(Boolean.FALSE, web.decodeJsonText("False"));
 
-    // Numeric values.
-    assertEquals(new Integer(1), web.decodeJsonText("1"));
-    assertEquals(new Double(57.43), web.decodeJsonText("57.43"));
+    // Numeric values, which are decoded to Kawa numbers.
+    assertEquals(IntNum.make(1), web.decodeJsonText("1"));
+    assertEquals(DFloNum.make(57.43), web.decodeJsonText("57.43"));
 
     // A JSON encoded object.
     Object decodedObject = web.decodeJsonText("{\"YaVersion\":\"41\",\"Source\":\"Form\"}");
-    assertTrue(decodedObject instanceof ArrayList);
-    ArrayList outerList = (ArrayList) decodedObject;
+    assertTrue(decodedObject instanceof YailList);
+    YailList outerList = (YailList) decodedObject;
     assertEquals(2, outerList.size());
     // The items are sorted by the field name, so Source comes before YaVersion
-    Object item0 = outerList.get(0);
-    assertTrue(item0 instanceof ArrayList);
-    ArrayList firstNameValuePair = (ArrayList) item0;
+    Object item0 = outerList.getObject(0);
+    assertTrue(item0 instanceof YailList);
+    YailList firstNameValuePair = (YailList) item0;
     assertEquals(2, firstNameValuePair.size());
-    assertEquals("Source", firstNameValuePair.get(0));
-    assertEquals("Form", firstNameValuePair.get(1));
-    Object item1 = outerList.get(1);
-    assertTrue(item1 instanceof ArrayList);
-    ArrayList secondNameValuePair = (ArrayList) item1;
+    assertEquals("Source", firstNameValuePair.getObject(0));
+    assertEquals("Form", firstNameValuePair.getObject(1));
+    Object item1 = outerList.getObject(1);
+    assertTrue(item1 instanceof YailList);
+    YailList secondNameValuePair = (YailList) item1;
     assertEquals(2, secondNameValuePair.size());
-    assertEquals("YaVersion", secondNameValuePair.get(0));
-    assertEquals("41", secondNameValuePair.get(1));
+    assertEquals("YaVersion", secondNameValuePair.getObject(0));
+    assertEquals("41", secondNameValuePair.getObject(1));
 
     // A JSON encoded array.
     Object decodedArray = web.decodeJsonText("[\"Billy\",\"Sam\",\"Bobby\",\"Fred\"]");
-    assertTrue(decodedArray instanceof ArrayList);
-    ArrayList list = (ArrayList) decodedArray;
+    assertTrue(decodedArray instanceof YailList);
+    YailList list = (YailList) decodedArray;
     assertEquals(4, list.size());
-    assertEquals("Billy", list.get(0));
-    assertEquals("Sam", list.get(1));
-    assertEquals("Bobby", list.get(2));
-    assertEquals("Fred", list.get(3));
+    assertEquals("Billy", list.getObject(0));
+    assertEquals("Sam", list.getObject(1));
+    assertEquals("Bobby", list.getObject(2));
+    assertEquals("Fred", list.getObject(3));
 
     try {
       web.decodeJsonText("{\"not\":\"valid\":\"json\"}");
@@ -0,0 +1,83 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BoundedLruCache class.
+ *
+ */
+public class BoundedLruCacheTest extends TestCase {
+
+  // Sizes strings by their lengths
+  private static class StringCache extends BoundedLruCache<String, String> {
+    StringCache(int maxSize) {
+      super(maxSize);
+    }
+
+    @Override
+    protected int sizeOf(String value) {
+      return value.length();
+    }
+  }
+
+  public void testCounts() {
+    BoundedLruCache<String, Integer> cache = new BoundedLruCache<String, Integer>(2);
+    assertNull(cache.get("a"));
+    cache.put("a", 1);
+    assertEquals(Integer.valueOf(1), cache.get("a"));
+    assertEquals(Integer.valueOf(1), cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(2, cache.hitCount());
+    assertEquals(2, cache.missCount());
+    assertEquals(0, cache.evictionCount());
+    assertEquals(1, cache.size());
+  }
+
+  public void testEvictsLeastRecentlyUsed() {
+    BoundedLruCache<String, Integer> cache = new BoundedLruCache<String, Integer>(2);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.get("a");
+    cache.put("c", 3);
+    assertNull(cache.get("b"));
+    assertEquals(Integer.valueOf(1), cache.get("a"));
+    assertEquals(Integer.valueOf(3), cache.get("c"));
+    assertEquals(1, cache.evictionCount());
+    assertEquals(2, cache.size());
+  }
+
+  public void testSizes() {
+    StringCache cache = new StringCache(10);
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+    assertEquals(8, cache.size());
+    cache.put("c", "cccccc");
+    assertNull(cache.get("a"));
+    assertEquals("bbbb", cache.get("b"));
+    assertEquals(10, cache.size());
+    assertEquals(1, cache.evictionCount());
+    // Replacing a value doesn't evict it
+    assertEquals("cccccc", cache.put("c", "cc"));
+    assertEquals(6, cache.size());
+    assertEquals(1, cache.evictionCount());
+  }
+
+  public void testTooLarge() {
+    StringCache cache = new StringCache(4);
+    cache.put("a", "aa");
+    assertEquals("aa", cache.put("a", "aaaaa"));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    cache.put("b", "bbbb");
+    cache.remove("b");
+    cache.put("c", "c");
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("c"));
+  }
+}
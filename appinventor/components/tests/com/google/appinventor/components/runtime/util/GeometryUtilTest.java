@@ -0,0 +1,181 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests GeometryUtil class.
+ *
+ */
+public class GeometryUtilTest extends TestCase {
+
+  // How Sprite.colliding() tests two boxes point by point
+  private static boolean sampledBoxesIntersect(double x1, double y1, double w1, double h1,
+                                               double x2, double y2, double w2, double h2) {
+    BoundingBox rect1 = new BoundingBox(x1 - 1, y1 - 1, x1 + w1, y1 + h1);
+    if (!rect1.intersectDestructively(new BoundingBox(x2 - 1, y2 - 1, x2 + w2, y2 + h2))) {
+      return false;
+    }
+    for (double x = rect1.getLeft(); x <= rect1.getRight(); x++) {
+      for (double y = rect1.getTop(); y <= rect1.getBottom(); y++) {
+        if (x >= x1 && x < x1 + w1 && y >= y1 && y < y1 + h1
+            && x >= x2 && x < x2 + w2 && y >= y2 && y < y2 + h2) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public void testBoxesIntersectLikePointSampling() {
+    for (int x = -12; x <= 12; x++) {
+      for (int y = -12; y <= 12; y++) {
+        for (int size = 0; size <= 3; size++) {
+          assertEquals(x + "," + y + " " + size,
+              sampledBoxesIntersect(0, 0, 10, 8, x, y, size * 4, size * 3),
+              GeometryUtil.boxesIntersect(0, 0, 10, 8, x, y, size * 4, size * 3));
+        }
+      }
+    }
+  }
+
+  public void testBoxesIntersect() {
+    assertTrue(GeometryUtil.boxesIntersect(0, 0, 10, 10, 9.5, 9.5, 1, 1));
+    assertFalse(GeometryUtil.boxesIntersect(0, 0, 10, 10, 10, 0, 1, 1));
+    assertFalse(GeometryUtil.boxesIntersect(0, 0, 10, 10, 0, 10, 1, 1));
+    assertFalse(GeometryUtil.boxesIntersect(0, 0, 10, 10, 5, 5, 0, 0));
+  }
+
+  // How Sprite.colliding() tested two circles point by point
+  private static boolean sampledCirclesIntersect(double x1, double y1, double r1,
+                                                 double x2, double y2, double r2) {
+    BoundingBox rect1 = circleBox(x1, y1, r1);
+    if (!rect1.intersectDestructively(circleBox(x2, y2, r2))) {
+      return false;
+    }
+    for (double x = rect1.getLeft(); x <= rect1.getRight(); x++) {
+      for (double y = rect1.getTop(); y <= rect1.getBottom(); y++) {
+        if (circleContains(x1, y1, r1, x, y) && circleContains(x2, y2, r2, x, y)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // How Sprite.colliding() tested a circle and a box point by point
+  private static boolean sampledCircleIntersectsBox(double x1, double y1, double r1,
+                                                    double x2, double y2, double w2, double h2) {
+    BoundingBox rect1 = circleBox(x1, y1, r1);
+    if (!rect1.intersectDestructively(new BoundingBox(x2 - 1, y2 - 1, x2 + w2, y2 + h2))) {
+      return false;
+    }
+    for (double x = rect1.getLeft(); x <= rect1.getRight(); x++) {
+      for (double y = rect1.getTop(); y <= rect1.getBottom(); y++) {
+        if (circleContains(x1, y1, r1, x, y)
+            && x >= x2 && x < x2 + w2 && y >= y2 && y < y2 + h2) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // The bounding box of a ball at (x, y) with a border of 1, as Sprite.getBoundingBox(1)
+  private static BoundingBox circleBox(double x, double y, double r) {
+    return new BoundingBox(x - 1, y - 1, x + 2 * r, y + 2 * r);
+  }
+
+  // As Ball.containsPoint(), for a ball at (x, y)
+  private static boolean circleContains(double x, double y, double r, double px, double py) {
+    double cx = x + r;
+    double cy = y + r;
+    return (px - cx) * (px - cx) + (py - cy) * (py - cy) <= r * r;
+  }
+
+  private static boolean circlesIntersect(double x1, double y1, double r1,
+                                          double x2, double y2, double r2) {
+    BoundingBox rect1 = circleBox(x1, y1, r1);
+    if (!rect1.intersectDestructively(circleBox(x2, y2, r2))) {
+      return false;
+    }
+    return GeometryUtil.circlesShareGridPoint(x1 + r1, y1 + r1, r1, x2 + r2, y2 + r2, r2, rect1);
+  }
+
+  private static boolean circleIntersectsBox(double x1, double y1, double r1,
+                                             double x2, double y2, double w2, double h2) {
+    BoundingBox rect1 = circleBox(x1, y1, r1);
+    if (!rect1.intersectDestructively(new BoundingBox(x2 - 1, y2 - 1, x2 + w2, y2 + h2))) {
+      return false;
+    }
+    return GeometryUtil.circleAndBoxShareGridPoint(x1 + r1, y1 + r1, r1,
+        x2, y2, x2 + w2, y2 + h2, rect1);
+  }
+
+  public void testCirclesIntersectLikePointSampling() {
+    double[] radii = { 0, 0.5, 1, 2.5, 5, 7.5 };
+    for (double x = -16; x <= 16; x += 0.5) {
+      for (double y = -16; y <= 16; y += 0.5) {
+        for (double r : radii) {
+          assertEquals(x + "," + y + " " + r,
+              sampledCirclesIntersect(0, 0, 5, x, y, r),
+              circlesIntersect(0, 0, 5, x, y, r));
+        }
+      }
+    }
+  }
+
+  public void testCircleIntersectsBoxLikePointSampling() {
+    double[] radii = { 0, 0.5, 1, 2.5, 5, 7.5 };
+    for (double x = -16; x <= 16; x += 0.5) {
+      for (double y = -16; y <= 16; y += 0.5) {
+        for (double r : radii) {
+          for (int size = 0; size <= 3; size++) {
+            assertEquals(x + "," + y + " " + r + " " + size,
+                sampledCircleIntersectsBox(x, y, r, 0, 0, size * 4, size * 3),
+                circleIntersectsBox(x, y, r, 0, 0, size * 4, size * 3));
+          }
+        }
+      }
+    }
+  }
+
+  public void testCirclesIntersect() {
+    // Touching at a point of the grid
+    assertTrue(circlesIntersect(0, 0, 5, 10, 0, 5));
+    // Touching between points of the grid
+    assertFalse(circlesIntersect(0, 0, 5, 10.5, 0, 5));
+    assertTrue(circlesIntersect(0, 0, 5, 9.5, 0, 5));
+    // Within the bounding boxes but not touching
+    assertFalse(circlesIntersect(0, 0, 5, 7.5, 7.5, 5));
+    assertTrue(circlesIntersect(0, 0, 5, 5, 5, 0));
+  }
+
+  public void testCircleIntersectsBox() {
+    // Beside an edge
+    assertTrue(circleIntersectsBox(-10, 0, 5, 0, 0, 10, 10));
+    assertFalse(circleIntersectsBox(-10.5, 0, 5, 0, 0, 10, 10));
+    // The right edge of the box isn't in it
+    assertFalse(circleIntersectsBox(10, 0, 5, 0, 0, 10, 10));
+    // Near a corner, within the bounding boxes but not touching
+    assertFalse(circleIntersectsBox(-9, -9, 5, 0, 0, 10, 10));
+    assertTrue(circleIntersectsBox(-8, -8, 5, 0, 0, 10, 10));
+    // Inside
+    assertTrue(circleIntersectsBox(4, 4, 1, 0, 0, 10, 10));
+    assertTrue(circleIntersectsBox(-45, -45, 50, 0, 0, 10, 10));
+    // An empty box
+    assertFalse(circleIntersectsBox(-45, -45, 50, 0, 0, 0, 10));
+  }
+
+  public void testCircleAndBoxOnHalfOpenGrid() {
+    // As Sprite.intersectsWith() does, leaving out the right and bottom of the grid
+    BoundingBox grid = new BoundingBox(0, 0, 10, 10);
+    assertTrue(GeometryUtil.circleAndBoxShareGridPoint(5, 5, 50, 0, 0, 10, 10, grid));
+    assertFalse(GeometryUtil.circleAndBoxShareGridPoint(12, 5, 2, 0, 0, 10, 10, grid));
+    assertTrue(GeometryUtil.circleAndBoxShareGridPoint(11, 5, 2, 0, 0, 10, 10, grid));
+  }
+}
@@ -0,0 +1,153 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.kawa.functions.Arithmetic;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures decoding JSON texts of 1 to 10 MB to YAIL values, as
+ * Web.JsonTextDecode and TinyDB.GetValue do: with JSONTokener followed by
+ * the runtime's conversion of the nested lists to YailLists, and with the
+ * one pass decoder of {@link JsonUtil#getYailObjectFromJson(String)}.  It
+ * also measures encoding the decoded values back to JSON, with every nested
+ * list encoded to a string of its own as before, and into one StringBuilder.
+ *
+ * <p>This isn't a test, run it with
+ * {@code java com.google.appinventor.components.runtime.util.JsonDecodeBenchmark [runs]}
+ * and the test class path.  The test class path has the json.org library
+ * rather than the one in Android, so the JSONTokener times are only
+ * indicative.
+ *
+ */
+public class JsonDecodeBenchmark {
+  private static final int[] PAYLOAD_MEGABYTES = { 1, 4, 10 };
+  private static final int WARMUP_RUNS = 3;
+
+  private static final String[] CITIES = { "Cambridge", "Boston", "Hong Kong", "S\u00e3o Paulo" };
+
+  /*
+   * Returns a JSON array of records like those of a web API, of about the
+   * given length.
+   */
+  static String makePayload(int length) {
+    Random random = new Random(length);
+    StringBuilder json = new StringBuilder(length + 1000);
+    json.append('[');
+    for (int id = 0; json.length() < length; id++) {
+      if (id > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":").append(id)
+          .append(",\"name\":\"User ").append(id).append('"')
+          .append(",\"email\":\"user").append(id).append("@example.com\"")
+          .append(",\"active\":").append(random.nextBoolean())
+          .append(",\"verified\":\"").append(random.nextBoolean() ? "True" : "false").append('"')
+          .append(",\"score\":").append(random.nextInt(10000) / 100.0)
+          .append(",\"followers\":").append(random.nextInt(1000000))
+          .append(",\"bio\":\"Likes \\\"quotes\\\" and\\nnew lines\"")
+          .append(",\"tags\":[\"a").append(random.nextInt(10)).append("\",\"b\",\"c\"]")
+          .append(",\"address\":{\"zip\":\"0").append(2100 + random.nextInt(100))
+          .append("\",\"city\":\"").append(CITIES[random.nextInt(CITIES.length)])
+          .append("\",\"location\":[").append(random.nextDouble() * 180 - 90).append(',')
+          .append(random.nextDouble() * 360 - 180).append("]}")
+          .append(",\"manager\":null}");
+    }
+    json.append(']');
+    return json.toString();
+  }
+
+  // Converts a value as the runtime's sanitize-component-data does
+  private static Object sanitize(Object value) {
+    if (value instanceof Collection) {
+      List<Object> elements = new ArrayList<Object>();
+      for (Object element : (Collection) value) {
+        elements.add(sanitize(element));
+      }
+      return YailList.makeList(elements);
+    }
+    if (value instanceof Number) {
+      return Arithmetic.asNumeric(value);
+    }
+    return value;
+  }
+
+  // Encodes a value as JsonUtil.getJsonRepresentation did, each list to a string of its own
+  private static String encodeNested(Object value) throws JSONException {
+    if (value instanceof YailList) {
+      StringBuilder json = new StringBuilder();
+      String separator = "";
+      json.append('[');
+      for (Object element : ((YailList) value).toArray()) {
+        json.append(separator).append(encodeNested(element));
+        separator = ",";
+      }
+      json.append(']');
+      return json.toString();
+    }
+    return JsonUtil.getJsonRepresentation(value);
+  }
+
+  private static void report(String name, int megabytes, long[] times) {
+    long best = Long.MAX_VALUE;
+    long total = 0;
+    for (long time : times) {
+      best = Math.min(best, time);
+      total += time;
+    }
+    System.out.println(String.format("%3d MB %-24s mean %9.1f ms  best %9.1f ms",
+        megabytes, name, total / 1e6 / times.length, best / 1e6));
+  }
+
+  public static void main(String[] args) throws JSONException {
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    for (int megabytes : PAYLOAD_MEGABYTES) {
+      String payload = makePayload(megabytes * 1024 * 1024);
+      Object expected = JsonUtil.getYailObjectFromJson(payload);
+      if (!expected.equals(sanitize(JsonUtil.getObjectFromJson(payload)))) {
+        throw new AssertionError("The decoders disagree");
+      }
+      long[] tokenerTimes = new long[runs];
+      long[] streamingTimes = new long[runs];
+      long[] nestedEncodeTimes = new long[runs];
+      long[] encodeTimes = new long[runs];
+      for (int run = -WARMUP_RUNS; run < runs; run++) {
+        long start = System.nanoTime();
+        sanitize(JsonUtil.getObjectFromJson(payload));
+        long tokenerTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        JsonUtil.getYailObjectFromJson(payload);
+        long streamingTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        encodeNested(expected);
+        long nestedEncodeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        JsonUtil.getJsonRepresentation(expected);
+        long encodeTime = System.nanoTime() - start;
+
+        if (run >= 0) {
+          tokenerTimes[run] = tokenerTime;
+          streamingTimes[run] = streamingTime;
+          nestedEncodeTimes[run] = nestedEncodeTime;
+          encodeTimes[run] = encodeTime;
+        }
+      }
+      report("decode JSONTokener", megabytes, tokenerTimes);
+      report("decode one pass", megabytes, streamingTimes);
+      report("encode nested strings", megabytes, nestedEncodeTimes);
+      report("encode one StringBuilder", megabytes, encodeTimes);
+    }
+  }
+}
@@ -6,6 +6,10 @@
 
 package com.google.appinventor.components.runtime.util;
 
+import gnu.kawa.functions.Arithmetic;
+import gnu.math.DFloNum;
+import gnu.math.IntNum;
+
 import junit.framework.TestCase;
 
 import org.json.JSONArray;
@@ -14,6 +18,7 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -130,4 +135,66 @@ public class JsonUtilTest extends TestCase {
     Object shouldBeEmpty = JsonUtil.getObjectFromJson("");
     assertEquals("", JsonUtil.getObjectFromJson(""));
   }
+
+  // Converts a value as the runtime's sanitize-component-data does
+  private static Object sanitize(Object value) {
+    if (value instanceof Collection) {
+      List<Object> elements = new ArrayList<Object>();
+      for (Object element : (Collection) value) {
+        elements.add(sanitize(element));
+      }
+      return YailList.makeList(elements);
+    }
+    if (value instanceof Number) {
+      return Arithmetic.asNumeric(value);
+    }
+    return value;
+  }
+
+  private static void assertDecodesLikeJsonTokener(String json) throws JSONException {
+    assertEquals(json, sanitize(JsonUtil.getObjectFromJson(json)),
+        JsonUtil.getYailObjectFromJson(json));
+  }
+
+  public void testGetYailObjectFromJson() throws JSONException {
+    assertDecodesLikeJsonTokener("[]");
+    assertDecodesLikeJsonTokener("{}");
+    assertDecodesLikeJsonTokener("[1, -2, 3.5, -0.25e2, 1E3, 123456789101112, 0]");
+    assertDecodesLikeJsonTokener("[true, false, \"true\", \"FaLsE\", \"truely\", null]");
+    assertDecodesLikeJsonTokener(" { \"b\" : [1, {\"z\": 1, \"a\": [[], {}]}], \"a\": \"x\","
+        + " \"true\": \"y\", \"B\": null } ");
+    assertDecodesLikeJsonTokener("[\"\\t \\n \\/ \\\\ \\\" \\u007E \\u00e9\", \"\u00e9\"]");
+    assertDecodesLikeJsonTokener("\"true\"");
+    assertDecodesLikeJsonTokener("\"a \\\"string\\\"\"");
+    assertDecodesLikeJsonTokener("true");
+    assertNull(JsonUtil.getYailObjectFromJson("null"));
+    assertEquals(IntNum.make(42), JsonUtil.getYailObjectFromJson("42"));
+    assertEquals(DFloNum.make(4.5), JsonUtil.getYailObjectFromJson(" 4.5 "));
+    assertEquals("", JsonUtil.getYailObjectFromJson(""));
+  }
+
+  public void testGetYailObjectFromLenientJson() throws JSONException {
+    // JSONTokener decodes these.
+    assertDecodesLikeJsonTokener("A normal string without quotes.");
+    assertDecodesLikeJsonTokener("[unquoted, 'single quoted', 12ab]");
+    assertDecodesLikeJsonTokener("{a: 1, 'b': 2}");
+    assertDecodesLikeJsonTokener("True");
+    assertDecodesLikeJsonTokener("[1, 2] and more");
+    try {
+      JsonUtil.getYailObjectFromJson("{\"not\":\"valid\":\"json\"}");
+      fail();
+    } catch (JSONException e) {
+      // Expected.
+    }
+  }
+
+  public void testGetJsonRepresentation() throws JSONException {
+    YailList list = YailList.makeList(new Object[] { "a \"b\"", IntNum.make(1), 2.5, true,
+        YailList.makeList(new Object[] { YailList.makeEmptyList(), "c" }),
+        new Object[] { "d", 3 } });
+    String json = "[\"a \\\"b\\\"\",1,2.5,true,[[],\"c\"],[\"d\",3]]";
+    assertEquals(json, JsonUtil.getJsonRepresentation(list));
+    assertEquals(json, list.toJSONString());
+    assertEquals(list.getObject(4), ((YailList) JsonUtil.getYailObjectFromJson(json)).getObject(4));
+  }
 }
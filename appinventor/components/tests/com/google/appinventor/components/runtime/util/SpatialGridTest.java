@@ -0,0 +1,81 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests SpatialGrid class.
+ *
+ */
+public class SpatialGridTest extends TestCase {
+  private SpatialGrid<String> grid;
+
+  @Override
+  protected void setUp() throws Exception {
+    grid = new SpatialGrid<String>(10);
+  }
+
+  private Set<String> query(double l, double t, double r, double b) {
+    Set<String> results = new HashSet<String>();
+    grid.query(new BoundingBox(l, t, r, b), results);
+    return results;
+  }
+
+  private static Set<String> setOf(String... items) {
+    Set<String> set = new HashSet<String>();
+    for (String item : items) {
+      set.add(item);
+    }
+    return set;
+  }
+
+  public void testQuery() {
+    grid.put("a", new BoundingBox(0, 0, 5, 5));
+    grid.put("b", new BoundingBox(15, 15, 25, 25));
+    grid.put("c", new BoundingBox(-30, -30, -21, -21));
+    assertEquals(setOf("a"), query(1, 1, 2, 2));
+    assertEquals(setOf("a", "b"), query(5, 5, 15, 15));
+    assertEquals(setOf("b"), query(21, 21, 29, 29));
+    assertEquals(setOf("c"), query(-25, -25, -25, -25));
+    assertEquals(setOf(), query(40, 40, 50, 50));
+    assertEquals(3, grid.size());
+  }
+
+  public void testMove() {
+    grid.put("a", new BoundingBox(0, 0, 5, 5));
+    grid.put("a", new BoundingBox(50, 50, 55, 55));
+    assertEquals(setOf(), query(0, 0, 5, 5));
+    assertEquals(setOf("a"), query(50, 50, 55, 55));
+    assertEquals(1, grid.size());
+  }
+
+  public void testRemove() {
+    grid.put("a", new BoundingBox(0, 0, 35, 35));
+    grid.put("b", new BoundingBox(0, 0, 5, 5));
+    grid.remove("a");
+    grid.remove("c");
+    assertEquals(setOf("b"), query(0, 0, 35, 35));
+    assertEquals(1, grid.size());
+  }
+
+  public void testLargeItems() {
+    grid.put("large", new BoundingBox(0, 0, 1000, 1000));
+    grid.put("far", new BoundingBox(1e20, 1e20, 1e20, 1e20));
+    grid.put("odd", new BoundingBox(Double.NaN, 0, 0, 0));
+    grid.put("a", new BoundingBox(0, 0, 5, 5));
+    assertEquals(setOf("large", "far", "odd"), query(2000, 2000, 2005, 2005));
+    assertEquals(setOf("large", "far", "odd", "a"), query(-1e10, -1e10, 1e10, 1e10));
+    grid.put("large", new BoundingBox(2000, 2000, 2005, 2005));
+    grid.remove("far");
+    grid.remove("odd");
+    assertEquals(setOf("large"), query(2000, 2000, 2005, 2005));
+    assertEquals(setOf("a"), query(0, 0, 5, 5));
+  }
+}
@@ -0,0 +1,187 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures finding the collisions of balls moving on a canvas, as
+ * Canvas.findSpriteCollisions does after each sprite moves: with a
+ * {@link SpatialGrid} of the balls and exact circle intersection, by
+ * checking every other ball, and by checking every other ball point by
+ * point as before.  It reports the collision checks and the time per
+ * frame, a frame being one move of every ball.
+ *
+ * <p>This isn't a test, run it with
+ * {@code java com.google.appinventor.components.runtime.util.SpriteCollisionBenchmark [frames]}
+ * and the test class path.
+ *
+ */
+public class SpriteCollisionBenchmark {
+  private static final int[] BALL_COUNTS = { 10, 50, 200 };
+  private static final int CANVAS_WIDTH = 320;
+  private static final int CANVAS_HEIGHT = 480;
+  private static final int RADIUS = 8;
+  private static final double SPEED = 4;
+  private static final int CELL_SIZE = 64;
+  private static final int WARMUP_FRAMES = 100;
+
+  private static final int GRID = 0;
+  private static final int ALL_PAIRS = 1;
+  private static final int ALL_PAIRS_SAMPLED = 2;
+  private static final String[] MODE_NAMES = { "grid", "all pairs", "all pairs sampled" };
+
+  private final int count;
+  private final double[] x;
+  private final double[] y;
+  private final double[] dx;
+  private final double[] dy;
+  // The balls in the grid, as Canvas has the sprites
+  private final Integer[] balls;
+  private final SpatialGrid<Integer> grid = new SpatialGrid<Integer>(CELL_SIZE);
+  private long checks;
+  private long collisions;
+
+  SpriteCollisionBenchmark(int count) {
+    this.count = count;
+    x = new double[count];
+    y = new double[count];
+    dx = new double[count];
+    dy = new double[count];
+    balls = new Integer[count];
+    Random random = new Random(count);
+    for (int i = 0; i < count; i++) {
+      x[i] = random.nextDouble() * (CANVAS_WIDTH - 2 * RADIUS);
+      y[i] = random.nextDouble() * (CANVAS_HEIGHT - 2 * RADIUS);
+      double heading = random.nextDouble() * 2 * Math.PI;
+      dx[i] = SPEED * Math.cos(heading);
+      dy[i] = SPEED * Math.sin(heading);
+      balls[i] = i;
+      grid.put(balls[i], box(i));
+    }
+  }
+
+  private BoundingBox box(int i) {
+    // As Sprite.getBoundingBox(1)
+    return new BoundingBox(x[i] - 1, y[i] - 1, x[i] + 2 * RADIUS, y[i] + 2 * RADIUS);
+  }
+
+  private void move(int i) {
+    x[i] += dx[i];
+    y[i] += dy[i];
+    if (x[i] < 0 || x[i] + 2 * RADIUS > CANVAS_WIDTH) {
+      dx[i] = -dx[i];
+    }
+    if (y[i] < 0 || y[i] + 2 * RADIUS > CANVAS_HEIGHT) {
+      dy[i] = -dy[i];
+    }
+  }
+
+  private boolean colliding(int i, int j) {
+    checks++;
+    BoundingBox rect1 = box(i);
+    if (!rect1.intersectDestructively(box(j))) {
+      return false;
+    }
+    return GeometryUtil.circlesShareGridPoint(x[i] + RADIUS, y[i] + RADIUS, RADIUS,
+        x[j] + RADIUS, y[j] + RADIUS, RADIUS, rect1);
+  }
+
+  // How Sprite.colliding() tested two balls before, point by point
+  private boolean collidingSampled(int i, int j) {
+    checks++;
+    BoundingBox rect1 = box(i);
+    if (!rect1.intersectDestructively(box(j))) {
+      return false;
+    }
+    for (double px = rect1.getLeft(); px <= rect1.getRight(); px++) {
+      for (double py = rect1.getTop(); py <= rect1.getBottom(); py++) {
+        if (containsPoint(i, px, py) && containsPoint(j, px, py)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean containsPoint(int i, double px, double py) {
+    double cx = x[i] + RADIUS;
+    double cy = y[i] + RADIUS;
+    return (px - cx) * (px - cx) + (py - cy) * (py - cy) <= RADIUS * RADIUS;
+  }
+
+  void frameWithGrid() {
+    List<Integer> candidates = new ArrayList<Integer>();
+    for (int i = 0; i < count; i++) {
+      move(i);
+      grid.put(balls[i], box(i));
+      candidates.clear();
+      grid.query(box(i), candidates);
+      for (int j : candidates) {
+        if (j != i && colliding(i, j)) {
+          collisions++;
+        }
+      }
+    }
+  }
+
+  void frameWithAllPairs(boolean sampled) {
+    for (int i = 0; i < count; i++) {
+      move(i);
+      for (int j = 0; j < count; j++) {
+        if (j != i && (sampled ? collidingSampled(i, j) : colliding(i, j))) {
+          collisions++;
+        }
+      }
+    }
+  }
+
+  void frame(int mode) {
+    switch (mode) {
+      case GRID:
+        frameWithGrid();
+        break;
+      case ALL_PAIRS:
+        frameWithAllPairs(false);
+        break;
+      case ALL_PAIRS_SAMPLED:
+        frameWithAllPairs(true);
+        break;
+    }
+  }
+
+  /*
+   * Runs the frames and prints the collision checks, collisions found and
+   * time per frame.
+   */
+  void run(int mode, int frames) {
+    for (int i = 0; i < WARMUP_FRAMES; i++) {
+      frame(mode);
+    }
+    checks = 0;
+    collisions = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < frames; i++) {
+      frame(mode);
+    }
+    long time = System.nanoTime() - start;
+    System.out.println(String.format(
+        "%4d balls %-17s checks/frame %8.1f  collisions/frame %6.1f  time/frame %8.3f ms",
+        count, MODE_NAMES[mode], (double) checks / frames, (double) collisions / frames,
+        time / 1e6 / frames));
+  }
+
+  public static void main(String[] args) {
+    int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    for (int count : BALL_COUNTS) {
+      for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+        new SpriteCollisionBenchmark(count).run(mode, frames);
+      }
+    }
+  }
+}
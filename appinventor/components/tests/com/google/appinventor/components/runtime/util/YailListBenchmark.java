@@ -0,0 +1,100 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2015 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the YailList operations that components use on large lists:
+ * making a list from a Java list, reading every element by index, and
+ * converting the list to strings and to JSON.
+ *
+ * <p>This isn't a test, run it with
+ * {@code java com.google.appinventor.components.runtime.util.YailListBenchmark [iterations]}
+ * and the test class path.
+ *
+ */
+public class YailListBenchmark {
+  private static final int[] SIZES = { 1000, 10000, 100000 };
+  private static final int WARMUP_ITERATIONS = 10;
+
+  private final List<Object> elements = new ArrayList<Object>();
+  private Object sink;
+
+  YailListBenchmark(int size) {
+    for (int i = 0; i < size; i++) {
+      elements.add(i % 2 == 0 ? "item" + i : Integer.valueOf(i));
+    }
+  }
+
+  YailList makeList() {
+    return YailList.makeList(elements);
+  }
+
+  void getObjects(YailList list) {
+    int size = list.size();
+    for (int i = 0; i < size; i++) {
+      sink = list.getObject(i);
+    }
+  }
+
+  void toStringArray(YailList list) {
+    sink = list.toStringArray();
+  }
+
+  void toJSONString(YailList list) {
+    sink = list.toJSONString();
+  }
+
+  /*
+   * Runs the operations and prints their mean latency in milliseconds. The
+   * lists read from are made from pairs, as runtime.scm makes them, so the
+   * first read pays for the snapshot.
+   */
+  void run(int iterations) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      getObjects(fromPairs());
+      toStringArray(fromPairs());
+      toJSONString(fromPairs());
+    }
+    long make = 0;
+    long get = 0;
+    long strings = 0;
+    long json = 0;
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      sink = makeList();
+      long made = System.nanoTime();
+      getObjects(fromPairs());
+      long got = System.nanoTime();
+      toStringArray(fromPairs());
+      long converted = System.nanoTime();
+      toJSONString(fromPairs());
+      long encoded = System.nanoTime();
+      make += made - start;
+      get += got - made;
+      strings += converted - got;
+      json += encoded - converted;
+    }
+    System.out.println(String.format(
+        "%7d elements  makeList %8.3f ms  getObject %8.3f ms  toStringArray %8.3f ms"
+        + "  toJSONString %8.3f ms",
+        elements.size(), make / 1e6 / iterations, get / 1e6 / iterations,
+        strings / 1e6 / iterations, json / 1e6 / iterations));
+  }
+
+  private YailList fromPairs() {
+    return YailList.makeList(elements.toArray());
+  }
+
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    for (int size : SIZES) {
+      new YailListBenchmark(size).run(iterations);
+    }
+  }
+}
@@ -7,6 +7,8 @@
 package com.google.appinventor.components.runtime.util;
 
 import gnu.lists.FString;
+import gnu.lists.LList;
+import gnu.lists.Pair;
 
 import junit.framework.TestCase;
 
@@ -179,6 +181,48 @@ public class YailListTest extends TestCase {
     }
   }
 
+  public void testGet() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c"});
+    assertEquals(YailConstants.YAIL_HEADER, yailList.get(0));
+    assertEquals("a", yailList.get(1));
+    assertEquals("c", yailList.get(3));
+    assertEquals("b", yailList.getObject(1));
+    try {
+      yailList.get(4);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testChangedPairs() {
+    ArrayList<String> testList = new ArrayList<String>();
+    testList.add("a");
+    testList.add("b");
+    YailList yailList = YailList.makeList(testList);
+    assertEquals("b", yailList.getString(1));
+    // What runtime.scm does to replace, append and remove items
+    ((Pair) yailList.getCdr()).setCar("z");
+    yailList.clearSnapshot();
+    assertEquals("z", yailList.getString(0));
+    ((Pair) yailList.getCdr()).lastPair().setCdr(new Pair("c", LList.Empty));
+    yailList.clearSnapshot();
+    assertEquals(3, yailList.size());
+    assertEquals("[\"z\",\"b\",\"c\"]", yailList.toJSONString());
+    yailList.setCdr(((Pair) yailList.getCdr()).getCdr());
+    assertEquals(2, yailList.size());
+    assertEquals("b", yailList.getString(0));
+    // The list made from a Java list doesn't follow it
+    testList.set(0, "x");
+    assertEquals("b", yailList.getString(0));
+  }
+
+  public void testToArrayIsACopy() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b"});
+    yailList.toArray()[0] = "z";
+    assertEquals("a", yailList.getString(0));
+  }
+
   public void testCreationFromArray() {
     String[] testArray = {"Mahmoud Ahmadinejad", "Alvin Stardust", "The Hamburglar"};
     YailList yailList = YailList.makeList(testArray);